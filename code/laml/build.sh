@@ -1,10 +1,15 @@
 #!/bin/bash
 
 # Helper script to read series of files to compile from given BUILD file
-# and run compile.sh with those files as inputs.
+# and run compile.sh with those files as inputs. If an output file is given as
+# well, the program is written there and its source map next to it.
 
 lines=`cat $1 | wc -l`
 echo "Compiling $lines files..." 1>&2;
 
 tools_dir=`dirname $BASH_SOURCE`
-cat $1 | xargs -n $lines $tools_dir/compile.sh
+if [ -n "$2" ]; then
+    cat $1 | xargs -n $lines $tools_dir/compile.sh -o $2
+else
+    cat $1 | xargs -n $lines $tools_dir/compile.sh
+fi
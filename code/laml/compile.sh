@@ -1,3 +1,5 @@
 #!/bin/bash
 
-cat $@ | java -cp $BASH_SOURCE/../bin/ laml.compiler.Main
+# Files are concatenated in order; options (e.g. -o out.gcc, which also writes
+# out.srcmap) are passed on to the compiler
+java -cp $BASH_SOURCE/../bin/ laml.compiler.Main "$@"
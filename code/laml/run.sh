@@ -0,0 +1,3 @@
+#!/bin/bash
+
+java -cp $BASH_SOURCE/../bin/ laml.vm.GccHarness $@
@@ -1,33 +1,85 @@
 package laml.compiler;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 
 /**
- * A final GCC program, using absolute addresses rather than labels. Calling
- * toString on this should produce a final runnable GCC String.
+ * A final GCC program, using absolute addresses rather than labels. Use write
+ * to output the runnable GCC code; toString produces the same text, but in
+ * memory.
  */
 public class AbsoluteProgram {
-    // None of the lines should have LABEL tokens
-    private List<Line> code;
+    // All operands are resolved, none of them are label ids
+    private InstructionBuffer code;
 
-    public AbsoluteProgram() {
-        code = new ArrayList<Line>();
+    public AbsoluteProgram(InstructionBuffer code) {
+        this.code = code;
     }
 
-    public void addLine(Line l) {
-        code.add(l);
+    public InstructionBuffer getCode() {
+        return code;
+    }
+
+    /**
+     * Stream the program text to out, optionally leaving out comments.
+     */
+    public void write(WritableByteChannel out, boolean comments)
+            throws IOException {
+        new AssemblyWriter(out, comments).write(code);
+    }
+
+    /**
+     * Read back GCC assembly text, as written by write. Operands are all
+     * integers, code addresses included; comments are kept and blank lines
+     * become breaks.
+     */
+    public static AbsoluteProgram parse(String text) {
+        InstructionBuffer code = new InstructionBuffer();
+        for (String l : text.split("\n")) {
+            String comment = "";
+            int index = l.indexOf(';');
+            if (index >= 0) {
+                comment = l.substring(index + 1).trim();
+                l = l.substring(0, index);
+            }
+            String[] tokens = l.trim().split("\\s+");
+            if (tokens[0].isEmpty()) {
+                if (index < 0) {
+                    code.addBreak();
+                }
+                continue;
+            }
+            Opcode op;
+            try {
+                op = Opcode.valueOf(tokens[0]);
+            } catch (IllegalArgumentException e) {
+                throw new RuntimeException("Unknown operation: " + l.trim());
+            }
+            if (tokens.length - 1 != op.numArgs) {
+                throw new RuntimeException(op + " takes " + op.numArgs
+                        + " operands: " + l.trim());
+            }
+            int[] args = new int[2];
+            for (int i = 0; i < op.numArgs; ++i) {
+                args[i] = Integer.parseInt(tokens[i + 1]);
+            }
+            code.add(op, args[0], args[1], comment);
+        }
+        return new AbsoluteProgram(code);
     }
 
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder();
-        for (Line l : code) {
-            sb.append(l.toString());
-            sb.append("\n");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            write(Channels.newChannel(out), true);
+        } catch (IOException e) {
+            // Writing to memory doesn't fail
+            throw new RuntimeException(e);
         }
-        // Trim and ensure the program ends with a single newline
-        String prog = sb.toString().trim().concat("\n");
-        return prog;
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
     }
 }
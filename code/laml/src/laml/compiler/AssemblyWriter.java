@@ -0,0 +1,158 @@
+package laml.compiler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a laid out program as GCC assembly text straight into a fixed size
+ * byte buffer, which is handed to the channel whenever it fills up. Output
+ * never needs more memory than the buffer on top of the program itself.
+ * Functions are separated by empty lines, and each instruction is followed by
+ * its comment unless comments are turned off.
+ *
+ * Text is written as ISO-8859-1, the same encoding the lexer reads source in,
+ * so any odd bytes copied from the source into comments come out unchanged.
+ */
+public class AssemblyWriter {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final byte[][] OP_NAMES;
+    static {
+        Opcode[] ops = Opcode.values();
+        OP_NAMES = new byte[ops.length][];
+        for (int i = 0; i < ops.length; ++i) {
+            OP_NAMES[i] = ops[i].name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final WritableByteChannel out;
+    private final boolean comments;
+    private final ByteBuffer buffer;
+    private final byte[] bytes;
+    private int pos;
+
+    public AssemblyWriter(WritableByteChannel out, boolean comments) {
+        this.out = out;
+        this.comments = comments;
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        bytes = buffer.array();
+        pos = 0;
+    }
+
+    private void drain() throws IOException {
+        buffer.clear();
+        buffer.limit(pos);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        pos = 0;
+    }
+
+    // The put methods assume the caller has made room with reserve
+
+    private void reserve(int length) throws IOException {
+        if (pos + length > bytes.length) {
+            drain();
+        }
+    }
+
+    private void put(int b) {
+        bytes[pos++] = (byte) b;
+    }
+
+    private void put(byte[] b) {
+        System.arraycopy(b, 0, bytes, pos, b.length);
+        pos += b.length;
+    }
+
+    private void putInt(int val) {
+        long v = val;
+        if (v < 0) {
+            put('-');
+            v = -v;
+        }
+        int digits = 1;
+        for (long t = v / 10; t > 0; t /= 10) {
+            digits++;
+        }
+        // Digits are written backwards from the end
+        pos += digits;
+        for (int i = 1; i <= digits; ++i) {
+            bytes[pos - i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+    }
+
+    /**
+     * Write a comment, which may be longer than the buffer.
+     */
+    private void putComment(String comment) throws IOException {
+        int length = comment.length();
+        for (int start = 0; start < length; start += bytes.length) {
+            int end = Math.min(length, start + bytes.length);
+            reserve(end - start);
+            for (int i = start; i < end; ++i) {
+                char c = comment.charAt(i);
+                bytes[pos++] = (byte) (c < 256 ? c : '?');
+            }
+        }
+    }
+
+    private static boolean isBlank(String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            if (!Character.isWhitespace(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeLine(InstructionBuffer code, int addr)
+            throws IOException {
+        Opcode op = code.getOpcode(addr);
+        // Longest op, two operands with spaces and the comment separator
+        reserve(4 + 2 * 12 + 3);
+        put(OP_NAMES[op.ordinal()]);
+        for (int i = 0; i < op.numArgs; ++i) {
+            put(' ');
+            putInt(code.getArg(addr, i));
+        }
+        if (comments) {
+            String comment = code.getComment(addr);
+            if (comment.indexOf('\n') >= 0) {
+                throw new RuntimeException(
+                        "Comment may not contain newlines: " + comment);
+            }
+            // Don't leave trailing whitespace after an empty comment
+            if (!isBlank(comment)) {
+                put(' ');
+                put(';');
+                put(' ');
+                putComment(comment);
+            }
+        }
+        reserve(1);
+        put('\n');
+    }
+
+    /**
+     * Write the whole program. The channel is not closed.
+     */
+    public void write(InstructionBuffer code) throws IOException {
+        int nextBreak = 0;
+        for (int addr = 0; addr < code.size(); ++addr) {
+            if (nextBreak < code.getNumBreaks()
+                    && code.getBreak(nextBreak) == addr) {
+                nextBreak++;
+                // No empty line before the first function
+                if (addr > 0) {
+                    reserve(1);
+                    put('\n');
+                }
+            }
+            writeLine(code, addr);
+        }
+        drain();
+    }
+}
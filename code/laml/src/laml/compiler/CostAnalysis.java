@@ -0,0 +1,878 @@
+package laml.compiler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import laml.compiler.parser.EnvFrame.Binding;
+import laml.compiler.parser.LabelAllocator;
+
+/**
+ * Static bound on the cycles and control stack depth of each function of a
+ * program, over its call graph, without running it.
+ *
+ * The analysis runs on the optimizer's functions, before the program is
+ * written out, since their loads still know which binding they load. A call
+ * is resolved to the closure the LDF before it made, or to the function
+ * defined by the binding a LD before it loads. A closure passed in as an
+ * argument can't be resolved, and a function which may call one has no
+ * bound.
+ *
+ * How long a recursive function runs depends on its data. A set of mutually
+ * recursive functions is bounded if every call from one to another passes
+ * on the cdr of the caller's argument in the same position, so that the
+ * calls walk down a list. Since no list in a game has more elements than
+ * the map has cells, n = W*H bounds how many times round the set goes per
+ * call from outside it: n + 1, the last finding the list's end. Costs are
+ * then polynomials in n, recursion nested k deep giving terms in n^k.
+ * Recursion through calls which are not tail calls also grows the control
+ * stack for each time round. Any other recursion, e.g. counting down a
+ * number or a function calling into its set twice on one path, has no
+ * bound.
+ *
+ * The cost of main, which runs when the game starts, is also broken down by
+ * top-level define, e.g. to show world-x and world-y walking the map with
+ * list-size.
+ */
+public class CostAnalysis {
+    private static final String BODY_SUFFIX = "_$body$";
+
+    /**
+     * A polynomial in n with non-negative coefficients, which saturate
+     * rather than overflow, or unbounded.
+     */
+    public static final class Cost {
+        public static final Cost ZERO = new Cost(new long[] { 0 });
+        public static final Cost ONE = new Cost(new long[] { 1 });
+        public static final Cost UNBOUNDED = new Cost(null);
+        private static final long MAX = Long.MAX_VALUE / 4;
+
+        // Coefficient of n^i, null if unbounded
+        private final long[] coefficients;
+
+        private Cost(long[] coefficients) {
+            this.coefficients = coefficients;
+        }
+
+        public static Cost constant(long c) {
+            return new Cost(new long[] { c });
+        }
+
+        private static long add(long a, long b) {
+            return Math.min(MAX, a + b);
+        }
+
+        public boolean isBounded() {
+            return coefficients != null;
+        }
+
+        public Cost plus(Cost other) {
+            if (!isBounded() || !other.isBounded()) {
+                return UNBOUNDED;
+            }
+            long[] c = Arrays.copyOf(coefficients, Math.max(
+                    coefficients.length, other.coefficients.length));
+            for (int i = 0; i < other.coefficients.length; ++i) {
+                c[i] = add(c[i], other.coefficients[i]);
+            }
+            return new Cost(c);
+        }
+
+        /**
+         * A bound on the larger of the two for every n >= 0: the larger of
+         * each coefficient.
+         */
+        public Cost max(Cost other) {
+            if (!isBounded() || !other.isBounded()) {
+                return UNBOUNDED;
+            }
+            long[] c = Arrays.copyOf(coefficients, Math.max(
+                    coefficients.length, other.coefficients.length));
+            for (int i = 0; i < other.coefficients.length; ++i) {
+                c[i] = Math.max(c[i], other.coefficients[i]);
+            }
+            return new Cost(c);
+        }
+
+        public Cost timesN() {
+            if (!isBounded()) {
+                return UNBOUNDED;
+            }
+            long[] c = new long[coefficients.length + 1];
+            System.arraycopy(coefficients, 0, c, 1, coefficients.length);
+            return new Cost(c);
+        }
+
+        /**
+         * Integer.MAX_VALUE if unbounded.
+         */
+        public int degree() {
+            if (!isBounded()) {
+                return Integer.MAX_VALUE;
+            }
+            for (int i = coefficients.length - 1; i > 0; --i) {
+                if (coefficients[i] != 0) {
+                    return i;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Long.MAX_VALUE if unbounded.
+         */
+        public long evaluate(long n) {
+            if (!isBounded()) {
+                return Long.MAX_VALUE;
+            }
+            long total = 0;
+            for (int i = degree(); i >= 0; --i) {
+                total = n != 0 && total > MAX / n ? MAX : total * n;
+                total = add(total, coefficients[i]);
+            }
+            return total;
+        }
+
+        /**
+         * The cost for lists of n elements, as a number or "unbounded".
+         */
+        public String format(long n) {
+            return isBounded() ? String.valueOf(evaluate(n)) : "unbounded";
+        }
+
+        @Override
+        public String toString() {
+            if (!isBounded()) {
+                return "unbounded";
+            }
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i <= degree(); ++i) {
+                long c = coefficients[i];
+                if (c == 0 && (i > 0 || degree() > 0)) {
+                    continue;
+                }
+                if (sb.length() > 0) {
+                    sb.append(" + ");
+                }
+                if (i == 0 || c != 1) {
+                    sb.append(c);
+                }
+                if (i == 1) {
+                    sb.append("n");
+                } else if (i > 1) {
+                    sb.append("n^").append(i);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * A call site, and what is known of what it calls.
+     */
+    private static class Call {
+        final boolean tail;
+        // Entry of the function called, -1 if it couldn't be resolved
+        final int target;
+        // Argument positions given the cdr of the caller's own argument in
+        // the same position
+        final Set<Integer> walked;
+
+        Call(boolean tail, int target, Set<Integer> walked) {
+            this.tail = tail;
+            this.target = target;
+            this.walked = walked;
+        }
+    }
+
+    /**
+     * The cdr of an argument of the function being looked at, on the data
+     * stack.
+     */
+    private static class Rest {
+        final Binding of;
+
+        Rest(Binding of) {
+            this.of = of;
+        }
+    }
+
+    /**
+     * What one function costs, including everything it calls.
+     */
+    public static class FunctionCost {
+        public final int addr;
+        public final String name;
+        public Cost cycles = Cost.ZERO;
+        // Entries pushed on the control stack while it runs
+        public Cost depth = Cost.ZERO;
+        // Part of a set of mutually recursive functions
+        public boolean recursive;
+        // Recursive, and the set's calls walk down a list, so its cost has a
+        // factor of n
+        public boolean walksList;
+        // Recursive through calls which aren't tail calls
+        public boolean growsStack;
+        // Calls of closures which couldn't be resolved
+        public int unresolvedCalls;
+        final List<Call> calls = new ArrayList<Call>();
+        final List<Integer> callees = new ArrayList<Integer>();
+        // Those called other than by a tail call
+        final List<Integer> nonTailCallees = new ArrayList<Integer>();
+        // Frames up from the code's own to the one holding its arguments:
+        // one for each frame of locals the function was split off to set up
+        final int argsDepth;
+        // Strongly connected component of the call graph, see computeCosts
+        int component = -1;
+
+        FunctionCost(int addr, String name, String label) {
+            this.addr = addr;
+            this.name = name;
+            int depth = 0;
+            while (label != null && label.endsWith(BODY_SUFFIX)) {
+                label = label.substring(0, label.length()
+                        - BODY_SUFFIX.length());
+                depth++;
+            }
+            this.argsDepth = depth;
+        }
+
+        /**
+         * Whether this is the body a function with locals calls once its
+         * frame is set up.
+         */
+        boolean isBody() {
+            return argsDepth > 0;
+        }
+    }
+
+    /**
+     * What running a stretch of code costs.
+     */
+    private static class Walk {
+        Cost cycles = Cost.ZERO;
+        Cost depth = Cost.ZERO;
+        // Most calls into the component being costed on any path
+        int recursiveCalls;
+    }
+
+    private final InstructionBuffer code;
+    // Binding of the LD or ST at each address, if known
+    private final Binding[] bindings;
+    private final Map<String, Integer> labelAddrs = new HashMap<String, Integer>();
+    private final Map<Integer, FunctionCost> functions = new LinkedHashMap<Integer, FunctionCost>();
+    private final Map<Integer, Call> calls = new HashMap<Integer, Call>();
+    // Cost of each top-level define in main, in order
+    private final Map<String, Cost> defines = new LinkedHashMap<String, Cost>();
+
+    /**
+     * Analyze the program the functions make once laid out in order, as
+     * Main writes it.
+     */
+    public CostAnalysis(List<LabeledFunction> program) {
+        RelativeProgram relative = new RelativeProgram();
+        relative.addLabeledFunctions(program);
+        AbsoluteProgram prog = relative.translate();
+        code = prog.getCode();
+        bindings = new Binding[code.size()];
+        Map<Integer, String> labels = new HashMap<Integer, String>();
+        int addr = 0;
+        for (LabeledFunction f : program) {
+            labelAddrs.put(f.label, addr);
+            labels.put(addr, f.label);
+            for (Line line : f.getInstructions()) {
+                bindings[addr++] = line.getBinding();
+            }
+        }
+
+        FunctionNames names = new FunctionNames(prog, null);
+        for (int entry : names.getEntries()) {
+            if (entry < code.size()) {
+                functions.put(entry, new FunctionCost(entry, names.get(entry),
+                        labels.get(entry)));
+            }
+        }
+        for (FunctionCost f : functions.values()) {
+            findCallees(f);
+        }
+        computeCosts();
+        computeDefines();
+    }
+
+    public List<FunctionCost> getFunctions() {
+        return new ArrayList<FunctionCost>(functions.values());
+    }
+
+    /**
+     * The first function with the name, or null if there is none.
+     */
+    public FunctionCost getFunction(String name) {
+        for (FunctionCost f : functions.values()) {
+            if (f.name.equals(name)) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Main, which builds the AI's initial state.
+     */
+    public FunctionCost getMain() {
+        return functions.get(0);
+    }
+
+    /**
+     * Cost of main.
+     */
+    public Cost getInitCost() {
+        return getMain().cycles;
+    }
+
+    /**
+     * Cost of each top-level define, in the order they run. Empty if main
+     * builds its frame without storing each define in turn.
+     */
+    public Map<String, Cost> getDefineCosts() {
+        return defines;
+    }
+
+    /**
+     * Why the function's cost has no bound: for each function it may run
+     * which makes unresolved calls or recursion not down a list, which.
+     * Empty if it is bounded.
+     */
+    public List<String> getUnboundedReasons(FunctionCost f) {
+        List<String> reasons = new ArrayList<String>();
+        Set<Integer> seen = new LinkedHashSet<Integer>();
+        List<Integer> pending = new ArrayList<Integer>();
+        pending.add(f.addr);
+        while (!pending.isEmpty()) {
+            FunctionCost g = functions.get(pending.remove(pending.size() - 1));
+            if (!seen.add(g.addr)) {
+                continue;
+            }
+            if (g.unresolvedCalls > 0) {
+                reasons.add(g.name + " calls a closure it can't resolve");
+            }
+            if (g.recursive && !g.walksList) {
+                reasons.add(g.name + " recurses other than down a list");
+            }
+            pending.addAll(g.callees);
+        }
+        return reasons;
+    }
+
+    private static boolean isCall(Opcode op) {
+        return op == Opcode.AP || op == Opcode.TAP || op == Opcode.RAP
+                || op == Opcode.TRAP;
+    }
+
+    private static boolean isTailCall(Opcode op) {
+        return op == Opcode.TAP || op == Opcode.TRAP;
+    }
+
+    private static boolean isArgument(Binding binding) {
+        return !binding.scratch
+                && binding.definition.code.getNumInstructions() == 0;
+    }
+
+    /**
+     * What the LD at pc puts on the data stack, as far as calls care: the
+     * entry of the function its binding is defined as, the binding if it
+     * is one of f's own arguments, or else null.
+     */
+    private Object load(FunctionCost f, int pc) {
+        Binding binding = bindings[pc];
+        if (binding == null) {
+            return null;
+        }
+        if (isArgument(binding)) {
+            return code.getArg(pc, 0) == f.argsDepth ? binding : null;
+        }
+        Line first = binding.definition.code.getFirstLine();
+        if (binding.scratch || first == null
+                || binding.definition.code.getNumInstructions() != 1
+                || first.getOpcode() != Opcode.LDF) {
+            return null;
+        }
+        return labelAddrs.get(first.getLabel(0));
+    }
+
+    private static Object pop(List<Object> stack) {
+        return stack.isEmpty() ? null : stack.remove(stack.size() - 1);
+    }
+
+    /**
+     * Track what an instruction other than a branch or call leaves on the
+     * data stack.
+     */
+    private void step(FunctionCost f, int pc, Opcode op, List<Object> stack) {
+        switch (op) {
+        case LDC:
+            stack.add(null);
+            break;
+        case LD:
+            stack.add(load(f, pc));
+            break;
+        case LDF:
+            stack.add(code.getArg(pc, 0));
+            break;
+        case CDR: {
+            Object value = pop(stack);
+            if (value instanceof Binding) {
+                stack.add(new Rest((Binding) value));
+            } else {
+                // The cdr of a Rest is still shorter than the argument
+                stack.add(value instanceof Rest ? value : null);
+            }
+            break;
+        }
+        case CAR:
+        case ATOM:
+            pop(stack);
+            stack.add(null);
+            break;
+        case ADD:
+        case SUB:
+        case MUL:
+        case DIV:
+        case CEQ:
+        case CGT:
+        case CGTE:
+        case CONS:
+            pop(stack);
+            pop(stack);
+            stack.add(null);
+            break;
+        case ST:
+        case DBUG:
+            pop(stack);
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Find the calls the function makes, over its own code and the if
+     * branches it selects, following what is on the data stack from the
+     * start of each block to know what each call calls with what.
+     */
+    private void findCallees(FunctionCost f) {
+        List<Integer> pending = new ArrayList<Integer>();
+        boolean[] seen = new boolean[code.size()];
+        pending.add(f.addr);
+        while (!pending.isEmpty()) {
+            int pc = pending.remove(pending.size() - 1);
+            // Null where nothing useful is known
+            List<Object> stack = new ArrayList<Object>();
+            while (pc >= 0 && pc < code.size() && !seen[pc]) {
+                seen[pc] = true;
+                Opcode op = code.getOpcode(pc);
+                if (op == Opcode.SEL || op == Opcode.TSEL) {
+                    pop(stack);
+                    pending.add(code.getArg(pc, 0));
+                    pending.add(code.getArg(pc, 1));
+                    if (op == Opcode.TSEL) {
+                        break;
+                    }
+                    stack.add(null);
+                } else if (isCall(op)) {
+                    Call call = makeCall(f, pc, stack);
+                    calls.put(pc, call);
+                    f.calls.add(call);
+                    if (call.target < 0 || !functions.containsKey(call.target)) {
+                        f.unresolvedCalls++;
+                    } else {
+                        if (!f.callees.contains(call.target)) {
+                            f.callees.add(call.target);
+                        }
+                        if (!call.tail
+                                && !f.nonTailCallees.contains(call.target)) {
+                            f.nonTailCallees.add(call.target);
+                        }
+                    }
+                    if (call.tail) {
+                        break;
+                    }
+                    stack.add(null);
+                } else if (op == Opcode.RTN || op == Opcode.JOIN
+                        || op == Opcode.STOP) {
+                    break;
+                } else {
+                    step(f, pc, op, stack);
+                }
+                pc++;
+            }
+        }
+    }
+
+    /**
+     * The call at pc, popping its closure and arguments off the stack.
+     */
+    private Call makeCall(FunctionCost f, int pc, List<Object> stack) {
+        Object closure = pop(stack);
+        Object[] args = new Object[code.getArg(pc, 0)];
+        for (int i = args.length - 1; i >= 0; --i) {
+            args[i] = pop(stack);
+        }
+        Set<Integer> walked = new LinkedHashSet<Integer>();
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i] instanceof Rest && ((Rest) args[i]).of.index == i) {
+                walked.add(i);
+            }
+        }
+        return new Call(isTailCall(code.getOpcode(pc)),
+                closure instanceof Integer ? (Integer) closure : -1, walked);
+    }
+
+    /**
+     * A stretch of code being walked, waiting on the walks of the branches
+     * of the SEL or TSEL it stopped at.
+     */
+    private static class WalkTask {
+        int pc;
+        final int stop;
+        final Walk walk = new Walk();
+        // Walk of the SEL's first branch, once done
+        Walk taken;
+
+        WalkTask(int pc, int stop) {
+            this.pc = pc;
+            this.stop = stop;
+        }
+    }
+
+    /**
+     * Cost of the code from pc to the end of its block, or to stop, which is
+     * not included. Calls to functions in the given component cost nothing,
+     * since the component's cost is counted per time round it.
+     *
+     * Branches nest as deep as the program's ifs, so they are walked from a
+     * stack of tasks rather than by recursion.
+     */
+    private Walk walk(int pc, int stop, int component) {
+        Deque<WalkTask> stack = new ArrayDeque<WalkTask>();
+        stack.push(new WalkTask(pc, stop));
+        // Walk of the task last finished
+        Walk done = null;
+        while (!stack.isEmpty()) {
+            WalkTask task = stack.peek();
+            if (done != null) {
+                // A branch of the SEL or TSEL at task.pc
+                if (task.taken == null) {
+                    task.taken = done;
+                    done = null;
+                    stack.push(new WalkTask(code.getArg(task.pc, 1), -1));
+                    continue;
+                }
+                boolean ends = join(task, done);
+                done = null;
+                if (ends) {
+                    done = stack.pop().walk;
+                    continue;
+                }
+                task.pc++;
+            }
+            if (advance(task, component)) {
+                done = stack.pop().walk;
+            } else {
+                stack.push(new WalkTask(code.getArg(task.pc, 0), -1));
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Add the SEL or TSEL at task.pc, given the walk of its second branch,
+     * to the task's walk, returning whether it ends the task.
+     */
+    private boolean join(WalkTask task, Walk other) {
+        Walk w = task.walk;
+        Walk t = task.taken;
+        task.taken = null;
+        w.cycles = w.cycles.plus(Cost.ONE).plus(t.cycles.max(other.cycles));
+        w.recursiveCalls += Math.max(t.recursiveCalls, other.recursiveCalls);
+        Cost branchDepth = t.depth.max(other.depth);
+        if (code.getOpcode(task.pc) == Opcode.TSEL) {
+            w.depth = w.depth.max(branchDepth);
+            return true;
+        }
+        // The JOIN entry is on the stack while the branch runs
+        w.depth = w.depth.max(branchDepth.plus(Cost.ONE));
+        return false;
+    }
+
+    /**
+     * Walk the task's code up to a SEL or TSEL, returning false, or to its
+     * end, returning true.
+     */
+    private boolean advance(WalkTask task, int component) {
+        Walk w = task.walk;
+        for (; task.pc >= 0 && task.pc < code.size() && task.pc != task.stop;
+                task.pc++) {
+            int pc = task.pc;
+            Opcode op = code.getOpcode(pc);
+            if (op == Opcode.SEL || op == Opcode.TSEL) {
+                return false;
+            }
+            w.cycles = w.cycles.plus(Cost.ONE);
+            if (isCall(op)) {
+                Call call = calls.get(pc);
+                FunctionCost callee = call != null ? functions
+                        .get(call.target) : null;
+                Cost calleeCycles = Cost.UNBOUNDED;
+                Cost calleeDepth = Cost.UNBOUNDED;
+                if (callee != null && callee.component == component) {
+                    calleeCycles = Cost.ZERO;
+                    calleeDepth = Cost.ZERO;
+                    w.recursiveCalls++;
+                } else if (callee != null) {
+                    calleeCycles = callee.cycles;
+                    calleeDepth = callee.depth;
+                }
+                w.cycles = w.cycles.plus(calleeCycles);
+                if (isTailCall(op)) {
+                    w.depth = w.depth.max(calleeDepth);
+                    return true;
+                }
+                // The return entry is on the stack during the call
+                w.depth = w.depth.max(calleeDepth.plus(Cost.ONE));
+            } else if (op == Opcode.RTN || op == Opcode.JOIN
+                    || op == Opcode.STOP) {
+                return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Cost every function, callees first. Mutually recursive functions are
+     * found as the strongly connected components of the call graph (with
+     * Tarjan's algorithm), which come out of it callees first.
+     */
+    private void computeCosts() {
+        final List<List<FunctionCost>> components = new ArrayList<List<FunctionCost>>();
+        final Map<FunctionCost, Integer> index = new HashMap<FunctionCost, Integer>();
+        final Map<FunctionCost, Integer> lowLink = new HashMap<FunctionCost, Integer>();
+        final List<FunctionCost> stack = new ArrayList<FunctionCost>();
+        for (FunctionCost f : functions.values()) {
+            if (!index.containsKey(f)) {
+                strongConnect(f, index, lowLink, stack, components);
+            }
+        }
+
+        for (int c = 0; c < components.size(); ++c) {
+            List<FunctionCost> component = components.get(c);
+            boolean recursive = component.size() > 1
+                    || component.get(0).callees.contains(component.get(0).addr);
+            boolean growsStack = recursive && callsInComponent(component, c);
+            boolean walksList = recursive && walksList(component, c);
+            // Each time round runs one function of the component, and the
+            // body it may call: bound that by the dearest of each
+            Cost cycles = Cost.ZERO;
+            Cost depth = Cost.ZERO;
+            Cost bodyCycles = Cost.ZERO;
+            Cost bodyDepth = Cost.ZERO;
+            boolean once = true;
+            for (FunctionCost f : component) {
+                Walk w = walk(f.addr, -1, c);
+                once &= w.recursiveCalls <= 1;
+                if (f.isBody()) {
+                    bodyCycles = bodyCycles.max(w.cycles);
+                    bodyDepth = bodyDepth.max(w.depth);
+                } else {
+                    cycles = cycles.max(w.cycles);
+                    depth = depth.max(w.depth);
+                }
+            }
+            if (recursive && !(walksList && once)) {
+                cycles = Cost.UNBOUNDED;
+                depth = Cost.UNBOUNDED;
+            } else if (recursive) {
+                // n + 1 times round, the last finding the end of the list
+                Cost round = cycles.plus(bodyCycles);
+                cycles = round.timesN().plus(round);
+                if (growsStack) {
+                    Cost roundDepth = depth.plus(bodyDepth);
+                    depth = roundDepth.timesN().plus(roundDepth);
+                } else {
+                    depth = depth.max(bodyDepth);
+                }
+            } else {
+                cycles = cycles.max(bodyCycles);
+                depth = depth.max(bodyDepth);
+            }
+            for (FunctionCost f : component) {
+                f.cycles = cycles;
+                f.depth = depth;
+                f.recursive = recursive;
+                f.walksList = recursive && walksList && once;
+                f.growsStack = growsStack;
+            }
+        }
+    }
+
+    private void strongConnect(FunctionCost f,
+            Map<FunctionCost, Integer> index,
+            Map<FunctionCost, Integer> lowLink, List<FunctionCost> stack,
+            List<List<FunctionCost>> components) {
+        index.put(f, index.size());
+        lowLink.put(f, index.get(f));
+        stack.add(f);
+        for (int addr : f.callees) {
+            FunctionCost callee = functions.get(addr);
+            if (!index.containsKey(callee)) {
+                strongConnect(callee, index, lowLink, stack, components);
+                lowLink.put(f, Math.min(lowLink.get(f), lowLink.get(callee)));
+            } else if (stack.contains(callee)) {
+                lowLink.put(f, Math.min(lowLink.get(f), index.get(callee)));
+            }
+        }
+        if (lowLink.get(f).equals(index.get(f))) {
+            List<FunctionCost> component = new ArrayList<FunctionCost>();
+            FunctionCost member;
+            do {
+                member = stack.remove(stack.size() - 1);
+                member.component = components.size();
+                component.add(member);
+            } while (member != f);
+            components.add(component);
+        }
+    }
+
+    /**
+     * Whether any function of the component calls into it other than by a
+     * tail call, so that going round it grows the control stack.
+     */
+    private boolean callsInComponent(List<FunctionCost> component, int c) {
+        for (FunctionCost f : component) {
+            for (int addr : f.nonTailCallees) {
+                if (functions.get(addr).component == c) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether every call within the component passes on the cdr of the same
+     * argument, so that it walks down a list. Calls from a function to its
+     * body pass its locals, and needn't: the body is only called once.
+     */
+    private boolean walksList(List<FunctionCost> component, int c) {
+        Set<Integer> walked = null;
+        for (FunctionCost f : component) {
+            for (Call call : f.calls) {
+                FunctionCost callee = functions.get(call.target);
+                if (callee == null || callee.component != c
+                        || callee.isBody()) {
+                    continue;
+                }
+                if (walked == null) {
+                    walked = new LinkedHashSet<Integer>(call.walked);
+                } else {
+                    walked.retainAll(call.walked);
+                }
+            }
+        }
+        return walked != null && !walked.isEmpty();
+    }
+
+    /**
+     * Split the code main runs into its top-level defines, each of which
+     * ends by storing its value with a ST into its binding.
+     */
+    private void computeDefines() {
+        List<Integer> mains = new ArrayList<Integer>();
+        mains.add(0);
+        Integer body = labelAddrs.get(LabelAllocator
+                .bodyLabel(LabelAllocator.MAIN_LABEL));
+        if (body != null) {
+            mains.add(body);
+        }
+        for (int entry : mains) {
+            int start = entry;
+            for (int pc = entry; pc < code.size(); ++pc) {
+                Opcode op = code.getOpcode(pc);
+                if (op == Opcode.ST && bindings[pc] != null
+                        && !bindings[pc].scratch) {
+                    defines.put(bindings[pc].name,
+                            walk(start, pc, -1).cycles.plus(Cost.ONE));
+                    start = pc + 1;
+                } else if (op == Opcode.RTN || op == Opcode.TSEL
+                        || isTailCall(op) || op == Opcode.STOP) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * A report of the costs with lists of up to n elements: main, its
+     * defines, the step function if there is one with the given name, then
+     * every recursive function, and what leaves any without a bound.
+     */
+    public String report(long n, String stepName) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Static cost bound, for lists of up to n = " + n
+                + " elements\n");
+        sb.append(String.format("%-32s %14s  %s%n", "main (init)",
+                getInitCost().format(n), getInitCost()));
+        for (Map.Entry<String, Cost> define : defines.entrySet()) {
+            // Leave out defines which just load a closure or a constant
+            if (define.getValue().degree() > 0
+                    || define.getValue().evaluate(n) > 2) {
+                sb.append(String.format("  %-30s %14s  %s%n", define.getKey(),
+                        define.getValue().format(n), define.getValue()));
+            }
+        }
+        FunctionCost step = stepName != null ? getFunction(stepName) : null;
+        if (step != null) {
+            sb.append(String.format("%-32s %14s  %s%n", stepName + " (step)",
+                    step.cycles.format(n), step.cycles));
+        }
+        sb.append("Recursive functions (cycles, control stack depth):\n");
+        for (FunctionCost f : functions.values()) {
+            if (!f.recursive) {
+                continue;
+            }
+            sb.append(String.format("  %-30s %14s  %s; depth %s%s%n",
+                    f.name + " @" + f.addr, f.cycles.format(n), f.cycles,
+                    f.depth, f.growsStack ? ", stack grows with n" : ""));
+        }
+        Set<String> reasons = new LinkedHashSet<String>();
+        for (FunctionCost f : functions.values()) {
+            reasons.addAll(getUnboundedReasons(f));
+        }
+        if (!reasons.isEmpty()) {
+            sb.append("Unbounded, since:\n");
+            for (String reason : reasons) {
+                sb.append("  " + reason + "\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The bound on list lengths for a map: its number of cells, W*H. No list
+     * the game hands the AI, nor any the AI builds from them one element per
+     * cell, is longer.
+     */
+    public static long boundForMapSize(String size) {
+        String[] parts = size.split("x");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Map size must be WxH: " + size);
+        }
+        return Long.parseLong(parts[0]) * Long.parseLong(parts[1]);
+    }
+}
@@ -0,0 +1,141 @@
+package laml.compiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import laml.compiler.CostAnalysis.Cost;
+import laml.compiler.CostAnalysis.FunctionCost;
+import laml.compiler.lexer.CharArrayLexer;
+import laml.compiler.opt.PassManager;
+import laml.compiler.parser.Parser;
+import laml.vm.GccMachine;
+import laml.vm.Values.Closure;
+import laml.vm.Values.Cons;
+
+import org.junit.Test;
+
+public class CostAnalysisTest {
+    private static List<LabeledFunction> compile(String program, int level) {
+        return PassManager.forLevel(level).optimize(
+                Parser.parse(CharArrayLexer.lexProgramString(program)));
+    }
+
+    private static CostAnalysis analyze(String program) {
+        return new CostAnalysis(compile(program, 0));
+    }
+
+    @Test
+    public void testCostPrintsAsPolynomial() {
+        Cost cost = Cost.constant(12).plus(Cost.constant(3).timesN().timesN());
+        assertEquals("12 + 3n^2", cost.toString());
+        assertEquals(2, cost.degree());
+        assertEquals(12 + 3 * 100, cost.evaluate(10));
+        assertEquals("5 + n", Cost.constant(5).max(Cost.ONE.timesN()).toString());
+        assertFalse(cost.plus(Cost.UNBOUNDED).isBounded());
+        assertEquals("unbounded", Cost.UNBOUNDED.timesN().toString());
+    }
+
+    @Test
+    public void testRecursionIsBoundedByN() {
+        CostAnalysis analysis = analyze("(define size (lambda (l)\n"
+                + "  (if (atom l) 0 (+ 1 (size (cdr l))))))\n"
+                + "(define inc (lambda (x) (+ x 1)))\n"
+                + "(define n (size (cons 1 (cons 2 0))))\n"
+                + "(inc n)");
+
+        FunctionCost size = analysis.getFunction("size");
+        assertTrue(size.recursive);
+        assertTrue(size.walksList);
+        assertTrue(size.growsStack);
+        assertEquals(1, size.cycles.degree());
+        assertEquals(1, size.depth.degree());
+
+        FunctionCost inc = analysis.getFunction("inc");
+        assertFalse(inc.recursive);
+        assertEquals(0, inc.cycles.degree());
+
+        assertEquals(1, analysis.getDefineCosts().get("n").degree());
+        assertEquals(0, analysis.getDefineCosts().get("inc").degree());
+        assertEquals(1, analysis.getInitCost().degree());
+        assertEquals(12, CostAnalysis.boundForMapSize("3x4"));
+    }
+
+    @Test
+    public void testUnboundedCosts() {
+        CostAnalysis analysis = analyze("(define count (lambda (x)\n"
+                + "  (if (= x 0) 0 (count (- x 1)))))\n"
+                + "(define apply (lambda (f x) (f x)))\n"
+                + "(define leaves (lambda (t)\n"
+                + "  (if (atom t) 1 (+ (leaves (car t)) (leaves (cdr t))))))\n"
+                + "(cons (count 3) (apply leaves (cons 1 2)))");
+
+        FunctionCost count = analysis.getFunction("count");
+        assertTrue(count.recursive);
+        assertFalse(count.cycles.isBounded());
+        FunctionCost apply = analysis.getFunction("apply");
+        assertEquals(1, apply.unresolvedCalls);
+        assertFalse(apply.cycles.isBounded());
+        // Walks down the cdr, but the car too
+        FunctionCost leaves = analysis.getFunction("leaves");
+        assertFalse(leaves.walksList);
+        assertFalse(leaves.cycles.isBounded());
+
+        // Main only passes leaves on, so doesn't know it calls it
+        assertFalse(analysis.getInitCost().isBounded());
+        assertEquals(Arrays.asList("apply calls a closure it can't resolve",
+                "count recurses other than down a list"),
+                analysis.getUnboundedReasons(analysis.getMain()));
+    }
+
+    @Test
+    public void testBoundHoldsWhenRun() {
+        String program = "(define size (lambda (l)\n"
+                + "  (if (atom l) 0 (+ 1 (size (cdr l))))))\n"
+                + "(define sum (lambda (l acc)\n"
+                + "  (if (atom l) acc (sum (cdr l) (+ acc (car l))))))\n"
+                + "(define sizes (lambda (ls)\n"
+                + "  (if (atom ls) 0 (+ (size (car ls)) (sizes (cdr ls))))))\n"
+                + "(define inc (lambda (x) (+ x 1)))\n"
+                + "(define step (lambda (s w)\n"
+                + "  (cons (+ s (sum (car w) (sizes w))) step)))\n"
+                + "(cons (inc (sizes WORLD-STATE)) step)";
+        // Lists of up to n elements
+        long n = 5;
+        Object world = list(list(1, 2, 3, 4, 5), list(6, 7), list(8, 9, 10),
+                0, list(11));
+        for (int level = 0; level <= PassManager.MAX_LEVEL; ++level) {
+            List<LabeledFunction> functions = compile(program, level);
+            CostAnalysis analysis = new CostAnalysis(functions);
+            RelativeProgram relative = new RelativeProgram();
+            relative.addLabeledFunctions(functions);
+            GccMachine machine = new GccMachine(relative.translate());
+
+            Cons main = (Cons) machine.runMain(world, 0);
+            assertTrue(machine.getCycles() <= analysis.getInitCost()
+                    .evaluate(n));
+            // Less the STOP entry the machine starts with
+            assertTrue(machine.getMaxControlDepth() - 1 <= analysis.getMain()
+                    .depth.evaluate(n));
+
+            FunctionCost step = analysis.getFunction("step");
+            long start = machine.getCycles();
+            machine.resetMaxControlDepth();
+            machine.call((Closure) main.cdr, main.car, world);
+            assertTrue(machine.getCycles() - start <= step.cycles.evaluate(n));
+            assertTrue(machine.getMaxControlDepth() - 1 <= step.depth
+                    .evaluate(n));
+        }
+    }
+
+    private static Object list(Object... elements) {
+        Object list = 0;
+        for (int i = elements.length - 1; i >= 0; --i) {
+            list = new Cons(elements[i], list);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,131 @@
+package laml.compiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Names for the functions of a laid out program, by entry address, recovered
+ * from the comments the compiler leaves on LDF: a "Define x" LDF names its
+ * target x, and a "Load funcN_$body$" LDF names its target x_$body$ if the
+ * function it is in is x, else funcN_$body$. Other lambdas are named by their
+ * source line if the program has a source map, or else by their address.
+ *
+ * The entry points are main, at address 0, and every LDF target.
+ */
+public class FunctionNames {
+    private static final String BODY_SUFFIX = "_$body$";
+    private static final String DEFINE_COMMENT = "Define ";
+    private static final String LOAD_COMMENT = "Load ";
+
+    // Sorted, without duplicates
+    private final List<Integer> entries = new ArrayList<Integer>();
+    private final Map<Integer, String> names = new HashMap<Integer, String>();
+    // Entry points of the functions defined with each name
+    private final Map<String, List<Integer>> defined = new HashMap<String, List<Integer>>();
+
+    /**
+     * Names for the program's functions, using its source map if it has one
+     * (which may be null).
+     */
+    public FunctionNames(AbsoluteProgram prog, SourceMap sourceMap) {
+        InstructionBuffer code = prog.getCode();
+        entries.add(0);
+        for (int addr = 0; addr < code.size(); ++addr) {
+            if (code.getOpcode(addr) == Opcode.LDF) {
+                entries.add(code.getArg(addr, 0));
+            }
+        }
+        Collections.sort(entries);
+        for (int i = entries.size() - 1; i > 0; --i) {
+            if (entries.get(i).equals(entries.get(i - 1))) {
+                entries.remove(i);
+            }
+        }
+
+        names.put(0, "main");
+        for (int addr = 0; addr < code.size(); ++addr) {
+            String comment = ldfComment(code, addr);
+            if (comment != null && comment.startsWith(DEFINE_COMMENT)) {
+                String name = comment.substring(DEFINE_COMMENT.length());
+                int target = code.getArg(addr, 0);
+                names.put(target, name);
+                List<Integer> addrs = defined.get(name);
+                if (addrs == null) {
+                    addrs = new ArrayList<Integer>();
+                    defined.put(name, addrs);
+                }
+                addrs.add(target);
+            }
+        }
+        // Bodies are named after their headers, which are named after their
+        // define, or else their label
+        for (int addr = 0; addr < code.size(); ++addr) {
+            String comment = ldfComment(code, addr);
+            if (comment == null || !comment.startsWith(LOAD_COMMENT)
+                    || !comment.endsWith(BODY_SUFFIX)) {
+                continue;
+            }
+            int header = getEnclosingEntry(addr);
+            String headerName = names.get(header);
+            if (headerName == null) {
+                headerName = comment.substring(LOAD_COMMENT.length(),
+                        comment.length() - BODY_SUFFIX.length());
+                names.put(header, headerName);
+            }
+            names.put(code.getArg(addr, 0), headerName + BODY_SUFFIX);
+        }
+        for (int entry : entries) {
+            if (!names.containsKey(entry) && sourceMap != null
+                    && sourceMap.get(entry) != null) {
+                names.put(entry, "lambda@" + sourceMap.get(entry));
+            }
+        }
+    }
+
+    private static String ldfComment(InstructionBuffer code, int addr) {
+        if (code.getOpcode(addr) != Opcode.LDF || code.getComment(addr) == null) {
+            return null;
+        }
+        return code.getComment(addr).trim();
+    }
+
+    /**
+     * Name of the function at addr.
+     */
+    public String get(int addr) {
+        String name = names.get(addr);
+        return name != null ? name : "fn@" + addr;
+    }
+
+    /**
+     * Entry points of all functions, in increasing order.
+     */
+    public List<Integer> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Entry points of the functions defined with the name, empty if there
+     * are none.
+     */
+    public List<Integer> getDefinitions(String name) {
+        List<Integer> addrs = defined.get(name);
+        return addrs != null ? addrs : Collections.<Integer> emptyList();
+    }
+
+    /**
+     * Entry point of the function the instruction at addr is in: the nearest
+     * one at or before it. This only holds for a function's own code, not
+     * the branches of its ifs, which are laid out apart from it.
+     */
+    public int getEnclosingEntry(int addr) {
+        int index = Collections.binarySearch(entries, addr);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        return entries.get(Math.max(index, 0));
+    }
+}
@@ -0,0 +1,131 @@
+package laml.compiler;
+
+import java.util.Arrays;
+
+/**
+ * Packed storage for a laid out GCC program. Instruction i is stored across
+ * parallel arrays (opcode and two int operands), so a program costs a few
+ * bytes per instruction rather than several objects. Comments and source
+ * lines are kept in side tables, and the empty lines separating functions in
+ * the output are recorded as the addresses they come before.
+ *
+ * What label operands hold is up to the owner; RelativeProgram stores label
+ * ids and replaces them with addresses on translation.
+ */
+public class InstructionBuffer {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private byte[] ops;
+    private int[] args0;
+    private int[] args1;
+    private String[] comments;
+    // Null until an instruction with a known source line is added
+    private int[] sourceLines;
+    private int size;
+    // Sorted addresses which are preceded by an empty line
+    private int[] breaks;
+    private int numBreaks;
+
+    public InstructionBuffer() {
+        ops = new byte[INITIAL_CAPACITY];
+        args0 = new int[INITIAL_CAPACITY];
+        args1 = new int[INITIAL_CAPACITY];
+        comments = new String[INITIAL_CAPACITY];
+        size = 0;
+        breaks = new int[INITIAL_CAPACITY];
+        numBreaks = 0;
+    }
+
+    /**
+     * Append an instruction, returning its address.
+     */
+    public int add(Opcode op, int arg0, int arg1, String comment) {
+        return add(op, arg0, arg1, comment, 0);
+    }
+
+    /**
+     * Append an instruction generated from the given line of LaML source,
+     * returning its address.
+     */
+    public int add(Opcode op, int arg0, int arg1, String comment,
+            int sourceLine) {
+        if (size == ops.length) {
+            int capacity = size * 2;
+            ops = Arrays.copyOf(ops, capacity);
+            args0 = Arrays.copyOf(args0, capacity);
+            args1 = Arrays.copyOf(args1, capacity);
+            comments = Arrays.copyOf(comments, capacity);
+            if (sourceLines != null) {
+                sourceLines = Arrays.copyOf(sourceLines, capacity);
+            }
+        }
+        if (sourceLine != 0) {
+            if (sourceLines == null) {
+                sourceLines = new int[ops.length];
+            }
+            sourceLines[size] = sourceLine;
+        }
+        ops[size] = (byte) op.ordinal();
+        args0[size] = arg0;
+        args1[size] = arg1;
+        comments[size] = comment;
+        return size++;
+    }
+
+    /**
+     * Put an empty line before the next instruction added.
+     */
+    public void addBreak() {
+        if (numBreaks > 0 && breaks[numBreaks - 1] == size) {
+            return;
+        }
+        if (numBreaks == breaks.length) {
+            breaks = Arrays.copyOf(breaks, numBreaks * 2);
+        }
+        breaks[numBreaks++] = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Opcode getOpcode(int addr) {
+        return Opcode.fromOrdinal(ops[addr]);
+    }
+
+    public int getArg(int addr, int i) {
+        return i == 0 ? args0[addr] : args1[addr];
+    }
+
+    public void setArg(int addr, int i, int val) {
+        if (i == 0) {
+            args0[addr] = val;
+        } else {
+            args1[addr] = val;
+        }
+    }
+
+    public String getComment(int addr) {
+        return comments[addr];
+    }
+
+    /**
+     * Line of LaML source the instruction was generated from, or 0 if it
+     * isn't known.
+     */
+    public int getSourceLine(int addr) {
+        return sourceLines == null ? 0 : sourceLines[addr];
+    }
+
+    public int getNumBreaks() {
+        return numBreaks;
+    }
+
+    /**
+     * Address of the i'th instruction preceded by an empty line. These are in
+     * increasing order.
+     */
+    public int getBreak(int i) {
+        return breaks[i];
+    }
+}
@@ -1,6 +1,7 @@
 package laml.compiler;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import laml.compiler.parser.CodeSequence;
 
@@ -13,7 +14,7 @@ public class LabeledFunction {
     public LabeledFunction(String label) {
         this.label = label;
         body = new CodeSequence();
-        body.add(new Line(new ArrayList<Token>(), label));
+        body.add(Line.makeComment(label));
         numInstructions = 0;
     }
 
@@ -25,12 +26,33 @@ public class LabeledFunction {
     }
 
     public void addCodeSequence(CodeSequence seq) {
-        body.addAll(seq.getLines());
-        for (Line l : seq.getLines()) {
-            if (!l.isEmpty()) {
-                numInstructions++;
+        body.addAll(seq);
+        numInstructions += seq.getNumInstructions();
+    }
+
+    /**
+     * The function's instructions, without the leading label comment.
+     */
+    public List<Line> getInstructions() {
+        List<Line> out = new ArrayList<Line>(numInstructions);
+        for (Line line : body) {
+            if (!line.isEmpty()) {
+                out.add(line);
             }
         }
+        return out;
+    }
+
+    /**
+     * Replace all of the function's instructions.
+     */
+    public void setInstructions(List<Line> lines) {
+        body = new CodeSequence();
+        body.add(Line.makeComment(label));
+        numInstructions = 0;
+        for (Line line : lines) {
+            addLine(line);
+        }
     }
 
     public CodeSequence getCode() {
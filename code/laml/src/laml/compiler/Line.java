@@ -1,23 +1,47 @@
 package laml.compiler;
 
-import java.util.Arrays;
-import java.util.List;
-import java.util.Map;
-
-import laml.compiler.Token.TokenType;
+import laml.compiler.parser.EnvFrame.Binding;
 
 /**
- * Representation of a single line of GCC assembly.
+ * Representation of a single line of GCC assembly: an opcode with up to two
+ * operands. Operands of ops which take code addresses (SEL, LDF, ...) are
+ * labels, and are only turned into addresses once the program is laid out.
+ *
+ * A line with no opcode carries just a comment, and is output as an empty
+ * line.
+ *
+ * Variable loads and stores generated by the parser also remember their
+ * binding, so that optimization passes can tell which variable a LD or ST
+ * refers to, and lines generated from LaML source remember the source line
+ * they came from, for the source map.
  */
 public class Line {
-    private List<Token> code;
+    private final Opcode op;
+    private final int arg0;
+    private final int arg1;
+    private final String label0;
+    private final String label1;
+    private final Binding binding;
     private String comment;
+    // Line of LaML source which generated this line, 0 if not known
+    private int sourceLine;
 
-    public Line(List<Token> code, String comment) {
-        this.code = code;
+    private Line(Opcode op, int arg0, int arg1, String label0, String label1,
+            Binding binding, String comment) {
+        this.op = op;
+        this.arg0 = arg0;
+        this.arg1 = arg1;
+        this.label0 = label0;
+        this.label1 = label1;
+        this.binding = binding;
         this.comment = comment;
     }
 
+    private Line(Opcode op, int arg0, int arg1, String label0, String label1,
+            String comment) {
+        this(op, arg0, arg1, label0, label1, null, comment);
+    }
+
     /**
      * Setter for the comment section of the line. Compiler will want to
      * annotate code.
@@ -26,45 +50,112 @@ public class Line {
         this.comment = comment;
     }
 
+    public String getComment() {
+        return comment;
+    }
+
+    /**
+     * Line of the (concatenated) LaML source this line was generated from,
+     * or 0 if it isn't known.
+     */
+    public int getSourceLine() {
+        return sourceLine;
+    }
+
+    public void setSourceLine(int sourceLine) {
+        this.sourceLine = sourceLine;
+    }
+
+    /**
+     * Opcode of the line, or null if it is just a comment.
+     */
+    public Opcode getOpcode() {
+        return op;
+    }
+
+    /**
+     * Integer operand i. Only valid if the op doesn't take labels. The index
+     * of a LD or ST which knows its binding is always the binding's current
+     * index, so passes which move bindings between frames don't have to find
+     * every load and store of them.
+     */
+    public int getArg(int i) {
+        if (i == 1 && binding != null) {
+            return binding.index;
+        }
+        return i == 0 ? arg0 : arg1;
+    }
+
+    /**
+     * Label operand i. Only valid if the op takes labels.
+     */
+    public String getLabel(int i) {
+        return i == 0 ? label0 : label1;
+    }
+
+    /**
+     * Copy of this line with its label operands replaced.
+     */
+    public Line withLabels(String newLabel0, String newLabel1) {
+        Line copy = new Line(op, arg0, arg1, newLabel0, newLabel1, binding,
+                comment);
+        copy.sourceLine = sourceLine;
+        return copy;
+    }
+
     /**
-     * Mutator to replace labels with const addresses.
+     * Copy of this line with its integer operands replaced.
      */
-    public void replaceLabels(Map<String, Integer> labelMap) {
-        for (int i = 0; i < code.size(); ++i) {
-            Token t = code.get(i);
-            if (t.type == TokenType.LABEL) {
-                if (labelMap.containsKey(t.toString())) {
-                    int address = labelMap.get(t.toString());
-                    Token newToken = new Token(TokenType.CONST, address);
-                    code.set(i, newToken);
-                } else {
-                    throw new RuntimeException(
-                            "Label map does not contain label: " + t.toString());
-                }
+    public Line withArgs(int newArg0, int newArg1) {
+        Line copy = new Line(op, newArg0, newArg1, label0, label1, binding,
+                comment);
+        copy.sourceLine = sourceLine;
+        return copy;
+    }
+
+    /**
+     * The instruction without its comment, e.g. "LD 1 0" or "SEL a b". Two
+     * lines with the same instruction text behave the same.
+     */
+    public String getInstructionText() {
+        if (op == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(op.name());
+        for (int i = 0; i < op.numArgs; ++i) {
+            sb.append(' ');
+            if (op.labelArgs) {
+                sb.append(getLabel(i));
+            } else {
+                sb.append(getArg(i));
             }
         }
+        return sb.toString();
+    }
+
+    /**
+     * Binding loaded by a LD or stored by a ST, or null if not known.
+     */
+    public Binding getBinding() {
+        return binding;
     }
 
     /**
      * Whether this line contains actual code or just a comment
      */
     public boolean isEmpty() {
-        return code.size() == 0;
+        return op == null;
     }
 
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder();
-        if (code.size() == 0) {
+        if (op == null) {
             // Cannot have a hanging comment (must be attached to code). Replace
             // with empty line.
             return "";
         }
-        for (Token t : code) {
-            sb.append(t.toString());
-            sb.append(" ");
-        }
-        sb.append("; ");
+        StringBuilder sb = new StringBuilder(getInstructionText());
+        sb.append(" ; ");
         if (comment.contains("\n")) {
             throw new RuntimeException("Comment may not contain newlines: "
                     + comment);
@@ -73,94 +164,113 @@ public class Line {
         return sb.toString();
     }
 
-    public static Line makeLabelDef(String label, String comment) {
-        return new Line(Arrays.asList(
-                new Token(TokenType.LABEL_DEF, label)),
-                comment);
+    public static Line makeComment(String comment) {
+        return new Line(null, 0, 0, null, null, comment);
+    }
+
+    /**
+     * Line for an op which takes no operands.
+     */
+    public static Line makeOp(Opcode op, String comment) {
+        if (op.numArgs != 0) {
+            throw new RuntimeException(op + " takes " + op.numArgs
+                    + " operands");
+        }
+        return new Line(op, 0, 0, null, null, comment);
+    }
+
+    /**
+     * Line for an op with operands given as text, e.g. when reading back
+     * assembly. Operands of ops which take code addresses are labels, any
+     * others must be integers.
+     */
+    public static Line parse(Opcode op, String[] args, String comment) {
+        if (args.length != op.numArgs) {
+            throw new RuntimeException(op + " takes " + op.numArgs
+                    + " operands, got " + args.length);
+        }
+        if (op.labelArgs) {
+            return new Line(op, 0, 0, args.length > 0 ? args[0] : null,
+                    args.length > 1 ? args[1] : null, comment);
+        }
+        int[] vals = new int[2];
+        for (int i = 0; i < args.length; ++i) {
+            vals[i] = Integer.parseInt(args[i]);
+        }
+        return new Line(op, vals[0], vals[1], null, null, comment);
     }
 
     public static Line makeRtn(String comment) {
-        return new Line(Arrays.asList(
-                new Token(TokenType.OP, "RTN")),
-                comment);
+        return makeOp(Opcode.RTN, comment);
     }
 
     public static Line makeJoin(String comment) {
-        return new Line(Arrays.asList(
-                new Token(TokenType.OP, "JOIN")),
-                comment);
+        return makeOp(Opcode.JOIN, comment);
     }
 
     public static Line makeSel(
             String trueBranchLabel, String falseBranchLabel, String comment) {
-        return new Line(Arrays.asList(
-                new Token(TokenType.OP, "SEL"),
-                new Token(TokenType.LABEL, trueBranchLabel),
-                new Token(TokenType.LABEL, falseBranchLabel)),
+        return new Line(Opcode.SEL, 0, 0, trueBranchLabel, falseBranchLabel,
                 comment);
     }
 
-    public static Line makeDum(int numBindings, String comment) {
-        return new Line(Arrays.asList(
-                new Token(TokenType.OP, "DUM"),
-                new Token(TokenType.CONST, numBindings)),
+    public static Line makeTsel(
+            String trueBranchLabel, String falseBranchLabel, String comment) {
+        return new Line(Opcode.TSEL, 0, 0, trueBranchLabel, falseBranchLabel,
                 comment);
     }
 
+    public static Line makeDum(int numBindings, String comment) {
+        return new Line(Opcode.DUM, numBindings, 0, null, null, comment);
+    }
+
     public static Line makeLdc(int val, String comment) {
-        return new Line(Arrays.asList(
-                new Token(TokenType.OP, "LDC"),
-                new Token(TokenType.CONST, val)),
-                comment);
+        return new Line(Opcode.LDC, val, 0, null, null, comment);
     }
 
     public static Line makeLd(int depth, int index, String comment) {
-        return new Line(Arrays.asList(
-                new Token(TokenType.OP, "LD"),
-                new Token(TokenType.CONST, depth),
-                new Token(TokenType.CONST, index)),
+        return new Line(Opcode.LD, depth, index, null, null, comment);
+    }
+
+    public static Line makeLd(int depth, Binding binding, String comment) {
+        return new Line(Opcode.LD, depth, binding.index, null, null, binding,
                 comment);
     }
 
     public static Line makeLdf(String label, String comment) {
-        return new Line(Arrays.asList(
-                new Token(TokenType.OP, "LDF"),
-                new Token(TokenType.LABEL, label)),
-                comment);
+        return new Line(Opcode.LDF, 0, 0, label, null, comment);
     }
 
     public static Line makeSt(int depth, int index, String comment) {
-        return new Line(Arrays.asList(
-                new Token(TokenType.OP, "ST"),
-                new Token(TokenType.CONST, depth),
-                new Token(TokenType.CONST, index)),
+        return new Line(Opcode.ST, depth, index, null, null, comment);
+    }
+
+    public static Line makeSt(int depth, Binding binding, String comment) {
+        return new Line(Opcode.ST, depth, binding.index, null, null, binding,
                 comment);
     }
 
     public static Line makeAp(int numBindings, String comment) {
-        return new Line(Arrays.asList(
-                new Token(TokenType.OP, "AP"),
-                new Token(TokenType.CONST, numBindings)),
-                comment);
+        return new Line(Opcode.AP, numBindings, 0, null, null, comment);
+    }
+
+    public static Line makeTap(int numBindings, String comment) {
+        return new Line(Opcode.TAP, numBindings, 0, null, null, comment);
     }
 
     public static Line makeRap(int numBindings, String comment) {
-        return new Line(Arrays.asList(
-                new Token(TokenType.OP, "RAP"),
-                new Token(TokenType.CONST, numBindings)),
-                comment);
+        return new Line(Opcode.RAP, numBindings, 0, null, null, comment);
+    }
+
+    public static Line makeTrap(int numBindings, String comment) {
+        return new Line(Opcode.TRAP, numBindings, 0, null, null, comment);
     }
 
     public static Line makeNil(String comment) {
-        return new Line(Arrays.asList(
-                new Token(TokenType.OP, "LDC"),
-                new Token(TokenType.CONST, 0)),
-                comment);
+        return makeLdc(0, comment);
     }
 
     public static Line makeCons(String comment) {
-        return new Line(Arrays.asList(
-                new Token(TokenType.OP, "CONS")),
-                comment);
+        return makeOp(Opcode.CONS, comment);
     }
 }
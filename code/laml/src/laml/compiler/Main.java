@@ -1,18 +1,216 @@
 package laml.compiler;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import laml.compiler.SourceMap.SourceFiles;
+import laml.compiler.lexer.CharArrayLexer;
 import laml.compiler.lexer.LexedProgram;
+import laml.compiler.opt.PassManager;
+import laml.compiler.parser.ParsedProgram;
 import laml.compiler.parser.Parser;
 
 /**
- * Main compiler entry point. Expects the program on stdin and will output the
- * compiled assembly on stdout. It's probably a good idea to pipe to/from files
- * for these.
+ * Main compiler entry point. Compiles the given files, concatenated in order,
+ * or the program on stdin if there are none, and will output the compiled
+ * assembly on stdout, or to the file given with -o. Pass --no-comments to
+ * leave the annotations out of the assembly, -O0 to -O3 to pick the
+ * optimization passes (see PassManager), --verify to check the program after
+ * each pass, and --stats to print what the optimizer did to stderr.
+ *
+ * A source map (see SourceMap) is written next to the -o file, or to the file
+ * given with --source-map.
+ *
+ * Pass --costs to print a static bound on the program's cycles to stderr
+ * (see CostAnalysis), for maps up to the size given with --map-size WxH, and
+ * --max-init-cycles or --max-step-cycles to fail, writing nothing, if main
+ * or step may run longer than that, or can't be bounded.
  */
 public class Main {
-    public static void main(String[] args) {
-        LexedProgram lexedProgram = LexedProgram.lexProgram(System.in);
-        RelativeProgram parsedProgram = Parser.parseProgram(lexedProgram);
-        AbsoluteProgram finalProgram = parsedProgram.translate();
-        System.out.println(finalProgram.toString());
+    private static void usage() {
+        System.err.println("usage: laml.compiler.Main [-o out.gcc] "
+                + "[--source-map out.srcmap] [--no-comments] [-O0..-O3] "
+                + "[--verify] [--stats] [--costs] [--map-size WxH] "
+                + "[--max-init-cycles n] [--max-step-cycles n] "
+                + "[file.laml...]");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        String outFile = null;
+        String sourceMapFile = null;
+        List<String> inFiles = new ArrayList<String>();
+        boolean comments = true;
+        boolean stats = false;
+        boolean verify = false;
+        boolean costs = false;
+        String mapSize = "256x256";
+        long maxInitCycles = -1;
+        long maxStepCycles = -1;
+        int level = PassManager.DEFAULT_LEVEL;
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("-o") && i + 1 < args.length) {
+                outFile = args[++i];
+            } else if (args[i].equals("--source-map") && i + 1 < args.length) {
+                sourceMapFile = args[++i];
+            } else if (args[i].equals("--no-comments")) {
+                comments = false;
+            } else if (args[i].equals("--stats")) {
+                stats = true;
+            } else if (args[i].equals("--verify")) {
+                verify = true;
+            } else if (args[i].equals("--costs")) {
+                costs = true;
+            } else if (args[i].equals("--map-size") && i + 1 < args.length) {
+                mapSize = args[++i];
+            } else if (args[i].equals("--max-init-cycles")
+                    && i + 1 < args.length) {
+                maxInitCycles = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--max-step-cycles")
+                    && i + 1 < args.length) {
+                maxStepCycles = Long.parseLong(args[++i]);
+            } else if (args[i].matches("-O[0-9]")
+                    && args[i].charAt(2) - '0' <= PassManager.MAX_LEVEL) {
+                level = args[i].charAt(2) - '0';
+            } else if (!args[i].startsWith("-")) {
+                inFiles.add(args[i]);
+            } else {
+                usage();
+            }
+        }
+        if (sourceMapFile == null && outFile != null) {
+            sourceMapFile = SourceMap.pathFor(Paths.get(outFile)).toString();
+        }
+
+        SourceFiles sourceFiles = new SourceFiles();
+        InputStream in;
+        if (inFiles.isEmpty()) {
+            in = System.in;
+            sourceFiles.add("<stdin>", 0);
+        } else {
+            in = concatenate(inFiles, sourceFiles);
+        }
+        LexedProgram lexedProgram = CharArrayLexer.lexProgram(in);
+        ParsedProgram parsedProgram = Parser.parse(lexedProgram);
+        PassManager passes = PassManager.forLevel(level);
+        passes.setVerify(verify);
+        List<LabeledFunction> functions = passes.optimize(parsedProgram);
+        RelativeProgram relativeProgram = new RelativeProgram();
+        relativeProgram.addLabeledFunctions(functions);
+        if (stats) {
+            System.err.print(passes.report());
+        }
+        AbsoluteProgram finalProgram = relativeProgram.translate();
+        if (costs || maxInitCycles >= 0 || maxStepCycles >= 0) {
+            if (!checkCosts(functions, CostAnalysis.boundForMapSize(mapSize),
+                    costs, maxInitCycles, maxStepCycles)) {
+                System.exit(1);
+            }
+        }
+
+        FileChannel out;
+        if (outFile == null) {
+            out = new FileOutputStream(FileDescriptor.out).getChannel();
+        } else {
+            out = FileChannel.open(Paths.get(outFile),
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        try {
+            finalProgram.write(out, comments);
+        } finally {
+            out.close();
+        }
+
+        if (sourceMapFile != null) {
+            Writer mapOut = Files.newBufferedWriter(Paths.get(sourceMapFile),
+                    StandardCharsets.UTF_8);
+            try {
+                SourceMap.build(finalProgram, sourceFiles).write(mapOut);
+            } finally {
+                mapOut.close();
+            }
+        }
+    }
+
+    /**
+     * Bound the program's costs, printing the report if asked to, and check
+     * them against the limits (negative for none).
+     *
+     * @return whether the bounds are within the limits
+     */
+    private static boolean checkCosts(List<LabeledFunction> functions,
+            long n, boolean print, long maxInitCycles, long maxStepCycles) {
+        CostAnalysis analysis = new CostAnalysis(functions);
+        if (print) {
+            System.err.print(analysis.report(n, "step"));
+        }
+        boolean ok = true;
+        if (maxInitCycles >= 0) {
+            ok &= checkCost(analysis, analysis.getMain(), "main", n,
+                    maxInitCycles);
+        }
+        CostAnalysis.FunctionCost step = analysis.getFunction("step");
+        if (maxStepCycles >= 0 && step == null) {
+            System.err.println("Error: no step function to check");
+            ok = false;
+        } else if (maxStepCycles >= 0) {
+            ok &= checkCost(analysis, step, "step", n, maxStepCycles);
+        }
+        return ok;
+    }
+
+    private static boolean checkCost(CostAnalysis analysis,
+            CostAnalysis.FunctionCost f, String name, long n, long max) {
+        if (!f.cycles.isBounded()) {
+            System.err.println("Error: " + name + " has no bound on its "
+                    + "cycles, since:");
+            for (String reason : analysis.getUnboundedReasons(f)) {
+                System.err.println("  " + reason);
+            }
+            return false;
+        }
+        if (f.cycles.evaluate(n) > max) {
+            System.err.println("Error: " + name + " may take "
+                    + f.cycles.evaluate(n) + " cycles, over the limit of "
+                    + max);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The files' contents one after another, as cat would give them,
+     * recording where each file starts.
+     */
+    private static InputStream concatenate(List<String> inFiles,
+            SourceFiles sourceFiles) throws IOException {
+        ByteArrayOutputStream source = new ByteArrayOutputStream();
+        for (String file : inFiles) {
+            Path path = Paths.get(file);
+            byte[] bytes = Files.readAllBytes(path);
+            int newlines = 0;
+            for (byte b : bytes) {
+                if (b == '\n') {
+                    newlines++;
+                }
+            }
+            sourceFiles.add(file, newlines);
+            source.write(bytes);
+        }
+        return new ByteArrayInputStream(source.toByteArray());
     }
 }
@@ -0,0 +1,86 @@
+package laml.compiler;
+
+/**
+ * GCC instructions, with the number of operands each one takes.
+ */
+public enum Opcode {
+    LDC(1),
+    LD(2),
+    ADD(0),
+    SUB(0),
+    MUL(0),
+    DIV(0),
+    CEQ(0),
+    CGT(0),
+    CGTE(0),
+    ATOM(0),
+    CONS(0),
+    CAR(0),
+    CDR(0),
+    SEL(2, true),
+    JOIN(0),
+    LDF(1, true),
+    AP(1),
+    RTN(0),
+    DUM(1),
+    RAP(1),
+    STOP(0),
+    TSEL(2, true),
+    TAP(1),
+    TRAP(1),
+    ST(2),
+    DBUG(0),
+    BRK(0);
+
+    // Cached since values() copies the array on every call
+    private static final Opcode[] VALUES = values();
+
+    public final int numArgs;
+    // Whether the operands are code addresses, referred to by label until the
+    // program is translated
+    public final boolean labelArgs;
+
+    private Opcode(int numArgs) {
+        this(numArgs, false);
+    }
+
+    private Opcode(int numArgs, boolean labelArgs) {
+        this.numArgs = numArgs;
+        this.labelArgs = labelArgs;
+    }
+
+    public static Opcode fromOrdinal(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    /**
+     * Result of this arithmetic or comparison op on two integers, with GCC's
+     * 32-bit semantics, or null if it faults (division by zero) or isn't
+     * such an op. The machines and the optimizer both use this, so they
+     * agree on what a program computes.
+     */
+    public Integer evaluate(int x, int y) {
+        switch (this) {
+        case ADD:
+            return x + y;
+        case SUB:
+            return x - y;
+        case MUL:
+            return x * y;
+        case DIV:
+            if (y == 0) {
+                return null;
+            }
+            // Java int division truncates towards zero, as GCC's does
+            return x / y;
+        case CEQ:
+            return x == y ? 1 : 0;
+        case CGT:
+            return x > y ? 1 : 0;
+        case CGTE:
+            return x >= y ? 1 : 0;
+        default:
+            return null;
+        }
+    }
+}
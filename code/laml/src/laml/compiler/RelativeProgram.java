@@ -1,38 +1,84 @@
 package laml.compiler;
 
+import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 
-import laml.compiler.Token.TokenType;
-
 /**
  * A full GCC program, with relative addresses instead of absolute. Use
- * AddressResovlePostProcessor to create the final code.
+ * translate to create the final code.
+ *
+ * Functions are packed into an InstructionBuffer as they are added, with
+ * label operands stored as int label ids. Translation then resolves each of
+ * them with an array lookup.
  */
 public class RelativeProgram {
-    private List<Line> lines;
-    private Map<String, Integer> labels;
-    // Where to place the next labeled function
-    private int nextAddr;
+    private InstructionBuffer code;
+    // Ids of all labels defined or referenced so far
+    private Map<String, Integer> labelIds;
+    private List<String> labelNames;
+    // Address of each label id, -1 until defined
+    private int[] labelAddrs;
+    // Set once labels have been replaced by addresses
+    private AbsoluteProgram translated;
 
     public RelativeProgram() {
-        lines = new ArrayList<Line>();
-        labels = new HashMap<String, Integer>();
-        nextAddr = 0;
+        code = new InstructionBuffer();
+        labelIds = new HashMap<String, Integer>();
+        labelNames = new ArrayList<String>();
+        labelAddrs = new int[16];
+        translated = null;
+    }
+
+    private int getLabelId(String label) {
+        Integer id = labelIds.get(label);
+        if (id != null) {
+            return id;
+        }
+        int newId = labelNames.size();
+        labelIds.put(label, newId);
+        labelNames.add(label);
+        if (newId == labelAddrs.length) {
+            labelAddrs = Arrays.copyOf(labelAddrs, newId * 2);
+        }
+        labelAddrs[newId] = -1;
+        return newId;
+    }
+
+    private void addLine(Line line) {
+        Opcode op = line.getOpcode();
+        if (op == null) {
+            code.addBreak();
+            return;
+        }
+        if (op.labelArgs) {
+            int arg0 = op.numArgs > 0 ? getLabelId(line.getLabel(0)) : 0;
+            int arg1 = op.numArgs > 1 ? getLabelId(line.getLabel(1)) : 0;
+            code.add(op, arg0, arg1, line.getComment(), line.getSourceLine());
+        } else {
+            code.add(op, line.getArg(0), line.getArg(1), line.getComment(),
+                    line.getSourceLine());
+        }
     }
 
     public void addLabeledFunction(LabeledFunction function) {
-        if (labels.containsKey(function.label)) {
+        if (translated != null) {
+            throw new RuntimeException(
+                    "Cannot add functions to a translated program");
+        }
+        int id = getLabelId(function.label);
+        if (labelAddrs[id] != -1) {
             throw new RuntimeException("Duplicated label definition "
                     + function.label);
         }
 
-        labels.put(function.label, nextAddr);
-        lines.addAll(function.getCode().getLines());
-        nextAddr += function.getNumInstructions();
+        labelAddrs[id] = code.size();
+        for (Line l : function.getCode()) {
+            addLine(l);
+        }
     }
 
     public void addLabeledFunctions(List<LabeledFunction> functions) {
@@ -42,15 +88,31 @@ public class RelativeProgram {
     }
 
     /**
-     * Translate all label addresses into actual const addresses
+     * Translate all label addresses into actual const addresses. This is done
+     * in place, so the program can't be added to afterwards.
      */
     public AbsoluteProgram translate() {
-        AbsoluteProgram p = new AbsoluteProgram();
-        for (Line l : lines) {
-            l.replaceLabels(labels);
-            p.addLine(l);
+        if (translated != null) {
+            return translated;
         }
-        return p;
+        for (int addr = 0; addr < code.size(); ++addr) {
+            Opcode op = code.getOpcode(addr);
+            if (!op.labelArgs) {
+                continue;
+            }
+            for (int i = 0; i < op.numArgs; ++i) {
+                int id = code.getArg(addr, i);
+                int target = labelAddrs[id];
+                if (target == -1) {
+                    throw new RuntimeException(
+                            "Label map does not contain label: "
+                                    + labelNames.get(id));
+                }
+                code.setArg(addr, i, target);
+            }
+        }
+        translated = new AbsoluteProgram(code);
+        return translated;
     }
 
     public static RelativeProgram parseFromLabelledString(
@@ -90,29 +152,26 @@ public class RelativeProgram {
                 currentFunc = new LabeledFunction(label);
                 continue;
             }
-            List<Token> codeTokens = new ArrayList<Token>();
-            boolean seenOp = false;
+            List<String> args = new ArrayList<String>();
             for (String token : tokenStrings) {
                 // Empty token -- either leading or trailing whitespace
                 if (token.length() == 0) {
                     continue;
                 }
-                Token t;
-                if (!seenOp) {
-                    // This is the first token, so it's the operation
-                    seenOp = true;
-                    t = new Token(TokenType.OP, token);
-                } else {
-                    try {
-                        int val = Integer.parseInt(token);
-                        t = new Token(TokenType.CONST, val);
-                    } catch (NumberFormatException e) {
-                        t = new Token(TokenType.LABEL, token);
-                    }
-                }
-                codeTokens.add(t);
+                args.add(token);
+            }
+            if (args.isEmpty()) {
+                continue;
+            }
+            Opcode op;
+            try {
+                // The first token is the operation
+                op = Opcode.valueOf(args.remove(0));
+            } catch (IllegalArgumentException e) {
+                throw new RuntimeException("Unknown operation: " + code.trim());
             }
-            Line codeLine = new Line(codeTokens, comment);
+            Line codeLine = Line.parse(op, args.toArray(new String[0]),
+                    comment);
             if (currentFunc == null) {
                 throw new RuntimeException(
                         "Program must start with a label (probably main)");
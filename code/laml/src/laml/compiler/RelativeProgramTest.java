@@ -0,0 +1,37 @@
+package laml.compiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class RelativeProgramTest {
+    @Test
+    public void testTranslateResolvesLabels() {
+        RelativeProgram prog = RelativeProgram.parseFromLabelledString(
+                "main:\n LDF f ; load\n AP 0\n RTN\n"
+                        + "f:\n LDC 1\n SEL a a\n RTN\n"
+                        + "a:\n LDC 2\n JOIN\n");
+        InstructionBuffer code = prog.translate().getCode();
+        assertEquals(8, code.size());
+        assertEquals(Opcode.LDF, code.getOpcode(0));
+        assertEquals(3, code.getArg(0, 0));
+        assertEquals(Opcode.SEL, code.getOpcode(4));
+        assertEquals(6, code.getArg(4, 0));
+        assertEquals(6, code.getArg(4, 1));
+        assertEquals(" load", code.getComment(0));
+    }
+
+    @Test
+    public void testUndefinedLabel() {
+        RelativeProgram prog = RelativeProgram.parseFromLabelledString(
+                "main:\n LDF missing\n RTN\n");
+        try {
+            prog.translate();
+            fail("Expected undefined label to be rejected");
+        } catch (RuntimeException e) {
+            assertEquals("Label map does not contain label: missing",
+                    e.getMessage());
+        }
+    }
+}
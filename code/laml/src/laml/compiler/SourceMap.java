@@ -0,0 +1,149 @@
+package laml.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where each instruction of a compiled program came from, as file:line of the
+ * LaML source. Programs are compiled from several files concatenated
+ * together, so lines of the concatenated source are mapped back to the file
+ * they started in.
+ *
+ * The map is written as text next to the .gcc file, one "addr file:line" per
+ * instruction whose source is known, e.g. "12 lib/list.laml:40".
+ */
+public class SourceMap {
+    public static final String EXTENSION = ".srcmap";
+
+    // Indexed by address, null if not known
+    private final String[] locations;
+
+    public SourceMap(String[] locations) {
+        this.locations = locations;
+    }
+
+    /**
+     * Concatenated source files, and the first line of each.
+     */
+    public static class SourceFiles {
+        private final List<String> names = new ArrayList<String>();
+        // First line of each file in the concatenated source
+        private final List<Integer> starts = new ArrayList<Integer>();
+        private int numLines = 0;
+
+        /**
+         * Add the next file, with the number of newlines in it.
+         */
+        public void add(String name, int newlines) {
+            names.add(name);
+            starts.add(numLines + 1);
+            numLines += newlines;
+        }
+
+        /**
+         * Line of the concatenated source as file:line, or null if there is
+         * no such line.
+         */
+        public String locate(int line) {
+            if (line <= 0) {
+                return null;
+            }
+            for (int i = names.size() - 1; i >= 0; --i) {
+                if (line >= starts.get(i)) {
+                    return names.get(i) + ":" + (line - starts.get(i) + 1);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The map of a program compiled from the given files.
+     */
+    public static SourceMap build(AbsoluteProgram prog,
+            SourceFiles files) {
+        InstructionBuffer code = prog.getCode();
+        String[] locations = new String[code.size()];
+        for (int addr = 0; addr < code.size(); ++addr) {
+            locations[addr] = files.locate(code.getSourceLine(addr));
+        }
+        return new SourceMap(locations);
+    }
+
+    /**
+     * Where the source map of a .gcc file goes: the same name, with
+     * EXTENSION instead of .gcc.
+     */
+    public static Path pathFor(Path gccPath) {
+        String name = gccPath.getFileName().toString();
+        if (name.endsWith(".gcc")) {
+            name = name.substring(0, name.length() - ".gcc".length());
+        }
+        return gccPath.resolveSibling(name + EXTENSION);
+    }
+
+    public int size() {
+        return locations.length;
+    }
+
+    /**
+     * Source of the instruction at addr as file:line, or null if not known.
+     */
+    public String get(int addr) {
+        if (addr < 0 || addr >= locations.length) {
+            return null;
+        }
+        return locations[addr];
+    }
+
+    public void write(Writer out) throws IOException {
+        for (int addr = 0; addr < locations.length; ++addr) {
+            if (locations[addr] != null) {
+                out.write(addr + " " + locations[addr] + "\n");
+            }
+        }
+        out.flush();
+    }
+
+    public static SourceMap parse(String text) {
+        List<String> locations = new ArrayList<String>();
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            int space = line.indexOf(' ');
+            if (space < 0) {
+                throw new IllegalArgumentException("Bad source map line: "
+                        + line);
+            }
+            int addr = Integer.parseInt(line.substring(0, space));
+            while (locations.size() <= addr) {
+                locations.add(null);
+            }
+            locations.set(addr, line.substring(space + 1).trim());
+        }
+        return new SourceMap(locations.toArray(new String[locations.size()]));
+    }
+
+    public static SourceMap load(Path path) throws IOException {
+        return parse(new String(Files.readAllBytes(path),
+                StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The source map next to a .gcc file, or null if there isn't one.
+     */
+    public static SourceMap loadFor(Path gccPath) throws IOException {
+        Path path = pathFor(gccPath);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        return load(path);
+    }
+}
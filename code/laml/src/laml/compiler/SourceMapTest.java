@@ -0,0 +1,54 @@
+package laml.compiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import laml.compiler.SourceMap.SourceFiles;
+import laml.compiler.lexer.CharArrayLexer;
+import laml.compiler.parser.Parser;
+
+import org.junit.Test;
+
+public class SourceMapTest {
+    @Test
+    public void testInstructionsMapToFileAndLine() throws IOException {
+        // As if lib.laml (two lines) and main.laml were concatenated
+        String lib = "(define inc (lambda (n)\n  (+ n 1)))\n";
+        String main = "\n(inc\n  41)";
+        SourceFiles files = new SourceFiles();
+        files.add("lib.laml", 2);
+        files.add("main.laml", 2);
+        AbsoluteProgram prog = Parser.parseProgram(
+                CharArrayLexer.lexProgramString(lib + main)).translate();
+        SourceMap map = SourceMap.build(prog, files);
+
+        InstructionBuffer code = prog.getCode();
+        int add = -1;
+        int call = -1;
+        int arg = -1;
+        for (int addr = 0; addr < code.size(); ++addr) {
+            if (code.getOpcode(addr) == Opcode.ADD) {
+                add = addr;
+            } else if (code.getOpcode(addr) == Opcode.TAP
+                    && code.getComment(addr).contains("inc")) {
+                call = addr;
+            } else if (code.getOpcode(addr) == Opcode.LDC
+                    && code.getArg(addr, 0) == 41) {
+                arg = addr;
+            }
+        }
+        assertEquals("lib.laml:2", map.get(add));
+        assertEquals("main.laml:2", map.get(call));
+        assertEquals("main.laml:3", map.get(arg));
+
+        // Round trip through the file format
+        StringWriter out = new StringWriter();
+        map.write(out);
+        SourceMap read = SourceMap.parse(out.toString());
+        assertEquals("main.laml:3", read.get(arg));
+        assertNull(read.get(code.size() + 5));
+    }
+}
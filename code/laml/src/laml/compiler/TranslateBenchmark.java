@@ -0,0 +1,94 @@
+package laml.compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Benchmark for program layout and label resolution on a large synthetic
+ * program (by default 1M instructions, the GCC code size limit). Prints the
+ * heap retained by the relative and absolute programs, the translate time and
+ * the time to write the assembly out to a file.
+ *
+ * java laml.compiler.TranslateBenchmark [numInstructions]
+ */
+public class TranslateBenchmark {
+    private static final int ROUNDS = 5;
+    // Instructions in each generated function
+    private static final int FUNCTION_SIZE = 10;
+
+    /**
+     * Build a program out of functions which each load some values, select
+     * between their two neighbours and call a closure.
+     */
+    static RelativeProgram generateProgram(int numInstructions) {
+        RelativeProgram prog = new RelativeProgram();
+        int numFuncs = numInstructions / FUNCTION_SIZE;
+        for (int i = 0; i < numFuncs; ++i) {
+            LabeledFunction f = new LabeledFunction("f" + i);
+            f.addLine(Line.makeLdc(i, "Const"));
+            f.addLine(Line.makeLd(1, i % 4, "Var x"));
+            f.addLine(Line.makeCons(""));
+            f.addLine(Line.makeLd(0, 0, "Var y"));
+            f.addLine(Line.makeSel("f" + ((i + 1) % numFuncs), "f"
+                    + ((i + 2) % numFuncs), "If"));
+            f.addLine(Line.makeLdf("f" + ((i + 3) % numFuncs), "Load f"));
+            f.addLine(Line.makeAp(2, "Func call"));
+            f.addLine(Line.makeSt(0, 1, "Define z"));
+            f.addLine(Line.makeLdc(0, "Nil"));
+            f.addLine(Line.makeRtn("Return"));
+            prog.addLabeledFunction(f);
+        }
+        return prog;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long timeWrite(AbsoluteProgram prog, File file)
+            throws IOException {
+        long start = System.nanoTime();
+        FileChannel out = FileChannel.open(file.toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            prog.write(out, true);
+        } finally {
+            out.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int numInstructions = args.length > 0 ? Integer.parseInt(args[0])
+                : 1000000;
+        File outFile = File.createTempFile("translate-benchmark", ".gcc");
+        outFile.deleteOnExit();
+        long translateNanos = 0;
+        long writeNanos = 0;
+        long relativeBytes = 0;
+        long absoluteBytes = 0;
+        for (int i = 0; i < ROUNDS; ++i) {
+            long base = usedHeap();
+            RelativeProgram relative = generateProgram(numInstructions);
+            relativeBytes = usedHeap() - base;
+            long start = System.nanoTime();
+            AbsoluteProgram absolute = relative.translate();
+            translateNanos += System.nanoTime() - start;
+            relative = null;
+            absoluteBytes = usedHeap() - base;
+            writeNanos += timeWrite(absolute, outFile);
+        }
+        System.out.println(String.format(
+                "%d instructions: relative %6.1f MB, absolute %6.1f MB, "
+                        + "translate %8.2f ms, write %8.2f ms",
+                numInstructions, relativeBytes / 1048576.0,
+                absoluteBytes / 1048576.0, translateNanos / 1e6 / ROUNDS,
+                writeNanos / 1e6 / ROUNDS));
+    }
+}
@@ -0,0 +1,210 @@
+package laml.compiler.lexer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import laml.compiler.lexer.LexedProgram.LexerException;
+import laml.compiler.lexer.LexedProgram.LexerInputStream;
+import laml.compiler.lexer.LexerNode.NodeType;
+
+/**
+ * Lexer which reads the whole program into a char array up front and scans it
+ * with an index cursor. Produces the same LexerNode tree (including line
+ * numbers) as LexedProgram.lexProgram, but avoids the per-character
+ * read/unread overhead of the PushbackInputStream and the regex token check.
+ */
+public class CharArrayLexer {
+    // Streams are decoded one byte per char, which matches the way
+    // LexerInputStream casts each byte it reads.
+    private static final Charset STREAM_CHARSET = Charset.forName("ISO-8859-1");
+
+    private final char[] buf;
+    private final int length;
+    // Index of the next unread character
+    private int pos;
+    private int lineNum;
+    private SymbolInterner symbols;
+
+    public CharArrayLexer(char[] buf, int length) {
+        this.buf = buf;
+        this.length = length;
+        pos = 0;
+        lineNum = 1;
+        symbols = new SymbolInterner();
+    }
+
+    private boolean isDone() {
+        return pos >= length;
+    }
+
+    /**
+     * Advance the cursor past whitespace and comments. Comments are started by
+     * a ';' character, and ended by a '\n' character (or the end of input).
+     */
+    private void eatWhitespaceAndComments() {
+        while (pos < length) {
+            char next = buf[pos];
+            if (next == ';') {
+                while (pos < length && buf[pos] != '\n') {
+                    pos++;
+                }
+            } else if (Character.isWhitespace(next)) {
+                if (next == '\n') {
+                    lineNum++;
+                }
+                pos++;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Read in a token starting at the cursor. Token ends on whitespace, ')' or
+     * the end of input. Must be non-empty and may not contain '('.
+     */
+    private String getToken() {
+        int start = pos;
+        while (pos < length) {
+            char next = buf[pos];
+            if (Character.isWhitespace(next) || next == ')') {
+                break;
+            }
+            pos++;
+        }
+        if (pos == start) {
+            throw new LexerException("Invalid token of length 0", lineNum);
+        }
+        String token = new String(buf, start, pos - start);
+        for (int i = start; i < pos; ++i) {
+            if (buf[i] == '(') {
+                throw new LexerException("Token may not contain '(': " + token,
+                        lineNum);
+            }
+        }
+        return token;
+    }
+
+    /**
+     * A FUNCTION type node which has been opened by '(' but not yet closed.
+     * The node itself is only created once its op has been lexed.
+     */
+    private static class OpenNode {
+        final int lineNum;
+        LexerNode node;
+
+        OpenNode(int lineNum) {
+            this.lineNum = lineNum;
+        }
+    }
+
+    /**
+     * Lex a node from the input. A node is either a variable token or a
+     * function call of the form: (op[arg]*). Input must contain a node.
+     *
+     * Nested function calls are tracked on an explicit stack of open nodes
+     * rather than by recursion, so nesting depth is not limited by the thread
+     * stack.
+     */
+    private LexerNode lexNode() {
+        Deque<OpenNode> open = new ArrayDeque<OpenNode>();
+        while (true) {
+            int nodeLine = lineNum;
+            if (!isDone() && buf[pos] == '(') {
+                // FUNCTION: its op is the next node
+                pos++;
+                open.push(new OpenNode(nodeLine));
+                eatWhitespaceAndComments();
+                continue;
+            }
+            // VARIABLE
+            String token = getToken();
+            LexerNode done = new LexerNode(NodeType.VARIABLE, token,
+                    symbols.intern(token), nodeLine);
+            // Attach the finished node to its parent, closing off any parents
+            // which end here.
+            while (true) {
+                OpenNode parent = open.peek();
+                if (parent == null) {
+                    return done;
+                }
+                if (parent.node == null) {
+                    parent.node = new LexerNode(NodeType.FUNCTION, done,
+                            parent.lineNum);
+                } else {
+                    parent.node.children.add(done);
+                }
+                eatWhitespaceAndComments();
+                if (isDone()) {
+                    throw new LexerException(
+                            "Unexpected node end without closing paren.",
+                            lineNum);
+                }
+                if (buf[pos] != ')') {
+                    break;
+                }
+                pos++;
+                open.pop();
+                done = parent.node;
+            }
+        }
+    }
+
+    /**
+     * Lex the full buffer, wrapping the top-level nodes in a begin.
+     */
+    public LexedProgram lex() {
+        // All programs wrapped in a begin
+        LexerNode begin = new LexerNode(NodeType.VARIABLE, "begin",
+                symbols.intern("begin"), 0);
+        LexerNode root = new LexerNode(NodeType.FUNCTION, begin, 0);
+        while (true) {
+            eatWhitespaceAndComments();
+            if (isDone()) {
+                break;
+            }
+            root.children.add(lexNode());
+        }
+        return new LexedProgram(root, symbols);
+    }
+
+    /**
+     * Lex the program fed in through the given input stream. The stream is
+     * read fully before lexing starts.
+     */
+    public static LexedProgram lexProgram(InputStream progIn) {
+        Reader reader = new InputStreamReader(progIn, STREAM_CHARSET);
+        char[] buf = new char[8192];
+        int length = 0;
+        try {
+            while (true) {
+                if (length == buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                int read = reader.read(buf, length, buf.length - length);
+                if (read < 0) {
+                    break;
+                }
+                length += read;
+            }
+        } catch (IOException e) {
+            throw new LexerException("Failed to read program: "
+                    + e.getMessage(), (LexerInputStream) null);
+        }
+        return new CharArrayLexer(buf, length).lex();
+    }
+
+    /**
+     * Lex a program held in a string.
+     */
+    public static LexedProgram lexProgramString(String progString) {
+        char[] buf = progString.toCharArray();
+        return new CharArrayLexer(buf, buf.length).lex();
+    }
+}
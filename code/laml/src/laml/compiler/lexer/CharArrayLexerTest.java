@@ -0,0 +1,85 @@
+package laml.compiler.lexer;
+
+import static org.junit.Assert.assertEquals;
+import laml.compiler.lexer.LexerNode.NodeType;
+
+import org.junit.Test;
+
+public class CharArrayLexerTest {
+
+    /**
+     * Check that two lexer trees have the same shape, tokens and line numbers.
+     */
+    private static void assertSameTree(LexerNode expected, LexerNode actual) {
+        assertEquals(expected.type, actual.type);
+        assertEquals(expected.getLineNum(), actual.getLineNum());
+        if (expected.type == NodeType.VARIABLE) {
+            assertEquals(expected.token, actual.token);
+            return;
+        }
+        assertSameTree(expected.op, actual.op);
+        assertEquals(expected.children.size(), actual.children.size());
+        for (int i = 0; i < expected.children.size(); ++i) {
+            assertSameTree(expected.children.get(i), actual.children.get(i));
+        }
+    }
+
+    private static void assertLexesLikeStreamLexer(String prog) {
+        assertSameTree(LexedProgram.lexProgramString(prog).rootNode,
+                CharArrayLexer.lexProgramString(prog).rootNode);
+    }
+
+    @Test
+    public void testMatchesStreamLexer() {
+        assertLexesLikeStreamLexer("");
+        assertLexesLikeStreamLexer("(+ 1 2)");
+        assertLexesLikeStreamLexer("1 2 (+ 3 4) (cons 3 (cons 5 6))");
+        assertLexesLikeStreamLexer("((lambda (x) x) 1)");
+        assertLexesLikeStreamLexer(
+                ";; comment\n(define x\n  ;; inner ( comment\n  (+ 1 2)) ; tail\n"
+                        + "\n\n(lambda (THUNK)\n\tx)\n");
+        assertLexesLikeStreamLexer("(  car\n\n  x  )  y");
+    }
+
+    @Test
+    public void testLineNumbers() {
+        LexerNode root = CharArrayLexer.lexProgramString(
+                "; header\n(define x\n  1)\n\n(x)").rootNode;
+        assertEquals(0, root.getLineNum());
+        assertEquals(2, root.children.get(0).getLineNum());
+        assertEquals(3, root.children.get(0).children.get(1).getLineNum());
+        assertEquals(5, root.children.get(1).getLineNum());
+    }
+
+    @Test
+    public void testTrailingCommentWithoutNewline() {
+        LexerNode root = CharArrayLexer.lexProgramString("(+ 1 2) ; done")
+                .rootNode;
+        assertEquals(1, root.children.size());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testUnmatchedParens() {
+        CharArrayLexer.lexProgramString("(");
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testMissingCloseParen() {
+        CharArrayLexer.lexProgramString("(+ 1 2");
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testUnbalancedParens() {
+        CharArrayLexer.lexProgramString("())");
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testNoOp() {
+        CharArrayLexer.lexProgramString("()");
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testOpenParenInToken() {
+        CharArrayLexer.lexProgramString("(+ a(b 1)");
+    }
+}
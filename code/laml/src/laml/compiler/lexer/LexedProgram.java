@@ -15,9 +15,12 @@ import laml.compiler.lexer.LexerNode.NodeType;
  */
 public class LexedProgram {
     public LexerNode rootNode;
+    // Symbol ids of all VARIABLE tokens in the tree
+    public SymbolInterner symbols;
 
-    public LexedProgram(LexerNode rootNode) {
+    public LexedProgram(LexerNode rootNode, SymbolInterner symbols) {
         this.rootNode = rootNode;
+        this.symbols = symbols;
     }
 
     /**
@@ -63,6 +66,10 @@ public class LexedProgram {
                     ": " + cause);
         }
 
+        public LexerException(String cause, int lineNum) {
+            super("\nLine " + lineNum + ": " + cause);
+        }
+
         // NOTE(gkanwar): Auto-generated
         private static final long serialVersionUID = 4191797007213323463L;
     }
@@ -182,7 +189,8 @@ public class LexedProgram {
      * Lex a node from the input. A node is a function call of the form:
      * (op[arg]*). Input must contain a node.
      */
-    public static LexerNode lexNode(LexerInputStream is) {
+    public static LexerNode lexNode(LexerInputStream is,
+            SymbolInterner symbols) {
         try {
             int lineNum = is.getLineNum();
             char next = (char) is.read();
@@ -191,11 +199,12 @@ public class LexedProgram {
                 is.unread(next);
                 String var = getToken(is);
                 checkValidToken(var, is);
-                return new LexerNode(NodeType.VARIABLE, var, lineNum);
+                return new LexerNode(NodeType.VARIABLE, var,
+                        symbols.intern(var), lineNum);
             } else {
                 // FUNCTION
                 eatWhitespaceAndComments(is);
-                LexerNode op = lexNode(is);
+                LexerNode op = lexNode(is, symbols);
                 LexerNode node = new LexerNode(NodeType.FUNCTION, op, lineNum);
                 while (!isStreamDone(is)) {
                     eatWhitespaceAndComments(is);
@@ -207,7 +216,7 @@ public class LexedProgram {
                                 "Unexpected node end without closing paren.",
                                 is);
                     }
-                    LexerNode child = lexNode(is);
+                    LexerNode child = lexNode(is, symbols);
                     node.children.add(child);
                 }
                 return node;
@@ -219,13 +228,16 @@ public class LexedProgram {
     }
 
     /**
-     * Lex the program fed in through the given input stream.
+     * Lex the program fed in through the given input stream. See
+     * CharArrayLexer for a faster lexer producing the same tree.
      */
     public static LexedProgram lexProgram(InputStream progIn) {
         // All programs wrapped in a begin
-        LexerNode root = new LexerNode(NodeType.FUNCTION, new LexerNode(
-                NodeType.VARIABLE, "begin", 0), 0);
-        LexedProgram prog = new LexedProgram(root);
+        SymbolInterner symbols = new SymbolInterner();
+        LexerNode begin = new LexerNode(NodeType.VARIABLE, "begin",
+                symbols.intern("begin"), 0);
+        LexerNode root = new LexerNode(NodeType.FUNCTION, begin, 0);
+        LexedProgram prog = new LexedProgram(root, symbols);
 
         LexerInputStream is = new LexerInputStream(progIn);
         while (!isStreamDone(is)) {
@@ -233,7 +245,7 @@ public class LexedProgram {
             if (isStreamDone(is)) {
                 break;
             }
-            LexerNode node = lexNode(is);
+            LexerNode node = lexNode(is, symbols);
             root.children.add(node);
         }
         return prog;
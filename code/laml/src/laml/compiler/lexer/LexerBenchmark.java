@@ -0,0 +1,108 @@
+package laml.compiler.lexer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Throughput benchmark comparing the stream lexer (LexedProgram) to the
+ * char-array lexer (CharArrayLexer). Pass LaML files to lex them concatenated,
+ * the same way build.sh feeds them to the compiler:
+ *
+ * java laml.compiler.lexer.LexerBenchmark ../util/*.laml player.laml
+ *
+ * With no arguments a synthetic program is generated instead.
+ */
+public class LexerBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 20;
+
+    private static byte[] readInputs(String[] files) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        for (String file : files) {
+            InputStream in = new FileInputStream(file);
+            try {
+                int read;
+                while ((read = in.read(buf)) > 0) {
+                    out.write(buf, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            out.write('\n');
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Generate a program of many small utility-style defines.
+     */
+    private static byte[] syntheticProgram(int numDefines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < numDefines; ++i) {
+            sb.append(";; Helper number ").append(i).append("\n");
+            sb.append("(define helper-").append(i).append("\n");
+            sb.append("  (lambda (l index)\n");
+            sb.append("    (if (null? l)\n");
+            sb.append("        nil\n");
+            sb.append("        (cons (+ (car l) ").append(i)
+                    .append(") (helper-").append(i)
+                    .append(" (cdr l) (- index 1))))))\n");
+        }
+        return sb.toString().getBytes();
+    }
+
+    private static long timeStreamLexer(byte[] prog) {
+        long start = System.nanoTime();
+        LexedProgram.lexProgram(new ByteArrayInputStream(prog));
+        return System.nanoTime() - start;
+    }
+
+    private static long timeCharArrayLexer(byte[] prog) {
+        long start = System.nanoTime();
+        CharArrayLexer.lexProgram(new ByteArrayInputStream(prog));
+        return System.nanoTime() - start;
+    }
+
+    private static String report(String name, byte[] prog, long nanos) {
+        double seconds = nanos / 1e9;
+        double mbPerSec = (prog.length * (double) ROUNDS) / (1 << 20)
+                / seconds;
+        return String.format("%-16s %8.2f ms/round %8.2f MB/s", name,
+                nanos / 1e6 / ROUNDS, mbPerSec);
+    }
+
+    public static void main(String[] args) throws IOException {
+        byte[] prog = args.length > 0 ? readInputs(args)
+                : syntheticProgram(5000);
+        System.out.println("Lexing " + prog.length + " bytes, " + ROUNDS
+                + " rounds");
+
+        // Sanity check that both lexers agree before timing anything
+        String expected = LexedProgram.lexProgram(
+                new ByteArrayInputStream(prog)).rootNode.toString();
+        String actual = CharArrayLexer.lexProgram(
+                new ByteArrayInputStream(prog)).rootNode.toString();
+        if (!expected.equals(actual)) {
+            throw new RuntimeException("Lexers produced different trees");
+        }
+
+        for (int i = 0; i < WARMUP_ROUNDS; ++i) {
+            timeStreamLexer(prog);
+            timeCharArrayLexer(prog);
+        }
+        long streamNanos = 0;
+        long charArrayNanos = 0;
+        for (int i = 0; i < ROUNDS; ++i) {
+            streamNanos += timeStreamLexer(prog);
+            charArrayNanos += timeCharArrayLexer(prog);
+        }
+        System.out.println(report("LexedProgram", prog, streamNanos));
+        System.out.println(report("CharArrayLexer", prog, charArrayNanos));
+        System.out.println(String.format("Speedup: %.1fx",
+                streamNanos / (double) charArrayNanos));
+    }
+}
@@ -1,6 +1,8 @@
 package laml.compiler.lexer;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 
 public class LexerNode {
@@ -11,13 +13,15 @@ public class LexerNode {
     public List<LexerNode> children;
     // VARIABLE type
     public String token;
+    // Interned id of token, see SymbolInterner
+    public int symbol;
     // FUNCTION type
     public LexerNode op;
     public NodeType type;
     // Line number meta-data
     private int lineNum;
 
-    public LexerNode(NodeType type, String token, int lineNum) {
+    public LexerNode(NodeType type, String token, int symbol, int lineNum) {
         if (type != NodeType.VARIABLE) {
             throw new RuntimeException(
                     "String token is only valid for variable type LexerNode");
@@ -25,6 +29,7 @@ public class LexerNode {
         children = new ArrayList<LexerNode>();
         this.type = type;
         this.token = token;
+        this.symbol = symbol;
         this.lineNum = lineNum;
     }
 
@@ -43,22 +48,37 @@ public class LexerNode {
         return lineNum;
     }
 
+    /**
+     * Render the node back into LaML source. Walks the tree with an explicit
+     * stack so that deeply nested nodes can be printed.
+     */
     @Override
     public String toString() {
-        if (type == NodeType.VARIABLE) {
-            return token;
-        }
-        else {
-            StringBuilder sb = new StringBuilder();
+        StringBuilder sb = new StringBuilder();
+        // Either LexerNodes still to render or literal Strings to append
+        Deque<Object> pending = new ArrayDeque<Object>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            Object next = pending.pop();
+            if (next instanceof String) {
+                sb.append((String) next);
+                continue;
+            }
+            LexerNode node = (LexerNode) next;
+            if (node.type == NodeType.VARIABLE) {
+                sb.append(node.token);
+                continue;
+            }
+            // Push in reverse order of output: "(op child1 child2 )"
             sb.append("(");
-            sb.append(op.toString());
-            sb.append(" ");
-            for (LexerNode child : children) {
-                sb.append(child.toString());
-                sb.append(" ");
+            pending.push(")");
+            for (int i = node.children.size() - 1; i >= 0; --i) {
+                pending.push(" ");
+                pending.push(node.children.get(i));
             }
-            sb.append(")");
-            return sb.toString();
+            pending.push(" ");
+            pending.push(node.op);
         }
+        return sb.toString();
     }
 }
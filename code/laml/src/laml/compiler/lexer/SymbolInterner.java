@@ -0,0 +1,78 @@
+package laml.compiler.lexer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns each distinct token string a dense integer symbol id. The lexer
+ * interns every VARIABLE token, so later stages can compare and look up
+ * symbols by id instead of hashing strings. Whether a token is an integer
+ * literal is also worked out once per symbol here.
+ */
+public class SymbolInterner {
+    private Map<String, Integer> ids;
+    private List<String> names;
+    // Indexed by symbol id
+    private boolean[] isLiteral;
+    private int[] literals;
+
+    public SymbolInterner() {
+        ids = new HashMap<String, Integer>();
+        names = new ArrayList<String>();
+        isLiteral = new boolean[64];
+        literals = new int[64];
+    }
+
+    /**
+     * Returns the id for the given name, assigning the next free id if the
+     * name hasn't been seen before.
+     */
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        int newId = names.size();
+        names.add(name);
+        ids.put(name, newId);
+        if (newId == isLiteral.length) {
+            isLiteral = Arrays.copyOf(isLiteral, newId * 2);
+            literals = Arrays.copyOf(literals, newId * 2);
+        }
+        try {
+            literals[newId] = Integer.parseInt(name);
+            isLiteral[newId] = true;
+        } catch (NumberFormatException e) {
+            isLiteral[newId] = false;
+        }
+        return newId;
+    }
+
+    public String getName(int symbol) {
+        return names.get(symbol);
+    }
+
+    /**
+     * Whether the symbol is an integer literal rather than a variable name.
+     */
+    public boolean isIntegerLiteral(int symbol) {
+        return isLiteral[symbol];
+    }
+
+    /**
+     * Value of an integer literal symbol. Only valid if isIntegerLiteral.
+     */
+    public int getIntegerLiteral(int symbol) {
+        return literals[symbol];
+    }
+
+    /**
+     * Number of symbols interned so far. Ids are always less than this.
+     */
+    public int size() {
+        return names.size();
+    }
+}
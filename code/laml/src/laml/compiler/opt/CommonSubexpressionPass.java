@@ -0,0 +1,539 @@
+package laml.compiler.opt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import laml.compiler.Line;
+import laml.compiler.Opcode;
+import laml.compiler.parser.CodeSequence;
+import laml.compiler.parser.EnvFrame;
+import laml.compiler.parser.EnvFrame.Binding;
+import laml.compiler.parser.LabelAllocator;
+import laml.compiler.parser.ParsedProgram;
+import laml.compiler.parser.ParserDefinition;
+import laml.compiler.parser.ParserFunction;
+import laml.compiler.parser.ParserLabeledBlock;
+
+/**
+ * Computes repeated pure expressions once, and constant lists once per
+ * program.
+ *
+ * Expressions are recovered from the stack code of each definition by
+ * tracking which lines computed each value on the stack. An expression is pure
+ * if it is built from constants, variable loads, arithmetic, comparisons,
+ * CONS, CAR, CDR, ATOM and calls of functions which EffectAnalysis finds no
+ * effects in. Running it again gives the same value, so when one appears more
+ * than once in a block, the first occurrence stores its value in a new scratch
+ * slot of the frame and the rest load it. A function's definitions run one
+ * after another in the order of its bindings, then its body, so they are
+ * searched together, and e.g. a call repeated by several top level defines is
+ * made once. The first occurrence stays where it was, so nothing runs that
+ * didn't before. This is only done where the instructions saved outweigh the
+ * store and load, and building the frame if the function didn't need one.
+ * Where the first occurrence is the whole definition of a local, its value is
+ * already stored there, and the rest load the local for nothing.
+ *
+ * A local loaded before its definition has run holds 0 until then (see
+ * DefinitionOrder), so loads of those only match within one definition.
+ *
+ * Each value is numbered by its op and the numbers of its operands, so that
+ * equal expressions get the same number without comparing them whole, and
+ * the pass takes time in proportion to the code however deeply it nests.
+ *
+ * A list or tuple of constants inside a function is built anew on every call.
+ * These are hoisted into main's frame and loaded from there instead.
+ */
+public class CommonSubexpressionPass implements OptimizationPass {
+    // Instructions a frame of locals costs per call: DUM, LDF and TRAP
+    private static final int FRAME_COST = 3;
+
+    /**
+     * A value computed by lines start to end of some code.
+     */
+    private static class Value {
+        final int start;
+        final int end;
+        // Same id means same value, for pure values
+        final int id;
+        final boolean pure;
+        // Built from LDC and CONS only
+        final boolean constant;
+        final int size;
+
+        Value(int start, int end, int id, boolean pure, boolean constant,
+                int size) {
+            this.start = start;
+            this.end = end;
+            this.id = id;
+            this.pure = pure;
+            this.constant = constant;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A value in the code of one of a block's definitions, numbered in the
+     * order they run.
+     */
+    private static class Occurrence {
+        final int definition;
+        final Value value;
+
+        Occurrence(int definition, Value value) {
+            this.definition = definition;
+            this.value = value;
+        }
+    }
+
+    private static final Comparator<Value> BY_SIZE = new Comparator<Value>() {
+        @Override
+        public int compare(Value a, Value b) {
+            return b.size - a.size;
+        }
+    };
+
+    // A value before the values inside it
+    private static final Comparator<Value> BY_START = new Comparator<Value>() {
+        @Override
+        public int compare(Value a, Value b) {
+            return a.start != b.start ? a.start - b.start : b.end - a.end;
+        }
+    };
+
+    private int numSlots;
+    private int numConstants;
+    // Op and operand ids of each value seen, to its id
+    private final Map<List<Object>, Integer> ids =
+            new HashMap<List<Object>, Integer>();
+    private Set<Binding> readEarly;
+
+    @Override
+    public String getName() {
+        return "cse";
+    }
+
+    private static Value opaque() {
+        return new Value(-1, -1, -1, false, false, 0);
+    }
+
+    /**
+     * Id of the value with the given op and operand ids, a new one if no
+     * value had them before.
+     */
+    private int idOf(List<Object> key) {
+        Integer id = ids.get(key);
+        if (id == null) {
+            id = ids.size();
+            ids.put(key, id);
+        }
+        return id;
+    }
+
+    /**
+     * Value of a line which takes no operands.
+     */
+    private Value leaf(int i, boolean constant, Object... key) {
+        return new Value(i, i, idOf(Arrays.asList(key)), true, constant, 1);
+    }
+
+    /**
+     * Value of an op applied to operands, which the code computes in order
+     * just before the op at index i.
+     */
+    private Value combine(int i, String op, boolean pure, boolean constant,
+            List<Value> operands) {
+        int size = 1;
+        int next = operands.isEmpty() ? i : operands.get(0).start;
+        List<Object> key = new ArrayList<Object>(operands.size() + 1);
+        key.add(op);
+        for (Value operand : operands) {
+            // Only contiguous code can be replaced
+            pure &= operand.pure && operand.start == next;
+            constant &= operand.constant;
+            next = operand.end + 1;
+            size += operand.size;
+            key.add(operand.id);
+        }
+        pure &= next == i;
+        if (!pure) {
+            return opaque();
+        }
+        int start = operands.isEmpty() ? i : operands.get(0).start;
+        return new Value(start, i, idOf(key), true, constant, size);
+    }
+
+    private static List<Value> pop(Deque<Value> stack, int n) {
+        List<Value> out = new ArrayList<Value>(n);
+        for (int j = 0; j < n; ++j) {
+            out.add(0, stack.pop());
+        }
+        return out;
+    }
+
+    /**
+     * All pure values the code of the numbered definition computes, in the
+     * order they are completed. Stops at the first line which ends the code.
+     */
+    private List<Value> scan(List<Line> lines, int definition,
+            Set<String> effectful) {
+        List<Value> values = new ArrayList<Value>();
+        Deque<Value> stack = new ArrayDeque<Value>();
+        // Bumped by every ST, so loads either side of one never match
+        int epoch = 0;
+        for (int i = 0; i < lines.size(); ++i) {
+            Line line = lines.get(i);
+            Opcode op = line.getOpcode();
+            if (op == null) {
+                continue;
+            }
+            Value value = null;
+            switch (op) {
+            case LDC:
+                value = leaf(i, true, op, line.getArg(0));
+                break;
+            case LD:
+                Binding binding = line.getBinding();
+                if (binding != null && binding.scratch) {
+                    value = opaque();
+                } else if (binding != null && readEarly.contains(binding)) {
+                    value = leaf(i, false, line.getInstructionText(), epoch,
+                            definition);
+                } else {
+                    value = leaf(i, false, line.getInstructionText(), epoch);
+                }
+                break;
+            case LDF:
+                value = leaf(i, false, line.getInstructionText());
+                break;
+            case CAR:
+            case CDR:
+            case ATOM:
+                if (stack.isEmpty()) {
+                    return values;
+                }
+                value = combine(i, op.name(), true, false, pop(stack, 1));
+                break;
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case CEQ:
+            case CGT:
+            case CGTE:
+            case CONS:
+                if (stack.size() < 2) {
+                    return values;
+                }
+                value = combine(i, op.name(), true, op == Opcode.CONS,
+                        pop(stack, 2));
+                break;
+            case AP:
+                if (stack.size() < line.getArg(0) + 1) {
+                    return values;
+                }
+                Value closure = stack.pop();
+                List<Value> operands = pop(stack, line.getArg(0));
+                operands.add(closure);
+                String label = i > 0 ? EffectAnalysis.calledLabel(lines
+                        .get(i - 1)) : null;
+                value = combine(i, op.name() + line.getArg(0), label != null
+                        && !effectful.contains(label), false, operands);
+                break;
+            case SEL:
+                if (stack.isEmpty()) {
+                    return values;
+                }
+                stack.pop();
+                // The branch leaves its value
+                value = opaque();
+                break;
+            case DBUG:
+            case ST:
+                if (stack.isEmpty()) {
+                    return values;
+                }
+                stack.pop();
+                epoch++;
+                break;
+            case BRK:
+                break;
+            default:
+                // Control leaves the code
+                return values;
+            }
+            if (value != null) {
+                stack.push(value);
+                if (value.pure) {
+                    values.add(value);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Replace the given non-overlapping ranges of lines, sorted by start.
+     */
+    private static List<Line> replace(List<Line> lines, List<Value> ranges,
+            List<List<Line>> replacements) {
+        List<Line> out = new ArrayList<Line>(lines.size());
+        int next = 0;
+        for (int j = 0; j < ranges.size(); ++j) {
+            Value range = ranges.get(j);
+            out.addAll(lines.subList(next, range.start));
+            out.addAll(replacements.get(j));
+            next = range.end + 1;
+        }
+        out.addAll(lines.subList(next, lines.size()));
+        return out;
+    }
+
+    /**
+     * Largest values, with no two overlapping, sorted by start. The values of
+     * some code are nested like its expressions, so these are the ones no
+     * other value contains: a sweep in order of start takes each value which
+     * begins after the last one taken ends.
+     */
+    private static List<Value> largestDisjoint(List<Value> values) {
+        List<Value> sorted = new ArrayList<Value>(values);
+        Collections.sort(sorted, BY_START);
+        List<Value> chosen = new ArrayList<Value>();
+        int end = -1;
+        for (Value value : sorted) {
+            if (value.start > end) {
+                chosen.add(value);
+                end = value.end;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Whether the value overlaps any of the ranges, which are disjoint and
+     * keyed by start. Only the last range starting before the value ends can.
+     */
+    private static boolean overlapsAny(Value value,
+            TreeMap<Integer, Value> ranges) {
+        Map.Entry<Integer, Value> before = ranges.floorEntry(value.end);
+        return before != null && before.getValue().end >= value.start;
+    }
+
+    /**
+     * Replace lists of constants by loads from main's frame.
+     */
+    private boolean hoistConstants(ParserDefinition definition,
+            EnvFrame frame, EnvFrame mainEnv, Map<Integer, Binding> hoisted,
+            Set<String> effectful) {
+        List<Line> lines = definition.code.getLines();
+        List<Value> constants = new ArrayList<Value>();
+        for (Value value : scan(lines, 0, effectful)) {
+            // A single LDC is as cheap as the load
+            if (value.constant && value.size > 1) {
+                constants.add(value);
+            }
+        }
+        if (constants.isEmpty()) {
+            return false;
+        }
+        List<Value> chosen = largestDisjoint(constants);
+        List<List<Line>> replacements = new ArrayList<List<Line>>();
+        for (Value value : chosen) {
+            Binding binding = hoisted.get(value.id);
+            if (binding == null) {
+                binding = new Binding(-1, "$const" + numConstants++, null);
+                ParserDefinition def = new ParserDefinition();
+                for (int i = value.start; i <= value.end; ++i) {
+                    Line line = lines.get(i);
+                    def.code.add(line.withArgs(line.getArg(0),
+                            line.getArg(1)));
+                }
+                binding.setDefinition(def);
+                // Doesn't refer to anything, so can be defined first
+                mainEnv.insertBinding(0, binding);
+                hoisted.put(value.id, binding);
+            }
+            replacements.add(Collections.singletonList(Line.makeLd(
+                    frame.distanceTo(mainEnv), binding, "Const "
+                            + binding.name)));
+        }
+        setCode(definition, replace(lines, chosen, replacements));
+        return true;
+    }
+
+    /**
+     * The local the value is the whole definition of, if any. The first
+     * definitions are of the given locals, in order.
+     */
+    private static Binding definedAs(Occurrence occurrence,
+            List<List<Line>> lines, List<Binding> defined) {
+        if (occurrence.definition >= defined.size()) {
+            return null;
+        }
+        List<Line> code = lines.get(occurrence.definition);
+        for (int i = 0; i < code.size(); ++i) {
+            if ((i < occurrence.value.start || i > occurrence.value.end)
+                    && code.get(i).getOpcode() != null) {
+                return null;
+            }
+        }
+        return defined.get(occurrence.definition);
+    }
+
+    /**
+     * Compute each repeated pure expression of the definitions once, where it
+     * pays off. The definitions are given in the order they run, the first
+     * of them defining the given locals.
+     */
+    private boolean eliminate(List<ParserDefinition> definitions,
+            List<Binding> defined, EnvFrame frame, Set<String> effectful) {
+        List<List<Line>> lines = new ArrayList<List<Line>>();
+        Map<Integer, List<Occurrence>> byId =
+                new LinkedHashMap<Integer, List<Occurrence>>();
+        for (int d = 0; d < definitions.size(); ++d) {
+            List<Line> code = definitions.get(d).code.getLines();
+            lines.add(code);
+            for (Value value : scan(code, d, effectful)) {
+                // Reloading a single instruction saves nothing
+                if (value.size < 2) {
+                    continue;
+                }
+                List<Occurrence> occurrences = byId.get(value.id);
+                if (occurrences == null) {
+                    occurrences = new ArrayList<Occurrence>();
+                    byId.put(value.id, occurrences);
+                }
+                occurrences.add(new Occurrence(d, value));
+            }
+        }
+        List<Value> candidates = new ArrayList<Value>();
+        for (List<Occurrence> occurrences : byId.values()) {
+            if (occurrences.size() > 1) {
+                candidates.add(occurrences.get(0).value);
+            }
+        }
+        Collections.sort(candidates, BY_SIZE);
+
+        // Of each definition
+        List<TreeMap<Integer, Value>> ranges =
+                new ArrayList<TreeMap<Integer, Value>>();
+        for (int d = 0; d < definitions.size(); ++d) {
+            ranges.add(new TreeMap<Integer, Value>());
+        }
+        Map<Value, List<Line>> replacements = new HashMap<Value, List<Line>>();
+        for (Value candidate : candidates) {
+            List<Occurrence> occurrences = new ArrayList<Occurrence>();
+            for (Occurrence occurrence : byId.get(candidate.id)) {
+                if (!overlapsAny(occurrence.value, ranges
+                        .get(occurrence.definition))) {
+                    occurrences.add(occurrence);
+                }
+            }
+            if (occurrences.size() < 2) {
+                continue;
+            }
+            Occurrence first = occurrences.get(0);
+            Binding local = definedAs(first, lines, defined);
+            if (local != null) {
+                for (Occurrence occurrence : occurrences.subList(1,
+                        occurrences.size())) {
+                    replacements.put(occurrence.value, Collections
+                            .singletonList(Line.makeLd(0, local, "Reuse "
+                                    + local.name)));
+                    ranges.get(occurrence.definition).put(
+                            occurrence.value.start, occurrence.value);
+                }
+                continue;
+            }
+            // Store, load and the slot's initial 0
+            int cost = 3 + (frame.isElided() ? FRAME_COST : 0);
+            int saved = (occurrences.size() - 1) * (candidate.size - 1);
+            if (saved <= cost) {
+                continue;
+            }
+            Binding slot = new Binding(-1, "$cse" + numSlots++, null);
+            slot.scratch = true;
+            ParserDefinition init = new ParserDefinition();
+            init.code.add(Line.makeLdc(0, ""));
+            slot.setDefinition(init);
+            frame.insertBinding(frame.bindings.size(), slot);
+
+            List<Line> compute = new ArrayList<Line>(lines.get(
+                    first.definition).subList(first.value.start,
+                    first.value.end + 1));
+            compute.add(Line.makeSt(0, slot, "Save " + slot.name));
+            compute.add(Line.makeLd(0, slot, "Var " + slot.name));
+            replacements.put(first.value, compute);
+            for (Occurrence occurrence : occurrences.subList(1, occurrences
+                    .size())) {
+                replacements.put(occurrence.value, Collections
+                        .singletonList(Line.makeLd(0, slot, "Reuse "
+                                + slot.name)));
+            }
+            for (Occurrence occurrence : occurrences) {
+                ranges.get(occurrence.definition).put(occurrence.value.start,
+                        occurrence.value);
+            }
+        }
+        boolean changed = false;
+        for (int d = 0; d < definitions.size(); ++d) {
+            TreeMap<Integer, Value> chosen = ranges.get(d);
+            if (chosen.isEmpty()) {
+                continue;
+            }
+            List<List<Line>> ordered = new ArrayList<List<Line>>();
+            for (Value range : chosen.values()) {
+                ordered.add(replacements.get(range));
+            }
+            setCode(definitions.get(d), replace(lines.get(d),
+                    new ArrayList<Value>(chosen.values()), ordered));
+            changed = true;
+        }
+        return changed;
+    }
+
+    private static void setCode(ParserDefinition definition, List<Line> lines) {
+        CodeSequence code = new CodeSequence();
+        code.addAll(lines);
+        definition.code = code;
+    }
+
+    @Override
+    public boolean run(ParsedProgram prog) {
+        EnvFrame mainEnv = ((ParserFunction) prog
+                .getBlock(LabelAllocator.MAIN_LABEL)).getEnv();
+        Set<String> effectful = EffectAnalysis.findEffectful(prog);
+        Map<Integer, Binding> hoisted = new HashMap<Integer, Binding>();
+        ids.clear();
+        readEarly = DefinitionOrder.findReadEarly(prog);
+        boolean changed = false;
+        // Copied, since hoisting adds bindings to main
+        List<ParserLabeledBlock> blocks = new ArrayList<ParserLabeledBlock>(
+                prog.blocks.values());
+        for (ParserLabeledBlock block : blocks) {
+            EnvFrame frame = block.getEnv();
+            List<ParserDefinition> definitions = block.getDefinitions();
+            if (frame != mainEnv) {
+                for (ParserDefinition definition : definitions) {
+                    changed |= hoistConstants(definition, frame, mainEnv,
+                            hoisted, effectful);
+                }
+            }
+            // Copied, since slots are added to the frame
+            List<Binding> defined = block instanceof ParserFunction
+                    ? new ArrayList<Binding>(frame.bindings) : Collections
+                            .<Binding> emptyList();
+            changed |= eliminate(definitions, defined, frame, effectful);
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,138 @@
+package laml.compiler.opt;
+
+import static laml.compiler.opt.PassHarness.code;
+import static laml.compiler.opt.PassHarness.count;
+import static laml.compiler.opt.PassHarness.run;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import laml.compiler.AbsoluteProgram;
+import laml.compiler.Opcode;
+import laml.compiler.RelativeProgram;
+
+import org.junit.Test;
+
+public class CommonSubexpressionPassTest {
+    private static AbsoluteProgram compile(String prog) {
+        return PassHarness.compile(prog, new CommonSubexpressionPass());
+    }
+
+    @Test
+    public void testRepeatedExpressionComputedOnce() {
+        AbsoluteProgram out = compile("(define f (lambda (x) "
+                + "(+ (+ (car (cdr (cdr (cdr x)))) (car (cdr (cdr (cdr x))))) "
+                + "(car (cdr (cdr (cdr x))))))) (f (list 1 2 3 4))");
+        assertEquals("12", run(out));
+        assertEquals(1, count(out, Opcode.CAR));
+        assertEquals(3, count(out, Opcode.CDR));
+        // Saved in a new frame, then loaded for each use
+        assertEquals(1, count(out, "ST 0 0\nLD 0 0\nLD 0 0\nADD\nLD 0 0\nADD"));
+    }
+
+    @Test
+    public void testCallWithEffectsRepeated() {
+        AbsoluteProgram out = compile(
+                "(define show (lambda (x) (begin (dbug x) x))) "
+                        + "(define f (lambda (x) (+ (+ (+ (show x) x) x) "
+                        + "(+ (+ (+ (show x) x) x) (+ (+ (show x) x) x))))) "
+                        + "(f 5)");
+        assertEquals("45", run(out));
+        assertEquals(3, count(out, "AP 1"));
+        assertEquals(0, count(out, Opcode.ST));
+    }
+
+    @Test
+    public void testConstantListHoisted() {
+        AbsoluteProgram out = compile("(define f (lambda (x) "
+                + "(cons x (cons 1 (cons 2 3))))) (f 5)");
+        assertEquals("(5 . (1 . (2 . 3)))", run(out));
+        // Built once in main, then loaded through f's argument frame
+        assertTrue(code(out).startsWith(
+                "DUM 2\nLDC 1\nLDC 2\nLDC 3\nCONS\nCONS\n"));
+        assertEquals(1, count(out, "LD 0 0\nLD 1 0\nCONS\nRTN"));
+        assertEquals(3, count(out, Opcode.CONS));
+    }
+
+    @Test
+    public void testRepeatedAcrossBranches() {
+        AbsoluteProgram out = compile("(define f (lambda (x) (if (car x) "
+                + "(+ (* (+ (car (cdr x)) (cdr (cdr x))) "
+                + "(+ (car (cdr x)) (cdr (cdr x)))) "
+                + "(+ (car (cdr x)) (cdr (cdr x)))) "
+                + "(- (+ (car (cdr x)) (cdr (cdr x))) 1)))) "
+                + "(cons (f (cons 1 (cons 3 4))) (f (cons 0 (cons 3 4))))");
+        assertEquals("(56 . 6)", run(out));
+        // Saved in the branch which repeats it; the other computes its own
+        assertEquals(1, count(out, Opcode.ST));
+        assertEquals(1, count(out, "ST 0 0\nLD 0 0\nLD 0 0\nMUL\nLD 0 0\nADD"));
+        assertEquals(6, count(out, Opcode.CDR));
+    }
+
+    @Test
+    public void testRepeatedAcrossDefinitions() {
+        AbsoluteProgram out = compile("(define f (lambda (w) (begin "
+                + "(define a (+ (car (cdr w)) 1)) "
+                + "(define b (+ (car (cdr w)) 2)) "
+                + "(define c (+ (car (cdr w)) 3)) "
+                + "(+ a (+ b c))))) (f (cons 1 (cons 10 0)))");
+        assertEquals("36", run(out));
+        assertEquals(1, count(out, Opcode.CAR));
+        assertEquals(1, count(out, Opcode.CDR));
+    }
+
+    @Test
+    public void testDefinedValueLoaded() {
+        // Too small to pay for a slot, but already stored in m
+        AbsoluteProgram out = compile("(define f (lambda (w) (begin "
+                + "(define m (car (cdr w))) "
+                + "(define y (+ (car (cdr w)) 1)) "
+                + "(cons m y)))) (f (cons 1 (cons 10 0)))");
+        assertEquals("(10 . 11)", run(out));
+        assertEquals(1, count(out, Opcode.CAR));
+        // Only m and y are stored
+        assertEquals(2, count(out, Opcode.ST));
+    }
+
+    @Test
+    public void testDefineNestedInDefineNotReused() {
+        // a loads v before v's definition has run, and b after
+        AbsoluteProgram out = compile("(define f (lambda (x) (begin "
+                + "(define a (+ (* (begin (define v (+ x 1)) v) x) x)) "
+                + "(define b (+ (* v x) x)) "
+                + "(cons a b)))) (f 3)");
+        assertEquals("(3 . 15)", run(out));
+        assertEquals(2, count(out, Opcode.MUL));
+    }
+
+    @Test
+    public void testSavedInUnusedDefinition() {
+        // Dead code must keep the definition which saves the value
+        RelativeProgram relative = new RelativeProgram();
+        relative.addLabeledFunctions(PassManager.forLevel(
+                PassManager.MAX_LEVEL).optimize(PassHarness.parse(
+                "(define f (lambda (x) (begin "
+                        + "(define unused (+ 1 (car (cdr (cdr (cdr x)))))) "
+                        + "(+ (car (cdr (cdr (cdr x)))) "
+                        + "(car (cdr (cdr (cdr x)))))))) "
+                        + "(f (list 1 2 3 4))")));
+        assertEquals("8", run(relative.translate()));
+    }
+
+    @Test
+    public void testDeepNesting() {
+        int depth = 20000;
+        StringBuilder sb = new StringBuilder("(define f (lambda (x) ");
+        for (int i = 0; i < depth; ++i) {
+            sb.append("(+ 1 ");
+        }
+        sb.append("x");
+        for (int i = 0; i < depth; ++i) {
+            sb.append(")");
+        }
+        sb.append(")) (f 5)");
+        RelativeProgram relative = new RelativeProgram();
+        relative.addLabeledFunctions(PassManager.forLevel(
+                PassManager.MAX_LEVEL).optimize(PassHarness.parse(sb
+                .toString())));
+        assertEquals(String.valueOf(depth + 5), run(relative.translate()));
+    }
+}
@@ -0,0 +1,153 @@
+package laml.compiler.opt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import laml.compiler.Line;
+import laml.compiler.Opcode;
+import laml.compiler.parser.CodeSequence;
+import laml.compiler.parser.EnvFrame.Binding;
+import laml.compiler.parser.ParsedProgram;
+import laml.compiler.parser.ParserBranch;
+import laml.compiler.parser.ParserDefinition;
+import laml.compiler.parser.ParserFunction;
+import laml.compiler.parser.ParserLabeledBlock;
+
+/**
+ * Propagates integer constants and folds arithmetic on them.
+ *
+ * A local whose definition is a single LDC is a constant, as long as no code
+ * may load it before its definition has run (see DefinitionOrder): bindings
+ * are never reassigned, other than scratch slots, so every other LD of it
+ * sees the defined value. Those loads become LDCs. Arithmetic and
+ * comparisons on two LDCs are then computed with GCC's 32-bit semantics,
+ * and a SEL or TSEL on a constant is replaced by the code of the branch it
+ * would take. Folding can turn more definitions into constants, so this runs
+ * until nothing changes.
+ */
+public class ConstantFoldingPass implements OptimizationPass {
+    @Override
+    public String getName() {
+        return "const-fold";
+    }
+
+    private static boolean isLdc(Line line) {
+        return line.getOpcode() == Opcode.LDC;
+    }
+
+    /**
+     * Bindings of all function locals which are defined as a single LDC, and
+     * not loaded before that runs.
+     */
+    private static Map<Binding, Integer> findConstants(ParsedProgram prog) {
+        Map<Binding, Integer> constants = new HashMap<Binding, Integer>();
+        Set<Binding> early = DefinitionOrder.findReadEarly(prog);
+        for (ParserLabeledBlock block : prog.blocks.values()) {
+            if (!(block instanceof ParserFunction)) {
+                continue;
+            }
+            for (Binding binding : ((ParserFunction) block).getEnv().bindings) {
+                if (binding.scratch || early.contains(binding)) {
+                    continue;
+                }
+                CodeSequence code = binding.definition.code;
+                if (code.getNumInstructions() == 1 && code.size() == 1
+                        && isLdc(code.getFirstLine())) {
+                    constants.put(binding, code.getFirstLine().getArg(0));
+                }
+            }
+        }
+        return constants;
+    }
+
+    /**
+     * Rewrite one piece of code, returning whether it changed.
+     */
+    private static boolean fold(ParserDefinition definition,
+            Map<Binding, Integer> constants, ParsedProgram prog) {
+        boolean changed = false;
+        List<Line> out = new ArrayList<Line>(definition.code.size());
+        // Lines still to look at, next one on top. Branches taken at compile
+        // time have their code pushed here in place of the SEL.
+        Deque<Line> pending = new ArrayDeque<Line>(definition.code.size());
+        for (Line line : definition.code) {
+            pending.addLast(line);
+        }
+        while (!pending.isEmpty()) {
+            Line line = pending.removeFirst();
+            Opcode op = line.getOpcode();
+            int n = out.size();
+            if (op == Opcode.LD && line.getBinding() != null
+                    && constants.containsKey(line.getBinding())) {
+                out.add(Line.makeLdc(constants.get(line.getBinding()),
+                        "Const " + line.getBinding().name));
+                changed = true;
+                continue;
+            }
+            if (op != null && op.numArgs == 0 && n >= 2
+                    && isLdc(out.get(n - 2)) && isLdc(out.get(n - 1))) {
+                Integer result = op.evaluate(out.get(n - 2).getArg(0), out
+                        .get(n - 1).getArg(0));
+                if (result != null) {
+                    out.remove(n - 1);
+                    out.remove(n - 2);
+                    out.add(Line.makeLdc(result, "Folded " + op.name()));
+                    changed = true;
+                    continue;
+                }
+            }
+            if (op == Opcode.ATOM && n >= 1 && isLdc(out.get(n - 1))) {
+                out.set(n - 1, Line.makeLdc(1, "Folded ATOM"));
+                changed = true;
+                continue;
+            }
+            if ((op == Opcode.SEL || op == Opcode.TSEL) && n >= 1
+                    && isLdc(out.get(n - 1))) {
+                String label = out.remove(n - 1).getArg(0) != 0 ? line
+                        .getLabel(0) : line.getLabel(1);
+                ParserBranch branch = (ParserBranch) prog.getBlock(label);
+                List<Line> branchLines = branch.getBody().code.getLines();
+                for (int i = branchLines.size() - 1; i >= 0; --i) {
+                    pending.addFirst(branchLines.get(i));
+                }
+                if (op == Opcode.TSEL) {
+                    // A TSEL always ends its code, which now ends however
+                    // the branch did
+                    definition.returns = branch.getBody().returns;
+                }
+                changed = true;
+                continue;
+            }
+            out.add(line);
+        }
+        if (changed) {
+            CodeSequence code = new CodeSequence();
+            code.addAll(out);
+            definition.code = code;
+        }
+        return changed;
+    }
+
+    @Override
+    public boolean run(ParsedProgram prog) {
+        boolean changed = false;
+        boolean changedThisRound = true;
+        while (changedThisRound) {
+            changedThisRound = false;
+            Map<Binding, Integer> constants = findConstants(prog);
+            for (ParserDefinition definition : prog.getDefinitions()) {
+                changedThisRound |= fold(definition, constants, prog);
+            }
+            changed |= changedThisRound;
+        }
+        if (changed) {
+            prog.removeUnreferencedBranches();
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,51 @@
+package laml.compiler.opt;
+
+import static laml.compiler.opt.PassHarness.count;
+import static laml.compiler.opt.PassHarness.run;
+import static org.junit.Assert.assertEquals;
+import laml.compiler.AbsoluteProgram;
+import laml.compiler.Opcode;
+
+import org.junit.Test;
+
+public class ConstantFoldingPassTest {
+    private static AbsoluteProgram compile(String prog) {
+        return PassHarness.compile(prog, new ConstantFoldingPass());
+    }
+
+    @Test
+    public void testPropagateAndFold() {
+        AbsoluteProgram out = compile("(define n 5) (define m (* n 2)) "
+                + "(if (> m 3) (+ m (- 0 1)) 0)");
+        assertEquals("9", run(out));
+        assertEquals(1, count(out, "LDC 9"));
+        assertEquals(0, count(out, Opcode.SEL) + count(out, Opcode.TSEL));
+        assertEquals(0, count(out, Opcode.ADD));
+        assertEquals(0, count(out, Opcode.LD));
+    }
+
+    @Test
+    public void testFoldingSemantics() {
+        assertEquals(Integer.valueOf(Integer.MIN_VALUE),
+                Opcode.ADD.evaluate(Integer.MAX_VALUE, 1));
+        assertEquals(Integer.valueOf(-2),
+                Opcode.DIV.evaluate(-7, 3));
+        assertEquals(null, Opcode.DIV.evaluate(1, 0));
+    }
+
+    @Test
+    public void testNonConstantBranchKept() {
+        AbsoluteProgram out = compile("(define f (lambda (x) (if x 1 2))) "
+                + "(cons (f 0) (f 1))");
+        assertEquals("(2 . 1)", run(out));
+        assertEquals(1, count(out, Opcode.TSEL));
+    }
+
+    @Test
+    public void testDefineNestedInDefineNotPropagated() {
+        // c's definition runs first, and loads v before v's stores 2
+        assertEquals("1", run(compile("(define f (lambda (x) (begin "
+                + "(define c (+ x (begin (define v 2) v))) c))) (f 1)")));
+        assertEquals("0", run(compile("(define c (begin (define v 2) v)) c")));
+    }
+}
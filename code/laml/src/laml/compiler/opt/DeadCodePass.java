@@ -0,0 +1,139 @@
+package laml.compiler.opt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import laml.compiler.Line;
+import laml.compiler.Opcode;
+import laml.compiler.parser.EnvFrame.Binding;
+import laml.compiler.parser.LabelAllocator;
+import laml.compiler.parser.ParsedProgram;
+import laml.compiler.parser.ParserDefinition;
+import laml.compiler.parser.ParserFunction;
+import laml.compiler.parser.ParserLabeledBlock;
+
+/**
+ * Removes definitions and labeled blocks which the program never uses.
+ *
+ * Starting from the body of main, marks every binding which is loaded and
+ * every block which is jumped to or loaded as a closure, following the
+ * definitions of the bindings and the code of the blocks found. Anything not
+ * marked is dropped: bindings are removed from their frames, with the rest
+ * renumbered, and unmarked blocks are removed from the program. A frame left
+ * with no bindings is then not created at all.
+ *
+ * Definitions which may DBUG, BRK or STOP are kept even if their value isn't
+ * used. Their value might otherwise only be used for its effect on the trace.
+ * Calls of closures which can't be resolved at compile time count as such.
+ * So are definitions which store into a binding that is used, as the first
+ * of a value CommonSubexpressionPass saves for later definitions does. A
+ * definition whose only effect would be to fault is dropped.
+ */
+public class DeadCodePass implements OptimizationPass {
+    @Override
+    public String getName() {
+        return "dce";
+    }
+
+    /**
+     * Whether the code may store into a live binding.
+     */
+    private static boolean storesLive(ParserDefinition definition,
+            Set<Binding> liveBindings) {
+        for (Line line : definition.code) {
+            if (line.getOpcode() == Opcode.ST && (line.getBinding() == null
+                    || liveBindings.contains(line.getBinding()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean run(ParsedProgram prog) {
+        Set<String> effectful = EffectAnalysis.findEffectful(prog);
+        Set<Binding> liveBindings = new HashSet<Binding>();
+        Set<String> liveLabels = new HashSet<String>();
+        Deque<ParserDefinition> pending = new ArrayDeque<ParserDefinition>();
+        List<ParserFunction> liveFunctions = new ArrayList<ParserFunction>();
+
+        ParserFunction main = (ParserFunction) prog
+                .getBlock(LabelAllocator.MAIN_LABEL);
+        liveLabels.add(LabelAllocator.MAIN_LABEL);
+        liveFunctions.add(main);
+        pending.add(main.getBody());
+        while (!pending.isEmpty()) {
+            while (!pending.isEmpty()) {
+                for (Line line : pending.removeFirst().code) {
+                    Opcode op = line.getOpcode();
+                    if (op == Opcode.LD) {
+                        Binding binding = line.getBinding();
+                        if (binding == null) {
+                            // Can't tell what this loads, so nothing can be
+                            // removed safely
+                            return false;
+                        }
+                        if (liveBindings.add(binding)) {
+                            pending.add(binding.definition);
+                        }
+                    } else if (op != null && op.labelArgs) {
+                        for (int i = 0; i < op.numArgs; ++i) {
+                            String label = line.getLabel(i);
+                            if (!liveLabels.add(label)) {
+                                continue;
+                            }
+                            ParserLabeledBlock block = prog.getBlock(label);
+                            if (block instanceof ParserFunction) {
+                                liveFunctions.add((ParserFunction) block);
+                                pending.add(((ParserFunction) block)
+                                        .getBody());
+                            } else {
+                                pending.addAll(block.getDefinitions());
+                            }
+                        }
+                    }
+                }
+            }
+            // Definitions in live functions run whether used or not, so keep
+            // the ones with effects
+            for (ParserFunction function : liveFunctions) {
+                for (Binding binding : function.getEnv().bindings) {
+                    if (!liveBindings.contains(binding)
+                            && (EffectAnalysis.hasEffects(binding.definition,
+                                    effectful) || storesLive(
+                                    binding.definition, liveBindings))) {
+                        liveBindings.add(binding);
+                        pending.add(binding.definition);
+                    }
+                }
+            }
+        }
+
+        boolean changed = false;
+        for (ParserFunction function : liveFunctions) {
+            Set<Binding> dead = new HashSet<Binding>();
+            for (Binding binding : function.getEnv().bindings) {
+                if (!liveBindings.contains(binding)) {
+                    dead.add(binding);
+                }
+            }
+            if (!dead.isEmpty()) {
+                function.getEnv().removeBindings(dead);
+                changed = true;
+            }
+        }
+        Iterator<String> it = prog.blocks.keySet().iterator();
+        while (it.hasNext()) {
+            if (!liveLabels.contains(it.next())) {
+                it.remove();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+}
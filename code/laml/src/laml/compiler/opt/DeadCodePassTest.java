@@ -0,0 +1,37 @@
+package laml.compiler.opt;
+
+import static laml.compiler.opt.PassHarness.code;
+import static laml.compiler.opt.PassHarness.count;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import laml.compiler.AbsoluteProgram;
+import laml.compiler.Opcode;
+
+import org.junit.Test;
+
+public class DeadCodePassTest {
+    private static AbsoluteProgram compile(String prog) {
+        return PassHarness.compile(prog, new DeadCodePass());
+    }
+
+    @Test
+    public void testUnusedDefinitionsRemoved() {
+        AbsoluteProgram out = compile("(define unused (lambda (x) (car x))) "
+                + "(define also-unused (unused (cons 4 5))) (define k 3) "
+                + "(define f (lambda (y) (+ y k))) (f 1)");
+        assertEquals(0, count(out, Opcode.CAR));
+        assertEquals(0, count(out, Opcode.CONS));
+        // k and f are renumbered to the front of main's frame
+        assertTrue(code(out).startsWith("DUM 2\nLDC 3\nLDF "));
+        assertEquals(1, count(out, "LD 1 0"));
+        assertEquals(1, count(out, "LD 0 1"));
+    }
+
+    @Test
+    public void testDefinitionWithEffectsKept() {
+        AbsoluteProgram out = compile("(define show (lambda (x) (dbug x))) "
+                + "(define unused (show 5)) 1");
+        assertEquals(1, count(out, Opcode.DBUG));
+        assertEquals(1, count(out, "LDC 5"));
+    }
+}
@@ -0,0 +1,78 @@
+package laml.compiler.opt;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+import laml.compiler.Line;
+import laml.compiler.Opcode;
+import laml.compiler.parser.EnvFrame.Binding;
+import laml.compiler.parser.ParsedProgram;
+import laml.compiler.parser.ParserDefinition;
+import laml.compiler.parser.ParserFunction;
+import laml.compiler.parser.ParserLabeledBlock;
+
+/**
+ * Finds the locals which may be loaded before their definition has stored
+ * them, and so hold the initial 0.
+ *
+ * A frame's definitions run in the order of its bindings, and a define
+ * nested in another's value is bound after it, e.g. v in (define c (begin
+ * (define v 2) v)). So c's definition loads v before v's has run. Any
+ * binding loaded by its own definition or one before it in the frame,
+ * including from the branches it selects and the lambdas it makes, is
+ * treated as read early.
+ */
+public class DefinitionOrder {
+    /**
+     * Bindings of all function locals which may be loaded before they are
+     * defined.
+     */
+    public static Set<Binding> findReadEarly(ParsedProgram prog) {
+        Set<Binding> early = new HashSet<Binding>();
+        for (ParserLabeledBlock block : prog.blocks.values()) {
+            if (!(block instanceof ParserFunction)) {
+                continue;
+            }
+            // Loaded by the definitions so far, and the blocks they reach
+            Set<Binding> loaded = new HashSet<Binding>();
+            Set<String> seen = new HashSet<String>();
+            for (Binding binding : block.getEnv().bindings) {
+                addLoads(prog, binding.definition, loaded, seen);
+                if (loaded.contains(binding)) {
+                    early.add(binding);
+                }
+            }
+        }
+        return early;
+    }
+
+    /**
+     * Add the bindings the code may load, following the branches it selects
+     * and the lambdas it makes, other than blocks already seen.
+     */
+    private static void addLoads(ParsedProgram prog,
+            ParserDefinition definition, Set<Binding> loaded,
+            Set<String> seen) {
+        Deque<ParserDefinition> pending = new ArrayDeque<ParserDefinition>();
+        pending.push(definition);
+        while (!pending.isEmpty()) {
+            for (Line line : pending.pop().code) {
+                Opcode op = line.getOpcode();
+                if (op == Opcode.LD && line.getBinding() != null) {
+                    loaded.add(line.getBinding());
+                } else if (op == Opcode.SEL || op == Opcode.TSEL
+                        || op == Opcode.LDF) {
+                    for (int i = 0; i < op.numArgs; ++i) {
+                        ParserLabeledBlock block = prog.getBlock(line
+                                .getLabel(i));
+                        if (block != null && seen.add(line.getLabel(i))) {
+                            pending.addAll(block.getDefinitions());
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
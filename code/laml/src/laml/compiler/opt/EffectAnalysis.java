@@ -0,0 +1,109 @@
+package laml.compiler.opt;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import laml.compiler.Line;
+import laml.compiler.Opcode;
+import laml.compiler.parser.CodeSequence;
+import laml.compiler.parser.ParsedProgram;
+import laml.compiler.parser.ParserDefinition;
+import laml.compiler.parser.ParserLabeledBlock;
+
+/**
+ * Finds code which may have a visible effect when run: DBUG, BRK or STOP, or
+ * a call which may lead to one. Calls of closures which can't be resolved at
+ * compile time are assumed to. Everything else only computes a value, the
+ * same one every time it runs on the same inputs, though it may fault.
+ */
+public class EffectAnalysis {
+    /**
+     * Label of the function a call site calls, if known: the closure is
+     * loaded by the line just before the AP, either straight from an LDF or
+     * from a variable defined as one.
+     */
+    public static String calledLabel(Line closure) {
+        if (closure == null) {
+            return null;
+        }
+        if (closure.getOpcode() == Opcode.LDF) {
+            return closure.getLabel(0);
+        }
+        if (closure.getOpcode() == Opcode.LD && closure.getBinding() != null) {
+            CodeSequence def = closure.getBinding().definition.code;
+            if (def.getNumInstructions() == 1
+                    && def.getFirstLine().getOpcode() == Opcode.LDF) {
+                return def.getFirstLine().getLabel(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether running the code may have a visible effect, given the blocks
+     * already known to.
+     */
+    public static boolean hasEffects(ParserDefinition definition,
+            Set<String> effectful) {
+        Line previous = null;
+        for (Line line : definition.code) {
+            Opcode op = line.getOpcode();
+            if (op == null) {
+                continue;
+            }
+            switch (op) {
+            case DBUG:
+            case BRK:
+            case STOP:
+                return true;
+            case SEL:
+            case TSEL:
+                if (effectful.contains(line.getLabel(0))
+                        || effectful.contains(line.getLabel(1))) {
+                    return true;
+                }
+                break;
+            case AP:
+            case TAP:
+            case RAP:
+            case TRAP:
+                String label = calledLabel(previous);
+                if (label == null || effectful.contains(label)) {
+                    return true;
+                }
+                break;
+            default:
+                break;
+            }
+            previous = line;
+        }
+        return false;
+    }
+
+    /**
+     * Labels of all blocks which may have effects when run.
+     */
+    public static Set<String> findEffectful(ParsedProgram prog) {
+        Set<String> effectful = new HashSet<String>();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<String, ParserLabeledBlock> entry : prog.blocks
+                    .entrySet()) {
+                if (effectful.contains(entry.getKey())) {
+                    continue;
+                }
+                for (ParserDefinition definition : entry.getValue()
+                        .getDefinitions()) {
+                    if (hasEffects(definition, effectful)) {
+                        effectful.add(entry.getKey());
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return effectful;
+    }
+}
@@ -0,0 +1,215 @@
+package laml.compiler.opt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import laml.compiler.Line;
+import laml.compiler.Opcode;
+import laml.compiler.parser.CodeSequence;
+import laml.compiler.parser.EnvFrame.Binding;
+import laml.compiler.parser.ParsedProgram;
+import laml.compiler.parser.ParserDefinition;
+import laml.compiler.parser.ParserFunction;
+import laml.compiler.parser.ParserLabeledBlock;
+
+/**
+ * Replaces calls of small named functions by the function's body.
+ *
+ * A call site is "LD d i; AP n" where the loaded variable is defined as a
+ * single LDF, which is never reassigned, so the call always goes to that
+ * function. The function can be inlined if it has no locals and its body
+ * starts by loading its n arguments in order and never touches them again:
+ * the arguments the caller has just pushed are then exactly what the rest of
+ * the body expects on the stack, and no frame is needed. Loads from frames
+ * further out are rebased onto the frame the function was defined in, which
+ * is the frame the caller loaded the closure from. That covers accessors like
+ * (lambda (l) (car l)) and wrappers like (lambda (s) (list-ref s 1)).
+ *
+ * Bodies which branch, create closures or are recursive are left alone. The
+ * closures themselves are kept for any calls which weren't inlined.
+ */
+public class InliningPass implements OptimizationPass {
+    public static final int DEFAULT_MAX_SIZE = 8;
+    // Inlining can make callers small enough to inline in turn
+    private static final int MAX_ROUNDS = 8;
+
+    // Most instructions an inlined body may add, not counting the argument
+    // loads it replaces
+    private final int maxSize;
+
+    public InliningPass() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public InliningPass(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public String getName() {
+        return "inline";
+    }
+
+    /**
+     * Code to replace a call to the function bound to binding with, relative
+     * to the frame the function is defined in, or null if it can't be
+     * inlined. A trailing TAP is left in.
+     */
+    private List<Line> inlineBody(Binding binding, ParsedProgram prog) {
+        CodeSequence def = binding.definition.code;
+        if (def.getNumInstructions() != 1
+                || def.getFirstLine().getOpcode() != Opcode.LDF) {
+            return null;
+        }
+        ParserLabeledBlock block = prog.getBlock(def.getFirstLine()
+                .getLabel(0));
+        if (!(block instanceof ParserFunction)) {
+            return null;
+        }
+        ParserFunction func = (ParserFunction) block;
+        if (!func.getEnv().bindings.isEmpty()) {
+            return null;
+        }
+        int numArgs = func.getEnv().parent.bindings.size();
+        List<Line> body = new ArrayList<Line>();
+        for (Line line : func.getBody().code) {
+            if (!line.isEmpty()) {
+                body.add(line);
+            }
+        }
+        if (body.size() < numArgs || body.size() - numArgs > maxSize) {
+            return null;
+        }
+        // Body code runs in the function's locals frame: arguments are at
+        // depth 1 and the defining frame at depth 2
+        for (int i = 0; i < numArgs; ++i) {
+            Line line = body.get(i);
+            if (line.getOpcode() != Opcode.LD || line.getArg(0) != 1
+                    || line.getArg(1) != i) {
+                return null;
+            }
+        }
+        List<Line> rest = new ArrayList<Line>();
+        for (int i = numArgs; i < body.size(); ++i) {
+            Line line = body.get(i);
+            switch (line.getOpcode()) {
+            case LD:
+                if (line.getArg(0) < 2 || line.getBinding() == binding) {
+                    return null;
+                }
+                line = line.withArgs(line.getArg(0) - 2, line.getArg(1));
+                break;
+            case TAP:
+                if (i != body.size() - 1) {
+                    return null;
+                }
+                break;
+            case SEL:
+            case TSEL:
+            case JOIN:
+            case LDF:
+            case RTN:
+            case DUM:
+            case RAP:
+            case TRAP:
+            case ST:
+            case STOP:
+                return null;
+            default:
+                break;
+            }
+            rest.add(line);
+        }
+        return rest;
+    }
+
+    /**
+     * Inline calls in one piece of code, returning whether it changed.
+     */
+    private boolean inline(ParserDefinition definition, ParsedProgram prog) {
+        List<Line> in = definition.code.getLines();
+        List<Line> out = new ArrayList<Line>(in.size());
+        boolean changed = false;
+        for (int i = 0; i < in.size(); ++i) {
+            Line line = in.get(i);
+            Opcode op = line.getOpcode();
+            int n = out.size();
+            if ((op != Opcode.AP && op != Opcode.TAP) || n == 0
+                    || out.get(n - 1).getOpcode() != Opcode.LD
+                    || out.get(n - 1).getBinding() == null) {
+                out.add(line);
+                continue;
+            }
+            // A TAP can only be replaced if it ends the code, since the code
+            // then needs its RTN or JOIN back
+            boolean tail = op == Opcode.TAP;
+            if (tail && i != in.size() - 1) {
+                out.add(line);
+                continue;
+            }
+            Line load = out.get(n - 1);
+            List<Line> rest = inlineBody(load.getBinding(), prog);
+            if (rest == null) {
+                out.add(line);
+                continue;
+            }
+            out.remove(n - 1);
+            boolean endsInTap = false;
+            for (int j = 0; j < rest.size(); ++j) {
+                Line inlined = rest.get(j);
+                Opcode inlinedOp = inlined.getOpcode();
+                if (inlinedOp == Opcode.LD) {
+                    // Rebase onto the frame the closure was loaded from
+                    inlined = inlined.withArgs(inlined.getArg(0)
+                            + load.getArg(0), inlined.getArg(1));
+                } else if (inlinedOp == Opcode.TAP) {
+                    if (tail) {
+                        endsInTap = true;
+                        inlined = inlined.withArgs(inlined.getArg(0), 0);
+                    } else {
+                        inlined = Line.makeAp(inlined.getArg(0),
+                                inlined.getComment());
+                    }
+                } else {
+                    // Copy, so the comment below doesn't change the callee
+                    inlined = inlined.withArgs(inlined.getArg(0),
+                            inlined.getArg(1));
+                }
+                if (j == 0) {
+                    String comment = "Inlined " + load.getBinding().name;
+                    if (!inlined.getComment().isEmpty()) {
+                        comment += ": " + inlined.getComment();
+                    }
+                    inlined.setComment(comment);
+                }
+                out.add(inlined);
+            }
+            if (tail) {
+                definition.returns = endsInTap;
+            }
+            changed = true;
+        }
+        if (changed) {
+            CodeSequence code = new CodeSequence();
+            code.addAll(out);
+            definition.code = code;
+        }
+        return changed;
+    }
+
+    @Override
+    public boolean run(ParsedProgram prog) {
+        boolean changed = false;
+        for (int round = 0; round < MAX_ROUNDS; ++round) {
+            boolean changedThisRound = false;
+            for (ParserDefinition definition : prog.getDefinitions()) {
+                changedThisRound |= inline(definition, prog);
+            }
+            if (!changedThisRound) {
+                break;
+            }
+            changed = true;
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,51 @@
+package laml.compiler.opt;
+
+import static laml.compiler.opt.PassHarness.calls;
+import static laml.compiler.opt.PassHarness.count;
+import static laml.compiler.opt.PassHarness.run;
+import static org.junit.Assert.assertEquals;
+import laml.compiler.AbsoluteProgram;
+
+import org.junit.Test;
+
+public class InliningPassTest {
+    private static AbsoluteProgram compile(String prog, int maxSize) {
+        return PassHarness.compile(prog, new InliningPass(maxSize));
+    }
+
+    @Test
+    public void testInlineAccessor() {
+        AbsoluteProgram out = compile(
+                "(define second (lambda (l) (car (cdr l)))) "
+                        + "(define f (lambda (x) (+ (second x) 1))) "
+                        + "(f (list 1 2))", InliningPass.DEFAULT_MAX_SIZE);
+        assertEquals("3", run(out));
+        assertEquals(1, count(out, "LD 0 0\nCDR\nCAR\nLDC 1\nADD"));
+        // f is small enough once second is inlined into it, so main makes no
+        // calls at all
+        assertEquals(0, calls(out));
+    }
+
+    @Test
+    public void testRebaseOuterLoads() {
+        // g's body refers to k in main's frame; f calls g from two frames in
+        AbsoluteProgram out = compile("(define k 7) "
+                + "(define g (lambda (x) (+ x k))) "
+                + "(define f (lambda (y) (g y))) (f 1)",
+                InliningPass.DEFAULT_MAX_SIZE);
+        assertEquals("8", run(out));
+        assertEquals(0, calls(out));
+        // g itself, and its copy in f, where k is as far away
+        assertEquals(2, count(out, "LD 0 0\nLD 1 0\nADD\nRTN"));
+    }
+
+    @Test
+    public void testSizeLimitAndArgumentOrder() {
+        String prog = "(define sub (lambda (a b) (- b a))) (sub 1 2)";
+        // Arguments used out of order need a frame
+        assertEquals(1, calls(compile(prog, 100)));
+        prog = "(define big (lambda (a) (+ a (+ 1 (+ 2 3))))) (big 1)";
+        assertEquals(1, calls(compile(prog, 3)));
+        assertEquals(0, calls(compile(prog, 6)));
+    }
+}
@@ -0,0 +1,338 @@
+package laml.compiler.opt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import laml.compiler.Line;
+import laml.compiler.Opcode;
+import laml.compiler.parser.CodeSequence;
+import laml.compiler.parser.EnvFrame;
+import laml.compiler.parser.EnvFrame.Binding;
+import laml.compiler.parser.LabelAllocator;
+import laml.compiler.parser.ParsedProgram;
+import laml.compiler.parser.ParserDefinition;
+import laml.compiler.parser.ParserFunction;
+import laml.compiler.parser.ParserLabeledBlock;
+
+/**
+ * Cuts down the number of frames built at run time, in two ways.
+ *
+ * Lifting: a local of some function which is defined as a lambda that
+ * refers to nothing of the function's (other than itself) and nothing of any
+ * enclosing function is moved to main's frame. The closure is then made once
+ * rather than on every call, and the function's frame of locals may end up
+ * empty and not be built at all.
+ *
+ * Merging: a function whose closure never escapes, i.e. is only ever loaded
+ * to be called right away, gets its locals put in its argument frame. Callers
+ * push a 0 for each local after the arguments, and the body stores the
+ * definitions into them, so no second frame or tail call into the body is
+ * needed. This is done unless it costs more instructions than building the
+ * locals frame with DUM and TRAP would.
+ */
+public class LambdaLiftingPass implements OptimizationPass {
+    @Override
+    public String getName() {
+        return "lift";
+    }
+
+    /**
+     * New depth of a LD or ST in code run in the given frame.
+     */
+    private static abstract class DepthRewrite {
+        public abstract int newDepth(EnvFrame frame, Line line);
+    }
+
+    private static boolean isVariableOp(Line line) {
+        return line.getOpcode() == Opcode.LD
+                || line.getOpcode() == Opcode.ST;
+    }
+
+    private static void rewriteDepths(ParsedProgram prog,
+            DepthRewrite rewrite) {
+        for (ParserLabeledBlock block : prog.blocks.values()) {
+            EnvFrame frame = block.getEnv();
+            for (ParserDefinition definition : block.getDefinitions()) {
+                List<Line> out = new ArrayList<Line>(definition.code.size());
+                boolean changed = false;
+                for (Line line : definition.code) {
+                    if (isVariableOp(line)) {
+                        int depth = rewrite.newDepth(frame, line);
+                        if (depth != line.getArg(0)) {
+                            line = line.withArgs(depth, line.getArg(1));
+                            changed = true;
+                        }
+                    }
+                    out.add(line);
+                }
+                if (changed) {
+                    CodeSequence code = new CodeSequence();
+                    code.addAll(out);
+                    definition.code = code;
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of LDFs of each function label in the program.
+     */
+    private static Map<String, Integer> countClosureLoads(ParsedProgram prog) {
+        Map<String, Integer> loads = new HashMap<String, Integer>();
+        for (ParserDefinition definition : prog.getDefinitions()) {
+            for (Line line : definition.code) {
+                if (line.getOpcode() == Opcode.LDF) {
+                    String label = line.getLabel(0);
+                    Integer count = loads.get(label);
+                    loads.put(label, count == null ? 1 : count + 1);
+                }
+            }
+        }
+        return loads;
+    }
+
+    /**
+     * The function a binding is defined as, if its definition is a single LDF
+     * and no other code loads that function.
+     */
+    private static ParserFunction definedFunction(Binding binding,
+            ParsedProgram prog, Map<String, Integer> loads) {
+        CodeSequence def = binding.definition.code;
+        if (def.getNumInstructions() != 1
+                || def.getFirstLine().getOpcode() != Opcode.LDF) {
+            return null;
+        }
+        String label = def.getFirstLine().getLabel(0);
+        ParserLabeledBlock block = prog.getBlock(label);
+        if (!(block instanceof ParserFunction)) {
+            return null;
+        }
+        return loads.get(label) == 1 ? (ParserFunction) block : null;
+    }
+
+    /**
+     * Whether all code of the function, including nested functions and
+     * branches, only refers to its own frames, to binding, or to main's frame
+     * and above.
+     */
+    private static boolean isClosed(ParsedProgram prog,
+            ParserFunction function, Binding binding, EnvFrame bindingFrame,
+            EnvFrame mainEnv) {
+        EnvFrame argEnv = function.getEnv().parent;
+        for (ParserLabeledBlock block : prog.blocks.values()) {
+            EnvFrame frame = block.getEnv();
+            int inside = frame.distanceTo(argEnv);
+            if (inside < 0) {
+                continue;
+            }
+            for (ParserDefinition definition : block.getDefinitions()) {
+                for (Line line : definition.code) {
+                    if (!isVariableOp(line) || line.getArg(0) <= inside) {
+                        continue;
+                    }
+                    EnvFrame target = frame.ancestor(line.getArg(0));
+                    boolean self = target == bindingFrame
+                            && line.getBinding() == binding;
+                    if (!self && mainEnv.distanceTo(target) < 0) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Move a closed lambda from the locals of owner into main's frame.
+     */
+    private static void lift(ParsedProgram prog, final Binding binding,
+            final EnvFrame owner, ParserFunction function,
+            final EnvFrame mainEnv) {
+        final EnvFrame argEnv = function.getEnv().parent;
+        final int ownerToMain = owner.distanceTo(mainEnv);
+        rewriteDepths(prog, new DepthRewrite() {
+            @Override
+            public int newDepth(EnvFrame frame, Line line) {
+                int depth = line.getArg(0);
+                int inside = frame.distanceTo(argEnv);
+                if (inside >= 0 && depth > inside) {
+                    // Leaves the lifted function, which now sits right
+                    // below main's frame
+                    EnvFrame target = line.getBinding() == binding ? mainEnv
+                            : frame.ancestor(depth);
+                    return inside + 1 + mainEnv.distanceTo(target);
+                }
+                if (line.getBinding() == binding) {
+                    return depth + ownerToMain;
+                }
+                return depth;
+            }
+        });
+        Set<Binding> moved = new HashSet<Binding>();
+        moved.add(binding);
+        owner.removeBindings(moved);
+        // Defined before anything in main can call it
+        mainEnv.insertBinding(0, binding);
+        argEnv.parent = mainEnv;
+    }
+
+    private boolean liftOne(ParsedProgram prog, EnvFrame mainEnv) {
+        Map<String, Integer> loads = countClosureLoads(prog);
+        for (ParserLabeledBlock block : prog.blocks.values()) {
+            if (!(block instanceof ParserFunction)) {
+                continue;
+            }
+            EnvFrame owner = ((ParserFunction) block).getEnv();
+            if (owner == mainEnv) {
+                continue;
+            }
+            for (Binding binding : owner.bindings) {
+                ParserFunction function = definedFunction(binding, prog,
+                        loads);
+                if (function != null
+                        && isClosed(prog, function, binding, owner, mainEnv)) {
+                    lift(prog, binding, owner, function, mainEnv);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether every load of the binding is the function of a call, i.e. is
+     * directly followed by the AP or TAP.
+     */
+    private static boolean onlyCalled(ParsedProgram prog, Binding binding) {
+        for (ParserDefinition definition : prog.getDefinitions()) {
+            Line previous = null;
+            for (Line line : definition.code) {
+                if (previous != null && previous.getOpcode() == Opcode.LD
+                        && previous.getBinding() == binding
+                        && line.getOpcode() != Opcode.AP
+                        && line.getOpcode() != Opcode.TAP) {
+                    return false;
+                }
+                previous = line;
+            }
+            if (previous != null && previous.getOpcode() == Opcode.LD
+                    && previous.getBinding() == binding) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Move the locals of a function which is only called through binding into
+     * its argument frame.
+     */
+    private static void merge(ParsedProgram prog, Binding binding,
+            ParserFunction function) {
+        EnvFrame env = function.getEnv();
+        EnvFrame argEnv = env.parent;
+        final Set<Binding> locals = new HashSet<Binding>(env.bindings);
+        List<Binding> ordered = new ArrayList<Binding>(env.bindings);
+        int numLocals = ordered.size();
+
+        // Locals are now one frame further out from all code that sees them
+        rewriteDepths(prog, new DepthRewrite() {
+            @Override
+            public int newDepth(EnvFrame frame, Line line) {
+                int depth = line.getArg(0);
+                return locals.contains(line.getBinding()) ? depth + 1 : depth;
+            }
+        });
+
+        ParserDefinition body = function.getBody();
+        CodeSequence code = new CodeSequence();
+        for (Binding local : ordered) {
+            if (local.scratch) {
+                // Callers push its initial 0
+                continue;
+            }
+            code.addAll(local.definition.code);
+            code.add(Line.makeSt(1, local, "End define " + local.name));
+        }
+        code.addAll(body.code);
+        body.code = code;
+        env.removeBindings(locals);
+        for (Binding local : ordered) {
+            argEnv.insertBinding(argEnv.bindings.size(), local);
+        }
+
+        // Callers make room for the locals
+        for (ParserDefinition definition : prog.getDefinitions()) {
+            List<Line> in = definition.code.getLines();
+            List<Line> out = new ArrayList<Line>(in.size() + numLocals);
+            boolean changed = false;
+            for (int i = 0; i < in.size(); ++i) {
+                Line line = in.get(i);
+                if (line.getOpcode() == Opcode.LD
+                        && line.getBinding() == binding) {
+                    for (Binding local : ordered) {
+                        out.add(Line.makeLdc(0, "Slot for " + local.name));
+                    }
+                    out.add(line);
+                    Line call = in.get(++i);
+                    int numArgs = call.getArg(0) + numLocals;
+                    out.add(call.getOpcode() == Opcode.AP ? Line.makeAp(
+                            numArgs, call.getComment()) : Line.makeTap(
+                            numArgs, call.getComment()));
+                    changed = true;
+                    continue;
+                }
+                out.add(line);
+            }
+            if (changed) {
+                CodeSequence newCode = new CodeSequence();
+                newCode.addAll(out);
+                definition.code = newCode;
+            }
+        }
+    }
+
+    private boolean mergeOne(ParsedProgram prog) {
+        Map<String, Integer> loads = countClosureLoads(prog);
+        for (ParserLabeledBlock block : prog.blocks.values()) {
+            if (!(block instanceof ParserFunction)) {
+                continue;
+            }
+            for (Binding binding : ((ParserFunction) block).getEnv().bindings) {
+                ParserFunction function = definedFunction(binding, prog,
+                        loads);
+                if (function == null) {
+                    continue;
+                }
+                EnvFrame env = function.getEnv();
+                // DUM, LDF and TRAP against a LDC and ST per local
+                boolean cheaper = !env.canDefineInDummyFrame()
+                        || env.bindings.size() * 2 <= 3;
+                if (!env.bindings.isEmpty() && cheaper
+                        && onlyCalled(prog, binding)) {
+                    merge(prog, binding, function);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean run(ParsedProgram prog) {
+        EnvFrame mainEnv = ((ParserFunction) prog
+                .getBlock(LabelAllocator.MAIN_LABEL)).getEnv();
+        boolean changed = false;
+        while (liftOne(prog, mainEnv)) {
+            changed = true;
+        }
+        while (mergeOne(prog)) {
+            changed = true;
+        }
+        return changed;
+    }
+}
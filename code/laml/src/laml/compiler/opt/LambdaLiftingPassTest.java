@@ -0,0 +1,57 @@
+package laml.compiler.opt;
+
+import static laml.compiler.opt.PassHarness.code;
+import static laml.compiler.opt.PassHarness.count;
+import static laml.compiler.opt.PassHarness.run;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import laml.compiler.AbsoluteProgram;
+import laml.compiler.Opcode;
+
+import org.junit.Test;
+
+public class LambdaLiftingPassTest {
+    private static AbsoluteProgram compile(String prog) {
+        return PassHarness.compile(prog, new LambdaLiftingPass());
+    }
+
+    @Test
+    public void testLiftClosedLambda() {
+        AbsoluteProgram out = compile("(define twice (lambda (f x) (f (f x)))) "
+                + "(define outer (lambda (n) (begin "
+                + "(define inc (lambda (y) (+ y 1))) "
+                + "(define add-n (lambda (y) (+ y n))) "
+                + "(twice inc (twice add-n n))))) (outer 5)");
+        assertEquals("17", run(out));
+        // inc only needs its argument, so it's made once in main's frame,
+        // ahead of everything else there
+        assertTrue(code(out).startsWith("DUM 3\nLDF "));
+        // add-n refers to n, so it stays local to outer
+        assertEquals(1, count(out, Opcode.ST));
+    }
+
+    @Test
+    public void testMergeLocalsIntoArguments() {
+        AbsoluteProgram out = compile("(define f (lambda (x) (begin "
+                + "(define y (+ x 1)) (define z (* y 2)) (+ y z)))) "
+                + "(+ (f 3) (f 4))");
+        assertEquals("27", run(out));
+        // Callers pass slots for y and z after x
+        assertEquals(1, count(out, "LDC 3\nLDC 0\nLDC 0\nLD 0 0\nAP 3"));
+        // f's body runs in the frame AP made
+        assertEquals(1, count(out, "ST 0 1"));
+        assertEquals(1, count(out, "LD 0 2"));
+        assertEquals(0, count(out, Opcode.TAP));
+    }
+
+    @Test
+    public void testEscapingFunctionKeepsFrames() {
+        AbsoluteProgram out = compile("(define f (lambda (x) (begin "
+                + "(define y (+ x 1)) (define z (* y 2)) (+ y z)))) "
+                + "(cons f (f 3))");
+        assertEquals("(<closure> . 12)", run(out));
+        // Called as written, and f makes the frame for its locals
+        assertEquals(1, count(out, "LDC 3\nLD 0 0\nAP 1"));
+        assertEquals(1, count(out, Opcode.TAP));
+    }
+}
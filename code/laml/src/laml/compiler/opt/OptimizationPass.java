@@ -0,0 +1,18 @@
+package laml.compiler.opt;
+
+import laml.compiler.parser.ParsedProgram;
+
+/**
+ * A transformation of a parsed program which keeps its behavior the same.
+ */
+public interface OptimizationPass {
+    /**
+     * Short name of the pass, used in options and reports.
+     */
+    public String getName();
+
+    /**
+     * Rewrite the program in place. Returns whether anything changed.
+     */
+    public boolean run(ParsedProgram prog);
+}
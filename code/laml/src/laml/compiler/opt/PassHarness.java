@@ -0,0 +1,135 @@
+package laml.compiler.opt;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import laml.compiler.AbsoluteProgram;
+import laml.compiler.InstructionBuffer;
+import laml.compiler.Opcode;
+import laml.compiler.lexer.CharArrayLexer;
+import laml.compiler.parser.ParsedProgram;
+import laml.compiler.parser.Parser;
+import laml.vm.GccException;
+import laml.vm.GccMachine;
+import laml.vm.Values;
+
+/**
+ * Compiles small programs through a pass for the optimizer's tests.
+ *
+ * Every program compiled is also run on GccMachine with and without the pass,
+ * and must give the same result, or fault the same way, and pass the same
+ * values to DBUG. A pass which changes what a program computes fails its
+ * tests whatever they check of the code. The code is checked without its
+ * comments, which are for people and free to change.
+ */
+class PassHarness {
+    private static final long CYCLE_LIMIT = 10000000;
+
+    private PassHarness() {
+    }
+
+    static ParsedProgram parse(String prog) {
+        return Parser.parse(CharArrayLexer.lexProgramString(prog));
+    }
+
+    /**
+     * The program laid out after the pass has run over it, checked to
+     * compute what it did before.
+     */
+    static AbsoluteProgram compile(String prog, OptimizationPass pass) {
+        AbsoluteProgram before = parse(prog).toRelativeProgram().translate();
+        ParsedProgram parsed = parse(prog);
+        pass.run(parsed);
+        AbsoluteProgram after = parsed.toRelativeProgram().translate();
+        assertEquals(outcome(before), outcome(after));
+        return after;
+    }
+
+    /**
+     * Result of running main, with closures' addresses left out, since
+     * passes move code.
+     */
+    static String run(AbsoluteProgram prog) {
+        GccMachine machine = new GccMachine(prog);
+        machine.setCycleLimit(CYCLE_LIMIT);
+        return format(machine.runMain(0, 0));
+    }
+
+    private static String format(Object value) {
+        return Values.format(value).replaceAll("<closure \\d+>", "<closure>");
+    }
+
+    /**
+     * Result or fault of main, then the DBUG trace.
+     */
+    private static List<String> outcome(AbsoluteProgram prog) {
+        GccMachine machine = new GccMachine(prog);
+        machine.setCycleLimit(CYCLE_LIMIT);
+        List<String> outcome = new ArrayList<String>();
+        try {
+            outcome.add(format(machine.runMain(0, 0)));
+        } catch (GccException e) {
+            outcome.add("fault " + e.kind);
+        }
+        for (Object value : machine.getTrace()) {
+            outcome.add(format(value));
+        }
+        return outcome;
+    }
+
+    /**
+     * The code without comments, an instruction per line, each line ending
+     * in a newline. Breaks between functions are left out too.
+     */
+    static String code(AbsoluteProgram prog) {
+        InstructionBuffer code = prog.getCode();
+        StringBuilder sb = new StringBuilder();
+        for (int addr = 0; addr < code.size(); ++addr) {
+            Opcode op = code.getOpcode(addr);
+            sb.append(op);
+            for (int i = 0; i < op.numArgs; ++i) {
+                sb.append(' ').append(code.getArg(addr, i));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Number of instructions with the op.
+     */
+    static int count(AbsoluteProgram prog, Opcode op) {
+        InstructionBuffer code = prog.getCode();
+        int n = 0;
+        for (int addr = 0; addr < code.size(); ++addr) {
+            if (code.getOpcode(addr) == op) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Number of places the code has the instructions, given as code gives
+     * them, e.g. "LD 0 1" or "LDC 1\nADD".
+     */
+    static int count(AbsoluteProgram prog, String instructions) {
+        String code = "\n" + code(prog);
+        String find = "\n" + instructions + "\n";
+        int n = 0;
+        for (int i = code.indexOf(find); i >= 0; i = code.indexOf(find,
+                i + 1)) {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Number of calls, tail or not, in the code.
+     */
+    static int calls(AbsoluteProgram prog) {
+        return count(prog, Opcode.AP) + count(prog, Opcode.TAP);
+    }
+}
@@ -0,0 +1,281 @@
+package laml.compiler.opt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import laml.compiler.LabeledFunction;
+import laml.compiler.Line;
+import laml.compiler.Opcode;
+import laml.compiler.parser.EnvFrame;
+import laml.compiler.parser.EnvFrame.Binding;
+import laml.compiler.parser.LabelAllocator;
+import laml.compiler.parser.ParsedProgram;
+import laml.compiler.parser.ParserBranch;
+import laml.compiler.parser.ParserDefinition;
+import laml.compiler.parser.ParserFunction;
+import laml.compiler.parser.ParserLabeledBlock;
+
+/**
+ * Runs optimization passes over a parsed program and lays it out, keeping
+ * statistics on what each pass did.
+ *
+ * Levels pick the passes, each adding to the one before:
+ * <ul>
+ * <li>0: none, the code is laid out as generated</li>
+ * <li>1: constant folding, dead code elimination and peephole rules</li>
+ * <li>2: inlining and lambda lifting</li>
+ * <li>3: common subexpressions and constant hoisting</li>
+ * </ul>
+ *
+ * With verification on, the structure of the program is checked after every
+ * pass, and a pass which broke it is named in the exception.
+ */
+public class PassManager {
+    public static final int MAX_LEVEL = 3;
+    public static final int DEFAULT_LEVEL = 2;
+
+    /**
+     * What one pass did to the program.
+     */
+    public static class PassStats {
+        public final String name;
+        public final boolean changed;
+        public final int instructionsBefore;
+        public final int instructionsAfter;
+        public final int blocksBefore;
+        public final int blocksAfter;
+        public final long nanos;
+
+        public PassStats(String name, boolean changed, int instructionsBefore,
+                int instructionsAfter, int blocksBefore, int blocksAfter,
+                long nanos) {
+            this.name = name;
+            this.changed = changed;
+            this.instructionsBefore = instructionsBefore;
+            this.instructionsAfter = instructionsAfter;
+            this.blocksBefore = blocksBefore;
+            this.blocksAfter = blocksAfter;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + instructionsBefore + " -> "
+                    + instructionsAfter + " instructions, " + blocksBefore
+                    + " -> " + blocksAfter + " blocks, " + nanos / 1000000
+                    + " ms" + (changed ? "" : " (no change)");
+        }
+    }
+
+    private final List<OptimizationPass> passes;
+    // Null to lay out the code as it is
+    private final PeepholeOptimizer peephole;
+    private boolean verify;
+    private final List<PassStats> stats = new ArrayList<PassStats>();
+
+    public PassManager(List<OptimizationPass> passes,
+            PeepholeOptimizer peephole) {
+        this.passes = passes;
+        this.peephole = peephole;
+    }
+
+    /**
+     * The passes of an optimization level, from 0 to MAX_LEVEL.
+     */
+    public static PassManager forLevel(int level) {
+        if (level < 0 || level > MAX_LEVEL) {
+            throw new IllegalArgumentException("No optimization level "
+                    + level);
+        }
+        List<OptimizationPass> passes = new ArrayList<OptimizationPass>();
+        if (level >= 2) {
+            passes.add(new InliningPass());
+        }
+        if (level >= 1) {
+            passes.add(new ConstantFoldingPass());
+        }
+        if (level >= 3) {
+            passes.add(new CommonSubexpressionPass());
+        }
+        if (level >= 1) {
+            passes.add(new DeadCodePass());
+        }
+        if (level >= 2) {
+            passes.add(new LambdaLiftingPass());
+        }
+        return new PassManager(passes, level >= 1 ? new PeepholeOptimizer()
+                : null);
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    public List<PassStats> getStats() {
+        return stats;
+    }
+
+    /**
+     * Run the passes over the program and lay it out, returning the functions
+     * in order with main first.
+     */
+    public List<LabeledFunction> optimize(ParsedProgram prog) {
+        stats.clear();
+        if (verify) {
+            check(prog, "parser");
+        }
+        for (OptimizationPass pass : passes) {
+            int instructionsBefore = prog.getNumInstructions();
+            int blocksBefore = prog.blocks.size();
+            long start = System.nanoTime();
+            boolean changed = pass.run(prog);
+            long nanos = System.nanoTime() - start;
+            stats.add(new PassStats(pass.getName(), changed,
+                    instructionsBefore, prog.getNumInstructions(),
+                    blocksBefore, prog.blocks.size(), nanos));
+            if (verify) {
+                check(prog, pass.getName());
+            }
+        }
+        List<LabeledFunction> functions = prog.toLabeledFunctions();
+        if (peephole == null) {
+            return functions;
+        }
+        int blocksBefore = functions.size();
+        long start = System.nanoTime();
+        functions = peephole.optimize(functions);
+        long nanos = System.nanoTime() - start;
+        int before = peephole.getInstructionsBefore();
+        int after = peephole.getInstructionsAfter();
+        stats.add(new PassStats("peephole", after != before
+                || functions.size() != blocksBefore, before, after,
+                blocksBefore, functions.size(), nanos));
+        return functions;
+    }
+
+    /**
+     * One line per pass run by the last optimize, then the peephole rules.
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (PassStats pass : stats) {
+            sb.append(pass).append('\n');
+        }
+        if (peephole != null) {
+            sb.append("peephole rules:");
+            String separator = " ";
+            for (Map.Entry<String, Integer> hit : peephole.getHits().entrySet()) {
+                sb.append(separator).append(hit.getKey()).append(' ')
+                        .append(hit.getValue());
+                separator = ", ";
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void check(ParsedProgram prog, String after) {
+        List<String> problems = verify(prog);
+        if (!problems.isEmpty()) {
+            StringBuilder sb = new StringBuilder("Program broken after "
+                    + after + ":");
+            for (String problem : problems) {
+                sb.append("\n  ").append(problem);
+            }
+            throw new RuntimeException(sb.toString());
+        }
+    }
+
+    /**
+     * Problems with the structure of the program, if any. Checks that main
+     * exists, that every frame's bindings are numbered in order, that every
+     * label refers to a block of the right kind, and that every LD and ST
+     * refers to a frame the code can see and a binding which is in it.
+     */
+    public static List<String> verify(ParsedProgram prog) {
+        List<String> problems = new ArrayList<String>();
+        ParserLabeledBlock mainBlock = prog.getBlock(LabelAllocator.MAIN_LABEL);
+        if (!(mainBlock instanceof ParserFunction)) {
+            problems.add("No main function");
+            return problems;
+        }
+        EnvFrame mainEnv = mainBlock.getEnv();
+        for (String label : prog.blocks.keySet()) {
+            ParserLabeledBlock block = prog.getBlock(label);
+            EnvFrame env = block.getEnv();
+            if (env.distanceTo(mainEnv) < 0) {
+                problems.add(label + ": frame is outside of main's");
+                continue;
+            }
+            for (EnvFrame frame = env; frame != mainEnv.parent;
+                    frame = frame.parent) {
+                for (int i = 0; i < frame.bindings.size(); ++i) {
+                    if (frame.bindings.get(i).index != i) {
+                        problems.add(label + ": binding "
+                                + frame.bindings.get(i).name
+                                + " has index "
+                                + frame.bindings.get(i).index + " at " + i);
+                    }
+                }
+            }
+            for (ParserDefinition definition : block.getDefinitions()) {
+                for (Line line : definition.code) {
+                    String problem = checkLine(prog, env, line);
+                    if (problem != null) {
+                        problems.add(label + ": " + problem + " in \""
+                                + line.getInstructionText() + "\"");
+                    }
+                }
+            }
+        }
+        return problems;
+    }
+
+    private static String checkLine(ParsedProgram prog, EnvFrame env,
+            Line line) {
+        Opcode op = line.getOpcode();
+        if (op == null) {
+            return null;
+        }
+        switch (op) {
+        case LD:
+        case ST:
+            EnvFrame frame = env;
+            for (int i = 0; i < line.getArg(0) && frame != null; ++i) {
+                frame = frame.parent;
+            }
+            if (frame == null) {
+                return "no frame at that depth";
+            }
+            Binding binding = line.getBinding();
+            if (binding == null) {
+                return line.getArg(1) < frame.bindings.size() ? null
+                        : "no binding at that index";
+            }
+            if (!frame.bindings.contains(binding)) {
+                return binding.name + " is not in that frame";
+            }
+            return null;
+        case LDF:
+            if (!(prog.getBlock(line.getLabel(0)) instanceof ParserFunction)) {
+                return "no function " + line.getLabel(0);
+            }
+            return null;
+        case SEL:
+        case TSEL:
+            for (int i = 0; i < 2; ++i) {
+                ParserLabeledBlock block = prog.getBlock(line.getLabel(i));
+                if (!(block instanceof ParserBranch)) {
+                    return "no branch " + line.getLabel(i);
+                }
+                if (((ParserBranch) block).isTail() != (op == Opcode.TSEL)) {
+                    return line.getLabel(i) + " does not return the right way";
+                }
+            }
+            return null;
+        default:
+            return null;
+        }
+    }
+}
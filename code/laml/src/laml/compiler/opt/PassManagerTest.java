@@ -0,0 +1,55 @@
+package laml.compiler.opt;
+
+import static laml.compiler.opt.PassHarness.parse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import laml.compiler.parser.ParsedProgram;
+
+import org.junit.Test;
+
+public class PassManagerTest {
+    private static final String PROG = "(define unused (lambda (x) (car x))) "
+            + "(define f (lambda (y) (+ y 1))) (f 2)";
+
+    @Test
+    public void testLevelsAddPasses() {
+        PassManager none = PassManager.forLevel(0);
+        none.optimize(parse(PROG));
+        assertTrue(none.getStats().isEmpty());
+
+        PassManager all = PassManager.forLevel(PassManager.MAX_LEVEL);
+        all.optimize(parse(PROG));
+        List<PassManager.PassStats> stats = all.getStats();
+        assertEquals("inline", stats.get(0).name);
+        assertEquals("peephole", stats.get(stats.size() - 1).name);
+        for (PassManager.PassStats pass : stats) {
+            assertTrue(pass.instructionsAfter <= pass.instructionsBefore
+                    || pass.name.equals("lift"));
+        }
+    }
+
+    @Test
+    public void testOptimizedProgramVerifies() {
+        PassManager manager = PassManager.forLevel(2);
+        manager.setVerify(true);
+        ParsedProgram prog = parse(PROG);
+        manager.optimize(prog);
+        assertTrue(PassManager.verify(prog).isEmpty());
+    }
+
+    @Test
+    public void testVerifyFindsMissingBlock() {
+        ParsedProgram prog = parse(PROG);
+        String label = null;
+        for (String key : prog.blocks.keySet()) {
+            label = key;
+        }
+        prog.blocks.remove(label);
+        List<String> problems = PassManager.verify(prog);
+        assertEquals(1, problems.size());
+        assertTrue(problems.get(0).contains("no function " + label));
+    }
+}
@@ -0,0 +1,269 @@
+package laml.compiler.opt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import laml.compiler.LabeledFunction;
+import laml.compiler.Line;
+import laml.compiler.Opcode;
+
+/**
+ * Peephole optimizer over laid out labeled functions, just before they are
+ * put into a RelativeProgram. Runs a table of PeepholeRules over each function
+ * until none of them match, and merges functions whose code is identical
+ * (typically if branches like "LDC 0; JOIN") by pointing every reference at a
+ * single copy. Labels stay symbolic throughout, so removing lines or whole
+ * functions leaves label resolution correct.
+ */
+public class PeepholeOptimizer {
+    /**
+     * SEL followed by JOIN: the branches can JOIN straight back to our own
+     * caller, so there's no need to push a join address of our own. The
+     * parser leaves these for an if which ends a branch of another if whose
+     * value is used, e.g. (+ 1 (if a (if b 1 2) 3)).
+     */
+    public static final PeepholeRule SEL_JOIN = new PeepholeRule() {
+        @Override
+        public String getName() {
+            return "sel-join";
+        }
+
+        @Override
+        public boolean apply(List<Line> code, int i) {
+            if (i + 1 >= code.size() || code.get(i).getOpcode() != Opcode.SEL
+                    || code.get(i + 1).getOpcode() != Opcode.JOIN) {
+                return false;
+            }
+            Line sel = code.get(i);
+            code.set(i, Line.makeTsel(sel.getLabel(0), sel.getLabel(1),
+                    sel.getComment()));
+            code.remove(i + 1);
+            return true;
+        }
+    };
+
+    /**
+     * Nothing after an instruction which never falls through can run, since
+     * jumps only go to function starts.
+     */
+    public static final PeepholeRule UNREACHABLE = new PeepholeRule() {
+        @Override
+        public String getName() {
+            return "unreachable";
+        }
+
+        @Override
+        public boolean apply(List<Line> code, int i) {
+            if (i + 1 >= code.size() || !isTransfer(code.get(i).getOpcode())) {
+                return false;
+            }
+            code.subList(i + 1, code.size()).clear();
+            return true;
+        }
+    };
+
+    public static final String MERGE_BLOCKS = "merge-blocks";
+
+    public static List<PeepholeRule> defaultRules() {
+        return Arrays.asList(SEL_JOIN, UNREACHABLE);
+    }
+
+    private static boolean isTransfer(Opcode op) {
+        return op == Opcode.RTN || op == Opcode.JOIN || op == Opcode.TAP
+                || op == Opcode.TSEL || op == Opcode.TRAP
+                || op == Opcode.STOP;
+    }
+
+    private final List<PeepholeRule> rules;
+    private final boolean mergeBlocks;
+    // Number of times each rule fired, by name
+    private final Map<String, Integer> hits;
+    private int instructionsBefore;
+    private int instructionsAfter;
+
+    public PeepholeOptimizer() {
+        this(defaultRules(), true);
+    }
+
+    public PeepholeOptimizer(List<PeepholeRule> rules, boolean mergeBlocks) {
+        this.rules = rules;
+        this.mergeBlocks = mergeBlocks;
+        hits = new LinkedHashMap<String, Integer>();
+        for (PeepholeRule rule : rules) {
+            hits.put(rule.getName(), 0);
+        }
+        if (mergeBlocks) {
+            hits.put(MERGE_BLOCKS, 0);
+        }
+    }
+
+    private void countHit(String name) {
+        hits.put(name, hits.get(name) + 1);
+    }
+
+    private static int countInstructions(Collection<LabeledFunction> functions) {
+        int total = 0;
+        for (LabeledFunction f : functions) {
+            total += f.getNumInstructions();
+        }
+        return total;
+    }
+
+    /**
+     * Run the rules over a function until none of them match.
+     */
+    private void optimizeFunction(LabeledFunction function) {
+        List<Line> code = function.getInstructions();
+        boolean changed = false;
+        int i = 0;
+        while (i < code.size()) {
+            boolean applied = false;
+            for (PeepholeRule rule : rules) {
+                if (rule.apply(code, i)) {
+                    countHit(rule.getName());
+                    applied = true;
+                    break;
+                }
+            }
+            if (applied) {
+                changed = true;
+                // A rewrite can complete a match starting just before it
+                i = Math.max(0, i - 1);
+            } else {
+                i++;
+            }
+        }
+        if (changed) {
+            function.setInstructions(code);
+        }
+    }
+
+    /**
+     * Instruction text of the whole function, ignoring comments.
+     */
+    private static String codeKey(LabeledFunction function) {
+        StringBuilder sb = new StringBuilder();
+        for (Line line : function.getInstructions()) {
+            sb.append(line.getInstructionText());
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Replace every function whose code is identical to an earlier one by that
+     * one. Repeats until nothing changes, since redirecting labels can make
+     * more functions identical.
+     */
+    private Map<String, LabeledFunction> merge(
+            Map<String, LabeledFunction> functions) {
+        while (true) {
+            Map<String, String> firstWithCode = new HashMap<String, String>();
+            Map<String, String> replacements = new HashMap<String, String>();
+            for (LabeledFunction f : functions.values()) {
+                String key = codeKey(f);
+                String first = firstWithCode.get(key);
+                if (first == null) {
+                    firstWithCode.put(key, f.label);
+                } else {
+                    replacements.put(f.label, first);
+                }
+            }
+            if (replacements.isEmpty()) {
+                return functions;
+            }
+            Map<String, LabeledFunction> kept = new LinkedHashMap<String, LabeledFunction>();
+            for (LabeledFunction f : functions.values()) {
+                if (replacements.containsKey(f.label)) {
+                    countHit(MERGE_BLOCKS);
+                    continue;
+                }
+                redirect(f, replacements);
+                kept.put(f.label, f);
+            }
+            functions = kept;
+        }
+    }
+
+    private static void redirect(LabeledFunction f,
+            Map<String, String> replacements) {
+        List<Line> code = f.getInstructions();
+        boolean changed = false;
+        for (int i = 0; i < code.size(); ++i) {
+            Line line = code.get(i);
+            Opcode op = line.getOpcode();
+            if (!op.labelArgs) {
+                continue;
+            }
+            String[] labels = new String[2];
+            boolean redirected = false;
+            for (int j = 0; j < op.numArgs; ++j) {
+                labels[j] = line.getLabel(j);
+                if (replacements.containsKey(labels[j])) {
+                    labels[j] = replacements.get(labels[j]);
+                    redirected = true;
+                }
+            }
+            if (redirected) {
+                code.set(i, line.withLabels(labels[0], labels[1]));
+                changed = true;
+            }
+        }
+        if (changed) {
+            f.setInstructions(code);
+        }
+    }
+
+    /**
+     * Optimize the functions, in place where possible. Returns the functions
+     * to lay out, in order; the first one (main) is always kept.
+     */
+    public List<LabeledFunction> optimize(List<LabeledFunction> functions) {
+        instructionsBefore = countInstructions(functions);
+        Map<String, LabeledFunction> byLabel = new LinkedHashMap<String, LabeledFunction>();
+        for (LabeledFunction f : functions) {
+            optimizeFunction(f);
+            byLabel.put(f.label, f);
+        }
+        if (mergeBlocks) {
+            byLabel = merge(byLabel);
+        }
+        instructionsAfter = countInstructions(byLabel.values());
+        return new ArrayList<LabeledFunction>(byLabel.values());
+    }
+
+    public int getInstructionsBefore() {
+        return instructionsBefore;
+    }
+
+    public int getInstructionsAfter() {
+        return instructionsAfter;
+    }
+
+    /**
+     * How often each rule fired in the last run, by name.
+     */
+    public Map<String, Integer> getHits() {
+        return hits;
+    }
+
+    /**
+     * One line summary of the last run: instruction counts and how often each
+     * rule fired.
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("peephole: ").append(instructionsBefore).append(" -> ")
+                .append(instructionsAfter).append(" instructions");
+        for (Map.Entry<String, Integer> hit : hits.entrySet()) {
+            sb.append(", ").append(hit.getKey()).append(" ")
+                    .append(hit.getValue());
+        }
+        return sb.toString();
+    }
+}
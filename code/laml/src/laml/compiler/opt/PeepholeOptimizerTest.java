@@ -0,0 +1,77 @@
+package laml.compiler.opt;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import laml.compiler.AbsoluteProgram;
+import laml.compiler.LabeledFunction;
+import laml.compiler.Line;
+import laml.compiler.Opcode;
+import laml.compiler.RelativeProgram;
+
+import org.junit.Test;
+
+public class PeepholeOptimizerTest {
+    private static LabeledFunction function(String label, Line... lines) {
+        LabeledFunction f = new LabeledFunction(label);
+        for (Line line : lines) {
+            f.addLine(line);
+        }
+        return f;
+    }
+
+    @Test
+    public void testRulesAndMerge() {
+        List<LabeledFunction> functions = Arrays.asList(
+                function("main", Line.makeLdc(1, ""),
+                        Line.makeSel("a", "b", ""), Line.makeJoin(""),
+                        Line.makeLdc(2, "Dead")),
+                function("a", Line.makeLdf("f", ""), Line.makeTap(0, ""),
+                        Line.makeRtn("Dead")),
+                function("b", Line.makeLdf("g", ""), Line.makeTap(0, ""),
+                        Line.makeRtn("Dead")),
+                function("f", Line.makeLdc(3, ""), Line.makeRtn("")),
+                function("g", Line.makeLdc(3, ""), Line.makeRtn("")));
+        PeepholeOptimizer peephole = new PeepholeOptimizer();
+        List<LabeledFunction> out = peephole.optimize(functions);
+        assertEquals(14, peephole.getInstructionsBefore());
+        // g merges into f, which makes b the same as a
+        assertEquals(2 + 2 + 2, peephole.getInstructionsAfter());
+        assertEquals(3, out.size());
+
+        RelativeProgram prog = new RelativeProgram();
+        prog.addLabeledFunctions(out);
+        AbsoluteProgram abs = prog.translate();
+        assertEquals(Opcode.TSEL, abs.getCode().getOpcode(1));
+        assertEquals(2, abs.getCode().getArg(1, 0));
+        assertEquals(2, abs.getCode().getArg(1, 1));
+        assertEquals(Opcode.LDF, abs.getCode().getOpcode(2));
+        assertEquals(4, abs.getCode().getArg(2, 0));
+        assertEquals(Opcode.TAP, abs.getCode().getOpcode(3));
+    }
+
+    @Test
+    public void testSelJoinInParserOutput() {
+        List<LabeledFunction> functions = PassManager.forLevel(0).optimize(
+                PassHarness.parse("(define f (lambda (a b) "
+                        + "(+ 1 (if a (if b 1 2) 3)))) (f 1 0)"));
+        PeepholeOptimizer peephole = new PeepholeOptimizer();
+        RelativeProgram prog = new RelativeProgram();
+        prog.addLabeledFunctions(peephole.optimize(functions));
+        assertEquals(1, (int) peephole.getHits().get("sel-join"));
+        assertEquals("3", PassHarness.run(prog.translate()));
+    }
+
+    @Test
+    public void testDisabledRules() {
+        List<LabeledFunction> functions = Arrays.asList(function("main",
+                Line.makeLdf("f", ""), Line.makeAp(0, ""), Line.makeRtn("")),
+                function("f", Line.makeLdc(3, ""), Line.makeRtn("")));
+        PeepholeOptimizer peephole = new PeepholeOptimizer(
+                Arrays.asList(PeepholeOptimizer.UNREACHABLE), false);
+        peephole.optimize(functions);
+        assertEquals(5, peephole.getInstructionsAfter());
+    }
+}
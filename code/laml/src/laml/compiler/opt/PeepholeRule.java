@@ -0,0 +1,23 @@
+package laml.compiler.opt;
+
+import java.util.List;
+
+import laml.compiler.Line;
+
+/**
+ * A local rewrite of a few consecutive instructions within one labeled
+ * function. Only function starts are labeled, so lines inside a function can
+ * be replaced or removed without breaking any jump.
+ */
+public interface PeepholeRule {
+    /**
+     * Short name of the rule, used to turn it off and in reports.
+     */
+    public String getName();
+
+    /**
+     * Rewrite code in place if the rule matches the lines starting at index i.
+     * Returns whether it did.
+     */
+    public boolean apply(List<Line> code, int i);
+}
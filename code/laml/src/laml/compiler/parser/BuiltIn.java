@@ -0,0 +1,12 @@
+package laml.compiler.parser;
+
+import laml.compiler.lexer.LexerNode;
+
+/**
+ * A built-in form, such as an arithmetic op or a special form like if. Creates
+ * the task which generates code for one use of the form.
+ */
+public interface BuiltIn {
+    public ParseTask newTask(LexerNode functionNode, EnvFrame env,
+            ParseContext context);
+}
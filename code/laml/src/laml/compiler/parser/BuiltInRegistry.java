@@ -0,0 +1,41 @@
+package laml.compiler.parser;
+
+import java.util.Arrays;
+
+import laml.compiler.lexer.SymbolInterner;
+
+/**
+ * Table of built-in forms indexed by the symbol id of their name, so the
+ * parser can dispatch on a call's op with a single array lookup. Anything not
+ * registered here is compiled as a call to a closure.
+ */
+public class BuiltInRegistry {
+    private final SymbolInterner symbols;
+    // Indexed by symbol id, null for symbols which aren't built-ins
+    private BuiltIn[] builtIns;
+
+    public BuiltInRegistry(SymbolInterner symbols) {
+        this.symbols = symbols;
+        builtIns = new BuiltIn[Math.max(16, symbols.size())];
+    }
+
+    /**
+     * Register a built-in under the given name, replacing any existing
+     * built-in with that name.
+     */
+    public void register(String name, BuiltIn builtIn) {
+        int symbol = symbols.intern(name);
+        if (symbol >= builtIns.length) {
+            builtIns = Arrays.copyOf(builtIns,
+                    Math.max(symbol + 1, builtIns.length * 2));
+        }
+        builtIns[symbol] = builtIn;
+    }
+
+    /**
+     * Built-in registered for the symbol, or null if there isn't one.
+     */
+    public BuiltIn lookup(int symbol) {
+        return symbol < builtIns.length ? builtIns[symbol] : null;
+    }
+}
@@ -0,0 +1,33 @@
+package laml.compiler.parser;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import laml.compiler.Opcode;
+import laml.compiler.lexer.CharArrayLexer;
+import laml.compiler.lexer.LexedProgram;
+
+import org.junit.Test;
+
+public class BuiltInRegistryTest {
+    @Test
+    public void testDefaultsRegistered() {
+        LexedProgram prog = CharArrayLexer.lexProgramString("(car x)");
+        BuiltInRegistry registry = new BuiltInRegistry(prog.symbols);
+        BuiltIns.registerDefaults(registry);
+        assertTrue(registry.lookup(prog.symbols.intern("car")) != null);
+        assertTrue(registry.lookup(prog.symbols.intern("lambda")) != null);
+        assertNull(registry.lookup(prog.symbols.intern("x")));
+    }
+
+    @Test
+    public void testCustomBuiltIn() {
+        LexedProgram prog = CharArrayLexer.lexProgramString("(swap-sub 1 2)");
+        BuiltInRegistry registry = new BuiltInRegistry(prog.symbols);
+        BuiltIns.registerDefaults(registry);
+        registry.register("swap-sub", new BuiltIns.NArgBuiltIn(Opcode.SUB, 2,
+                ParserDataType.integerType()));
+        String out = Parser.parseProgram(prog, registry).translate()
+                .toString();
+        assertTrue(out.contains("SUB"));
+    }
+}
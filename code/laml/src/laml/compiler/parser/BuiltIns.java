@@ -0,0 +1,436 @@
+package laml.compiler.parser;
+
+import laml.compiler.Line;
+import laml.compiler.Opcode;
+import laml.compiler.lexer.LexerNode;
+import laml.compiler.lexer.LexerNode.NodeType;
+import laml.compiler.parser.EnvFrame.Binding;
+import laml.compiler.parser.EnvFrame.EnvException;
+
+/**
+ * The built-in forms of LaML: arithmetic and list ops which map directly onto
+ * a GCC instruction, plus the special forms begin, if, define, lambda, list
+ * and tuple.
+ */
+public class BuiltIns {
+    /**
+     * Built-in which evaluates a fixed number of arguments and runs a single
+     * assembly op on them.
+     */
+    public static class NArgBuiltIn implements BuiltIn {
+        private final Opcode assemblyOp;
+        private final int numArgs;
+        private final ParserDataType retType;
+
+        public NArgBuiltIn(Opcode assemblyOp, int numArgs,
+                ParserDataType retType) {
+            this.assemblyOp = assemblyOp;
+            this.numArgs = numArgs;
+            this.retType = retType;
+        }
+
+        @Override
+        public ParseTask newTask(LexerNode functionNode, EnvFrame env,
+                ParseContext context) {
+            return new NArgBuiltInTask(assemblyOp, numArgs, retType,
+                    functionNode, env, context);
+        }
+    }
+
+    /**
+     * Built-in which evaluates a fixed number of arguments in order and then
+     * runs a single assembly op on them.
+     */
+    static class NArgBuiltInTask extends ParseTask {
+        private final Opcode assemblyOp;
+        private final ParserDataType retType;
+        private final ParserDefinition out;
+
+        public NArgBuiltInTask(Opcode assemblyOp, int numArgs,
+                ParserDataType retType, LexerNode functionNode, EnvFrame env,
+                ParseContext context) {
+            super(functionNode, env, context);
+            if (functionNode.children.size() != numArgs) {
+                throw new ParserException(
+                        "Op takes " + numArgs + " arguments", functionNode);
+            }
+            this.assemblyOp = assemblyOp;
+            this.retType = retType;
+            out = new ParserDefinition();
+        }
+
+        @Override
+        public void childDone(ParserDefinition childDefinition) {
+            out.code.addAll(childDefinition.code);
+        }
+
+        @Override
+        public ParserDefinition finish() {
+            out.code.add(Line.makeOp(assemblyOp, ""));
+            out.setReturnType(retType);
+            return out;
+        }
+    }
+
+    static class BeginTask extends ParseTask {
+        private final ParserDefinition c;
+
+        public BeginTask(LexerNode functionNode, EnvFrame env,
+                ParseContext context) {
+            super(functionNode, env, context);
+            c = new ParserDefinition();
+        }
+
+        @Override
+        public boolean childInTail() {
+            // The last child's value is the value of the begin
+            return tail && nextIndex == node.children.size();
+        }
+
+        @Override
+        public void childDone(ParserDefinition childDefinition) {
+            c.code.addAll(childDefinition.code);
+            // Let the return type be that of the last child
+            c.setReturnType(childDefinition.returnType);
+            c.returns = childDefinition.returns;
+        }
+
+        @Override
+        public ParserDefinition finish() {
+            return c;
+        }
+    }
+
+    static class IfTask extends ParseTask {
+        private final ParserDefinition c;
+        private String trueBranchLabel;
+        private String falseBranchLabel;
+        private ParserDefinition trueBranchDefinition;
+        private ParserDefinition falseBranchDefinition;
+
+        public IfTask(LexerNode functionNode, EnvFrame env,
+                ParseContext context) {
+            super(functionNode, env, context);
+            if (functionNode.children.size() != 3) {
+                throw new ParserException(
+                        "if takes three arguments: "
+                                + "the prediction, true branch, and false branch. "
+                                +
+                                "Got " + functionNode.children.size()
+                                + " arguments.", functionNode);
+            }
+            c = new ParserDefinition();
+            trueBranchLabel = context.labels.newBranchLabel();
+            falseBranchLabel = context.labels.newBranchLabel();
+        }
+
+        @Override
+        public boolean childInTail() {
+            // Either branch's value is the value of the if
+            return tail && nextIndex > 1;
+        }
+
+        @Override
+        public void childDone(ParserDefinition childDefinition) {
+            if (nextIndex == 1) {
+                if (!ParserDataType
+                        .matchesIntegerType(childDefinition.returnType)) {
+                    throw new ParserException(
+                            "if predicate must be an integer type return",
+                            node);
+                }
+                c.code.addAll(childDefinition.code);
+            } else if (nextIndex == 2) {
+                trueBranchDefinition = childDefinition;
+                context.globalFuncMap.put(trueBranchLabel, new ParserBranch(
+                        trueBranchLabel, env, trueBranchDefinition, tail));
+            } else {
+                falseBranchDefinition = childDefinition;
+                context.globalFuncMap.put(falseBranchLabel, new ParserBranch(
+                        falseBranchLabel, env, falseBranchDefinition, tail));
+            }
+        }
+
+        @Override
+        public ParserDefinition finish() {
+            String comment = "Sel on predicate "
+                    + node.children.get(0).toString();
+            if (tail) {
+                // Branches return from the function themselves, so there's
+                // nothing to join back to
+                c.code.add(Line.makeTsel(trueBranchLabel, falseBranchLabel,
+                        comment));
+                c.returns = true;
+            } else {
+                c.code.add(Line.makeSel(trueBranchLabel, falseBranchLabel,
+                        comment));
+            }
+            if (!ParserDataType.matches(
+                    trueBranchDefinition.returnType,
+                    falseBranchDefinition.returnType)) {
+                throw new ParserException(
+                        "if statement branches must return the same type",
+                        node);
+            }
+            c.setReturnType(trueBranchDefinition.returnType);
+            return c;
+        }
+    }
+
+    static class DefineTask extends ParseTask {
+        private Binding envBinding;
+
+        public DefineTask(LexerNode functionNode, EnvFrame env,
+                ParseContext context) {
+            super(functionNode, env, context);
+            if (functionNode.children.size() != 2) {
+                throw new ParserException(
+                        "define takes two arguments: the binding and definition",
+                        functionNode);
+            }
+            LexerNode bindingNode = functionNode.children.get(0);
+            if (bindingNode.type != NodeType.VARIABLE) {
+                // We can't do implicit lambda definition like
+                // (define (x) (+ x 1)) yet.
+                // Need to do:
+                // (define x (lambda (x) (+ x 1))).
+                throw new ParserException(
+                        "define doesn't support argument-style binding shortcuts yet",
+                        functionNode);
+            }
+            // The binding is added before its definition is parsed, which
+            // allows recursive definitions.
+            // TODO(gkanwar): Add typing, this just assumes everything
+            // is an int for now, and never bothers to check
+            envBinding = new Binding(bindingNode.symbol, bindingNode.token,
+                    null);
+            try {
+                env.addBinding(bindingNode.symbol, envBinding);
+            } catch (EnvException e) {
+                throw new ParserException(e.getMessage(), functionNode);
+            }
+            // Only the definition needs code
+            nextIndex = 1;
+        }
+
+        @Override
+        public void childDone(ParserDefinition childDefinition) {
+            envBinding.setDefinition(childDefinition);
+        }
+
+        @Override
+        public ParserDefinition finish() {
+            // NOTE(gkanwar): No code added directly here. All
+            // definitions will be lifted to the beginning of the
+            // function call, where a new environment scope is created
+            // and defined.
+            return new ParserDefinition();
+        }
+    }
+
+    static class LambdaTask extends ParseTask {
+        private final EnvFrame argEnv;
+        private final EnvFrame funcEnv;
+        private final int numArgs;
+        private ParserDefinition definition;
+
+        public LambdaTask(LexerNode functionNode, EnvFrame env,
+                ParseContext context) {
+            super(functionNode, env, context);
+            if (functionNode.children.size() != 2) {
+                throw new ParserException(
+                        "lambda takes two arguments: the binding and definition",
+                        functionNode);
+            }
+            // Environment to hold argument bindings
+            EnvFrame argEnv = new EnvFrame(env);
+            // Hack to check for list of bindings; they are interpreted
+            // by the lexer as a function call, because really they
+            // would be, but we're just faking some post-processing here
+            // instead.
+            LexerNode bindingNode = functionNode.children.get(0);
+            if (bindingNode.type != NodeType.FUNCTION) {
+                throw new ParserException(
+                        "lambda first arg must be a list of bindings",
+                        functionNode);
+            }
+            // First binding pulled from op, the rest from children
+            // No bindings have code definitions -- as arguments it's
+            // the caller's responsibility to define these.
+            if (bindingNode.op.type != NodeType.VARIABLE) {
+                throw new ParserException(
+                        "lambda bindings must all be var type",
+                        functionNode);
+            }
+            // HACK: Allow declaring a thunk using (lambda (THUNK) def)
+            int args = 0;
+            if (!bindingNode.op.token.equals("THUNK")) {
+                try {
+                    argEnv.addBinding(bindingNode.op.symbol,
+                            new Binding(bindingNode.op.symbol,
+                                    bindingNode.op.token, null));
+                } catch (EnvException e) {
+                    throw new ParserException(e.getMessage(),
+                            functionNode);
+                }
+                args++;
+            }
+            for (LexerNode bindingChild : bindingNode.children) {
+                if (bindingChild.type != NodeType.VARIABLE) {
+                    throw new ParserException(
+                            "lambda bindings must all be var type",
+                            functionNode);
+                }
+                try {
+                    argEnv.addBinding(bindingChild.symbol, new Binding(
+                            bindingChild.symbol, bindingChild.token, null));
+                } catch (EnvException e) {
+                    throw new ParserException(e.getMessage(),
+                            functionNode);
+                }
+                args++;
+            }
+            numArgs = args;
+            // Wrap argEnv in another env which holds local variable
+            // definitions.
+            this.argEnv = argEnv;
+            funcEnv = new EnvFrame(argEnv, true);
+            // Only the body needs code
+            nextIndex = 1;
+        }
+
+        @Override
+        public EnvFrame childEnv() {
+            return funcEnv;
+        }
+
+        @Override
+        public boolean childInTail() {
+            // The body is returned from the new function
+            return true;
+        }
+
+        @Override
+        public void childDone(ParserDefinition childDefinition) {
+            definition = childDefinition;
+        }
+
+        @Override
+        public ParserDefinition finish() {
+            // Argument and local bindings go out of scope with the lambda
+            funcEnv.closeScope();
+            argEnv.closeScope();
+            ParserDefinition c = new ParserDefinition();
+            String uniqueName = context.labels.newFunctionLabel();
+            context.globalFuncMap.put(uniqueName, new ParserFunction(
+                    uniqueName, funcEnv, definition));
+            c.code.add(Line.makeLdf(uniqueName, ""));
+            c.setReturnType(ParserDataType.closureType(numArgs));
+            return c;
+        }
+    }
+
+    /**
+     * Shared by list and tuple, which push all children and then CONS them
+     * together.
+     */
+    static class ConsChainTask extends ParseTask {
+        private final boolean nilTerminated;
+        private final ParserDefinition c;
+
+        public ConsChainTask(boolean nilTerminated, LexerNode functionNode,
+                EnvFrame env, ParseContext context) {
+            super(functionNode, env, context);
+            this.nilTerminated = nilTerminated;
+            c = new ParserDefinition();
+        }
+
+        @Override
+        public void childDone(ParserDefinition childDefinition) {
+            c.code.addAll(childDefinition.code);
+        }
+
+        @Override
+        public ParserDefinition finish() {
+            int numCons = node.children.size() - 1;
+            if (nilTerminated) {
+                c.code.add(Line.makeNil(""));
+                numCons++;
+            }
+            for (int i = 0; i < numCons; ++i) {
+                c.code.add(Line.makeCons(""));
+            }
+            c.setReturnType(ParserDataType.integerType());
+            return c;
+        }
+    }
+
+
+    /**
+     * Register all default built-ins.
+     */
+    public static void registerDefaults(BuiltInRegistry registry) {
+        registerNArg(registry, "+", Opcode.ADD, 2);
+        registerNArg(registry, "-", Opcode.SUB, 2);
+        registerNArg(registry, "*", Opcode.MUL, 2);
+        registerNArg(registry, "/", Opcode.DIV, 2);
+        registerNArg(registry, "=", Opcode.CEQ, 2);
+        registerNArg(registry, ">", Opcode.CGT, 2);
+        registerNArg(registry, ">=", Opcode.CGTE, 2);
+        registerNArg(registry, "cons", Opcode.CONS, 2);
+        registerNArg(registry, "atom", Opcode.ATOM, 1);
+        registerNArg(registry, "car", Opcode.CAR, 1);
+        registerNArg(registry, "cdr", Opcode.CDR, 1);
+        registerNArg(registry, "dbug", Opcode.DBUG, 1);
+        registerNArg(registry, "brk", Opcode.BRK, 0);
+        registry.register("begin", new BuiltIn() {
+            @Override
+            public ParseTask newTask(LexerNode functionNode, EnvFrame env,
+                    ParseContext context) {
+                return new BeginTask(functionNode, env, context);
+            }
+        });
+        registry.register("if", new BuiltIn() {
+            @Override
+            public ParseTask newTask(LexerNode functionNode, EnvFrame env,
+                    ParseContext context) {
+                return new IfTask(functionNode, env, context);
+            }
+        });
+        registry.register("define", new BuiltIn() {
+            @Override
+            public ParseTask newTask(LexerNode functionNode, EnvFrame env,
+                    ParseContext context) {
+                return new DefineTask(functionNode, env, context);
+            }
+        });
+        registry.register("lambda", new BuiltIn() {
+            @Override
+            public ParseTask newTask(LexerNode functionNode, EnvFrame env,
+                    ParseContext context) {
+                return new LambdaTask(functionNode, env, context);
+            }
+        });
+        registry.register("list", new BuiltIn() {
+            @Override
+            public ParseTask newTask(LexerNode functionNode, EnvFrame env,
+                    ParseContext context) {
+                return new ConsChainTask(true, functionNode, env, context);
+            }
+        });
+        registry.register("tuple", new BuiltIn() {
+            @Override
+            public ParseTask newTask(LexerNode functionNode, EnvFrame env,
+                    ParseContext context) {
+                return new ConsChainTask(false, functionNode, env, context);
+            }
+        });
+    }
+
+    // TODO(gkanwar): Add typing, everything is assumed to return an int.
+    private static void registerNArg(BuiltInRegistry registry, String name,
+            Opcode assemblyOp, int numArgs) {
+        registry.register(name, new NArgBuiltIn(assemblyOp, numArgs,
+                ParserDataType.integerType()));
+    }
+}
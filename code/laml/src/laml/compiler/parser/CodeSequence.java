@@ -1,32 +1,260 @@
 package laml.compiler.parser;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import laml.compiler.Line;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
-public class CodeSequence {
-    private List<Line> code;
+/**
+ * A sequence of lines of code, stored as a rope. Appending another sequence
+ * just links to it, so building up code from nested nodes costs O(1) per
+ * append rather than copying every child line into each enclosing node. The
+ * rope is flattened into a list once the final program is assembled.
+ *
+ * Small sequences (most variable loads and constants) are copied instead,
+ * since linking them would cost more than the lines themselves. A sequence
+ * which has been linked into another is shared, so it is frozen and may no
+ * longer be modified.
+ */
+public class CodeSequence implements Iterable<Line> {
+    // Sequences up to this size are copied rather than linked
+    private static final int COPY_THRESHOLD = 16;
+
+    /**
+     * Either a run of lines owned by this sequence, or a shared sequence.
+     */
+    private static class Chunk {
+        final List<Line> run;
+        final CodeSequence shared;
+
+        Chunk(List<Line> run) {
+            this.run = run;
+            this.shared = null;
+        }
+
+        Chunk(CodeSequence shared) {
+            this.run = null;
+            this.shared = shared;
+        }
+    }
+
+    // Null until a shared sequence is linked in, in which case the sequence
+    // is just currentRun
+    private List<Chunk> chunks;
+    // Run which newly added lines go into, null if the last chunk is shared
+    private List<Line> currentRun;
+    // Totals over all chunks, including shared ones
+    private int size;
+    private int numInstructions;
+    private boolean frozen;
 
     public CodeSequence() {
-        code = new ArrayList<Line>();
+        chunks = null;
+        currentRun = null;
+        size = 0;
+        numInstructions = 0;
+        frozen = false;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new RuntimeException(
+                    "Cannot modify a code sequence which has been shared");
+        }
     }
 
+    /**
+     * Append all of otherCode. Unless it is small, otherCode is shared rather
+     * than copied, and is frozen from here on.
+     */
     public void addAll(CodeSequence otherCode) {
-        code.addAll(otherCode.getLines());
+        checkNotFrozen();
+        if (otherCode == this) {
+            throw new RuntimeException("Cannot append a code sequence to itself");
+        }
+        if (otherCode.size == 0) {
+            return;
+        }
+        if (otherCode.chunks == null && otherCode.size <= COPY_THRESHOLD) {
+            addAll(otherCode.currentRun);
+            return;
+        }
+        otherCode.frozen = true;
+        if (chunks == null) {
+            chunks = new ArrayList<Chunk>();
+            if (currentRun != null) {
+                chunks.add(new Chunk(currentRun));
+            }
+        }
+        chunks.add(new Chunk(otherCode));
+        currentRun = null;
+        size += otherCode.size;
+        numInstructions += otherCode.numInstructions;
     }
 
     public void addAll(List<Line> lines) {
-        code.addAll(lines);
+        for (Line line : lines) {
+            add(line);
+        }
     }
 
     public void add(Line line) {
-        code.add(line);
+        checkNotFrozen();
+        if (currentRun == null) {
+            currentRun = new ArrayList<Line>();
+            if (chunks != null) {
+                chunks.add(new Chunk(currentRun));
+            }
+        }
+        currentRun.add(line);
+        size++;
+        if (!line.isEmpty()) {
+            numInstructions++;
+        }
     }
 
+    /**
+     * Give the lines this sequence added itself, rather than linked in, the
+     * source line they were generated from, unless they already have one.
+     * Since children are finished before their parents, lines copied from a
+     * child keep the child's line.
+     */
+    public void setSourceLine(int sourceLine) {
+        if (chunks == null) {
+            setSourceLine(currentRun, sourceLine);
+            return;
+        }
+        for (Chunk chunk : chunks) {
+            if (chunk.run != null) {
+                setSourceLine(chunk.run, sourceLine);
+            }
+        }
+    }
+
+    private static void setSourceLine(List<Line> run, int sourceLine) {
+        if (run == null) {
+            return;
+        }
+        for (Line line : run) {
+            if (line.getSourceLine() == 0) {
+                line.setSourceLine(sourceLine);
+            }
+        }
+    }
+
+    /**
+     * Total number of lines, including empty ones.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Number of lines which contain actual code.
+     */
+    public int getNumInstructions() {
+        return numInstructions;
+    }
+
+    /**
+     * First line of the sequence, or null if it is empty.
+     */
+    public Line getFirstLine() {
+        CodeSequence seq = this;
+        while (seq.size > 0) {
+            if (seq.chunks == null) {
+                return seq.currentRun.get(0);
+            }
+            Chunk first = seq.chunks.get(0);
+            if (first.run != null) {
+                return first.run.get(0);
+            }
+            seq = first.shared;
+        }
+        return null;
+    }
+
+    /**
+     * Flatten the rope into a new list of lines. This walks every shared
+     * sequence, so it should only be done once the code is complete.
+     */
     public List<Line> getLines() {
-        return code;
+        List<Line> out = new ArrayList<Line>(size);
+        appendTo(out);
+        return out;
+    }
+
+    /**
+     * Flatten the rope onto the end of out.
+     */
+    public void appendTo(List<Line> out) {
+        for (Line line : this) {
+            out.add(line);
+        }
+    }
+
+    /**
+     * Iterate over all lines in order, walking the rope without flattening
+     * it.
+     */
+    @Override
+    public Iterator<Line> iterator() {
+        return new Iterator<Line>() {
+            // Pending chunks in reverse order, so the next one is on top
+            private final Deque<Chunk> pending = new ArrayDeque<Chunk>();
+            private List<Line> run = null;
+            private int index = 0;
+
+            {
+                pushChunks(pending, CodeSequence.this);
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (run == null || index >= run.size()) {
+                    if (pending.isEmpty()) {
+                        return false;
+                    }
+                    Chunk chunk = pending.pop();
+                    if (chunk.run != null) {
+                        run = chunk.run;
+                        index = 0;
+                    } else {
+                        pushChunks(pending, chunk.shared);
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public Line next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return run.get(index++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static void pushChunks(Deque<Chunk> pending, CodeSequence seq) {
+        if (seq.chunks == null) {
+            if (seq.currentRun != null) {
+                pending.push(new Chunk(seq.currentRun));
+            }
+            return;
+        }
+        for (int i = seq.chunks.size() - 1; i >= 0; --i) {
+            pending.push(seq.chunks.get(i));
+        }
     }
 
     /**
@@ -34,7 +262,11 @@ public class CodeSequence {
      * shuffle around bits of code. This can be used to debug, though.
      */
     public String debugString() {
-        // TODO(gkanwar)
-        throw new NotImplementedException();
+        StringBuilder sb = new StringBuilder();
+        for (Line line : this) {
+            sb.append(line.toString());
+            sb.append("\n");
+        }
+        return sb.toString();
     }
 }
@@ -1,15 +1,17 @@
 package laml.compiler.parser;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
 
+import laml.compiler.LabeledFunction;
 import laml.compiler.Line;
+import laml.compiler.Opcode;
+import laml.compiler.lexer.SymbolInterner;
 
 /**
  * Internal representation of an environment frame in the CPU. Contains a
- * binding from variable names to Binding objects, which define their types
+ * binding from variable symbols to Binding objects, which define their types
  * (type checking coming soon) and code definitions. Environment frames are
  * "owned" by the node which generates them. Once they have been filled in, that
  * node should lift all definition code out to the environment generation
@@ -17,17 +19,23 @@ import laml.compiler.Line;
  */
 public class EnvFrame {
     /**
-     * Defines the info needed to store a binding. We assume that bindings are
-     * never removed or overwritten, so the index and type can be final safely.
+     * Defines the info needed to store a binding. Bindings are never
+     * overwritten, but unused ones may be removed from their frame after
+     * parsing, which changes the index of the ones after them.
      */
     public static class Binding {
 
         public int index;
+        public final int symbol;
         public final String name;
         // GCC code which should put the desired value on top of the data stack
         public ParserDefinition definition;
+        // Whether this is a slot added by an optimization pass, which code
+        // stores into with ST. Its definition is just the initial 0.
+        public boolean scratch;
 
-        public Binding(String name, ParserDataType type) {
+        public Binding(int symbol, String name, ParserDataType type) {
+            this.symbol = symbol;
             this.name = name;
             // Start with an empty definition -- fill this in once the binding
             // is complete. This allows recursive definitions and also argument
@@ -38,16 +46,17 @@ public class EnvFrame {
 
         public void setDefinition(ParserDefinition definition) {
             this.definition = definition;
-            if (definition.code.getLines().size() > 0) {
+            Line first = definition.code.getFirstLine();
+            if (first != null) {
                 // Annotate the variable definition
-                definition.code.getLines().get(0).setComment("Define " + name);
+                first.setComment("Define " + name);
             }
         }
 
         /**
-         * Set the index of the binding within the frame. Should only be called
-         * once when the binding is being added to the environment and not
-         * changed after that.
+         * Set the index of the binding within the frame. Called when the
+         * binding is added to the environment, and again only if bindings
+         * before it are removed.
          */
         public void setIndex(int index) {
             this.index = index;
@@ -66,70 +75,200 @@ public class EnvFrame {
         private static final long serialVersionUID = -8343829440805755485L;
     }
 
-    // The map and list must both contain all bindings.
+    /**
+     * Result of resolving a symbol: the binding, and how many frames up from
+     * the resolving frame it lives.
+     */
+    public static class Resolution {
+        public final int depth;
+        public final Binding binding;
+
+        public Resolution(int depth, Binding binding) {
+            this.depth = depth;
+            this.binding = binding;
+        }
+    }
+
     // Binding index must match index in the bindings list.
-    public Map<String, Binding> bindingMap;
     public List<Binding> bindings;
 
     public EnvFrame parent;
+    // Number of frames between this one and the root frame
+    protected final int level;
+    // Shared by every frame descended from the same root
+    protected final ScopedSymbolTable symbols;
+    // Whether the frame only holds local definitions, as opposed to arguments
+    // the caller has already allocated a frame for
+    private final boolean locals;
 
-    public EnvFrame() {
+    public EnvFrame(ScopedSymbolTable symbols) {
         this.parent = null;
-        bindingMap = new HashMap<String, Binding>();
+        this.level = 0;
+        this.symbols = symbols;
+        this.locals = false;
         bindings = new ArrayList<Binding>();
     }
 
     public EnvFrame(EnvFrame parent) {
+        this(parent, false);
+    }
+
+    /**
+     * @param locals whether the frame holds a function's local definitions,
+     *            which means it is only created at runtime if it has any
+     */
+    public EnvFrame(EnvFrame parent, boolean locals) {
         this.parent = parent;
-        bindingMap = new HashMap<String, Binding>();
+        this.level = parent.level + 1;
+        this.symbols = parent.symbols;
+        this.locals = locals;
         bindings = new ArrayList<Binding>();
     }
 
-    public void addBinding(String name, Binding binding) throws EnvException {
-        if (bindingMap.containsKey(name)) {
-            throw new EnvException("Cannot redefine symbol " + name);
+    /**
+     * Whether the frame is left out at runtime: a frame of local definitions
+     * with nothing in it. Code in the frame runs in the parent frame instead.
+     */
+    public boolean isElided() {
+        return locals && bindings.isEmpty();
+    }
+
+    /**
+     * Number of frames actually present at runtime among the given number of
+     * frames up from this one, i.e. the depth a LD or ST of a variable
+     * resolved at that depth needs.
+     */
+    public int runtimeDepth(int depth) {
+        int out = 0;
+        EnvFrame frame = this;
+        for (int i = 0; i < depth; ++i) {
+            if (!frame.isElided()) {
+                out++;
+            }
+            frame = frame.parent;
+        }
+        return out;
+    }
+
+    /**
+     * Add code generated in this frame to a labeled function, with the depth
+     * of every LD and ST adjusted for frames which are left out at runtime.
+     */
+    public void addCode(LabeledFunction function, CodeSequence code) {
+        boolean elided = false;
+        for (EnvFrame frame = this; frame != null; frame = frame.parent) {
+            elided |= frame.isElided();
+        }
+        if (!elided) {
+            function.addCodeSequence(code);
+            return;
+        }
+        for (Line line : code) {
+            Opcode op = line.getOpcode();
+            if (op == Opcode.LD || op == Opcode.ST) {
+                int depth = runtimeDepth(line.getArg(0));
+                if (depth != line.getArg(0)) {
+                    line = line.withArgs(depth, line.getArg(1));
+                }
+            }
+            function.addLine(line);
+        }
+    }
+
+    public SymbolInterner getInterner() {
+        return symbols.interner;
+    }
+
+    public void addBinding(int symbol, Binding binding) throws EnvException {
+        ScopedSymbolTable.Entry existing = symbols.lookup(symbol);
+        if (existing != null && existing.frame == this) {
+            throw new EnvException("Cannot redefine symbol " + binding.name);
         }
         binding.setIndex(bindings.size());
         bindings.add(binding);
-        bindingMap.put(name, binding);
+        symbols.bind(symbol, this, binding);
+    }
+
+    /**
+     * Finds the binding of the symbol in the closest enclosing environment
+     * frame, along with its depth: 0 is this environment, 1 is the parent,
+     * etc. The depth and binding index are the two numbers on a LD.
+     *
+     * Only valid while this frame is the innermost open scope, which is always
+     * the case for the frame the parser is currently generating code in.
+     */
+    public Resolution resolve(int symbol) throws EnvException {
+        ScopedSymbolTable.Entry entry = symbols.lookup(symbol);
+        if (entry == null) {
+            throw new EnvException("Cannot find binding for symbol "
+                    + symbols.interner.getName(symbol));
+        }
+        return new Resolution(level - entry.frame.level, entry.binding);
     }
 
     /**
-     * Finds the depth of the closest environment frame a symbol is bound in. 0
-     * is this environment, 1 is the parent, etc. This is used to compute the
-     * first number on a LD. TODO(gkanwar): Determine the final resolved
-     * variable order.
+     * Remove bindings from the frame, renumbering the rest. Only valid once
+     * parsing is done, and only for bindings nothing loads any more.
      */
-    public int findBindingDepth(String name) throws EnvException {
-        if (bindingMap.containsKey(name)) {
-            return 0;
-        } else if (parent != null) {
-            return parent.findBindingDepth(name) + 1;
-        } else {
-            throw new EnvException(
-                    "Cannot find binding depth for symbol " + name);
+    public void removeBindings(Collection<Binding> dead) {
+        bindings.removeAll(dead);
+        for (int i = 0; i < bindings.size(); ++i) {
+            bindings.get(i).setIndex(i);
         }
     }
 
     /**
-     * Finds the variable binding of the symbol in the nearest enclosing
-     * environment and returns it.
+     * Add a binding moved here from another frame once parsing is done,
+     * renumbering the bindings after it. The symbol table is not touched.
      */
-    public Binding getBinding(String name) throws EnvException {
-        if (bindingMap.containsKey(name)) {
-            return bindingMap.get(name);
-        } else if (parent != null) {
-            return parent.getBinding(name);
-        } else {
-            throw new EnvException(
-                    "Cannot find binding index for symbol " + name);
+    public void insertBinding(int index, Binding binding) {
+        bindings.add(index, binding);
+        for (int i = index; i < bindings.size(); ++i) {
+            bindings.get(i).setIndex(i);
+        }
+    }
+
+    /**
+     * Number of frames up from this one to the given ancestor, or -1 if it
+     * isn't one.
+     */
+    public int distanceTo(EnvFrame ancestor) {
+        int depth = 0;
+        for (EnvFrame frame = this; frame != null; frame = frame.parent) {
+            if (frame == ancestor) {
+                return depth;
+            }
+            depth++;
+        }
+        return -1;
+    }
+
+    /**
+     * The frame the given number of frames up from this one.
+     */
+    public EnvFrame ancestor(int depth) {
+        EnvFrame frame = this;
+        for (int i = 0; i < depth; ++i) {
+            frame = frame.parent;
+        }
+        return frame;
+    }
+
+    /**
+     * Take all bindings of this frame out of scope. Called once code
+     * generation for the frame's owner is complete.
+     */
+    public void closeScope() {
+        for (int i = bindings.size() - 1; i >= 0; --i) {
+            symbols.unbind(bindings.get(i).symbol);
         }
     }
 
     /**
      * Compile the environment frame header for a labeled function. Initializes
-     * an environment frame with all 0s for each symbol for now, then calls into
-     * the body. The body should be started by a definition for each symbol.
+     * an environment frame with all 0s for each symbol for now, then tail calls
+     * into the body, which returns straight to the function's caller. The body
+     * should be started by a definition for each symbol.
      * 
      * @param headerLabel Label of the header for which we're definition
      *            symbols.
@@ -139,11 +278,11 @@ public class EnvFrame {
         CodeSequence c = new CodeSequence();
         // Load an initial 0 for each symbol
         for (Binding binding : bindings) {
-            c.add(Line.makeLdc(0, "Symbol " + binding.name +
-                    " init for " + headerLabel));
+            c.add(binding.definition.sourced(Line.makeLdc(0, "Symbol "
+                    + binding.name + " init for " + headerLabel)));
         }
         c.add(Line.makeLdf(bodyLabel, "Load " + bodyLabel));
-        c.add(Line.makeAp(bindings.size(), "Call " + bodyLabel));
+        c.add(Line.makeTap(bindings.size(), "Call " + bodyLabel));
         return c;
     }
 
@@ -156,11 +295,77 @@ public class EnvFrame {
     public CodeSequence buildEnvDefinitions(String headerLabel, String bodyLabel) {
         CodeSequence c = new CodeSequence();
         for (Binding binding : bindings) {
-            c.addAll(binding.definition.code.getLines());
+            if (binding.scratch) {
+                // Already 0 from the header
+                continue;
+            }
+            c.addAll(binding.definition.code);
             // Store the definition into the binding index
-            c.add(Line.makeSt(0, binding.index,
-                    "End define " + binding.name));
+            c.add(binding.definition.sourced(Line.makeSt(0, binding,
+                    "End define " + binding.name)));
         }
         return c;
     }
+
+    /**
+     * Whether all definitions can run before the frame is filled in, so the
+     * frame can be built with DUM and RAP rather than stored into one binding
+     * at a time. A definition must not read any binding of this frame, and
+     * must not call a closure it creates, since that closure could. If
+     * branches are not looked into, so definitions with one are refused.
+     */
+    public boolean canDefineInDummyFrame() {
+        for (Binding binding : bindings) {
+            boolean makesClosure = false;
+            boolean calls = false;
+            for (Line line : binding.definition.code) {
+                Opcode op = line.getOpcode();
+                if (op == null) {
+                    continue;
+                }
+                switch (op) {
+                case LD:
+                    if (line.getArg(0) == 0) {
+                        return false;
+                    }
+                    break;
+                case SEL:
+                case TSEL:
+                    return false;
+                case LDF:
+                    makesClosure = true;
+                    break;
+                case AP:
+                case TAP:
+                case RAP:
+                case TRAP:
+                    calls = true;
+                    break;
+                default:
+                    break;
+                }
+            }
+            if (makesClosure && calls) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compile a header which builds the environment frame directly: allocate
+     * a dummy frame, run each definition in it, then fill it in and tail call
+     * the body with TRAP. Only valid if canDefineInDummyFrame.
+     */
+    public LabeledFunction buildDummyEnvHeader(String headerLabel,
+            String bodyLabel) {
+        LabeledFunction f = new LabeledFunction(headerLabel);
+        f.addLine(Line.makeDum(bindings.size(), "Frame for " + headerLabel));
+        for (Binding binding : bindings) {
+            addCode(f, binding.definition.code);
+        }
+        f.addLine(Line.makeLdf(bodyLabel, "Load " + bodyLabel));
+        f.addLine(Line.makeTrap(bindings.size(), "Call " + bodyLabel));
+        return f;
+    }
 }
@@ -0,0 +1,91 @@
+package laml.compiler.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import laml.compiler.lexer.SymbolInterner;
+import laml.compiler.parser.EnvFrame.Binding;
+import laml.compiler.parser.EnvFrame.EnvException;
+import laml.compiler.parser.EnvFrame.Resolution;
+
+import org.junit.Test;
+
+public class EnvFrameTest {
+    private static Binding bind(EnvFrame env, SymbolInterner symbols,
+            String name) throws EnvException {
+        Binding b = new Binding(symbols.intern(name), name, null);
+        env.addBinding(b.symbol, b);
+        return b;
+    }
+
+    @Test
+    public void testResolveDepthAndIndex() throws EnvException {
+        SymbolInterner symbols = new SymbolInterner();
+        EnvFrame root = new RootEnvFrame(symbols);
+        EnvFrame outer = new EnvFrame(root);
+        bind(outer, symbols, "a");
+        Binding b = bind(outer, symbols, "b");
+        EnvFrame inner = new EnvFrame(outer);
+        bind(inner, symbols, "c");
+
+        Resolution r = inner.resolve(symbols.intern("b"));
+        assertEquals(1, r.depth);
+        assertEquals(1, r.binding.index);
+        assertSame(b, r.binding);
+        r = inner.resolve(symbols.intern("GHOST-CODE"));
+        assertEquals(2, r.depth);
+        assertEquals(1, r.binding.index);
+    }
+
+    @Test
+    public void testShadowingRestoredOnClose() throws EnvException {
+        SymbolInterner symbols = new SymbolInterner();
+        EnvFrame outer = new EnvFrame(new RootEnvFrame(symbols));
+        Binding outerX = bind(outer, symbols, "x");
+        EnvFrame inner = new EnvFrame(outer);
+        Binding innerX = bind(inner, symbols, "x");
+
+        assertSame(innerX, inner.resolve(symbols.intern("x")).binding);
+        assertEquals(0, inner.resolve(symbols.intern("x")).depth);
+        inner.closeScope();
+        assertSame(outerX, outer.resolve(symbols.intern("x")).binding);
+    }
+
+    @Test(expected = EnvException.class)
+    public void testRedefineInSameFrame() throws EnvException {
+        SymbolInterner symbols = new SymbolInterner();
+        EnvFrame env = new EnvFrame(new RootEnvFrame(symbols));
+        bind(env, symbols, "x");
+        bind(env, symbols, "x");
+    }
+
+    @Test(expected = EnvException.class)
+    public void testUnbound() throws EnvException {
+        SymbolInterner symbols = new SymbolInterner();
+        EnvFrame env = new EnvFrame(new RootEnvFrame(symbols));
+        env.resolve(symbols.intern("nope"));
+    }
+
+    @Test
+    public void testRuntimeDepthSkipsEmptyLocals() throws EnvException {
+        SymbolInterner symbols = new SymbolInterner();
+        EnvFrame args = new EnvFrame(new RootEnvFrame(symbols));
+        bind(args, symbols, "x");
+        EnvFrame locals = new EnvFrame(args, true);
+        EnvFrame innerArgs = new EnvFrame(locals);
+        bind(innerArgs, symbols, "y");
+        EnvFrame innerLocals = new EnvFrame(innerArgs, true);
+        bind(innerLocals, symbols, "z");
+
+        assertTrue("locals has no bindings, so is elided",
+                locals.isElided());
+        assertFalse("innerLocals binds z, so is created",
+                innerLocals.isElided());
+        // x is 3 frames up from innerLocals, but locals is never created
+        assertEquals(3, innerLocals.resolve(symbols.intern("x")).depth);
+        assertEquals(2, innerLocals.runtimeDepth(3));
+        assertEquals(1, innerLocals.runtimeDepth(1));
+        assertEquals(0, locals.runtimeDepth(1));
+    }
+}
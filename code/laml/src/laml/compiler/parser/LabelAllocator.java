@@ -0,0 +1,46 @@
+package laml.compiler.parser;
+
+/**
+ * Hands out unique labels for generated blocks. Each kind of block has its own
+ * prefix and monotonic counter, so a new label never needs to be checked
+ * against the labels already in use.
+ */
+public class LabelAllocator {
+    // Reserved for the program entry point
+    public static final String MAIN_LABEL = "main";
+
+    private static final String FUNCTION_PREFIX = "func";
+    private static final String BRANCH_PREFIX = "branch";
+    private static final String BODY_SUFFIX = "_$body$";
+
+    private int nextFunction;
+    private int nextBranch;
+
+    public LabelAllocator() {
+        nextFunction = 0;
+        nextBranch = 0;
+    }
+
+    /**
+     * Label for a lambda's entry point.
+     */
+    public String newFunctionLabel() {
+        return FUNCTION_PREFIX + nextFunction++;
+    }
+
+    /**
+     * Label for one arm of an if.
+     */
+    public String newBranchLabel() {
+        return BRANCH_PREFIX + nextBranch++;
+    }
+
+    /**
+     * Label for the body of a function, which is entered once the function's
+     * environment frame has been set up. Unique as long as the function label
+     * is.
+     */
+    public static String bodyLabel(String functionLabel) {
+        return functionLabel + BODY_SUFFIX;
+    }
+}
@@ -0,0 +1,23 @@
+package laml.compiler.parser;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * State shared by all code generation for a single program.
+ */
+public class ParseContext {
+    /**
+     * Map of generated labels to the blocks they label. Every lambda and if
+     * branch ends up in here, to be emitted after main.
+     */
+    public final Map<String, ParserLabeledBlock> globalFuncMap;
+    public final LabelAllocator labels;
+    public final BuiltInRegistry builtIns;
+
+    public ParseContext(BuiltInRegistry builtIns) {
+        globalFuncMap = new LinkedHashMap<String, ParserLabeledBlock>();
+        labels = new LabelAllocator();
+        this.builtIns = builtIns;
+    }
+}
@@ -0,0 +1,78 @@
+package laml.compiler.parser;
+
+import laml.compiler.lexer.LexerNode;
+
+/**
+ * Pending code generation for a single FUNCTION type node. The parser keeps
+ * these on an explicit work stack rather than recursing, so that deeply nested
+ * programs don't depend on the size of the thread stack.
+ *
+ * The parser repeatedly asks the task on top of the stack for its next child,
+ * generates that child's code, and hands the result back via childDone. Once
+ * nextChild returns null the task is popped and finish produces its code.
+ */
+public abstract class ParseTask {
+    protected final LexerNode node;
+    protected final EnvFrame env;
+    protected final ParseContext context;
+    // Index into node.children of the next child to hand out
+    protected int nextIndex;
+    // Whether this node's value is what the enclosing function returns, so
+    // its code may hand control on rather than come back (tail calls)
+    protected boolean tail;
+
+    protected ParseTask(LexerNode node, EnvFrame env, ParseContext context) {
+        this.node = node;
+        this.env = env;
+        this.context = context;
+        nextIndex = 0;
+        tail = false;
+    }
+
+    /**
+     * Mark this node as being in tail position. Set by the parser before any
+     * children are handed out.
+     */
+    public void setTail(boolean tail) {
+        this.tail = tail;
+    }
+
+    /**
+     * Returns the next child node whose code is needed, or null once all
+     * children have been handed out. By default all children are parsed in
+     * order.
+     */
+    public LexerNode nextChild() {
+        if (nextIndex >= node.children.size()) {
+            return null;
+        }
+        return node.children.get(nextIndex++);
+    }
+
+    /**
+     * Environment the child most recently returned by nextChild should be
+     * parsed in.
+     */
+    public EnvFrame childEnv() {
+        return env;
+    }
+
+    /**
+     * Whether the child most recently returned by nextChild is in tail
+     * position. By default no children are.
+     */
+    public boolean childInTail() {
+        return false;
+    }
+
+    /**
+     * Accept the generated code of the child most recently returned by
+     * nextChild.
+     */
+    public abstract void childDone(ParserDefinition childDefinition);
+
+    /**
+     * Produce the code for this node once all children are done.
+     */
+    public abstract ParserDefinition finish();
+}
@@ -0,0 +1,109 @@
+package laml.compiler.parser;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import laml.compiler.LabeledFunction;
+import laml.compiler.Line;
+import laml.compiler.RelativeProgram;
+
+/**
+ * A program after code generation, but before it is laid out: main plus the
+ * labeled blocks generated for every lambda and if branch. Optimization passes
+ * rewrite the code of the blocks in place before the program is turned into a
+ * RelativeProgram.
+ */
+public class ParsedProgram {
+    // Labeled blocks in output order, starting with main
+    public final Map<String, ParserLabeledBlock> blocks;
+
+    public ParsedProgram(ParserFunction main,
+            Map<String, ParserLabeledBlock> otherBlocks) {
+        blocks = new LinkedHashMap<String, ParserLabeledBlock>();
+        blocks.put(LabelAllocator.MAIN_LABEL, main);
+        blocks.putAll(otherBlocks);
+    }
+
+    public ParserLabeledBlock getBlock(String label) {
+        return blocks.get(label);
+    }
+
+    /**
+     * Code of all blocks in the program.
+     */
+    public List<ParserDefinition> getDefinitions() {
+        List<ParserDefinition> out = new ArrayList<ParserDefinition>();
+        for (ParserLabeledBlock block : blocks.values()) {
+            out.addAll(block.getDefinitions());
+        }
+        return out;
+    }
+
+    /**
+     * Number of instructions in all code of the program, not counting the
+     * RTN and JOIN lines added when it is laid out.
+     */
+    public int getNumInstructions() {
+        int total = 0;
+        for (ParserDefinition definition : getDefinitions()) {
+            total += definition.code.getNumInstructions();
+        }
+        return total;
+    }
+
+    /**
+     * Drop if branches which are no longer jumped to, e.g. because a pass
+     * resolved the if at compile time.
+     */
+    public void removeUnreferencedBranches() {
+        // Removing a branch can leave the branches it selects between
+        // unreferenced, so repeat until nothing changes
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            Set<String> referenced = new HashSet<String>();
+            for (ParserDefinition definition : getDefinitions()) {
+                for (Line line : definition.code) {
+                    if (line.isEmpty() || !line.getOpcode().labelArgs) {
+                        continue;
+                    }
+                    for (int i = 0; i < line.getOpcode().numArgs; ++i) {
+                        referenced.add(line.getLabel(i));
+                    }
+                }
+            }
+            Iterator<Map.Entry<String, ParserLabeledBlock>> it = blocks
+                    .entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, ParserLabeledBlock> entry = it.next();
+                if (entry.getValue() instanceof ParserBranch
+                        && !referenced.contains(entry.getKey())) {
+                    it.remove();
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Lay out the code of all blocks, main first.
+     */
+    public List<LabeledFunction> toLabeledFunctions() {
+        List<LabeledFunction> out = new ArrayList<LabeledFunction>();
+        for (ParserLabeledBlock block : blocks.values()) {
+            out.addAll(block.toLabeledFunctions());
+        }
+        return out;
+    }
+
+    public RelativeProgram toRelativeProgram() {
+        RelativeProgram prog = new RelativeProgram();
+        prog.addLabeledFunctions(toLabeledFunctions());
+        return prog;
+    }
+}
@@ -1,411 +1,205 @@
 package laml.compiler.parser;
 
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 import laml.compiler.Line;
 import laml.compiler.RelativeProgram;
-import laml.compiler.Token;
-import laml.compiler.Token.TokenType;
 import laml.compiler.lexer.LexedProgram;
 import laml.compiler.lexer.LexerNode;
 import laml.compiler.lexer.LexerNode.NodeType;
-import laml.compiler.parser.EnvFrame.Binding;
+import laml.compiler.lexer.SymbolInterner;
 import laml.compiler.parser.EnvFrame.EnvException;
+import laml.compiler.parser.EnvFrame.Resolution;
 
 public class Parser {
-    private static ParserDefinition parseNArgBuiltIn(String assemblyOp,
-            int numArgs, ParserDataType retType, LexerNode functionNode,
-            EnvFrame env, Map<String, ParserLabeledBlock> globalFuncMap) {
-        if (functionNode.children.size() != numArgs) {
-            throw new ParserException(
-                    "Op takes " + numArgs + " arguments", functionNode);
+    /**
+     * Call to a closure, where the op is either a variable or an expression
+     * producing a closure. Arguments are pushed in order, followed by the
+     * closure itself.
+     */
+    private static class CallTask extends ParseTask {
+        private final ParserDefinition c;
+        private boolean opHandedOut;
+
+        public CallTask(LexerNode functionNode, EnvFrame env,
+                ParseContext context) {
+            super(functionNode, env, context);
+            c = new ParserDefinition();
+            opHandedOut = false;
+        }
+
+        @Override
+        public LexerNode nextChild() {
+            LexerNode child = super.nextChild();
+            if (child == null && !opHandedOut) {
+                // Load the function last
+                opHandedOut = true;
+                return node.op;
+            }
+            return child;
+        }
+
+        @Override
+        public void childDone(ParserDefinition childDefinition) {
+            if (opHandedOut && !ParserDataType.matchesClosureType(
+                    childDefinition.returnType,
+                    node.children.size())) {
+                throw new ParserException(
+                        "Function call doesn't match expectation. Called with "
+                                + node.children.size()
+                                + " args", node);
+            }
+            c.code.addAll(childDefinition.code);
+        }
+
+        @Override
+        public ParserDefinition finish() {
+            if (tail) {
+                c.code.add(Line.makeTap(node.children.size(),
+                        "Tail call " + node.op.toString()));
+                c.returns = true;
+            } else {
+                c.code.add(Line.makeAp(node.children.size(),
+                        "Func call " + node.op.toString()));
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Resolve a VARIABLE type node, either as a numeric literal or a variable
+     * lookup.
+     */
+    private static ParserDefinition parseVariable(LexerNode variableNode,
+            EnvFrame env) {
+        ParserDefinition c = new ParserDefinition();
+        SymbolInterner symbols = env.getInterner();
+        if (symbols.isIntegerLiteral(variableNode.symbol)) {
+            c.code.add(Line.makeLdc(
+                    symbols.getIntegerLiteral(variableNode.symbol), ""));
+            c.setReturnType(ParserDataType.integerType());
+            return c;
+        }
+        // Not a numeric literal. Resolve this as a variable. resolve will
+        // complain if it cannot be resolved.
+        try {
+            Resolution r = env.resolve(variableNode.symbol);
+            c.code.add(Line.makeLd(r.depth, r.binding,
+                    "Var " + variableNode.token));
+            c.setReturnType(r.binding.definition.returnType);
+        } catch (EnvException e) {
+            throw new ParserException(e.getMessage(), variableNode);
+        }
+        return c;
+    }
+
+    /**
+     * Pick the task which generates code for a FUNCTION type node: the
+     * registered built-in for the op's symbol if there is one, otherwise a
+     * call.
+     */
+    private static ParseTask taskFor(LexerNode functionNode, EnvFrame env,
+            ParseContext context, boolean tail) {
+        LexerNode op = functionNode.op;
+        ParseTask task = null;
+        if (op.type == NodeType.VARIABLE) {
+            BuiltIn builtIn = context.builtIns.lookup(op.symbol);
+            if (builtIn != null) {
+                task = builtIn.newTask(functionNode, env, context);
+            }
         }
-        ParserDefinition out = new ParserDefinition();
-        for (LexerNode child : functionNode.children) {
-            out.code.addAll(parseNode(child, env, globalFuncMap).code);
+        if (task == null) {
+            task = new CallTask(functionNode, env, context);
         }
-        out.code.add(new Line(Arrays
-                .asList(new Token(TokenType.OP, assemblyOp)), ""));
-        out.setReturnType(retType);
-        return out;
+        task.setTail(tail);
+        return task;
     }
 
     /**
-     * Parse a node to produce compiled code.
-     * 
+     * Parse a node to produce compiled code. Nested nodes are handled with an
+     * explicit stack of ParseTasks rather than recursion, so arbitrarily deep
+     * programs can be compiled with the default thread stack.
+     *
      * @param functionNode lexer-generated node containing the token and
      *            children
      * @param env environment frame with parent pointer, used to look up and add
      *            symbols
-     * @param globalFuncMap map of global function names to parser functions.
-     *            These names are only used for label generation, so they should
-     *            be a unique generated name.
-     * @param headerCode whether or not this code will go in the header. If the
-     *            code is going in the header, then it must not reference
-     *            anything in the innermost env. Instead, it should copy those
-     *            definitions in directly.
+     * @param context shared code generation state, holding the map of
+     *            generated labels to blocks and the label allocator
+     * @param tail whether the node is in tail position, i.e. its value is
+     *            returned from the enclosing function
      */
     public static ParserDefinition parseNode(LexerNode functionNode,
-            EnvFrame env, Map<String, ParserLabeledBlock> globalFuncMap) {
-        ParserDefinition c = new ParserDefinition();
+            EnvFrame env, ParseContext context, boolean tail) {
         if (functionNode.type == NodeType.VARIABLE) {
-            try {
-                // Try treating this as a numeric literal
-                int literal = Integer.parseInt(functionNode.token);
-                c.code.add(Line.makeLdc(literal, ""));
-                c.setReturnType(ParserDataType.integerType());
-            } catch (NumberFormatException e) {
-                // Not a numeric literal. Resolve this as a variable.
-                // findBindingDepth / findBindingIndex will complain if cannot
-                // be resolved.
-                String symbol = functionNode.token;
-                try {
-                    int depth = env.findBindingDepth(symbol);
-                    Binding b = env.getBinding(symbol);
-                    c.code.add(Line.makeLd(depth, b.index,
-                            "Var " + symbol));
-                    c.setReturnType(b.definition.returnType);
-                } catch (EnvException e2) {
-                    throw new ParserException(e2.getMessage(), functionNode);
-                }
-            }
-        } else { // FUNCTION
-            LexerNode op = functionNode.op;
-            if (op.type == NodeType.VARIABLE) {
-                // TODO(gkanwar): Built-ins are a hack right now.
-                if (op.token.equals("+")) {
-                    c.code.addAll(parseNArgBuiltIn(
-                            "ADD", 2, ParserDataType.integerType(),
-                            functionNode, env, globalFuncMap).code);
-                }
-                else if (op.token.equals("-")) {
-                    c.code.addAll(parseNArgBuiltIn(
-                            "SUB", 2, ParserDataType.integerType(),
-                            functionNode, env, globalFuncMap).code);
-                }
-                else if (op.token.equals("*")) {
-                    c.code.addAll(parseNArgBuiltIn(
-                            "MUL", 2, ParserDataType.integerType(),
-                            functionNode, env, globalFuncMap).code);
-                }
-                else if (op.token.equals("/")) {
-                    c.code.addAll(parseNArgBuiltIn(
-                            "DIV", 2, ParserDataType.integerType(),
-                            functionNode, env, globalFuncMap).code);
-                }
-                else if (op.token.equals("=")) {
-                    c.code.addAll(parseNArgBuiltIn(
-                            "CEQ", 2, ParserDataType.integerType(),
-                            functionNode, env, globalFuncMap).code);
-                }
-                else if (op.token.equals(">")) {
-                    c.code.addAll(parseNArgBuiltIn(
-                            "CGT", 2, ParserDataType.integerType(),
-                            functionNode, env, globalFuncMap).code);
-                }
-                else if (op.token.equals(">=")) {
-                    c.code.addAll(parseNArgBuiltIn(
-                            "CGTE", 2, ParserDataType.integerType(),
-                            functionNode, env, globalFuncMap).code);
-                }
-                else if (op.token.equals("cons")) {
-                    c.code.addAll(parseNArgBuiltIn(
-                            "CONS", 2, ParserDataType.integerType(),
-                            functionNode, env, globalFuncMap).code);
-                }
-                else if (op.token.equals("atom")) {
-                    c.code.addAll(parseNArgBuiltIn(
-                            "ATOM", 1, ParserDataType.integerType(),
-                            functionNode, env, globalFuncMap).code);
-                }
-                else if (op.token.equals("car")) {
-                    c.code.addAll(parseNArgBuiltIn(
-                            "CAR", 1, ParserDataType.integerType(),
-                            functionNode, env, globalFuncMap).code);
-                }
-                else if (op.token.equals("cdr")) {
-                    c.code.addAll(parseNArgBuiltIn(
-                            "CDR", 1, ParserDataType.integerType(),
-                            functionNode, env, globalFuncMap).code);
-                }
-                else if (op.token.equals("dbug")) {
-                    c.code.addAll(parseNArgBuiltIn(
-                            "DBUG", 1, ParserDataType.integerType(),
-                            functionNode, env, globalFuncMap).code);
-                }
-                else if (op.token.equals("brk")) {
-                    c.code.addAll(parseNArgBuiltIn(
-                            "BRK", 0, ParserDataType.integerType(),
-                            functionNode, env, globalFuncMap).code);
-                }
-                else if (op.token.equals("begin")) {
-                    for (LexerNode child : functionNode.children) {
-                        ParserDefinition childCode = parseNode(child, env,
-                                globalFuncMap);
-                        c.code.addAll(childCode.code);
-                        // Let the return type be that of the last child
-                        c.setReturnType(childCode.returnType);
-                    }
-                }
-                else if (op.token.equals("if")) {
-                    if (functionNode.children.size() != 3) {
-                        throw new ParserException(
-                                "if takes three arguments: "
-                                        + "the prediction, true branch, and false branch. "
-                                        +
-                                        "Got " + functionNode.children.size()
-                                        + " arguments.", functionNode);
-                    }
-                    ParserDefinition predicate = parseNode(
-                            functionNode.children.get(0), env, globalFuncMap);
-                    if (!ParserDataType
-                            .matchesIntegerType(predicate.returnType)) {
-                        throw new ParserException(
-                                "if predicate must be an integer type return",
-                                functionNode);
-                    }
-                    c.code.addAll(predicate.code);
-                    String trueBranchLabel = getUniqueName(globalFuncMap);
-                    // HACK: Claim this label so an inner branch can't conflict
-                    globalFuncMap.put(trueBranchLabel, null);
-                    ParserDefinition trueBranchDefinition = parseNode(
-                            functionNode.children.get(1), env, globalFuncMap);
-                    ParserBranch trueBranch = new ParserBranch(trueBranchLabel,
-                            trueBranchDefinition);
-                    // Now replace the labeled block ref with the actual block
-                    globalFuncMap.put(trueBranchLabel, trueBranch);
-                    String falseBranchLabel = getUniqueName(globalFuncMap);
-                    // HACK: Claim this label so an inner branch can't conflict
-                    globalFuncMap.put(falseBranchLabel, null);
-                    ParserDefinition falseBranchDefinition = parseNode(
-                            functionNode.children.get(2), env, globalFuncMap);
-                    ParserBranch falseBranch = new ParserBranch(
-                            falseBranchLabel, falseBranchDefinition);
-                    // Now replace the labeled block ref with the actual block
-                    globalFuncMap.put(falseBranchLabel, falseBranch);
-                    c.code.add(Line.makeSel(
-                            trueBranchLabel, falseBranchLabel,
-                            "Sel on predicate "
-                                    + functionNode.children.get(0).toString()));
-                    if (!ParserDataType.matches(
-                            trueBranchDefinition.returnType,
-                            falseBranchDefinition.returnType)) {
-                        throw new ParserException(
-                                "if statement branches must return the same type",
-                                functionNode);
-                    }
-                    c.setReturnType(trueBranchDefinition.returnType);
-                }
-                else if (op.token.equals("define")) {
-                    if (functionNode.children.size() != 2) {
-                        throw new ParserException(
-                                "define takes two arguments: the binding and definition",
-                                functionNode);
-                    }
-                    LexerNode bindingNode = functionNode.children.get(0);
-                    if (bindingNode.type != NodeType.VARIABLE) {
-                        // We can't do implicit lambda definition like
-                        // (define (x) (+ x 1)) yet.
-                        // Need to do:
-                        // (define x (lambda (x) (+ x 1))).
-                        throw new ParserException(
-                                "define doesn't support argument-style binding shortcuts yet",
-                                functionNode);
-                    }
-                    // TODO(gkanwar): Add typing, this just assumes everything
-                    // is an int for now, and never bothers to check
-                    Binding envBinding = new Binding(bindingNode.token, null);
-                    try {
-                        env.addBinding(bindingNode.token, envBinding);
-                    } catch (EnvException e) {
-                        throw new ParserException(e.getMessage(), functionNode);
-                    }
-                    // Use header parse mode, so variable resolutions in
-                    // innermost env are replaced by data copy.
-                    ParserDefinition definition = parseNode(
-                            functionNode.children.get(1), env,
-                            globalFuncMap);
-                    envBinding.setDefinition(definition);
-                    // NOTE(gkanwar): No code added directly here. All
-                    // definitions will be lifted to the beginning of the
-                    // function call, where a new environment scope is created
-                    // and defined.
-
-                }
-                else if (op.token.equals("lambda")) {
-                    if (functionNode.children.size() != 2) {
-                        throw new ParserException(
-                                "lambda takes two arguments: the binding and definition",
-                                functionNode);
-                    }
-                    // Environment to hold argument bindings
-                    EnvFrame argEnv = new EnvFrame(env);
-                    // Hack to check for list of bindings; they are interpreted
-                    // by the lexer as a function call, because really they
-                    // would be, but we're just faking some post-processing here
-                    // instead.
-                    LexerNode bindingNode = functionNode.children.get(0);
-                    if (bindingNode.type != NodeType.FUNCTION) {
-                        throw new ParserException(
-                                "lambda first arg must be a list of bindings",
-                                functionNode);
-                    }
-                    // First binding pulled from op, the rest from children
-                    // No bindings have code definitions -- as arguments it's
-                    // the caller's responsibility to define these.
-                    if (bindingNode.op.type != NodeType.VARIABLE) {
-                        throw new ParserException(
-                                "lambda bindings must all be var type",
-                                functionNode);
-                    }
-                    // HACK: Allow declaring a thunk using (lambda (THUNK) def)
-                    int numArgs = 0;
-                    if (!bindingNode.op.token.equals("THUNK")) {
-                        try {
-                            argEnv.addBinding(bindingNode.op.token,
-                                    new Binding(
-                                            bindingNode.op.token, null));
-                        } catch (EnvException e) {
-                            throw new ParserException(e.getMessage(),
-                                    functionNode);
-                        }
-                        numArgs++;
-                    }
-                    for (LexerNode bindingChild : bindingNode.children) {
-                        if (bindingChild.type != NodeType.VARIABLE) {
-                            throw new ParserException(
-                                    "lambda bindings must all be var type",
-                                    functionNode);
-                        }
-                        try {
-                            argEnv.addBinding(bindingChild.token, new Binding(
-                                    bindingChild.token, null));
-                        } catch (EnvException e) {
-                            throw new ParserException(e.getMessage(),
-                                    functionNode);
-                        }
-                        numArgs++;
-                    }
-                    // Wrap argEnv in another env which holds local variable
-                    // definitions.
-                    EnvFrame funcEnv = new EnvFrame(argEnv);
-                    ParserDefinition definition = parseNode(
-                            functionNode.children.get(1), funcEnv,
-                            globalFuncMap);
-                    String uniqueName = getUniqueName(globalFuncMap);
-                    globalFuncMap.put(uniqueName, new ParserFunction(
-                            uniqueName, funcEnv, definition));
-                    c.code.add(Line.makeLdf(uniqueName, ""));
-                    c.setReturnType(ParserDataType.closureType(numArgs));
-                }
-                else if (op.token.equals("list")) {
-                    // First push all children
-                    for (LexerNode child : functionNode.children) {
-                        c.code.addAll(parseNode(child, env, globalFuncMap).code);
-                    }
-                    // Then push NIL
-                    c.code.add(Line.makeNil(""));
-                    // Then execute CONS once for each child
-                    for (int i = 0; i < functionNode.children.size(); ++i) {
-                        c.code.add(Line.makeCons(""));
-                    }
-                    c.setReturnType(ParserDataType.integerType());
-                }
-                else if (op.token.equals("tuple")) {
-                    // First push all children
-                    for (LexerNode child : functionNode.children) {
-                        c.code.addAll(parseNode(child, env, globalFuncMap).code);
-                    }
-                    // Then execute CONS once for each child - 1
-                    for (int i = 0; i < functionNode.children.size() - 1; ++i) {
-                        c.code.add(Line.makeCons(""));
-                    }
-                    c.setReturnType(ParserDataType.integerType());
-                }
-                else {
-                    // TODO(gkanwar): This is identical to the function op case,
-                    // perhaps abstract this code...
-                    // User-defined variable op
-                    for (LexerNode child : functionNode.children) {
-                        ParserDefinition definition = parseNode(child, env,
-                                globalFuncMap);
-                        c.code.addAll(definition.code);
-                    }
-                    // Load the function and call it
-                    ParserDefinition funcDefinition = parseNode(op, env,
-                            globalFuncMap);
-                    if (!ParserDataType.matchesClosureType(
-                            funcDefinition.returnType,
-                            functionNode.children.size())) {
-                        throw new ParserException(
-                                "Function call doesn't match expectation. Called with "
-                                        + functionNode.children.size()
-                                        + " args", functionNode);
-                    }
-                    c.code.addAll(funcDefinition.code);
-                    c.code.add(Line.makeAp(functionNode.children.size(),
-                            "Func call " + op.toString()));
-                }
+            ParserDefinition definition = parseVariable(functionNode, env);
+            definition.setSourceLine(functionNode.getLineNum());
+            return definition;
+        }
+        Deque<ParseTask> stack = new ArrayDeque<ParseTask>();
+        stack.push(taskFor(functionNode, env, context, tail));
+        while (true) {
+            ParseTask task = stack.peek();
+            LexerNode child = task.nextChild();
+            if (child != null) {
+                if (child.type == NodeType.VARIABLE) {
+                    ParserDefinition definition = parseVariable(child,
+                            task.childEnv());
+                    definition.setSourceLine(child.getLineNum());
+                    task.childDone(definition);
+                } else {
+                    stack.push(taskFor(child, task.childEnv(), context,
+                            task.childInTail()));
+                }
+                continue;
             }
-            else {
-                for (LexerNode child : functionNode.children) {
-                    ParserDefinition definition = parseNode(child, env,
-                            globalFuncMap);
-                    c.code.addAll(definition.code);
-                }
-                // Load the function and call it
-                ParserDefinition funcDefinition = parseNode(op, env,
-                        globalFuncMap);
-                if (!ParserDataType.matchesClosureType(
-                        funcDefinition.returnType,
-                        functionNode.children.size())) {
-                    throw new ParserException(
-                            "Function call doesn't match expectation. Called with "
-                                    + functionNode.children.size()
-                                    + " args", functionNode);
-                }
-                c.code.add(Line.makeAp(functionNode.children.size(),
-                        "Func call " + op.toString()));
+            stack.pop();
+            ParserDefinition definition = task.finish();
+            definition.setSourceLine(task.node.getLineNum());
+            if (stack.isEmpty()) {
+                return definition;
             }
+            stack.peek().childDone(definition);
         }
-        return c;
     }
 
     /**
-     * Generate a function name which doesn't collide with any functions in
-     * globalFuncMap.
-     * 
-     * @param globalFuncMap Current global function map
+     * Parse a lexed program using the default built-ins.
      */
-    private static String getUniqueName(
-            Map<String, ParserLabeledBlock> globalFuncMap) {
-        int i = 0;
-        while (true) {
-            String tryName = "func" + i;
-            if (!globalFuncMap.containsKey(tryName)) {
-                return tryName;
-            }
-            ++i;
-        }
+    public static ParsedProgram parse(LexedProgram lexProg) {
+        BuiltInRegistry builtIns = new BuiltInRegistry(lexProg.symbols);
+        BuiltIns.registerDefaults(builtIns);
+        return parse(lexProg, builtIns);
     }
 
     /**
-     * Parse a lexed program.
+     * Parse a lexed program, with the given built-in forms. The registry must
+     * use the program's symbol interner.
      */
-    public static RelativeProgram parseProgram(LexedProgram lexProg) {
-        RelativeProgram prog = new RelativeProgram();
-        EnvFrame rootEnv = new RootEnvFrame();
-        EnvFrame mainEnv = new EnvFrame(rootEnv);
-        Map<String, ParserLabeledBlock> globalFuncMap = new HashMap<String, ParserLabeledBlock>();
+    public static ParsedProgram parse(LexedProgram lexProg,
+            BuiltInRegistry builtIns) {
+        EnvFrame rootEnv = new RootEnvFrame(lexProg.symbols);
+        EnvFrame mainEnv = new EnvFrame(rootEnv, true);
+        ParseContext context = new ParseContext(builtIns);
         ParserDefinition mainCode = parseNode(lexProg.rootNode, mainEnv,
-                globalFuncMap);
-        ParserFunction mainFunc = new ParserFunction("main", mainEnv, mainCode);
-        prog.addLabeledFunctions(mainFunc.toLabeledFunctions());
-        for (ParserLabeledBlock func : globalFuncMap.values()) {
-            prog.addLabeledFunctions(func.toLabeledFunctions());
-        }
-        return prog;
+                context, true);
+        mainEnv.closeScope();
+        ParserFunction mainFunc = new ParserFunction(
+                LabelAllocator.MAIN_LABEL, mainEnv, mainCode);
+        return new ParsedProgram(mainFunc, context.globalFuncMap);
+    }
+
+    /**
+     * Parse a lexed program using the default built-ins, straight to a
+     * RelativeProgram without any optimization.
+     */
+    public static RelativeProgram parseProgram(LexedProgram lexProg) {
+        return parse(lexProg).toRelativeProgram();
+    }
+
+    public static RelativeProgram parseProgram(LexedProgram lexProg,
+            BuiltInRegistry builtIns) {
+        return parse(lexProg, builtIns).toRelativeProgram();
     }
 }
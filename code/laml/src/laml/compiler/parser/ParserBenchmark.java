@@ -0,0 +1,123 @@
+package laml.compiler.parser;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import laml.compiler.RelativeProgram;
+import laml.compiler.lexer.CharArrayLexer;
+import laml.compiler.lexer.LexedProgram;
+
+/**
+ * Code generation benchmark on generated programs with many if forms (and so
+ * many labeled blocks). Prints parse and translate times for increasing
+ * program sizes, which should grow linearly.
+ *
+ * Given .laml files instead, compiles their concatenation (e.g. the files
+ * listed in a player's BUILD) and prints the time and bytes allocated per
+ * compile.
+ *
+ * java laml.compiler.parser.ParserBenchmark [numIfs | file.laml ...]
+ */
+public class ParserBenchmark {
+    private static final int ROUNDS = 5;
+
+    /**
+     * Generate a program with the given number of if forms, split across
+     * lambdas of ten chained ifs each.
+     */
+    static String generateIfProgram(int numIfs) {
+        StringBuilder sb = new StringBuilder();
+        int ifsPerLambda = 10;
+        for (int i = 0; i * ifsPerLambda < numIfs; ++i) {
+            sb.append("(define f").append(i).append(" (lambda (x)\n");
+            int ifs = Math.min(ifsPerLambda, numIfs - i * ifsPerLambda);
+            for (int j = 0; j < ifs; ++j) {
+                sb.append("  (if (= x ").append(j).append(") ").append(j)
+                        .append("\n");
+            }
+            sb.append("  x");
+            for (int j = 0; j < ifs; ++j) {
+                sb.append(")");
+            }
+            sb.append("))\n");
+        }
+        sb.append("(f0 3)\n");
+        return sb.toString();
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, or -1 if the JVM can't
+     * tell us.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory
+                .getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static void benchmarkFiles(String[] files) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String file : files) {
+            sb.append(new String(Files.readAllBytes(Paths.get(file)),
+                    Charset.forName("ISO-8859-1")));
+            sb.append("\n");
+        }
+        String prog = sb.toString();
+        int rounds = 200;
+        // Warm up
+        for (int i = 0; i < rounds; ++i) {
+            Parser.parseProgram(CharArrayLexer.lexProgramString(prog))
+                    .translate().toString();
+        }
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i) {
+            Parser.parseProgram(CharArrayLexer.lexProgramString(prog))
+                    .translate().toString();
+        }
+        long nanos = System.nanoTime() - start;
+        long bytes = allocatedBytes() - startBytes;
+        System.out.println(String.format(
+                "%d chars: compile %8.3f ms, %10d bytes allocated",
+                prog.length(), nanos / 1e6 / rounds, bytes / rounds));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].endsWith(".laml")) {
+            benchmarkFiles(args);
+            return;
+        }
+        int maxIfs = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        // Warm up
+        for (int i = 0; i < ROUNDS; ++i) {
+            Parser.parseProgram(
+                    CharArrayLexer.lexProgramString(generateIfProgram(5000)))
+                    .translate();
+        }
+        for (int numIfs = maxIfs / 4; numIfs <= maxIfs; numIfs *= 2) {
+            String prog = generateIfProgram(numIfs);
+            long parseNanos = 0;
+            long translateNanos = 0;
+            for (int i = 0; i < ROUNDS; ++i) {
+                LexedProgram lexed = CharArrayLexer.lexProgramString(prog);
+                long start = System.nanoTime();
+                RelativeProgram relative = Parser.parseProgram(lexed);
+                long parsed = System.nanoTime();
+                relative.translate();
+                long translated = System.nanoTime();
+                parseNanos += parsed - start;
+                translateNanos += translated - parsed;
+            }
+            System.out.println(String.format(
+                    "%7d ifs: parse %8.2f ms, translate %8.2f ms", numIfs,
+                    parseNanos / 1e6 / ROUNDS, translateNanos / 1e6 / ROUNDS));
+        }
+    }
+}
@@ -8,23 +8,53 @@ import laml.compiler.Line;
 
 /**
  * Internal representation of a labeled block which will be branched to using
- * SEL. Appends JOIN after body to return to calling code.
+ * SEL. Appends JOIN after body to return to calling code. A branch of an if in
+ * tail position is reached with TSEL instead, and returns from the function
+ * with RTN.
  */
 public class ParserBranch implements ParserLabeledBlock {
 
     private String name;
+    // Frame the if is in, which the branch runs in too
+    private EnvFrame env;
     private ParserDefinition body;
+    private boolean tail;
 
-    public ParserBranch(String name, ParserDefinition body) {
+    public ParserBranch(String name, EnvFrame env, ParserDefinition body,
+            boolean tail) {
         this.name = name;
+        this.env = env;
         this.body = body;
+        this.tail = tail;
+    }
+
+    @Override
+    public EnvFrame getEnv() {
+        return env;
+    }
+
+    public ParserDefinition getBody() {
+        return body;
+    }
+
+    public boolean isTail() {
+        return tail;
+    }
+
+    @Override
+    public List<ParserDefinition> getDefinitions() {
+        return Arrays.asList(body);
     }
 
     @Override
     public List<LabeledFunction> toLabeledFunctions() {
         LabeledFunction f = new LabeledFunction(name);
-        f.addCodeSequence(body.code);
-        f.addLine(Line.makeJoin(name + " join"));
+        env.addCode(f, body.code);
+        if (!tail) {
+            f.addLine(body.sourced(Line.makeJoin(name + " join")));
+        } else if (!body.returns) {
+            f.addLine(body.sourced(Line.makeRtn(name + " return")));
+        }
         return Arrays.asList(f);
     }
 
@@ -1,17 +1,55 @@
 package laml.compiler.parser;
 
+import laml.compiler.Line;
+
 public class ParserDefinition {
     /**
      * The actual code.
      */
     public CodeSequence code;
     public ParserDataType returnType;
+    /**
+     * Whether the code leaves the enclosing function itself, by ending in a
+     * tail call or TSEL. If so, no RTN or JOIN should follow it.
+     */
+    public boolean returns;
+    // Source line of the node the code was generated for, 0 if not known
+    private int sourceLine;
 
     public ParserDefinition() {
         code = new CodeSequence();
+        returns = false;
     }
 
     public void setReturnType(ParserDataType returnType) {
         this.returnType = returnType;
     }
+
+    /**
+     * Record the source line of the node this code was generated for, on
+     * the lines which don't have one yet.
+     */
+    public void setSourceLine(int sourceLine) {
+        if (this.sourceLine == 0) {
+            this.sourceLine = sourceLine;
+        }
+        code.setSourceLine(sourceLine);
+    }
+
+    /**
+     * Source line of the node this code was generated for, which lines added
+     * around the code when it is laid out are attributed to.
+     */
+    public int getSourceLine() {
+        return sourceLine;
+    }
+
+    /**
+     * Attribute a line added around this code when it is laid out to the
+     * code's source line.
+     */
+    public Line sourced(Line line) {
+        line.setSourceLine(sourceLine);
+        return line;
+    }
 }
@@ -21,23 +21,69 @@ public class ParserFunction implements ParserLabeledBlock {
         this.body = body;
     }
 
+    @Override
+    public EnvFrame getEnv() {
+        return env;
+    }
+
+    public ParserDefinition getBody() {
+        return body;
+    }
+
+    /**
+     * The definitions of the function's locals, in the order they run,
+     * followed by the body.
+     */
+    @Override
+    public List<ParserDefinition> getDefinitions() {
+        List<ParserDefinition> out = new ArrayList<ParserDefinition>();
+        for (EnvFrame.Binding binding : env.bindings) {
+            out.add(binding.definition);
+        }
+        out.add(body);
+        return out;
+    }
+
+    /**
+     * Lay out the function. A function without local definitions runs its
+     * body directly in the frame it was called with. Otherwise a header
+     * builds the frame of locals and tail calls into the body: with DUM and
+     * TRAP if the definitions allow it, else by pushing a 0 for each local
+     * and storing the definitions at the start of the body.
+     */
     @Override
     public List<LabeledFunction> toLabeledFunctions() {
         List<LabeledFunction> out = new ArrayList<LabeledFunction>();
 
-        String bodyLabel = name + "_$body$";
-        LabeledFunction entryFunc = new LabeledFunction(name);
-        LabeledFunction bodyFunc = new LabeledFunction(bodyLabel);
+        if (env.isElided()) {
+            LabeledFunction func = new LabeledFunction(name);
+            env.addCode(func, body.code);
+            if (!body.returns) {
+                func.addLine(body.sourced(Line.makeRtn(name + " return")));
+            }
+            out.add(func);
+            return out;
+        }
 
-        // Header
-        entryFunc.addCodeSequence(env.buildEnvHeader(name, bodyLabel));
-        entryFunc.addLine(Line.makeRtn(name + " return"));
-        out.add(entryFunc);
+        String bodyLabel = LabelAllocator.bodyLabel(name);
+        LabeledFunction bodyFunc = new LabeledFunction(bodyLabel);
+        if (env.canDefineInDummyFrame()) {
+            out.add(env.buildDummyEnvHeader(name, bodyLabel));
+        } else {
+            // Header, which tail calls into the body
+            LabeledFunction entryFunc = new LabeledFunction(name);
+            entryFunc.addCodeSequence(env.buildEnvHeader(name, bodyLabel));
+            out.add(entryFunc);
+            env.addCode(bodyFunc,
+                    env.buildEnvDefinitions(name, bodyLabel));
+        }
 
         // Body
-        bodyFunc.addCodeSequence(env.buildEnvDefinitions(name, bodyLabel));
-        bodyFunc.addCodeSequence(body.code);
-        bodyFunc.addLine(Line.makeRtn(bodyLabel + " return"));
+        env.addCode(bodyFunc, body.code);
+        if (!body.returns) {
+            bodyFunc.addLine(body.sourced(Line.makeRtn(bodyLabel
+                    + " return")));
+        }
         out.add(bodyFunc);
 
         return out;
@@ -0,0 +1,41 @@
+package laml.compiler.parser;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import laml.compiler.lexer.CharArrayLexer;
+
+import org.junit.Test;
+
+public class ParserFunctionTest {
+    private static String compile(String prog) {
+        return Parser.parseProgram(CharArrayLexer.lexProgramString(prog))
+                .translate().toString();
+    }
+
+    @Test
+    public void testNoLocalsRunsInCallFrame() {
+        String out = compile("((lambda (x y) (+ x y)) 1 2)");
+        // Neither main nor the lambda has locals, so no frames are built
+        assertFalse(out, out.contains("\nLDF 0"));
+        assertFalse(out, out.contains("DUM"));
+        assertTrue(out, out.contains("\nLD 0 0 ; Var x\nLD 0 1 ; Var y\nADD"));
+    }
+
+    @Test
+    public void testDummyFrameForLambdaDefinitions() {
+        String out = compile("(define g (lambda (n) n)) "
+                + "(define f (lambda (n) (g n))) (f 3)");
+        assertTrue(out, out.startsWith("DUM 2 "));
+        assertTrue(out, out.contains("\nTRAP 2 "));
+        assertFalse(out, out.contains("\nST "));
+    }
+
+    @Test
+    public void testSerialDefinitionsStoredInOrder() {
+        // m reads n while being defined, so n must be stored first
+        String out = compile("(define n 5) (define m (+ n 1)) m");
+        assertFalse(out, out.contains("DUM"));
+        assertTrue(out, out.contains("\nST 0 0 "));
+        assertTrue(out, out.contains("\nST 0 1 "));
+    }
+}
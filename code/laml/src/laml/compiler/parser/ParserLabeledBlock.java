@@ -11,4 +11,15 @@ import laml.compiler.LabeledFunction;
  */
 public interface ParserLabeledBlock {
     public List<LabeledFunction> toLabeledFunctions();
+
+    /**
+     * All code of the block, for optimization passes to rewrite.
+     */
+    public List<ParserDefinition> getDefinitions();
+
+    /**
+     * Frame the code of the block runs in, which its LDs and STs are relative
+     * to.
+     */
+    public EnvFrame getEnv();
 }
@@ -0,0 +1,204 @@
+package laml.compiler.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import laml.compiler.AbsoluteProgram;
+import laml.compiler.CostAnalysis;
+import laml.compiler.RelativeProgram;
+import laml.compiler.lexer.CharArrayLexer;
+import laml.compiler.lexer.LexedProgram;
+import laml.compiler.lexer.LexerNode;
+import laml.compiler.opt.PassManager;
+
+import org.junit.Test;
+
+/**
+ * Deeply nested programs must compile without relying on a large thread stack.
+ * Each case runs on a thread with a 512k stack, so recursion on the nesting
+ * depth fails here whatever stack the tests themselves were given.
+ */
+public class ParserStressTest {
+    private static final int DEPTH = 100000;
+    private static final long STACK_SIZE = 512 * 1024;
+
+    /**
+     * Run the case on a thread with a small stack, re-throwing its failure.
+     */
+    private static void onSmallStack(final Runnable r) throws Throwable {
+        final Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    r.run();
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        }, "stress", STACK_SIZE);
+        thread.start();
+        thread.join();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    /**
+     * Wrap body in depth copies of "(op " ... ")".
+     */
+    private static String nest(String op, String body, int depth) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < depth; ++i) {
+            sb.append("(").append(op).append(" ");
+        }
+        sb.append(body);
+        for (int i = 0; i < depth; ++i) {
+            sb.append(")");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Check the code has the text, showing its start if not, since all of
+     * it would bury the failure.
+     */
+    private static void assertContains(String code, String text) {
+        assertTrue("no " + text + " in code starting:\n"
+                + code.substring(0, Math.min(500, code.length())),
+                code.contains(text));
+    }
+
+    @Test
+    public void testLexDeepNesting() throws Throwable {
+        onSmallStack(new Runnable() {
+            @Override
+            public void run() {
+                LexedProgram prog = CharArrayLexer.lexProgramString(nest(
+                        "car", "x", DEPTH));
+                LexerNode node = prog.rootNode.children.get(0);
+                int depth = 0;
+                while (node.type == LexerNode.NodeType.FUNCTION) {
+                    assertEquals("car", node.op.token);
+                    node = node.children.get(0);
+                    depth++;
+                }
+                assertEquals(DEPTH, depth);
+                assertEquals("x", node.token);
+            }
+        });
+    }
+
+    @Test
+    public void testToStringDeepNesting() throws Throwable {
+        onSmallStack(new Runnable() {
+            @Override
+            public void run() {
+                String prog = nest("cdr", "x", DEPTH);
+                LexerNode node = CharArrayLexer.lexProgramString(prog)
+                        .rootNode.children.get(0);
+                // toString puts a space before each closing paren
+                assertEquals(prog.replace(")", " )"), node.toString());
+            }
+        });
+    }
+
+    @Test
+    public void testCompileDeepBegin() throws Throwable {
+        onSmallStack(new Runnable() {
+            @Override
+            public void run() {
+                LexedProgram prog = CharArrayLexer.lexProgramString(nest(
+                        "begin", "7", DEPTH));
+                AbsoluteProgram out = Parser.parseProgram(prog).translate();
+                assertContains(out.toString(), "LDC 7");
+            }
+        });
+    }
+
+    @Test
+    public void testCompileDeepIf() throws Throwable {
+        onSmallStack(new Runnable() {
+            @Override
+            public void run() {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < DEPTH; ++i) {
+                    sb.append("(if 1 ");
+                }
+                sb.append("7");
+                for (int i = 0; i < DEPTH; ++i) {
+                    sb.append(" 0)");
+                }
+                LexedProgram prog = CharArrayLexer.lexProgramString(sb
+                        .toString());
+                AbsoluteProgram out = Parser.parseProgram(prog).translate();
+                assertContains(out.toString(), "LDC 7");
+            }
+        });
+    }
+
+    @Test
+    public void testCompileDeepArithmetic() throws Throwable {
+        onSmallStack(new Runnable() {
+            @Override
+            public void run() {
+                LexedProgram prog = CharArrayLexer.lexProgramString(nest(
+                        "+ 1", "0", DEPTH));
+                String out = Parser.parseProgram(prog).translate().toString();
+                int adds = 0;
+                for (String line : out.split("\n")) {
+                    if (line.trim().startsWith("ADD")) {
+                        adds++;
+                    }
+                }
+                assertEquals(DEPTH, adds);
+            }
+        });
+    }
+
+    @Test
+    public void testOptimizeDeepArithmetic() throws Throwable {
+        onSmallStack(new Runnable() {
+            @Override
+            public void run() {
+                LexedProgram prog = CharArrayLexer.lexProgramString(
+                        "(define f (lambda (x) " + nest("+ 1", "x", DEPTH)
+                                + ")) (f 0)");
+                RelativeProgram out = new RelativeProgram();
+                out.addLabeledFunctions(PassManager.forLevel(
+                        PassManager.MAX_LEVEL).optimize(Parser.parse(prog)));
+                int adds = 0;
+                String code = out.translate().toString();
+                for (String line : code.split("\n")) {
+                    if (line.trim().startsWith("ADD")) {
+                        adds++;
+                    }
+                }
+                assertEquals(DEPTH, adds);
+            }
+        });
+    }
+
+    @Test
+    public void testCostsOfDeepIf() throws Throwable {
+        onSmallStack(new Runnable() {
+            @Override
+            public void run() {
+                StringBuilder sb = new StringBuilder("(define f (lambda (x) ");
+                for (int i = 0; i < DEPTH; ++i) {
+                    sb.append("(if x ");
+                }
+                sb.append("7");
+                for (int i = 0; i < DEPTH; ++i) {
+                    sb.append(" 0)");
+                }
+                sb.append(")) (f 1)");
+                CostAnalysis analysis = new CostAnalysis(Parser.parse(
+                        CharArrayLexer.lexProgramString(sb.toString()))
+                        .toLabeledFunctions());
+                // LD and TSEL for each if, then LDC and RTN
+                assertEquals(2 * DEPTH + 2, analysis.getFunction("f").cycles
+                        .evaluate(0));
+            }
+        });
+    }
+}
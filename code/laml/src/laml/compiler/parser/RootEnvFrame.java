@@ -1,27 +1,30 @@
 package laml.compiler.parser;
 
+import laml.compiler.lexer.SymbolInterner;
+
 /**
  * Adds the program inputs to the global namespace. All other environment frames
  * should derive from this.
  */
 public class RootEnvFrame extends EnvFrame {
-    public RootEnvFrame() {
-        super();
-        Binding worldMapBinding = new Binding("WORLD-STATE", ParserDataType
-                .integerType());
-        Binding ghostCodeBinding = new Binding("GHOST-CODE", ParserDataType
-                .integerType());
-        worldMapBinding.setIndex(0);
-        ghostCodeBinding.setIndex(1);
-        bindings.add(worldMapBinding);
-        bindings.add(ghostCodeBinding);
-        bindingMap.put("WORLD-STATE", worldMapBinding);
-        bindingMap.put("GHOST-CODE", ghostCodeBinding);
+    public RootEnvFrame(SymbolInterner interner) {
+        super(new ScopedSymbolTable(interner));
+        addInput("WORLD-STATE");
+        addInput("GHOST-CODE");
+    }
+
+    private void addInput(String name) {
+        int symbol = symbols.interner.intern(name);
+        Binding binding = new Binding(symbol, name,
+                ParserDataType.integerType());
+        binding.setIndex(bindings.size());
+        bindings.add(binding);
+        symbols.bind(symbol, this, binding);
     }
 
     @Override
-    public void addBinding(String name, Binding binding) throws EnvException {
-        throw new EnvException("Cannot add binding " + name
+    public void addBinding(int symbol, Binding binding) throws EnvException {
+        throw new EnvException("Cannot add binding " + binding.name
                 + " to root frame!");
     }
 }
@@ -0,0 +1,66 @@
+package laml.compiler.parser;
+
+import java.util.Arrays;
+
+import laml.compiler.lexer.SymbolInterner;
+import laml.compiler.parser.EnvFrame.Binding;
+
+/**
+ * Flat symbol table shared by all environment frames of a program. For each
+ * symbol id it holds the innermost binding currently in scope, with shadowed
+ * bindings chained behind it. The parser opens frames as it enters lambdas and
+ * closes them on the way out, so a lookup is a single array access rather than
+ * a walk up the parent chain.
+ */
+public class ScopedSymbolTable {
+    /**
+     * A binding of a symbol in a particular frame, along with the binding it
+     * shadows (if any).
+     */
+    public static class Entry {
+        public final EnvFrame frame;
+        public final Binding binding;
+        private final Entry shadowed;
+
+        private Entry(EnvFrame frame, Binding binding, Entry shadowed) {
+            this.frame = frame;
+            this.binding = binding;
+            this.shadowed = shadowed;
+        }
+    }
+
+    public final SymbolInterner interner;
+    // Indexed by symbol id
+    private Entry[] innermost;
+
+    public ScopedSymbolTable(SymbolInterner interner) {
+        this.interner = interner;
+        innermost = new Entry[Math.max(16, interner.size())];
+    }
+
+    /**
+     * Innermost binding of the symbol in scope, or null if unbound.
+     */
+    public Entry lookup(int symbol) {
+        return symbol < innermost.length ? innermost[symbol] : null;
+    }
+
+    /**
+     * Bring a new binding of the symbol into scope, shadowing any existing one.
+     */
+    public void bind(int symbol, EnvFrame frame, Binding binding) {
+        if (symbol >= innermost.length) {
+            innermost = Arrays.copyOf(innermost,
+                    Math.max(symbol + 1, innermost.length * 2));
+        }
+        innermost[symbol] = new Entry(frame, binding, innermost[symbol]);
+    }
+
+    /**
+     * Remove the innermost binding of the symbol, restoring whatever it
+     * shadowed.
+     */
+    public void unbind(int symbol) {
+        innermost[symbol] = innermost[symbol].shadowed;
+    }
+}
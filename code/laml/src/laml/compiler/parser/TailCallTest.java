@@ -0,0 +1,47 @@
+package laml.compiler.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import laml.compiler.lexer.CharArrayLexer;
+
+import org.junit.Test;
+
+public class TailCallTest {
+    private static String compile(String prog) {
+        return Parser.parseProgram(CharArrayLexer.lexProgramString(prog))
+                .translate().toString();
+    }
+
+    private static int count(String out, String op) {
+        int n = 0;
+        for (String line : out.split("\n")) {
+            if (line.startsWith(op + " ") || line.equals(op)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Test
+    public void testTailRecursion() {
+        String out = compile("(define loop (lambda (n) "
+                + "(if n (loop (- n 1)) 7))) (loop 10)");
+        // Both the recursive call and the call from main are tail calls
+        assertEquals(0, count(out, "AP"));
+        assertEquals(0, count(out, "SEL"));
+        assertEquals(0, count(out, "JOIN"));
+        assertEquals(1, count(out, "TSEL"));
+        assertTrue(count(out, "TAP") >= 2);
+    }
+
+    @Test
+    public void testNonTailPositions() {
+        String out = compile("(define f (lambda (n) n)) "
+                + "(+ (f 1) (if (f 2) 3 4))");
+        // Operands of + are not in tail position
+        assertEquals(2, count(out, "AP"));
+        assertEquals(1, count(out, "SEL"));
+        assertEquals(2, count(out, "JOIN"));
+        assertEquals(0, count(out, "TSEL"));
+    }
+}
@@ -0,0 +1,85 @@
+package laml.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import laml.compiler.AbsoluteProgram;
+import laml.compiler.RelativeProgram;
+import laml.compiler.lexer.CharArrayLexer;
+import laml.compiler.opt.PassManager;
+import laml.compiler.parser.ParsedProgram;
+import laml.compiler.parser.Parser;
+
+/**
+ * Checks engines against GccMachine for their tests.
+ *
+ * A program is run on both, which must agree on the result, or the kind and
+ * address of the fault, and on the cycles taken and the values passed to
+ * DBUG.
+ */
+public class EngineHarness {
+    /**
+     * Makes the engine under test for a program.
+     */
+    public interface EngineFactory {
+        GccEngine create(AbsoluteProgram prog) throws Exception;
+    }
+
+    private EngineHarness() {
+    }
+
+    /**
+     * The program given as labelled assembly.
+     */
+    public static AbsoluteProgram assemble(String prog) {
+        return RelativeProgram.parseFromLabelledString(prog).translate();
+    }
+
+    /**
+     * The program compiled at the default level.
+     */
+    public static AbsoluteProgram compile(String prog) {
+        ParsedProgram parsed = Parser.parse(CharArrayLexer
+                .lexProgramString(prog));
+        RelativeProgram relative = new RelativeProgram();
+        relative.addLabeledFunctions(PassManager.forLevel(
+                PassManager.DEFAULT_LEVEL).optimize(parsed));
+        return relative.translate();
+    }
+
+    /**
+     * Run main on GccMachine and the factory's engine, checking they agree.
+     * Returns the result of main, or null if it faulted.
+     */
+    public static Object assertSame(EngineFactory factory,
+            AbsoluteProgram prog, long cycleLimit, Object... args)
+            throws Exception {
+        GccMachine reference = new GccMachine(prog);
+        reference.setCycleLimit(cycleLimit);
+        GccEngine engine = factory.create(prog);
+        engine.setCycleLimit(cycleLimit);
+
+        Object expected = null;
+        GccException expectedFault = null;
+        try {
+            expected = reference.runMain(args);
+        } catch (GccException e) {
+            expectedFault = e;
+        }
+        try {
+            Object result = engine.runMain(args);
+            if (expectedFault != null) {
+                fail("Expected " + expectedFault.getMessage());
+            }
+            assertEquals(Values.format(expected), Values.format(result));
+        } catch (GccException e) {
+            if (expectedFault == null) {
+                throw e;
+            }
+            assertEquals(expectedFault.kind, e.kind);
+            assertEquals(expectedFault.addr, e.addr);
+        }
+        assertEquals(reference.getCycles(), engine.getCycles());
+        assertEquals(reference.getTrace(), engine.getTrace());
+        return expected;
+    }
+}
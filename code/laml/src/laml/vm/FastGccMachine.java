@@ -0,0 +1,667 @@
+package laml.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import laml.compiler.AbsoluteProgram;
+import laml.compiler.InstructionBuffer;
+import laml.compiler.Opcode;
+import laml.vm.GccException.Kind;
+import laml.vm.Values.Closure;
+import laml.vm.Values.Cons;
+import laml.vm.Values.Frame;
+
+/**
+ * GCC interpreter built for throughput, with the same values, results,
+ * faults and cycle counts as GccMachine, for programs the JIT won't compile.
+ *
+ * The program is decoded once into an int array of (op, arg0, arg1) triples,
+ * with branch targets turned into offsets into that array and LDs of the two
+ * innermost frames given ops of their own. The commonest sequences, such as
+ * an LD then CAR or a call, an LDC then arithmetic, or a test then TSEL, are
+ * fused into one op which still counts a cycle for each instruction; the
+ * instructions after the first stay where they were, so jumps to them still
+ * work.
+ *
+ * Cycles are charged a run at a time: a run is the straight line code from
+ * where control lands up to the next jump, call or return, whose length and
+ * growth of the data stack are worked out up front. So the only check made
+ * per instruction is whether the cycle limit falls in the run, which it does
+ * at most once per call; the rest of the cost is charged back if the run
+ * ends early with a fault. Type checks are left to the JVM's casts, a
+ * ClassCastException becoming the tag mismatch fault.
+ */
+public class FastGccMachine implements GccEngine {
+    // Decoded ops past the Opcode ordinals: LDs of the innermost frames, and
+    // LDs fused with the instruction after them
+    private static final int OP_LD0 = 27;
+    private static final int OP_LD1 = 28;
+    private static final int OP_LD0_ATOM = 29;
+    private static final int OP_LD0_CAR = 30;
+    private static final int OP_LD0_CDR = 31;
+    private static final int OP_LD1_AP = 32;
+    private static final int OP_LD1_TAP = 33;
+    // An LDC fused with the arithmetic op after it, OP_LDC_ADD + (op - ADD)
+    private static final int OP_LDC_ADD = 34;
+    private static final int OP_LDC_CGTE = 40;
+    // A test fused with the TSEL after it
+    private static final int OP_ATOM_TSEL = 41;
+    private static final int OP_CEQ_TSEL = 42;
+    private static final int OP_CGT_TSEL = 43;
+    private static final int OP_CGTE_TSEL = 44;
+    private static final int OP_LD0_LDC = 45;
+    private static final int OP_LD0_ATOM_TSEL = 46;
+    // Most instructions fused into one op
+    private static final int MAX_FUSED = 3;
+
+    // Kinds of control stack entries
+    private static final int TAG_JOIN = 0;
+    private static final int TAG_RET = 1;
+    private static final int TAG_STOP = 2;
+
+    private static final int INITIAL_STACK_SIZE = 256;
+    private static final Object[] NO_VALUES = new Object[0];
+    private static final Integer FALSE = 0;
+    private static final Integer TRUE = 1;
+
+    private final int[] code;
+    // Op of each instruction without fusing, for when the cycle limit falls
+    // between the two
+    private final int[] unfused;
+    // Instructions from each address to the end of its run, and the most the
+    // data stack grows over them
+    private final int[] runLengths;
+    private final int[] runGrowth;
+
+    private Object[] data = new Object[INITIAL_STACK_SIZE];
+    private int[] controlTags = new int[INITIAL_STACK_SIZE];
+    private int[] controlAddrs = new int[INITIAL_STACK_SIZE];
+    private Frame[] controlFrames = new Frame[INITIAL_STACK_SIZE];
+    private int controlSize;
+
+    private long cycles;
+    private long cycleLimit = Long.MAX_VALUE;
+    private final List<Object> trace = new ArrayList<Object>();
+
+    public FastGccMachine(AbsoluteProgram prog) {
+        InstructionBuffer buffer = prog.getCode();
+        int size = buffer.size();
+        code = new int[size * 3];
+        unfused = new int[size];
+        for (int addr = 0; addr < size; ++addr) {
+            Opcode op = buffer.getOpcode(addr);
+            int arg0 = buffer.getArg(addr, 0);
+            int arg1 = buffer.getArg(addr, 1);
+            int decoded = op.ordinal();
+            if (op == Opcode.LD && arg0 == 0) {
+                decoded = OP_LD0;
+            } else if (op == Opcode.LD && arg0 == 1) {
+                decoded = OP_LD1;
+            }
+            // Closures keep real addresses, which are multiplied on a call
+            if (op == Opcode.SEL || op == Opcode.TSEL) {
+                arg0 *= 3;
+                arg1 *= 3;
+            }
+            code[addr * 3] = decoded;
+            code[addr * 3 + 1] = arg0;
+            code[addr * 3 + 2] = arg1;
+            unfused[addr] = decoded;
+        }
+        // The instructions after a fused op stay in place, for jumps
+        // straight to them
+        for (int addr = 0; addr < size; ++addr) {
+            code[addr * 3] = fuse(buffer, addr);
+        }
+        runLengths = new int[size];
+        runGrowth = new int[size];
+        for (int addr = size - 1; addr >= 0; --addr) {
+            Opcode op = buffer.getOpcode(addr);
+            int delta = stackDelta(op);
+            if (endsRun(op) || addr + 1 == size) {
+                runLengths[addr] = 1;
+                runGrowth[addr] = Math.max(0, delta);
+            } else {
+                runLengths[addr] = 1 + runLengths[addr + 1];
+                runGrowth[addr] = Math.max(0, delta + runGrowth[addr + 1]);
+            }
+        }
+    }
+
+    private static boolean endsRun(Opcode op) {
+        switch (op) {
+        case SEL:
+        case TSEL:
+        case JOIN:
+        case AP:
+        case TAP:
+        case RAP:
+        case TRAP:
+        case RTN:
+        case STOP:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Change in the size of the data stack, for the ops which don't end a
+     * run.
+     */
+    private static int stackDelta(Opcode op) {
+        switch (op) {
+        case LDC:
+        case LD:
+        case LDF:
+            return 1;
+        case ADD:
+        case SUB:
+        case MUL:
+        case DIV:
+        case CEQ:
+        case CGT:
+        case CGTE:
+        case CONS:
+        case ST:
+        case DBUG:
+            return -1;
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * The op to run at addr: its own, or one fused with the instructions
+     * after it.
+     */
+    private int fuse(InstructionBuffer buffer, int addr) {
+        int op = unfused[addr];
+        if (addr + 1 >= buffer.size()) {
+            return op;
+        }
+        Opcode next = buffer.getOpcode(addr + 1);
+        Opcode after = addr + 2 < buffer.size() ? buffer.getOpcode(addr + 2)
+                : null;
+        switch (op) {
+        case OP_LD0:
+            switch (next) {
+            case ATOM:
+                return after == Opcode.TSEL ? OP_LD0_ATOM_TSEL : OP_LD0_ATOM;
+            case CAR:
+                return OP_LD0_CAR;
+            case CDR:
+                return OP_LD0_CDR;
+            case LDC:
+                return OP_LD0_LDC;
+            default:
+                return op;
+            }
+        case OP_LD1:
+            switch (next) {
+            case AP:
+                return OP_LD1_AP;
+            case TAP:
+                return OP_LD1_TAP;
+            default:
+                return op;
+            }
+        case 0: // LDC
+            if (next.ordinal() >= Opcode.ADD.ordinal()
+                    && next.ordinal() <= Opcode.CGTE.ordinal()) {
+                return OP_LDC_ADD + next.ordinal() - Opcode.ADD.ordinal();
+            }
+            return op;
+        case 6: // CEQ
+            return next == Opcode.TSEL ? OP_CEQ_TSEL : op;
+        case 7: // CGT
+            return next == Opcode.TSEL ? OP_CGT_TSEL : op;
+        case 8: // CGTE
+            return next == Opcode.TSEL ? OP_CGTE_TSEL : op;
+        case 9: // ATOM
+            return next == Opcode.TSEL ? OP_ATOM_TSEL : op;
+        default:
+            return op;
+        }
+    }
+
+    @Override
+    public long getCycles() {
+        return cycles;
+    }
+
+    @Override
+    public void setCycleLimit(long cycleLimit) {
+        this.cycleLimit = cycleLimit;
+    }
+
+    @Override
+    public List<Object> getTrace() {
+        return trace;
+    }
+
+    private void pushControl(int tag, int addr, Frame frame) {
+        if (controlSize == controlTags.length) {
+            int capacity = controlSize * 2;
+            controlTags = Arrays.copyOf(controlTags, capacity);
+            controlAddrs = Arrays.copyOf(controlAddrs, capacity);
+            controlFrames = Arrays.copyOf(controlFrames, capacity);
+        }
+        controlTags[controlSize] = tag;
+        controlAddrs[controlSize] = addr;
+        controlFrames[controlSize] = frame;
+        controlSize++;
+    }
+
+    private static GccException fault(Kind kind, int pc, String reason) {
+        return new GccException(kind, pc / 3, reason);
+    }
+
+    private static GccException emptyStack(int pc) {
+        return fault(Kind.FAULT, pc, "data stack is empty");
+    }
+
+    /**
+     * The frame depth frames up from env, which must not be a dummy.
+     */
+    private static Frame frameAt(Frame env, int depth, int pc) {
+        Frame frame = env;
+        for (int i = 0; i < depth && frame != null; ++i) {
+            frame = frame.parent;
+        }
+        if (frame == null) {
+            throw fault(Kind.FAULT, pc, "no frame at depth " + depth);
+        }
+        if (frame.dummy) {
+            throw fault(Kind.FRAME_MISMATCH, pc, "frame is a dummy");
+        }
+        return frame;
+    }
+
+    /**
+     * Value i of a frame, checking the frame can be used.
+     */
+    private static Object load(Frame frame, int i, int pc) {
+        if (frame == null) {
+            throw fault(Kind.FAULT, pc, "no frame at that depth");
+        }
+        if (frame.dummy) {
+            throw fault(Kind.FRAME_MISMATCH, pc, "frame is a dummy");
+        }
+        if (i >= frame.values.length) {
+            throw fault(Kind.FAULT, pc, "no binding " + i);
+        }
+        return frame.values[i];
+    }
+
+    /**
+     * Result of the arithmetic op with the given ordinal.
+     */
+    private static int binary(int op, int x, int y, int pc) {
+        switch (op) {
+        case 2:
+            return x + y;
+        case 3:
+            return x - y;
+        case 4:
+            return x * y;
+        case 5:
+            if (y == 0) {
+                throw fault(Kind.FAULT, pc, "division by 0");
+            }
+            return x / y;
+        case 6:
+            return x == y ? 1 : 0;
+        case 7:
+            return x > y ? 1 : 0;
+        default:
+            return x >= y ? 1 : 0;
+        }
+    }
+
+    @Override
+    public Object runMain(Object... args) {
+        return call(new Closure(0, null), args);
+    }
+
+    @Override
+    public Object call(Closure closure, Object... args) {
+        controlSize = 0;
+        pushControl(TAG_STOP, 0, null);
+        final int[] code = this.code;
+        Object[] data = this.data;
+        int sp = 0;
+        Frame env = new Frame(args.clone(), closure.env, false);
+        int pc = closure.addr * 3;
+        // Counted locally, and added to cycles however the call ends
+        long executed = 0;
+        // Where the cycle limit stops the call, if it falls in this run
+        int stop = Integer.MAX_VALUE;
+        // Just past the last instruction charged for
+        int charged = pc;
+        try {
+            run: while (true) {
+                int addr = pc / 3;
+                int length = runLengths[addr];
+                if (cycleLimit - executed < length) {
+                    length = (int) (cycleLimit - executed);
+                    stop = pc + 3 * length;
+                }
+                executed += length;
+                charged = pc + 3 * length;
+                if (sp + runGrowth[addr] > data.length) {
+                    data = Arrays.copyOf(data, Math.max(data.length * 2, sp
+                            + runGrowth[addr]));
+                    this.data = data;
+                }
+                while (true) {
+                    int op = code[pc];
+                    if (pc >= stop - 3 * (MAX_FUSED - 1)) {
+                        if (pc == stop) {
+                            throw fault(Kind.CYCLE_LIMIT, pc, "ran for "
+                                    + cycleLimit + " cycles");
+                        }
+                        // No room for all of a fused op
+                        op = unfused[pc / 3];
+                    }
+                    switch (op) {
+                    case 0: // LDC
+                        data[sp++] = code[pc + 1];
+                        pc += 3;
+                        break;
+                    case 1: // LD
+                        data[sp++] = load(frameAt(env, code[pc + 1], pc),
+                                code[pc + 2], pc);
+                        pc += 3;
+                        break;
+                    case 2: // ADD
+                    case 3: // SUB
+                    case 4: // MUL
+                    case 5: // DIV
+                    case 6: // CEQ
+                    case 7: // CGT
+                    case 8: // CGTE
+                        if (sp < 2) {
+                            throw emptyStack(pc);
+                        }
+                        sp--;
+                        data[sp - 1] = binary(op, (Integer) data[sp - 1],
+                                (Integer) data[sp], pc);
+                        pc += 3;
+                        break;
+                    case 9: // ATOM
+                        if (sp < 1) {
+                            throw emptyStack(pc);
+                        }
+                        data[sp - 1] = data[sp - 1] instanceof Integer ? TRUE
+                                : FALSE;
+                        pc += 3;
+                        break;
+                    case 10: // CONS
+                        if (sp < 2) {
+                            throw emptyStack(pc);
+                        }
+                        sp--;
+                        data[sp - 1] = new Cons(data[sp - 1], data[sp]);
+                        pc += 3;
+                        break;
+                    case 11: // CAR
+                        if (sp < 1) {
+                            throw emptyStack(pc);
+                        }
+                        data[sp - 1] = ((Cons) data[sp - 1]).car;
+                        pc += 3;
+                        break;
+                    case 12: // CDR
+                        if (sp < 1) {
+                            throw emptyStack(pc);
+                        }
+                        data[sp - 1] = ((Cons) data[sp - 1]).cdr;
+                        pc += 3;
+                        break;
+                    case 13: // SEL
+                    case 21: { // TSEL
+                        if (sp < 1) {
+                            throw emptyStack(pc);
+                        }
+                        int x = (Integer) data[--sp];
+                        if (op == 13) {
+                            pushControl(TAG_JOIN, pc + 3, null);
+                        }
+                        pc = x != 0 ? code[pc + 1] : code[pc + 2];
+                        continue run;
+                    }
+                    case 14: // JOIN
+                        if (controlTags[controlSize - 1] != TAG_JOIN) {
+                            throw fault(Kind.CONTROL_MISMATCH, pc,
+                                    "JOIN without a SEL");
+                        }
+                        pc = controlAddrs[--controlSize];
+                        continue run;
+                    case 15: // LDF
+                        data[sp++] = new Closure(code[pc + 1], env);
+                        pc += 3;
+                        break;
+                    case 16: // AP
+                    case 22: { // TAP
+                        if (sp < 1) {
+                            throw emptyStack(pc);
+                        }
+                        Closure f = (Closure) data[--sp];
+                        int n = code[pc + 1];
+                        if (sp < n) {
+                            throw emptyStack(pc);
+                        }
+                        sp -= n;
+                        Object[] values = NO_VALUES;
+                        if (n > 0) {
+                            values = new Object[n];
+                            System.arraycopy(data, sp, values, 0, n);
+                        }
+                        if (op == 16) {
+                            pushControl(TAG_RET, pc + 3, env);
+                        }
+                        env = new Frame(values, f.env, false);
+                        pc = f.addr * 3;
+                        continue run;
+                    }
+                    case 17: { // RTN
+                        int tag = controlTags[--controlSize];
+                        if (tag == TAG_STOP) {
+                            if (sp < 1) {
+                                throw emptyStack(pc);
+                            }
+                            return data[--sp];
+                        }
+                        if (tag != TAG_RET) {
+                            throw fault(Kind.CONTROL_MISMATCH, pc,
+                                    "RTN without a call");
+                        }
+                        pc = controlAddrs[controlSize];
+                        env = controlFrames[controlSize];
+                        controlFrames[controlSize] = null;
+                        continue run;
+                    }
+                    case 18: // DUM
+                        env = new Frame(new Object[code[pc + 1]], env, true);
+                        pc += 3;
+                        break;
+                    case 19: // RAP
+                    case 23: { // TRAP
+                        if (sp < 1) {
+                            throw emptyStack(pc);
+                        }
+                        Closure f = (Closure) data[--sp];
+                        int n = code[pc + 1];
+                        if (!env.dummy || env.values.length != n
+                                || f.env != env) {
+                            throw fault(Kind.FRAME_MISMATCH, pc,
+                                    "RAP needs the closure made in the dummy frame");
+                        }
+                        if (sp < n) {
+                            throw emptyStack(pc);
+                        }
+                        sp -= n;
+                        System.arraycopy(data, sp, env.values, 0, n);
+                        env.dummy = false;
+                        if (op == 19) {
+                            pushControl(TAG_RET, pc + 3, env.parent);
+                        }
+                        pc = f.addr * 3;
+                        continue run;
+                    }
+                    case 20: // STOP
+                        return sp > 0 ? data[--sp] : null;
+                    case 24: { // ST
+                        Frame to = frameAt(env, code[pc + 1], pc);
+                        if (code[pc + 2] >= to.values.length) {
+                            throw fault(Kind.FAULT, pc, "no binding "
+                                    + code[pc + 2]);
+                        }
+                        if (sp < 1) {
+                            throw emptyStack(pc);
+                        }
+                        to.values[code[pc + 2]] = data[--sp];
+                        pc += 3;
+                        break;
+                    }
+                    case 25: // DBUG
+                        if (sp < 1) {
+                            throw emptyStack(pc);
+                        }
+                        trace.add(data[--sp]);
+                        pc += 3;
+                        break;
+                    case 26: // BRK
+                        pc += 3;
+                        break;
+                    case OP_LD0:
+                        data[sp++] = load(env, code[pc + 2], pc);
+                        pc += 3;
+                        break;
+                    case OP_LD1:
+                        data[sp++] = load(env.parent, code[pc + 2], pc);
+                        pc += 3;
+                        break;
+                    case OP_LD0_ATOM:
+                        data[sp++] = load(env, code[pc + 2], pc) instanceof Integer
+                                ? TRUE : FALSE;
+                        pc += 6;
+                        break;
+                    case OP_LD0_LDC:
+                        data[sp++] = load(env, code[pc + 2], pc);
+                        data[sp++] = code[pc + 4];
+                        pc += 6;
+                        break;
+                    case OP_LD0_ATOM_TSEL: {
+                        Object x = load(env, code[pc + 2], pc);
+                        pc += 6;
+                        pc = x instanceof Integer ? code[pc + 1] : code[pc + 2];
+                        continue run;
+                    }
+                    case OP_LD0_CAR: {
+                        Object x = load(env, code[pc + 2], pc);
+                        pc += 3;
+                        data[sp++] = ((Cons) x).car;
+                        pc += 3;
+                        break;
+                    }
+                    case OP_LD0_CDR: {
+                        Object x = load(env, code[pc + 2], pc);
+                        pc += 3;
+                        data[sp++] = ((Cons) x).cdr;
+                        pc += 3;
+                        break;
+                    }
+                    case OP_LD1_AP:
+                    case OP_LD1_TAP: {
+                        Object x = load(env.parent, code[pc + 2], pc);
+                        pc += 3;
+                        Closure f = (Closure) x;
+                        int n = code[pc + 1];
+                        if (sp < n) {
+                            throw emptyStack(pc);
+                        }
+                        sp -= n;
+                        Object[] values = NO_VALUES;
+                        if (n > 0) {
+                            values = new Object[n];
+                            System.arraycopy(data, sp, values, 0, n);
+                        }
+                        if (op == OP_LD1_AP) {
+                            pushControl(TAG_RET, pc + 3, env);
+                        }
+                        env = new Frame(values, f.env, false);
+                        pc = f.addr * 3;
+                        continue run;
+                    }
+                    case OP_LDC_ADD:
+                    case OP_LDC_ADD + 1:
+                    case OP_LDC_ADD + 2:
+                    case OP_LDC_ADD + 3:
+                    case OP_LDC_ADD + 4:
+                    case OP_LDC_ADD + 5:
+                    case OP_LDC_CGTE: {
+                        int y = code[pc + 1];
+                        pc += 3;
+                        if (sp < 1) {
+                            throw emptyStack(pc);
+                        }
+                        data[sp - 1] = binary(op - OP_LDC_ADD
+                                + Opcode.ADD.ordinal(), (Integer) data[sp - 1],
+                                y, pc);
+                        pc += 3;
+                        break;
+                    }
+                    case OP_ATOM_TSEL:
+                        if (sp < 1) {
+                            throw emptyStack(pc);
+                        }
+                        pc += 3;
+                        pc = data[--sp] instanceof Integer ? code[pc + 1]
+                                : code[pc + 2];
+                        continue run;
+                    case OP_CEQ_TSEL:
+                    case OP_CGT_TSEL:
+                    case OP_CGTE_TSEL: {
+                        if (sp < 2) {
+                            throw emptyStack(pc);
+                        }
+                        int y = (Integer) data[--sp];
+                        int x = (Integer) data[--sp];
+                        boolean taken = op == OP_CEQ_TSEL ? x == y
+                                : op == OP_CGT_TSEL ? x > y : x >= y;
+                        pc += 3;
+                        pc = taken ? code[pc + 1] : code[pc + 2];
+                        continue run;
+                    }
+                    default:
+                        throw fault(Kind.FAULT, pc, "unknown op " + op);
+                    }
+                }
+            }
+        } catch (GccException e) {
+            if (e.kind != Kind.CYCLE_LIMIT) {
+                // Charge for the run up to the faulting instruction
+                executed -= (charged - pc) / 3 - 1;
+            }
+            throw e;
+        } catch (ClassCastException e) {
+            executed -= (charged - pc) / 3 - 1;
+            // Only the first instruction of a fused op is an LD
+            throw fault(Kind.TAG_MISMATCH, pc, Opcode.fromOrdinal(
+                    unfused[pc / 3] < OP_LD0 ? unfused[pc / 3] : 1)
+                    + " got a value of the wrong type");
+        } catch (ArrayIndexOutOfBoundsException e) {
+            if (pc < 0 || pc >= code.length) {
+                throw fault(Kind.FAULT, pc, "no instruction here");
+            }
+            throw e;
+        } finally {
+            cycles += executed;
+            // Don't keep the values alive until the next call
+            Arrays.fill(data, null);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package laml.vm;
+
+import static laml.vm.EngineHarness.assemble;
+import static laml.vm.EngineHarness.compile;
+import static org.junit.Assert.assertEquals;
+import laml.compiler.AbsoluteProgram;
+import laml.vm.EngineHarness.EngineFactory;
+import laml.vm.Values.Closure;
+import laml.vm.Values.Cons;
+
+import org.junit.Test;
+
+public class FastGccMachineTest {
+    private static final EngineFactory FAST = new EngineFactory() {
+        @Override
+        public GccEngine create(AbsoluteProgram prog) {
+            return new FastGccMachine(prog);
+        }
+    };
+
+    private static Object assertSame(AbsoluteProgram prog, long cycleLimit,
+            Object... args) throws Exception {
+        return EngineHarness.assertSame(FAST, prog, cycleLimit, args);
+    }
+
+    @Test
+    public void testMatchesReference() throws Exception {
+        AbsoluteProgram fib = compile("(define fib (lambda (n) "
+                + "(if (> 2 n) n (+ (fib (- n 1)) (fib (- n 2)))))) "
+                + "(dbug (fib 5)) (fib 15)");
+        assertEquals(610, assertSame(fib, Long.MAX_VALUE, 0, 0));
+        // Stopping part way through, including between fused instructions
+        for (long limit = 1; limit < 40; ++limit) {
+            assertSame(fib, limit, 0, 0);
+        }
+
+        AbsoluteProgram lists = compile("(define build (lambda (n acc) "
+                + "(if (= n 0) acc (build (- n 1) (cons n acc))))) "
+                + "(define sum (lambda (l) "
+                + "(if (atom l) 0 (+ (car l) (sum (cdr l)))))) "
+                + "(sum (build 100 0))");
+        assertEquals(5050, assertSame(lists, Long.MAX_VALUE, 0, 0));
+        for (long limit = 1; limit < 1500; limit += 7) {
+            assertSame(lists, limit, 0, 0);
+        }
+    }
+
+    @Test
+    public void testFaults() throws Exception {
+        assertSame(assemble("main:\nLDC 1\nCAR\nRTN\n"), Long.MAX_VALUE);
+        // Part way through a run, which is charged for up front
+        assertSame(assemble("main:\nLDC 1\nLDC 2\nCAR\nLDC 3\nRTN\n"),
+                Long.MAX_VALUE);
+        assertSame(assemble("main:\nLD 0 0\nCDR\nRTN\n"), Long.MAX_VALUE, 3);
+        assertSame(assemble("main:\nLDC 1\nJOIN\n"), Long.MAX_VALUE);
+        assertSame(assemble("main:\nDUM 1\nLD 0 0\nRTN\n"), Long.MAX_VALUE);
+        assertSame(assemble("main:\nLDC 1\nLDC 0\nDIV\nRTN\n"),
+                Long.MAX_VALUE);
+        assertSame(assemble("main:\nLDC 1\nTSEL main main\n"), 1000);
+    }
+
+    @Test
+    public void testStateCarriesAcrossCalls() {
+        // main returns a counter and a step closure over a frame of main's
+        AbsoluteProgram prog = compile("(define offset 10) "
+                + "(cons 0 (lambda (state world) "
+                + "(cons (+ state offset) (cons state world))))");
+        FastGccMachine machine = new FastGccMachine(prog);
+        Cons main = (Cons) machine.runMain(0, 0);
+        Object state = main.car;
+        for (int i = 0; i < 3; ++i) {
+            state = ((Cons) machine.call((Closure) main.cdr, state, 7)).car;
+        }
+        assertEquals(30, state);
+    }
+}
@@ -0,0 +1,190 @@
+package laml.vm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A game map in the contest's text format, one character per square, e.g. the
+ * ones in code/test-maps. Squares are stored as the numbers the world state
+ * passes to the AI.
+ */
+public class GameMap {
+    public static final int WALL = 0;
+    public static final int EMPTY = 1;
+    public static final int PILL = 2;
+    public static final int POWER_PILL = 3;
+    public static final int FRUIT = 4;
+    public static final int LAMBDA_MAN_START = 5;
+    public static final int GHOST_START = 6;
+
+    private static final String SQUARE_CHARS = "# .o%\\=";
+
+    // Indexed [y][x]
+    private final int[][] squares;
+    private final int[] lambdaManStart;
+    // Ghost start positions as {x, y}, in reading order
+    private final List<int[]> ghostStarts;
+    // Null if the map has no fruit
+    private final int[] fruitLocation;
+
+    private GameMap(int[][] squares, int[] lambdaManStart,
+            List<int[]> ghostStarts, int[] fruitLocation) {
+        this.squares = squares;
+        this.lambdaManStart = lambdaManStart;
+        this.ghostStarts = ghostStarts;
+        this.fruitLocation = fruitLocation;
+    }
+
+    public static GameMap load(Path path) throws IOException {
+        return parse(new String(Files.readAllBytes(path),
+                StandardCharsets.ISO_8859_1));
+    }
+
+    public static GameMap parse(String text) {
+        List<String> rows = new ArrayList<String>();
+        for (String row : text.split("\r?\n")) {
+            if (!row.isEmpty()) {
+                rows.add(row);
+            }
+        }
+        if (rows.isEmpty()) {
+            throw new IllegalArgumentException("Map is empty");
+        }
+        int[][] squares = new int[rows.size()][];
+        int[] lambdaManStart = null;
+        List<int[]> ghostStarts = new ArrayList<int[]>();
+        int[] fruitLocation = null;
+        for (int y = 0; y < rows.size(); ++y) {
+            String row = rows.get(y);
+            if (row.length() != rows.get(0).length()) {
+                throw new IllegalArgumentException("Row " + y
+                        + " is not as wide as the first");
+            }
+            squares[y] = new int[row.length()];
+            for (int x = 0; x < row.length(); ++x) {
+                int square = SQUARE_CHARS.indexOf(row.charAt(x));
+                if (square < 0) {
+                    throw new IllegalArgumentException("Unknown square '"
+                            + row.charAt(x) + "' at " + x + "," + y);
+                }
+                squares[y][x] = square;
+                if (square == LAMBDA_MAN_START) {
+                    lambdaManStart = new int[] { x, y };
+                } else if (square == GHOST_START) {
+                    ghostStarts.add(new int[] { x, y });
+                } else if (square == FRUIT) {
+                    fruitLocation = new int[] { x, y };
+                }
+            }
+        }
+        if (lambdaManStart == null) {
+            throw new IllegalArgumentException("Map has no Lambda-Man start");
+        }
+        return new GameMap(squares, lambdaManStart, ghostStarts, fruitLocation);
+    }
+
+    public int getWidth() {
+        return squares[0].length;
+    }
+
+    public int getHeight() {
+        return squares.length;
+    }
+
+    public int getSquare(int x, int y) {
+        return squares[y][x];
+    }
+
+    public int[] getLambdaManStart() {
+        return lambdaManStart.clone();
+    }
+
+    public List<int[]> getGhostStarts() {
+        return ghostStarts;
+    }
+
+    public int[] getFruitLocation() {
+        return fruitLocation;
+    }
+
+    /**
+     * The map as the AI sees it: a list of rows, each a list of squares.
+     */
+    public Object toValue() {
+        Object[] rows = new Object[squares.length];
+        for (int y = 0; y < squares.length; ++y) {
+            Object[] row = new Object[squares[y].length];
+            for (int x = 0; x < row.length; ++x) {
+                row[x] = squares[y][x];
+            }
+            rows[y] = Values.list(row);
+        }
+        return Values.list(rows);
+    }
+
+    /**
+     * World state at the start of a game: the map, Lambda-Man at his start
+     * with full lives, facing down, every ghost at its start in standard mode
+     * facing down, and no fruit.
+     */
+    public Object initialWorldState() {
+        Object lambdaMan = Values.tuple(0, Values.tuple(lambdaManStart[0],
+                lambdaManStart[1]), 2, 3, 0);
+        Object[] ghosts = new Object[ghostStarts.size()];
+        for (int i = 0; i < ghosts.length; ++i) {
+            int[] start = ghostStarts.get(i);
+            ghosts[i] = Values.tuple(0, Values.tuple(start[0], start[1]), 2);
+        }
+        return Values.tuple(toValue(), lambdaMan, Values.list(ghosts), 0);
+    }
+
+    /**
+     * What ghosts see at the start of a game, as initialWorldState describes
+     * it.
+     */
+    public GhostView initialGhostView() {
+        return new GhostView() {
+            @Override
+            public int getSquare(int x, int y) {
+                if (y < 0 || y >= getHeight() || x < 0 || x >= getWidth()) {
+                    return WALL;
+                }
+                return squares[y][x];
+            }
+
+            @Override
+            public int[] getLambdaManLocation() {
+                return getLambdaManStart();
+            }
+
+            @Override
+            public int getGhostCount() {
+                return ghostStarts.size();
+            }
+
+            @Override
+            public int[] getGhostStart(int index) {
+                return ghostStarts.get(index).clone();
+            }
+
+            @Override
+            public int[] getGhostLocation(int index) {
+                return ghostStarts.get(index).clone();
+            }
+
+            @Override
+            public int getGhostVitality(int index) {
+                return 0;
+            }
+
+            @Override
+            public int getGhostDirection(int index) {
+                return 2;
+            }
+        };
+    }
+}
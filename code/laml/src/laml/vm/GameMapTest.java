@@ -0,0 +1,25 @@
+package laml.vm;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class GameMapTest {
+    @Test
+    public void testParseAndWorldState() {
+        GameMap map = GameMap.parse("#####\n#\\.=#\n#o%##\n#####\n");
+        assertEquals(5, map.getWidth());
+        assertEquals(4, map.getHeight());
+        assertEquals(GameMap.POWER_PILL, map.getSquare(1, 2));
+        assertEquals(1, map.getGhostStarts().size());
+        assertEquals(2, map.getFruitLocation()[0]);
+
+        Object world = map.initialWorldState();
+        Object row = Values.car(Values.cdr(Values.tupleGet(world, 4, 0)));
+        assertEquals("(0 . (5 . (2 . (6 . (0 . 0)))))", Values.format(row));
+        // Lambda-Man: vitality, location, direction, lives, score
+        assertEquals("(0 . ((1 . 1) . (2 . (3 . 0))))",
+                Values.format(Values.tupleGet(world, 4, 1)));
+        assertEquals(0, Values.tupleGet(world, 4, 3));
+    }
+}
@@ -0,0 +1,36 @@
+package laml.vm;
+
+import java.util.List;
+
+import laml.vm.Values.Closure;
+
+/**
+ * Something that runs GCC programs with the contest's semantics: GccMachine,
+ * or the JIT's JitMachine.
+ */
+public interface GccEngine {
+    /**
+     * Run main, the code at address 0, with the given arguments.
+     */
+    Object runMain(Object... args);
+
+    /**
+     * Call the closure with the given arguments and run until it returns.
+     */
+    Object call(Closure closure, Object... args);
+
+    /**
+     * Cycles run over all calls so far.
+     */
+    long getCycles();
+
+    /**
+     * Set the most cycles a single call may take.
+     */
+    void setCycleLimit(long cycleLimit);
+
+    /**
+     * Values passed to DBUG so far, oldest first.
+     */
+    List<Object> getTrace();
+}
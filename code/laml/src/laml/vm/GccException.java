@@ -0,0 +1,31 @@
+package laml.vm;
+
+/**
+ * Fault raised by the GCC, which stops the machine. The kinds are the errors
+ * the GCC specification defines, plus running over a cycle limit.
+ */
+public class GccException extends RuntimeException {
+    public enum Kind {
+        // Operand of the wrong type, e.g. CAR of an integer
+        TAG_MISMATCH,
+        // JOIN or RTN with the wrong kind of entry on the control stack
+        CONTROL_MISMATCH,
+        // LD or ST of a dummy frame, or RAP/TRAP on the wrong frame
+        FRAME_MISMATCH,
+        // Anything else the program can do wrong, e.g. DIV by 0
+        FAULT,
+        CYCLE_LIMIT
+    }
+
+    public final Kind kind;
+    // Address of the instruction which faulted
+    public final int addr;
+
+    public GccException(Kind kind, int addr, String reason) {
+        super(kind + " at " + addr + ": " + reason);
+        this.kind = kind;
+        this.addr = addr;
+    }
+
+    private static final long serialVersionUID = 3196052834475372751L;
+}
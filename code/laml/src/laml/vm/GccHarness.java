@@ -0,0 +1,185 @@
+package laml.vm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import laml.compiler.AbsoluteProgram;
+import laml.compiler.RelativeProgram;
+import laml.compiler.SourceMap;
+import laml.vm.Values.Closure;
+import laml.vm.Values.Cons;
+
+/**
+ * Runs a Lambda-Man AI the way the game does: main once with the initial
+ * world state, then the step function it returned once per move, passing the
+ * AI state along. Reports the cycles each call took.
+ *
+ * Ghost programs may be given too, for the map's ghosts in turn; each step
+ * also runs every ghost for a tick and reports the instructions it took.
+ *
+ * The world does not move between steps, since the harness doesn't play the
+ * game (laml.vm.sim.Game does); every step sees the initial world state.
+ *
+ * If the program has a source map next to it, faults are reported with the
+ * LaML file:line they came from.
+ */
+public class GccHarness {
+    // At the specification's 3072 instructions per millisecond: a minute for
+    // main and a second per step
+    public static final long MAIN_CYCLE_LIMIT = 3072L * 1000 * 60;
+    public static final long STEP_CYCLE_LIMIT = 3072L * 1000;
+
+    private final GccMachine machine;
+    private Object aiState;
+    private Closure step;
+    private long lastCycles;
+
+    public GccHarness(AbsoluteProgram prog) {
+        machine = new GccMachine(prog);
+    }
+
+    public GccMachine getMachine() {
+        return machine;
+    }
+
+    /**
+     * Read a program from a file: either GCC assembly as the compiler writes
+     * it, or assembly with labels, as RelativeProgram reads it.
+     */
+    public static AbsoluteProgram loadProgram(Path path) throws IOException {
+        String text = new String(Files.readAllBytes(path),
+                StandardCharsets.ISO_8859_1);
+        if (text.matches("(?s)\\s*[^\\s;]+:.*")) {
+            return RelativeProgram.parseFromLabelledString(text).translate();
+        }
+        return AbsoluteProgram.parse(text);
+    }
+
+    /**
+     * Cycles the last call of main or step took.
+     */
+    public long getLastCycles() {
+        return lastCycles;
+    }
+
+    /**
+     * Run main with the world state and no ghost programs. Returns main's
+     * result, which must be a pair of the AI state and step function.
+     */
+    public Object runMain(Object world) {
+        machine.setCycleLimit(MAIN_CYCLE_LIMIT);
+        long start = machine.getCycles();
+        Object result = machine.runMain(world, 0);
+        lastCycles = machine.getCycles() - start;
+        if (!(result instanceof Cons)
+                || !(((Cons) result).cdr instanceof Closure)) {
+            throw new IllegalStateException(
+                    "main must return (state . step), got "
+                            + Values.format(result));
+        }
+        aiState = ((Cons) result).car;
+        step = (Closure) ((Cons) result).cdr;
+        return result;
+    }
+
+    /**
+     * Run the step function on the world, keeping the new AI state. Returns
+     * the move.
+     */
+    public Object step(Object world) {
+        machine.setCycleLimit(STEP_CYCLE_LIMIT);
+        long start = machine.getCycles();
+        Object result = machine.call(step, aiState, world);
+        lastCycles = machine.getCycles() - start;
+        if (!(result instanceof Cons)) {
+            throw new IllegalStateException(
+                    "step must return (state . move), got "
+                            + Values.format(result));
+        }
+        aiState = ((Cons) result).car;
+        return ((Cons) result).cdr;
+    }
+
+    private static void usage() {
+        System.err.println("usage: laml.vm.GccHarness prog.gcc [map] [steps] "
+                + "[ghost.ghc...]");
+        System.exit(1);
+    }
+
+    /**
+     * Run a program file on a map for some steps, or just run main with 0 if
+     * no map is given.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            usage();
+        }
+        Path path = Paths.get(args[0]);
+        GccHarness harness = new GccHarness(loadProgram(path));
+        harness.getMachine().setTraceOut(System.err);
+        SourceMap sourceMap = SourceMap.loadFor(path);
+        try {
+            run(harness, args);
+        } catch (GccException e) {
+            // Say which LaML code faulted, if the program has a source map
+            String location = sourceMap != null ? sourceMap.get(e.addr) : null;
+            if (location != null) {
+                System.err.println(e.getMessage() + ", from " + location);
+            }
+            throw e;
+        }
+    }
+
+    private static void run(GccHarness harness, String[] args)
+            throws IOException {
+        if (args.length == 1) {
+            harness.getMachine().setCycleLimit(MAIN_CYCLE_LIMIT);
+            Object result = harness.getMachine().runMain(0, 0);
+            System.out.println("main result: " + Values.format(result));
+            System.out.println("main cycles: "
+                    + harness.getMachine().getCycles());
+            return;
+        }
+        GameMap map = GameMap.load(Paths.get(args[1]));
+        Object world = map.initialWorldState();
+        int steps = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        List<GhcMachine> ghosts = new ArrayList<GhcMachine>();
+        if (args.length > 3) {
+            List<GhcProgram> progs = new ArrayList<GhcProgram>();
+            for (int i = 3; i < args.length; ++i) {
+                progs.add(GhcProgram.load(Paths.get(args[i])));
+            }
+            for (int i = 0; i < map.getGhostStarts().size(); ++i) {
+                ghosts.add(new GhcMachine(progs.get(i % progs.size()), i));
+            }
+        }
+        GhostView view = map.initialGhostView();
+        harness.runMain(world);
+        System.out.println("main cycles: " + harness.getLastCycles()
+                + ", max control depth "
+                + harness.getMachine().getMaxControlDepth());
+        for (int i = 0; i < steps; ++i) {
+            harness.getMachine().resetMaxControlDepth();
+            Object move = harness.step(world);
+            System.out.println("step " + i + " move " + Values.format(move)
+                    + ", cycles " + harness.getLastCycles()
+                    + ", max control depth "
+                    + harness.getMachine().getMaxControlDepth());
+            for (int g = 0; g < ghosts.size(); ++g) {
+                GhcMachine ghost = ghosts.get(g);
+                int direction = ghost.runTick(view,
+                        view.getGhostDirection(g));
+                System.out.println("  ghost " + g + " direction " + direction
+                        + ", cycles " + ghost.getLastCycles() + ", "
+                        + ghost.getLastStop()
+                        + (ghost.getLastError() != null ? " ("
+                                + ghost.getLastError() + ")" : ""));
+            }
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package laml.vm;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import laml.compiler.AbsoluteProgram;
+import laml.compiler.InstructionBuffer;
+import laml.compiler.Opcode;
+import laml.vm.GccException.Kind;
+import laml.vm.Values.Closure;
+import laml.vm.Values.Cons;
+import laml.vm.Values.Frame;
+
+/**
+ * Interpreter for GCC programs, following the semantics of the contest
+ * specification: a data stack of values, a control stack of JOIN and return
+ * entries, and a chain of environment frames. Every instruction executed costs
+ * one cycle; the count carries on across calls, so the cost of a call is the
+ * difference.
+ *
+ * The machine is entered by calling a closure, e.g. main at address 0 with
+ * the initial world state, then the step function main returned. A call ends
+ * when the RTN matching it is reached or the program executes STOP, and
+ * returns the value on top of the data stack.
+ */
+public class GccMachine implements GccEngine {
+    // Kinds of control stack entries
+    private static final int TAG_JOIN = 0;
+    private static final int TAG_RET = 1;
+    private static final int TAG_STOP = 2;
+
+    private static final int INITIAL_STACK_SIZE = 256;
+    private static final Object[] NO_VALUES = new Object[0];
+
+    private final Opcode[] ops;
+    private final int[] args0;
+    private final int[] args1;
+
+    private Object[] data = new Object[INITIAL_STACK_SIZE];
+    private int dataSize;
+    private int[] controlTags = new int[INITIAL_STACK_SIZE];
+    private int[] controlAddrs = new int[INITIAL_STACK_SIZE];
+    private Frame[] controlFrames = new Frame[INITIAL_STACK_SIZE];
+    private int controlSize;
+
+    private long cycles;
+    // Most cycles a single call may take
+    private long cycleLimit = Long.MAX_VALUE;
+    private int maxControlDepth;
+    private final List<Object> trace = new ArrayList<Object>();
+    // Where to print DBUG values as they happen, if anywhere
+    private PrintStream traceOut;
+    // What to charge instructions to, if anything
+    private GccProfiler profiler;
+
+    public GccMachine(AbsoluteProgram prog) {
+        InstructionBuffer code = prog.getCode();
+        int size = code.size();
+        ops = new Opcode[size];
+        args0 = new int[size];
+        args1 = new int[size];
+        for (int addr = 0; addr < size; ++addr) {
+            ops[addr] = code.getOpcode(addr);
+            args0[addr] = code.getArg(addr, 0);
+            args1[addr] = code.getArg(addr, 1);
+        }
+    }
+
+    @Override
+    public long getCycles() {
+        return cycles;
+    }
+
+    @Override
+    public void setCycleLimit(long cycleLimit) {
+        this.cycleLimit = cycleLimit;
+    }
+
+    /**
+     * Deepest the control stack got since the last resetMaxControlDepth.
+     */
+    public int getMaxControlDepth() {
+        return maxControlDepth;
+    }
+
+    public void resetMaxControlDepth() {
+        maxControlDepth = 0;
+    }
+
+    /**
+     * Values passed to DBUG so far, oldest first.
+     */
+    @Override
+    public List<Object> getTrace() {
+        return trace;
+    }
+
+    public void setTraceOut(PrintStream traceOut) {
+        this.traceOut = traceOut;
+    }
+
+    /**
+     * Charge every instruction run from now on to the profiler, or stop
+     * profiling if it is null.
+     */
+    public void setProfiler(GccProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Run main, the code at address 0, with the given arguments.
+     */
+    @Override
+    public Object runMain(Object... args) {
+        return call(new Closure(0, null), args);
+    }
+
+    private void push(Object value) {
+        if (dataSize == data.length) {
+            data = Arrays.copyOf(data, dataSize * 2);
+        }
+        data[dataSize++] = value;
+    }
+
+    private Object pop(int pc) {
+        if (dataSize == 0) {
+            throw new GccException(Kind.FAULT, pc, "data stack is empty");
+        }
+        Object value = data[--dataSize];
+        data[dataSize] = null;
+        return value;
+    }
+
+    private Object[] popValues(int n, int pc) {
+        if (dataSize < n) {
+            throw new GccException(Kind.FAULT, pc, "data stack is empty");
+        }
+        if (n == 0) {
+            return NO_VALUES;
+        }
+        Object[] values = Arrays.copyOfRange(data, dataSize - n, dataSize);
+        Arrays.fill(data, dataSize - n, dataSize, null);
+        dataSize -= n;
+        return values;
+    }
+
+    private int popInt(int pc, Opcode op) {
+        Object value = pop(pc);
+        if (!(value instanceof Integer)) {
+            throw new GccException(Kind.TAG_MISMATCH, pc, op
+                    + " expects an integer, got " + Values.format(value));
+        }
+        return (Integer) value;
+    }
+
+    private Cons popCons(int pc, Opcode op) {
+        Object value = pop(pc);
+        if (!(value instanceof Cons)) {
+            throw new GccException(Kind.TAG_MISMATCH, pc, op
+                    + " expects a cons, got " + Values.format(value));
+        }
+        return (Cons) value;
+    }
+
+    private Closure popClosure(int pc, Opcode op) {
+        Object value = pop(pc);
+        if (!(value instanceof Closure)) {
+            throw new GccException(Kind.TAG_MISMATCH, pc, op
+                    + " expects a closure, got " + Values.format(value));
+        }
+        return (Closure) value;
+    }
+
+    private void pushControl(int tag, int addr, Frame frame) {
+        if (controlSize == controlTags.length) {
+            int capacity = controlSize * 2;
+            controlTags = Arrays.copyOf(controlTags, capacity);
+            controlAddrs = Arrays.copyOf(controlAddrs, capacity);
+            controlFrames = Arrays.copyOf(controlFrames, capacity);
+        }
+        controlTags[controlSize] = tag;
+        controlAddrs[controlSize] = addr;
+        controlFrames[controlSize] = frame;
+        controlSize++;
+        maxControlDepth = Math.max(maxControlDepth, controlSize);
+    }
+
+    /**
+     * The frame depth frames up from env, which must not be a dummy.
+     */
+    private static Frame frameAt(Frame env, int depth, int pc) {
+        Frame frame = env;
+        for (int i = 0; i < depth; ++i) {
+            if (frame == null) {
+                break;
+            }
+            frame = frame.parent;
+        }
+        if (frame == null) {
+            throw new GccException(Kind.FAULT, pc, "no frame at depth "
+                    + depth);
+        }
+        if (frame.dummy) {
+            throw new GccException(Kind.FRAME_MISMATCH, pc,
+                    "frame is a dummy");
+        }
+        return frame;
+    }
+
+    /**
+     * Call the closure with the given arguments and run until it returns.
+     */
+    @Override
+    public Object call(Closure closure, Object... args) {
+        dataSize = 0;
+        controlSize = 0;
+        pushControl(TAG_STOP, 0, null);
+        Frame env = new Frame(args.clone(), closure.env, false);
+        int pc = closure.addr;
+        long limit = cycleLimit == Long.MAX_VALUE ? Long.MAX_VALUE : cycles
+                + cycleLimit;
+        if (profiler != null) {
+            profiler.enter(pc);
+        }
+        while (true) {
+            if (pc < 0 || pc >= ops.length) {
+                throw new GccException(Kind.FAULT, pc, "no instruction here");
+            }
+            if (cycles >= limit) {
+                throw new GccException(Kind.CYCLE_LIMIT, pc, "ran for "
+                        + cycleLimit + " cycles");
+            }
+            cycles++;
+            if (profiler != null) {
+                profiler.instruction();
+            }
+            Opcode op = ops[pc];
+            switch (op) {
+            case LDC:
+                push(args0[pc]);
+                pc++;
+                break;
+            case LD:
+                Frame from = frameAt(env, args0[pc], pc);
+                if (args1[pc] >= from.values.length) {
+                    throw new GccException(Kind.FAULT, pc, "no binding "
+                            + args1[pc]);
+                }
+                push(from.values[args1[pc]]);
+                pc++;
+                break;
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case CEQ:
+            case CGT:
+            case CGTE: {
+                int y = popInt(pc, op);
+                int x = popInt(pc, op);
+                Integer result = op.evaluate(x, y);
+                if (result == null) {
+                    throw new GccException(Kind.FAULT, pc, "division by 0");
+                }
+                push(result);
+                pc++;
+                break;
+            }
+            case ATOM:
+                push(pop(pc) instanceof Integer ? 1 : 0);
+                pc++;
+                break;
+            case CONS: {
+                Object y = pop(pc);
+                Object x = pop(pc);
+                push(new Cons(x, y));
+                pc++;
+                break;
+            }
+            case CAR:
+                push(popCons(pc, op).car);
+                pc++;
+                break;
+            case CDR:
+                push(popCons(pc, op).cdr);
+                pc++;
+                break;
+            case SEL:
+            case TSEL: {
+                int x = popInt(pc, op);
+                if (op == Opcode.SEL) {
+                    pushControl(TAG_JOIN, pc + 1, null);
+                }
+                pc = x != 0 ? args0[pc] : args1[pc];
+                break;
+            }
+            case JOIN:
+                if (controlTags[controlSize - 1] != TAG_JOIN) {
+                    throw new GccException(Kind.CONTROL_MISMATCH, pc,
+                            "JOIN without a SEL");
+                }
+                pc = controlAddrs[--controlSize];
+                break;
+            case LDF:
+                push(new Closure(args0[pc], env));
+                pc++;
+                break;
+            case AP:
+            case TAP: {
+                Closure f = popClosure(pc, op);
+                Object[] values = popValues(args0[pc], pc);
+                if (op == Opcode.AP) {
+                    pushControl(TAG_RET, pc + 1, env);
+                }
+                if (profiler != null) {
+                    profiler.call(f.addr, op == Opcode.TAP);
+                }
+                env = new Frame(values, f.env, false);
+                pc = f.addr;
+                break;
+            }
+            case RTN: {
+                int tag = controlTags[--controlSize];
+                if (tag == TAG_STOP) {
+                    return pop(pc);
+                }
+                if (tag != TAG_RET) {
+                    throw new GccException(Kind.CONTROL_MISMATCH, pc,
+                            "RTN without a call");
+                }
+                pc = controlAddrs[controlSize];
+                env = controlFrames[controlSize];
+                controlFrames[controlSize] = null;
+                if (profiler != null) {
+                    profiler.ret();
+                }
+                break;
+            }
+            case DUM:
+                env = new Frame(new Object[args0[pc]], env, true);
+                pc++;
+                break;
+            case RAP:
+            case TRAP: {
+                Closure f = popClosure(pc, op);
+                if (!env.dummy || env.values.length != args0[pc]
+                        || f.env != env) {
+                    throw new GccException(Kind.FRAME_MISMATCH, pc, op
+                            + " needs the closure made in the dummy frame");
+                }
+                Object[] values = popValues(args0[pc], pc);
+                System.arraycopy(values, 0, env.values, 0, values.length);
+                env.dummy = false;
+                if (op == Opcode.RAP) {
+                    pushControl(TAG_RET, pc + 1, env.parent);
+                }
+                if (profiler != null) {
+                    profiler.call(f.addr, op == Opcode.TRAP);
+                }
+                pc = f.addr;
+                break;
+            }
+            case ST: {
+                Frame to = frameAt(env, args0[pc], pc);
+                if (args1[pc] >= to.values.length) {
+                    throw new GccException(Kind.FAULT, pc, "no binding "
+                            + args1[pc]);
+                }
+                to.values[args1[pc]] = pop(pc);
+                pc++;
+                break;
+            }
+            case DBUG: {
+                Object value = pop(pc);
+                trace.add(value);
+                if (traceOut != null) {
+                    traceOut.println(Values.format(value));
+                }
+                pc++;
+                break;
+            }
+            case BRK:
+                pc++;
+                break;
+            case STOP:
+                return dataSize > 0 ? pop(pc) : null;
+            default:
+                throw new GccException(Kind.FAULT, pc, "unknown op " + op);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package laml.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import laml.compiler.RelativeProgram;
+import laml.compiler.lexer.CharArrayLexer;
+import laml.compiler.opt.PassManager;
+import laml.compiler.parser.ParsedProgram;
+import laml.compiler.parser.Parser;
+import laml.vm.GccException.Kind;
+
+import org.junit.Test;
+
+public class GccMachineTest {
+    private static GccMachine assemble(String prog) {
+        return new GccMachine(RelativeProgram.parseFromLabelledString(prog)
+                .translate());
+    }
+
+    private static GccMachine compile(String prog) {
+        ParsedProgram parsed = Parser.parse(CharArrayLexer
+                .lexProgramString(prog));
+        RelativeProgram relative = new RelativeProgram();
+        relative.addLabeledFunctions(PassManager.forLevel(
+                PassManager.DEFAULT_LEVEL).optimize(parsed));
+        return new GccMachine(relative.translate());
+    }
+
+    private static void assertFault(GccMachine machine, Kind kind) {
+        try {
+            machine.runMain();
+            fail("Expected " + kind);
+        } catch (GccException e) {
+            assertEquals(kind, e.kind);
+        }
+    }
+
+    @Test
+    public void testArithmeticAndCycles() {
+        GccMachine machine = assemble("main:\nLDC 7\nLDC 3\nSUB\nLDC -2\n"
+                + "DIV\nRTN\n");
+        assertEquals(-2, machine.runMain());
+        assertEquals(6, machine.getCycles());
+    }
+
+    @Test
+    public void testRecursiveLocalsWithRap() {
+        // The specification's example: a local function counting down
+        GccMachine machine = assemble("main:\nDUM 1\nLDF count\nLDF body\n"
+                + "RAP 1\nRTN\n" + "body:\nLDC 3\nLD 0 0\nAP 1\nRTN\n"
+                + "count:\nLD 0 0\nTSEL more done\n"
+                + "more:\nLD 0 0\nLDC 1\nSUB\nLD 1 0\nTAP 1\n"
+                + "done:\nLDC 42\nRTN\n");
+        assertEquals(42, machine.runMain());
+        // Tail calls don't grow the control stack
+        assertEquals(3, machine.getMaxControlDepth());
+    }
+
+    @Test
+    public void testSelJoinAndCons() {
+        GccMachine machine = assemble("main:\nLDC 1\nLDC 2\nCONS\nCDR\n"
+                + "SEL yes no\nRTN\nyes:\nLDC 10\nJOIN\nno:\nLDC 20\nJOIN\n");
+        assertEquals(10, machine.runMain());
+    }
+
+    @Test
+    public void testFaults() {
+        assertFault(assemble("main:\nLDC 1\nCAR\nRTN\n"), Kind.TAG_MISMATCH);
+        assertFault(assemble("main:\nLDC 1\nJOIN\n"), Kind.CONTROL_MISMATCH);
+        // TRAP must fill the frame DUM made, with the closure made in it
+        assertFault(assemble("main:\nDUM 1\nLDC 0\nLDF f\nTRAP 2\nf:\n"
+                + "LDC 0\nRTN\n"), Kind.FRAME_MISMATCH);
+        assertFault(assemble("main:\nDUM 1\nLD 0 0\nRTN\n"),
+                Kind.FRAME_MISMATCH);
+        assertFault(assemble("main:\nLDC 1\nLDC 0\nDIV\nRTN\n"), Kind.FAULT);
+
+        GccMachine loop = assemble("main:\nLDC 1\nTSEL main main\n");
+        loop.setCycleLimit(1000);
+        assertFault(loop, Kind.CYCLE_LIMIT);
+        assertEquals(1000, loop.getCycles());
+    }
+
+    @Test
+    public void testCompiledProgram() {
+        GccMachine machine = compile("(define fib (lambda (n) "
+                + "(if (> 2 n) n (+ (fib (- n 1)) (fib (- n 2)))))) "
+                + "(dbug (fib 5)) (fib 10)");
+        assertEquals(55, machine.runMain(0, 0));
+        assertEquals(1, machine.getTrace().size());
+        assertEquals(5, machine.getTrace().get(0));
+    }
+}
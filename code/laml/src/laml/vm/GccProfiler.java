@@ -0,0 +1,321 @@
+package laml.vm;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import laml.compiler.AbsoluteProgram;
+import laml.compiler.FunctionNames;
+import laml.compiler.SourceMap;
+import laml.vm.sim.Game;
+import laml.vm.sim.GameResult;
+import laml.vm.sim.RandomGhost;
+
+/**
+ * Exact profile of a GCC program run on GccMachine: every instruction run is
+ * charged to the function running it, under the call stack it was reached
+ * through. Calls push a function onto the stack, tail calls replace the top
+ * of it and RTN pops it; SEL and JOIN stay in the function.
+ *
+ * Functions are named by entry address, as FunctionNames does.
+ *
+ * Profiles can be written as collapsed stacks, one "main;f;g cycles" line per
+ * stack, for flamegraph.pl and similar tools, or as a table of the functions
+ * taking the most cycles.
+ */
+public class GccProfiler {
+    /**
+     * A call stack: a function, called from the parent's stack.
+     */
+    private static class Node {
+        final Node parent;
+        final int addr;
+        // Instructions run with exactly this stack
+        long self;
+        final Map<Integer, Node> children = new HashMap<Integer, Node>();
+
+        Node(Node parent, int addr) {
+            this.parent = parent;
+            this.addr = addr;
+        }
+
+        Node child(int addr) {
+            Node child = children.get(addr);
+            if (child == null) {
+                child = new Node(this, addr);
+                children.put(addr, child);
+            }
+            return child;
+        }
+    }
+
+    /**
+     * Totals for one function over all stacks it is on.
+     */
+    private static class FunctionStats {
+        final int addr;
+        long self;
+        // Instructions run with the function anywhere on the stack, counting
+        // recursive calls once
+        long total;
+        long calls;
+
+        FunctionStats(int addr) {
+            this.addr = addr;
+        }
+    }
+
+    private final FunctionNames names;
+    private final Node root = new Node(null, -1);
+    private Node current = root;
+    private final Map<Integer, Long> calls = new HashMap<Integer, Long>();
+
+    /**
+     * A profiler for the program, naming functions with its source map if
+     * it has one (which may be null).
+     */
+    public GccProfiler(AbsoluteProgram prog, SourceMap sourceMap) {
+        names = new FunctionNames(prog, sourceMap);
+    }
+
+    private void countCall(int addr) {
+        Long n = calls.get(addr);
+        calls.put(addr, n == null ? 1 : n + 1);
+    }
+
+    /**
+     * The machine is entered by calling the function at addr.
+     */
+    void enter(int addr) {
+        current = root.child(addr);
+        countCall(addr);
+    }
+
+    void instruction() {
+        current.self++;
+    }
+
+    /**
+     * The function at addr is called, replacing the caller if it is a tail
+     * call.
+     */
+    void call(int addr, boolean tail) {
+        Node from = tail && current.parent != null ? current.parent : current;
+        current = from.child(addr);
+        countCall(addr);
+    }
+
+    void ret() {
+        if (current.parent != null) {
+            current = current.parent;
+        }
+    }
+
+    /**
+     * Name of the function at addr.
+     */
+    public String getName(int addr) {
+        return names.get(addr);
+    }
+
+    public long getTotalCycles() {
+        long total = 0;
+        Deque<Node> pending = new ArrayDeque<Node>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            total += node.self;
+            for (Node child : node.children.values()) {
+                pending.push(child);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Write every stack which ran instructions as "f;g;h cycles", outermost
+     * function first.
+     */
+    public void writeCollapsed(PrintStream out) {
+        List<String> lines = new ArrayList<String>();
+        Deque<Node> pending = new ArrayDeque<Node>();
+        for (Node child : root.children.values()) {
+            pending.push(child);
+        }
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            if (node.self > 0) {
+                List<String> stack = new ArrayList<String>();
+                for (Node n = node; n != root; n = n.parent) {
+                    stack.add(getName(n.addr));
+                }
+                StringBuilder sb = new StringBuilder();
+                for (int i = stack.size() - 1; i >= 0; --i) {
+                    sb.append(stack.get(i)).append(i > 0 ? ";" : " ");
+                }
+                lines.add(sb.append(node.self).toString());
+            }
+            for (Node child : node.children.values()) {
+                pending.push(child);
+            }
+        }
+        Collections.sort(lines);
+        for (String line : lines) {
+            out.println(line);
+        }
+    }
+
+    /**
+     * Self and total cycles of every function. Walks the stacks keeping
+     * count of the functions on the current path, so that recursion isn't
+     * counted twice in a total.
+     */
+    private List<FunctionStats> functionStats() {
+        Map<Integer, FunctionStats> stats = new HashMap<Integer, FunctionStats>();
+        Map<Integer, Integer> onPath = new HashMap<Integer, Integer>();
+        // Nodes to visit, with null marking that the node below it is done
+        Deque<Node> pending = new ArrayDeque<Node>();
+        Deque<Node> path = new ArrayDeque<Node>();
+        for (Node child : root.children.values()) {
+            pending.push(child);
+        }
+        Map<Node, Long> subtree = new HashMap<Node, Long>();
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            if (path.peek() == node) {
+                // Leaving the node: its subtree is complete
+                path.pop();
+                long total = node.self;
+                for (Node child : node.children.values()) {
+                    total += subtree.remove(child);
+                }
+                subtree.put(node, total);
+                int depth = onPath.get(node.addr) - 1;
+                if (depth == 0) {
+                    onPath.remove(node.addr);
+                    stats.get(node.addr).total += total;
+                } else {
+                    onPath.put(node.addr, depth);
+                }
+                continue;
+            }
+            FunctionStats s = stats.get(node.addr);
+            if (s == null) {
+                s = new FunctionStats(node.addr);
+                stats.put(node.addr, s);
+            }
+            s.self += node.self;
+            Integer depth = onPath.get(node.addr);
+            onPath.put(node.addr, depth == null ? 1 : depth + 1);
+            path.push(node);
+            pending.push(node);
+            for (Node child : node.children.values()) {
+                pending.push(child);
+            }
+        }
+        for (FunctionStats s : stats.values()) {
+            Long n = calls.get(s.addr);
+            s.calls = n == null ? 0 : n;
+        }
+        return new ArrayList<FunctionStats>(stats.values());
+    }
+
+    /**
+     * Write a table of the n functions running the most instructions
+     * themselves, with the instructions run under them and their calls.
+     */
+    public void writeTop(PrintStream out, int n) {
+        List<FunctionStats> stats = functionStats();
+        Collections.sort(stats, new Comparator<FunctionStats>() {
+            @Override
+            public int compare(FunctionStats a, FunctionStats b) {
+                if (a.self != b.self) {
+                    return a.self > b.self ? -1 : 1;
+                }
+                return a.addr - b.addr;
+            }
+        });
+        long total = Math.max(1, getTotalCycles());
+        out.println(String.format("%-40s %12s %6s %12s %6s %10s", "function",
+                "self", "%", "total", "%", "calls"));
+        for (int i = 0; i < Math.min(n, stats.size()); ++i) {
+            FunctionStats s = stats.get(i);
+            out.println(String.format("%-40s %12d %6.2f %12d %6.2f %10d",
+                    getName(s.addr) + " @" + s.addr, s.self,
+                    100.0 * s.self / total, s.total, 100.0 * s.total / total,
+                    s.calls));
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: laml.vm.GccProfiler prog.gcc map "
+                + "[ghost.ghc...] [--top n] [--collapsed out.folded]");
+        System.exit(1);
+    }
+
+    /**
+     * Play a game with the program as Lambda-Man, profiling main and every
+     * step, then print the top functions and write collapsed stacks. Ghosts
+     * move at random unless ghost programs are given, for the map's ghosts
+     * in turn.
+     */
+    public static void main(String[] args) throws IOException {
+        List<String> files = new ArrayList<String>();
+        int top = 20;
+        String collapsedFile = null;
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("--top") && i + 1 < args.length) {
+                top = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--collapsed") && i + 1 < args.length) {
+                collapsedFile = args[++i];
+            } else if (!args[i].startsWith("-")) {
+                files.add(args[i]);
+            } else {
+                usage();
+            }
+        }
+        if (files.size() < 2) {
+            usage();
+        }
+        Path path = Paths.get(files.get(0));
+        AbsoluteProgram prog = GccHarness.loadProgram(path);
+        GameMap map = GameMap.load(Paths.get(files.get(1)));
+        List<GhcProgram> ghostProgs = new ArrayList<GhcProgram>();
+        for (String file : files.subList(2, files.size())) {
+            ghostProgs.add(GhcProgram.load(Paths.get(file)));
+        }
+        List<GhostAi> ghosts = new ArrayList<GhostAi>();
+        for (int i = 0; i < map.getGhostStarts().size(); ++i) {
+            ghosts.add(ghostProgs.isEmpty() ? new RandomGhost(i)
+                    : new GhcMachine(ghostProgs.get(i % ghostProgs.size()), i));
+        }
+
+        GccProfiler profiler = new GccProfiler(prog, SourceMap.loadFor(path));
+        GccMachine machine = new GccMachine(prog);
+        machine.setProfiler(profiler);
+        GameResult result = new Game(map, machine, ghosts).play();
+        System.out.println(result);
+        System.out.println("cycles: " + profiler.getTotalCycles()
+                + " (main " + result.mainCycles + ", mean step "
+                + String.format("%.1f", result.getMeanStepCycles())
+                + ", max step " + result.maxStepCycles + ")");
+        profiler.writeTop(System.out, top);
+        if (collapsedFile != null) {
+            PrintStream out = new PrintStream(collapsedFile, "UTF-8");
+            try {
+                profiler.writeCollapsed(out);
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
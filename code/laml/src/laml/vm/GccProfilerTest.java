@@ -0,0 +1,40 @@
+package laml.vm;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import laml.compiler.AbsoluteProgram;
+import laml.compiler.RelativeProgram;
+
+import org.junit.Test;
+
+public class GccProfilerTest {
+    private static String collapsed(GccProfiler profiler) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        profiler.writeCollapsed(new PrintStream(out));
+        return out.toString();
+    }
+
+    @Test
+    public void testCyclesByStack() {
+        // f counts down to 0 with calls which are not tail calls, then the
+        // last call is repeated as a tail call
+        AbsoluteProgram prog = RelativeProgram.parseFromLabelledString(
+                "main:\nLDC 2\nLDF f ; Define f\nAP 1\nLDF f\nTAP 1\n"
+                        + "f:\nLD 0 0\nSEL rec base\nRTN\n"
+                        + "rec:\nLD 0 0\nLDC 1\nSUB\nLDF f\nAP 1\nJOIN\n"
+                        + "base:\nLDC 0\nJOIN\n").translate();
+        GccProfiler profiler = new GccProfiler(prog, null);
+        GccMachine machine = new GccMachine(prog);
+        machine.setProfiler(profiler);
+        machine.runMain();
+
+        assertEquals(machine.getCycles(), profiler.getTotalCycles());
+        assertEquals("f", profiler.getName(5));
+        // The tail call from main leaves f in main's place
+        assertEquals("f 5\nmain 5\nmain;f 9\nmain;f;f 9\nmain;f;f;f 5\n",
+                collapsed(profiler).replace("\r", ""));
+    }
+}
@@ -0,0 +1,273 @@
+package laml.vm;
+
+import java.io.PrintStream;
+
+import laml.vm.GhcProgram.Op;
+
+/**
+ * Emulator for the ghost CPU, following the contest specification: eight
+ * 8-bit registers a-h, a pc, and 256 bytes of data memory, all of which
+ * persist from one tick to the next. Each game tick the program runs from
+ * address 0 until HLT, an error, or 1024 instructions, whichever is first.
+ *
+ * The ghost moves in the last valid direction it asked for with INT 0 during
+ * the tick, whether or not the tick ended well.
+ */
+public class GhcMachine implements GhostAi {
+    public static final int NUM_REGISTERS = 8;
+    public static final int MEMORY_SIZE = 256;
+    public static final int TICK_LIMIT = 1024;
+
+    /**
+     * How a tick ended.
+     */
+    public enum Stop {
+        HALT,
+        TICK_LIMIT,
+        // Division by 0, or running off the end of the program
+        ERROR
+    }
+
+    private final GhcProgram prog;
+    private final int ghostIndex;
+    private final int[] registers = new int[NUM_REGISTERS];
+    private final int[] memory = new int[MEMORY_SIZE];
+    private long cycles;
+    private int lastCycles;
+    private Stop lastStop;
+    private String lastError;
+    // Where to print INT 8 traces, if anywhere
+    private PrintStream traceOut;
+
+    public GhcMachine(GhcProgram prog, int ghostIndex) {
+        this.prog = prog;
+        this.ghostIndex = ghostIndex;
+    }
+
+    public int getRegister(int r) {
+        return registers[r];
+    }
+
+    public int getMemory(int addr) {
+        return memory[addr];
+    }
+
+    /**
+     * Instructions run over all ticks so far.
+     */
+    @Override
+    public long getCycles() {
+        return cycles;
+    }
+
+    public int getLastCycles() {
+        return lastCycles;
+    }
+
+    public Stop getLastStop() {
+        return lastStop;
+    }
+
+    /**
+     * What went wrong in the last tick, if it stopped with an error.
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setTraceOut(PrintStream traceOut) {
+        this.traceOut = traceOut;
+    }
+
+    private int read(int addr, int arg, int pc) {
+        int value = prog.getValue(addr, arg);
+        switch (prog.getKind(addr, arg)) {
+        case GhcProgram.REGISTER:
+            return registers[value];
+        case GhcProgram.PC:
+            return pc;
+        case GhcProgram.INDIRECT:
+            return memory[registers[value]];
+        case GhcProgram.MEMORY:
+            return memory[value];
+        default:
+            return value;
+        }
+    }
+
+    /**
+     * Store to the destination, returning the new pc.
+     */
+    private int write(int addr, int value, int pc) {
+        int dest = prog.getValue(addr, 0);
+        value &= 0xff;
+        switch (prog.getKind(addr, 0)) {
+        case GhcProgram.REGISTER:
+            registers[dest] = value;
+            return pc;
+        case GhcProgram.PC:
+            return value;
+        case GhcProgram.INDIRECT:
+            memory[registers[dest]] = value;
+            return pc;
+        default:
+            memory[dest] = value;
+            return pc;
+        }
+    }
+
+    /**
+     * Run one tick, with the ghost currently facing the given direction.
+     * Returns the direction it moves in.
+     */
+    @Override
+    public int runTick(GhostView view, int direction) {
+        int pc = 0;
+        int executed = 0;
+        lastError = null;
+        try {
+            while (true) {
+                if (executed == TICK_LIMIT) {
+                    lastStop = Stop.TICK_LIMIT;
+                    return direction;
+                }
+                if (pc >= prog.size()) {
+                    lastStop = Stop.ERROR;
+                    lastError = "no instruction at " + pc;
+                    return direction;
+                }
+                executed++;
+                int start = pc;
+                Op op = prog.getOp(pc);
+                switch (op) {
+                case MOV:
+                    pc = write(start, read(start, 1, pc), pc);
+                    break;
+                case INC:
+                    pc = write(start, read(start, 0, pc) + 1, pc);
+                    break;
+                case DEC:
+                    pc = write(start, read(start, 0, pc) - 1, pc);
+                    break;
+                case ADD:
+                    pc = write(start, read(start, 0, pc) + read(start, 1, pc),
+                            pc);
+                    break;
+                case SUB:
+                    pc = write(start, read(start, 0, pc) - read(start, 1, pc),
+                            pc);
+                    break;
+                case MUL:
+                    pc = write(start, read(start, 0, pc) * read(start, 1, pc),
+                            pc);
+                    break;
+                case DIV: {
+                    int divisor = read(start, 1, pc);
+                    if (divisor == 0) {
+                        lastStop = Stop.ERROR;
+                        lastError = "division by 0 at " + start;
+                        return direction;
+                    }
+                    pc = write(start, read(start, 0, pc) / divisor, pc);
+                    break;
+                }
+                case AND:
+                    pc = write(start, read(start, 0, pc) & read(start, 1, pc),
+                            pc);
+                    break;
+                case OR:
+                    pc = write(start, read(start, 0, pc) | read(start, 1, pc),
+                            pc);
+                    break;
+                case XOR:
+                    pc = write(start, read(start, 0, pc) ^ read(start, 1, pc),
+                            pc);
+                    break;
+                case JLT:
+                case JEQ:
+                case JGT: {
+                    int x = read(start, 1, pc);
+                    int y = read(start, 2, pc);
+                    boolean jump = op == Op.JLT ? x < y : op == Op.JEQ ? x == y
+                            : x > y;
+                    if (jump) {
+                        pc = prog.getValue(start, 0);
+                    }
+                    break;
+                }
+                case INT:
+                    direction = interrupt(prog.getValue(start, 0), view,
+                            direction, pc);
+                    break;
+                case HLT:
+                    lastStop = Stop.HALT;
+                    return direction;
+                }
+                // The pc moves on unless the instruction changed it
+                if (pc == start) {
+                    pc = (pc + 1) & 0xff;
+                }
+            }
+        } finally {
+            lastCycles = executed;
+            cycles += executed;
+        }
+    }
+
+    /**
+     * Carry out an interrupt, returning the direction the ghost will move.
+     */
+    private int interrupt(int i, GhostView view, int direction, int pc) {
+        int[] location;
+        switch (i) {
+        case 0:
+            if (registers[0] <= 3) {
+                return registers[0];
+            }
+            return direction;
+        case 1:
+        case 2:
+            // With one Lambda-Man, the second is the first
+            location = view.getLambdaManLocation();
+            registers[0] = location[0] & 0xff;
+            registers[1] = location[1] & 0xff;
+            return direction;
+        case 3:
+            registers[0] = ghostIndex;
+            return direction;
+        case 4:
+        case 5:
+        case 6: {
+            int index = registers[0];
+            if (index >= view.getGhostCount()) {
+                return direction;
+            }
+            if (i == 6) {
+                registers[0] = view.getGhostVitality(index);
+                registers[1] = view.getGhostDirection(index);
+                return direction;
+            }
+            location = i == 4 ? view.getGhostStart(index) : view
+                    .getGhostLocation(index);
+            registers[0] = location[0] & 0xff;
+            registers[1] = location[1] & 0xff;
+            return direction;
+        }
+        case 7:
+            registers[0] = view.getSquare(registers[0], registers[1]);
+            return direction;
+        case 8:
+            if (traceOut != null) {
+                StringBuilder line = new StringBuilder("pc " + pc);
+                for (int r = 0; r < NUM_REGISTERS; ++r) {
+                    line.append(' ').append((char) ('a' + r)).append(' ')
+                            .append(registers[r]);
+                }
+                traceOut.println(line);
+            }
+            return direction;
+        default:
+            return direction;
+        }
+    }
+}
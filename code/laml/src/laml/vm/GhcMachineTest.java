@@ -0,0 +1,84 @@
+package laml.vm;
+
+import static org.junit.Assert.assertEquals;
+import laml.vm.GhcMachine.Stop;
+
+import org.junit.Test;
+
+public class GhcMachineTest {
+    private static final GameMap MAP = GameMap.parse("#####\n#\\.=#\n#####\n");
+
+    private static GhcMachine machine(String prog) {
+        return new GhcMachine(GhcProgram.parse(prog), 0);
+    }
+
+    @Test
+    public void testArithmeticWrapsAround() {
+        GhcMachine ghc = machine("mov a,250\nadd a,10\ndec b\nmul a,b\n"
+                + "mov c,7\ndiv c,2 ; comment\nxor d,c\nHLT\n");
+        ghc.runTick(MAP.initialGhostView(), 2);
+        assertEquals(252, ghc.getRegister(0));
+        assertEquals(255, ghc.getRegister(1));
+        assertEquals(3, ghc.getRegister(2));
+        assertEquals(3, ghc.getRegister(3));
+        assertEquals(Stop.HALT, ghc.getLastStop());
+        assertEquals(8, ghc.getLastCycles());
+    }
+
+    @Test
+    public void testMemoryPersistsAcrossTicks() {
+        GhcMachine ghc = machine("inc [0]\nmov b,0\nmov a,[b]\nint 0\nhlt\n");
+        assertEquals(1, ghc.runTick(MAP.initialGhostView(), 2));
+        assertEquals(2, ghc.runTick(MAP.initialGhostView(), 2));
+        // Not a direction, so the ghost keeps going the way it was
+        assertEquals(0, machine("mov a,9\nint 0\nhlt\n").runTick(
+                MAP.initialGhostView(), 0));
+    }
+
+    @Test
+    public void testJumpsAndLimits() {
+        // A jump to itself leaves the pc where it was, so it moves on
+        GhcMachine ghc = machine("mov pc,0\nhlt\n");
+        ghc.runTick(MAP.initialGhostView(), 2);
+        assertEquals(2, ghc.getLastCycles());
+
+        ghc = machine("jeq 1,0,0\njeq 0,0,0\n");
+        ghc.runTick(MAP.initialGhostView(), 2);
+        assertEquals(Stop.TICK_LIMIT, ghc.getLastStop());
+        assertEquals(GhcMachine.TICK_LIMIT, ghc.getLastCycles());
+
+        ghc = machine("mov a,1\ndiv a,b\nhlt\n");
+        ghc.runTick(MAP.initialGhostView(), 2);
+        assertEquals(Stop.ERROR, ghc.getLastStop());
+    }
+
+    @Test
+    public void testInterrupts() {
+        GhcMachine ghc = machine("int 3\nint 5\nmov c,a\nmov d,b\nint 1\n"
+                + "mov e,a\nmov a,2\nmov b,1\nint 7\nmov f,a\nmov a,5\nint 6\n"
+                + "hlt\n");
+        ghc.runTick(MAP.initialGhostView(), 2);
+        assertEquals(3, ghc.getRegister(2));
+        assertEquals(1, ghc.getRegister(3));
+        assertEquals(1, ghc.getRegister(4));
+        assertEquals(GameMap.PILL, ghc.getRegister(5));
+        // No ghost 5, so a and b are left alone
+        assertEquals(5, ghc.getRegister(0));
+        assertEquals(1, ghc.getRegister(1));
+    }
+
+    @Test
+    public void testPreprocess() {
+        String source = "var count\nmv count,3\nstart:\ndouble()\n"
+                + "jgt start,count,0\nhlt\ndouble:\nadd a,a\ndec count\n"
+                + "return\n";
+        String translated = GhcProgram.preprocess(source);
+        assertEquals("mov [0],3 ; 0\n; start\nmov h,3\njeq 5,0,0\n"
+                + "; double()\njgt 1,[0],0 ; 3\nhlt ; 4\n; double\n"
+                + "add a,a ; 5\ndec [0] ; 6\nmov pc,h\n\n", translated);
+        GhcMachine ghc = machine(translated);
+        ghc.runTick(MAP.initialGhostView(), 2);
+        assertEquals(0, ghc.getMemory(0));
+        assertEquals(Stop.HALT, ghc.getLastStop());
+    }
+}
@@ -0,0 +1,298 @@
+package laml.vm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A ghost program in GHC assembly, e.g. "mov a,[c]" or "jlt 5,a,255", one
+ * instruction per line with ; comments. Instructions are decoded into arrays
+ * of opcodes and (kind, value) operands for GhcMachine.
+ */
+public class GhcProgram {
+    public static final int CODE_SIZE = 256;
+
+    public enum Op {
+        MOV(2),
+        INC(1),
+        DEC(1),
+        ADD(2),
+        SUB(2),
+        MUL(2),
+        DIV(2),
+        AND(2),
+        OR(2),
+        XOR(2),
+        JLT(3),
+        JEQ(3),
+        JGT(3),
+        INT(1),
+        HLT(0);
+
+        public final int numArgs;
+
+        private Op(int numArgs) {
+            this.numArgs = numArgs;
+        }
+    }
+
+    // Kinds of operands: a register a-h, the pc, memory at the address in a
+    // register, a constant, and memory at a constant address
+    public static final int REGISTER = 0;
+    public static final int PC = 1;
+    public static final int INDIRECT = 2;
+    public static final int CONSTANT = 3;
+    public static final int MEMORY = 4;
+
+    private static final String REGISTER_NAMES = "abcdefgh";
+
+    private final Op[] ops;
+    // Indexed by instruction * 3 + operand
+    private final int[] kinds;
+    private final int[] values;
+
+    private GhcProgram(Op[] ops, int[] kinds, int[] values) {
+        this.ops = ops;
+        this.kinds = kinds;
+        this.values = values;
+    }
+
+    public int size() {
+        return ops.length;
+    }
+
+    public Op getOp(int addr) {
+        return ops[addr];
+    }
+
+    public int getKind(int addr, int arg) {
+        return kinds[addr * 3 + arg];
+    }
+
+    public int getValue(int addr, int arg) {
+        return values[addr * 3 + arg];
+    }
+
+    /**
+     * Read a program from a file: either GHC assembly, or source for
+     * code/ghost/translate.cpp, with labels, vars and function calls, which
+     * is translated first.
+     */
+    public static GhcProgram load(Path path) throws IOException {
+        String text = new String(Files.readAllBytes(path),
+                StandardCharsets.ISO_8859_1);
+        try {
+            return parse(text);
+        } catch (IllegalArgumentException e) {
+            return parse(preprocess(text));
+        }
+    }
+
+    public static GhcProgram parse(String text) {
+        List<Op> ops = new ArrayList<Op>();
+        List<int[]> operands = new ArrayList<int[]>();
+        String[] lines = text.split("\r?\n");
+        for (int n = 0; n < lines.length; ++n) {
+            String line = lines[n];
+            int comment = line.indexOf(';');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] parts = line.split("\\s+", 2);
+            Op op;
+            try {
+                op = Op.valueOf(parts[0].toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown instruction on line "
+                        + (n + 1) + ": " + line);
+            }
+            String[] args = parts.length > 1 ? parts[1].split(",") : new String[0];
+            if (args.length != op.numArgs) {
+                throw new IllegalArgumentException(op + " takes " + op.numArgs
+                        + " operands, on line " + (n + 1) + ": " + line);
+            }
+            int[] decoded = new int[6];
+            for (int i = 0; i < args.length; ++i) {
+                parseOperand(args[i].trim(), decoded, i, n + 1);
+            }
+            checkOperands(op, decoded, n + 1);
+            ops.add(op);
+            operands.add(decoded);
+        }
+        if (ops.size() > CODE_SIZE) {
+            throw new IllegalArgumentException("Program has " + ops.size()
+                    + " instructions, more than " + CODE_SIZE);
+        }
+        int[] kinds = new int[ops.size() * 3];
+        int[] values = new int[ops.size() * 3];
+        for (int i = 0; i < ops.size(); ++i) {
+            for (int j = 0; j < 3; ++j) {
+                kinds[i * 3 + j] = operands.get(i)[j * 2];
+                values[i * 3 + j] = operands.get(i)[j * 2 + 1];
+            }
+        }
+        return new GhcProgram(ops.toArray(new Op[ops.size()]), kinds, values);
+    }
+
+    private static void parseOperand(String arg, int[] decoded, int i, int line) {
+        String s = arg.toLowerCase(Locale.ROOT);
+        boolean memory = s.startsWith("[") && s.endsWith("]");
+        if (memory) {
+            s = s.substring(1, s.length() - 1).trim();
+        }
+        int kind;
+        int value;
+        if (s.length() == 1 && REGISTER_NAMES.indexOf(s.charAt(0)) >= 0) {
+            kind = memory ? INDIRECT : REGISTER;
+            value = REGISTER_NAMES.indexOf(s.charAt(0));
+        } else if (s.equals("pc") && !memory) {
+            kind = PC;
+            value = 0;
+        } else {
+            try {
+                value = Integer.parseInt(s);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad operand " + arg
+                        + " on line " + line);
+            }
+            if (value < 0 || value > 255) {
+                throw new IllegalArgumentException("Operand " + arg
+                        + " out of range on line " + line);
+            }
+            kind = memory ? MEMORY : CONSTANT;
+        }
+        decoded[i * 2] = kind;
+        decoded[i * 2 + 1] = value;
+    }
+
+    /**
+     * The specification's rules on operands: jump targets are constants, and
+     * nothing may be stored to a constant, or to the pc except by MOV.
+     */
+    private static void checkOperands(Op op, int[] decoded, int line) {
+        switch (op) {
+        case JLT:
+        case JEQ:
+        case JGT:
+            if (decoded[0] != CONSTANT) {
+                throw new IllegalArgumentException(op
+                        + " needs a constant target on line " + line);
+            }
+            return;
+        case INT:
+            if (decoded[0] != CONSTANT) {
+                throw new IllegalArgumentException(
+                        "INT needs a constant on line " + line);
+            }
+            return;
+        case HLT:
+            return;
+        default:
+            if (decoded[0] == CONSTANT || (decoded[0] == PC && op != Op.MOV)) {
+                throw new IllegalArgumentException(op
+                        + " can't store to its destination on line " + line);
+            }
+        }
+    }
+
+    /**
+     * Translate source for code/ghost/translate.cpp into GHC assembly, as
+     * that does, so that programs run here as they would in the game.
+     * Quirks are kept: e.g. only the first use of each label or var on a line
+     * is replaced, and any line containing "var" declares one.
+     */
+    public static String preprocess(String source) {
+        List<String> labels = new ArrayList<String>();
+        List<Integer> labelLines = new ArrayList<Integer>();
+        List<String> vars = new ArrayList<String>();
+        List<String> lines = new ArrayList<String>();
+        int lineNum = 0;
+        for (String line : source.split("\r?\n", -1)) {
+            if (line.endsWith(":")) {
+                String label = line.substring(0, line.length() - 1);
+                labels.add(label);
+                labelLines.add(lineNum);
+                lines.add("; " + label);
+            } else if (line.contains("var")) {
+                if (vars.size() >= 255) {
+                    throw new IllegalArgumentException("Too many variables");
+                }
+                vars.add(line.length() > 4 ? line.substring(4) : "");
+            } else if (line.contains("()")) {
+                // Calls leave the return address in h
+                String function = line.substring(0, line.indexOf("()"));
+                lines.add("mov h," + (lineNum + 2));
+                lines.add("jeq " + function + ",0,0");
+                lineNum += 2;
+                lines.add("; " + line);
+            } else if (line.contains("return")) {
+                lines.add("mov pc,h");
+                lineNum++;
+            } else if (!isBlank(line)) {
+                lines.add(line + " ; " + lineNum);
+                lineNum++;
+            } else {
+                lines.add(line);
+            }
+        }
+
+        StringBuilder out = new StringBuilder();
+        for (String line : lines) {
+            if (!line.startsWith(";")) {
+                for (int j = labels.size() - 1; j >= 0; --j) {
+                    line = replaceFirstWord(line, labels.get(j), ""
+                            + labelLines.get(j));
+                }
+                for (int j = vars.size() - 1; j >= 0; --j) {
+                    line = replaceFirstWord(line, vars.get(j), "[" + j + "]");
+                }
+                line = replaceFirstWord(line, "mv", "mov");
+            }
+            out.append(line).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static boolean isBlank(String line) {
+        for (int i = 0; i < line.length(); ++i) {
+            if (line.charAt(i) != ' ') {
+                return line.charAt(i) == ';';
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAlpha(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /**
+     * Replace the first occurrence of the word, unless a letter is next to
+     * it. Like translate.cpp, the letter after is not checked when it ends
+     * the line.
+     */
+    private static String replaceFirstWord(String s, String word,
+            String replacement) {
+        if (word.isEmpty()) {
+            return s;
+        }
+        int pos = s.indexOf(word);
+        if (pos < 0) {
+            return s;
+        }
+        int end = pos + word.length();
+        if ((pos > 0 && isAlpha(s.charAt(pos - 1)))
+                || (end < s.length() - 1 && isAlpha(s.charAt(end)))) {
+            return s;
+        }
+        return s.substring(0, pos) + replacement + s.substring(end);
+    }
+}
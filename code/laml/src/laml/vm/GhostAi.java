@@ -0,0 +1,17 @@
+package laml.vm;
+
+/**
+ * A ghost's program, asked where to go each time the ghost moves.
+ */
+public interface GhostAi {
+    /**
+     * The direction the ghost wants to move, given the game and the
+     * direction it is facing.
+     */
+    int runTick(GhostView view, int direction);
+
+    /**
+     * Instructions run over all ticks so far.
+     */
+    long getCycles();
+}
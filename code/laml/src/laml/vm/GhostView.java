@@ -0,0 +1,27 @@
+package laml.vm;
+
+/**
+ * What a ghost can find out about the game through GHC interrupts.
+ * Locations are {x, y}; directions are 0 up, 1 right, 2 down, 3 left.
+ */
+public interface GhostView {
+    /**
+     * The square at x, y, as in GameMap, or a wall if that is off the map.
+     */
+    int getSquare(int x, int y);
+
+    int[] getLambdaManLocation();
+
+    int getGhostCount();
+
+    int[] getGhostStart(int index);
+
+    int[] getGhostLocation(int index);
+
+    /**
+     * 0 standard, 1 fright mode, 2 invisible.
+     */
+    int getGhostVitality(int index);
+
+    int getGhostDirection(int index);
+}
@@ -0,0 +1,129 @@
+package laml.vm;
+
+/**
+ * Values the GCC works with: a value is an Integer, a Cons or a Closure.
+ * Helpers here build and take apart the lists and tuples the game passes in
+ * and out of the AI.
+ */
+public class Values {
+    // Nested deeper than this is printed as "..."
+    private static final int MAX_FORMAT_DEPTH = 50;
+
+    /**
+     * CONS cell.
+     */
+    public static final class Cons {
+        public final Object car;
+        public final Object cdr;
+
+        public Cons(Object car, Object cdr) {
+            this.car = car;
+            this.cdr = cdr;
+        }
+
+        @Override
+        public String toString() {
+            return format(this);
+        }
+    }
+
+    /**
+     * Code address plus the frame it was loaded in, made by LDF.
+     */
+    public static final class Closure {
+        public final int addr;
+        public final Frame env;
+
+        public Closure(int addr, Frame env) {
+            this.addr = addr;
+            this.env = env;
+        }
+
+        @Override
+        public String toString() {
+            return format(this);
+        }
+    }
+
+    /**
+     * Environment frame. A frame made by DUM is a dummy until RAP or TRAP
+     * fills it in.
+     */
+    public static final class Frame {
+        public final Object[] values;
+        public final Frame parent;
+        public boolean dummy;
+
+        public Frame(Object[] values, Frame parent, boolean dummy) {
+            this.values = values;
+            this.parent = parent;
+            this.dummy = dummy;
+        }
+    }
+
+    private Values() {
+    }
+
+    /**
+     * Tuple (a, b, ..., z), i.e. CONS cells nested to the right with the
+     * last element in the final cdr.
+     */
+    public static Object tuple(Object... elements) {
+        Object out = elements[elements.length - 1];
+        for (int i = elements.length - 2; i >= 0; --i) {
+            out = new Cons(elements[i], out);
+        }
+        return out;
+    }
+
+    /**
+     * List of the elements, ended by 0.
+     */
+    public static Object list(Object... elements) {
+        Object out = 0;
+        for (int i = elements.length - 1; i >= 0; --i) {
+            out = new Cons(elements[i], out);
+        }
+        return out;
+    }
+
+    public static Object car(Object value) {
+        return ((Cons) value).car;
+    }
+
+    public static Object cdr(Object value) {
+        return ((Cons) value).cdr;
+    }
+
+    /**
+     * Element i of a tuple of the given size.
+     */
+    public static Object tupleGet(Object tuple, int size, int i) {
+        for (int j = 0; j < i; ++j) {
+            tuple = cdr(tuple);
+        }
+        return i == size - 1 ? tuple : car(tuple);
+    }
+
+    public static String format(Object value) {
+        StringBuilder sb = new StringBuilder();
+        format(value, sb, 0);
+        return sb.toString();
+    }
+
+    private static void format(Object value, StringBuilder sb, int depth) {
+        if (depth > MAX_FORMAT_DEPTH) {
+            sb.append("...");
+        } else if (value instanceof Cons) {
+            sb.append('(');
+            format(((Cons) value).car, sb, depth + 1);
+            sb.append(" . ");
+            format(((Cons) value).cdr, sb, depth + 1);
+            sb.append(')');
+        } else if (value instanceof Closure) {
+            sb.append("<closure ").append(((Closure) value).addr).append('>');
+        } else {
+            sb.append(value);
+        }
+    }
+}
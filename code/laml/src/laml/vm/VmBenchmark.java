@@ -0,0 +1,122 @@
+package laml.vm;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import laml.compiler.AbsoluteProgram;
+import laml.vm.Values.Closure;
+import laml.vm.Values.Cons;
+import laml.vm.jit.JitMachine;
+import laml.vm.jit.JitUnsupportedException;
+
+/**
+ * Throughput of the GCC interpreters, in instructions executed per second.
+ *
+ * Given only a program, e.g. the compiled examples/fib/fib.laml, runs main
+ * over and over. Given a map too, e.g. a compiled player on
+ * test-maps/proton-pack.map, runs main once and then times the step
+ * function. Each engine (GccMachine, FastGccMachine and the JVM code from
+ * GccJit) is warmed up, then they are timed in turn over several short
+ * rounds, so that a slow patch of the machine doesn't fall on just one of
+ * them, and the best round of each is reported.
+ *
+ * java laml.vm.VmBenchmark prog.gcc [map]
+ */
+public class VmBenchmark {
+    private static final long WARMUP_NANOS = 2000000000L;
+    private static final long ROUND_NANOS = 200000000L;
+    private static final int ROUNDS = 15;
+
+    /**
+     * One run of the code being timed, returning the cycles it took.
+     */
+    private static abstract class Workload {
+        public abstract long run();
+    }
+
+    private static Workload workload(final GccEngine machine, GameMap map) {
+        if (map == null) {
+            return new Workload() {
+                @Override
+                public long run() {
+                    long start = machine.getCycles();
+                    machine.runMain(0, 0);
+                    return machine.getCycles() - start;
+                }
+            };
+        }
+        final Object world = map.initialWorldState();
+        final Cons main = (Cons) machine.runMain(world, 0);
+        return new Workload() {
+            private Object state = main.car;
+
+            @Override
+            public long run() {
+                long start = machine.getCycles();
+                state = ((Cons) machine.call((Closure) main.cdr, state, world)).car;
+                return machine.getCycles() - start;
+            }
+        };
+    }
+
+    /**
+     * Run the workload for about the given time. Returns {runs, cycles,
+     * nanos}.
+     */
+    private static long[] time(Workload workload, long nanos) {
+        long runs = 0;
+        long cycles = 0;
+        long start = System.nanoTime();
+        long elapsed = 0;
+        while (elapsed < nanos) {
+            cycles += workload.run();
+            runs++;
+            elapsed = System.nanoTime() - start;
+        }
+        return new long[] { runs, cycles, elapsed };
+    }
+
+    private static void report(String[] names, List<Workload> workloads) {
+        for (Workload workload : workloads) {
+            time(workload, WARMUP_NANOS);
+        }
+        long[][] best = new long[workloads.size()][];
+        for (int round = 0; round < ROUNDS; ++round) {
+            for (int i = 0; i < workloads.size(); ++i) {
+                long[] result = time(workloads.get(i), ROUND_NANOS);
+                // Compare cycles per nanosecond
+                if (best[i] == null || result[1] * (double) best[i][2]
+                        > best[i][1] * (double) result[2]) {
+                    best[i] = result;
+                }
+            }
+        }
+        for (int i = 0; i < workloads.size(); ++i) {
+            System.out.println(String.format(
+                    "%-10s %10d cycles/run, %8.2f M instructions/s",
+                    names[i], best[i][1] / best[i][0], best[i][1] * 1e3
+                            / best[i][2]));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: laml.vm.VmBenchmark prog.gcc [map]");
+            System.exit(1);
+        }
+        AbsoluteProgram prog = GccHarness.loadProgram(Paths.get(args[0]));
+        GameMap map = args.length > 1 ? GameMap.load(Paths.get(args[1]))
+                : null;
+        List<Workload> workloads = new ArrayList<Workload>();
+        workloads.add(workload(new GccMachine(prog), map));
+        workloads.add(workload(new FastGccMachine(prog), map));
+        try {
+            workloads.add(workload(new JitMachine(prog), map));
+        } catch (JitUnsupportedException e) {
+            System.out.println("compiled   " + e.getMessage());
+        }
+        report(new String[] { "reference", "fast", "compiled" }, workloads);
+    }
+}
@@ -0,0 +1,409 @@
+package laml.vm.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of a class file writer for the GCC compiler: a constant pool,
+ * methods with code, and nothing else.
+ *
+ * Classes are written as version 49 (Java 5), which the JVM verifies by type
+ * inference, so no stack map frames are needed. Code is limited to 32K so
+ * that every branch fits a 16-bit offset.
+ */
+class ClassWriter {
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int VERSION = 49;
+
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    public static final int MAX_CODE_SIZE = 32767;
+
+    // Constant pool tags
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    // Opcodes used by the compiler
+    public static final int ACONST_NULL = 0x01;
+    public static final int ICONST_0 = 0x03;
+    public static final int BIPUSH = 0x10;
+    public static final int SIPUSH = 0x11;
+    public static final int LDC = 0x12;
+    public static final int LDC_W = 0x13;
+    public static final int LDC2_W = 0x14;
+    public static final int ILOAD = 0x15;
+    public static final int ALOAD = 0x19;
+    public static final int ISTORE = 0x36;
+    public static final int ASTORE = 0x3a;
+    public static final int AASTORE = 0x53;
+    public static final int POP = 0x57;
+    public static final int DUP = 0x59;
+    public static final int SWAP = 0x5f;
+    public static final int IFEQ = 0x99;
+    public static final int IFNE = 0x9a;
+    public static final int IF_ICMPNE = 0xa0;
+    public static final int IF_ACMPNE = 0xa6;
+    public static final int GOTO = 0xa7;
+    public static final int LOOKUPSWITCH = 0xab;
+    public static final int ARETURN = 0xb0;
+    public static final int RETURN = 0xb1;
+    public static final int GETSTATIC = 0xb2;
+    public static final int GETFIELD = 0xb4;
+    public static final int PUTFIELD = 0xb5;
+    public static final int INVOKESPECIAL = 0xb7;
+    public static final int INVOKESTATIC = 0xb8;
+    public static final int NEW = 0xbb;
+    public static final int ANEWARRAY = 0xbd;
+    public static final int ATHROW = 0xbf;
+
+    /**
+     * A position in a method's code, which branches may refer to before it is
+     * placed.
+     */
+    public static class Label {
+        private int pos = -1;
+        // Branches waiting for the position: the branch's own position, then
+        // where its offset goes, and whether the offset is 4 bytes
+        private final List<int[]> fixups = new ArrayList<int[]>();
+
+        public boolean isPlaced() {
+            return pos >= 0;
+        }
+    }
+
+    /**
+     * The code of one method.
+     */
+    public class Code {
+        private final int access;
+        private final String name;
+        private final String desc;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final List<Label> labels = new ArrayList<Label>();
+        private int maxStack;
+        private int maxLocals;
+
+        private Code(int access, String name, String desc) {
+            this.access = access;
+            this.name = name;
+            this.desc = desc;
+        }
+
+        public Label newLabel() {
+            Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+
+        public void setMaxs(int maxStack, int maxLocals) {
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        public int size() {
+            return bytes.size();
+        }
+
+        private void u1(int b) {
+            bytes.write(b);
+        }
+
+        private void u2(int v) {
+            bytes.write(v >> 8);
+            bytes.write(v);
+        }
+
+        private void u4(int v) {
+            u2(v >>> 16);
+            u2(v & 0xffff);
+        }
+
+        public void op(int op) {
+            u1(op);
+        }
+
+        /**
+         * An instruction taking a local variable index.
+         */
+        public void var(int op, int index) {
+            u1(op);
+            u1(index);
+        }
+
+        public void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                u1(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(BIPUSH);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                u1(SIPUSH);
+                u2(value);
+            } else {
+                int index = intConstant(value);
+                if (index < 256) {
+                    u1(LDC);
+                    u1(index);
+                } else {
+                    u1(LDC_W);
+                    u2(index);
+                }
+            }
+        }
+
+        public void pushLong(long value) {
+            u1(LDC2_W);
+            u2(longConstant(value));
+        }
+
+        public void type(int op, String className) {
+            u1(op);
+            u2(classConstant(className));
+        }
+
+        public void field(int op, String owner, String name, String desc) {
+            u1(op);
+            u2(memberConstant(CONSTANT_FIELDREF, owner, name, desc));
+        }
+
+        public void invoke(int op, String owner, String name, String desc) {
+            u1(op);
+            u2(memberConstant(CONSTANT_METHODREF, owner, name, desc));
+        }
+
+        public void invokeInterface(String owner, String name, String desc,
+                int argSlots) {
+            u1(0xb9);
+            u2(memberConstant(CONSTANT_INTERFACE_METHODREF, owner, name, desc));
+            u1(argSlots + 1);
+            u1(0);
+        }
+
+        public void jump(int op, Label label) {
+            int at = bytes.size();
+            u1(op);
+            offset(label, at, false);
+        }
+
+        /**
+         * A lookupswitch on the int on top of the stack. Keys must be sorted.
+         */
+        public void lookupSwitch(Label defaultLabel, int[] keys, Label[] labels) {
+            int at = bytes.size();
+            u1(LOOKUPSWITCH);
+            while (bytes.size() % 4 != 0) {
+                u1(0);
+            }
+            offset(defaultLabel, at, true);
+            u4(keys.length);
+            for (int i = 0; i < keys.length; ++i) {
+                u4(keys[i]);
+                offset(labels[i], at, true);
+            }
+        }
+
+        private void offset(Label label, int at, boolean wide) {
+            if (label.isPlaced()) {
+                if (wide) {
+                    u4(label.pos - at);
+                } else {
+                    u2(label.pos - at);
+                }
+            } else {
+                label.fixups.add(new int[] { at, bytes.size(), wide ? 1 : 0 });
+                if (wide) {
+                    u4(0);
+                } else {
+                    u2(0);
+                }
+            }
+        }
+
+        public void mark(Label label) {
+            label.pos = bytes.size();
+        }
+
+        /**
+         * The code, with branches to the labels filled in.
+         */
+        private byte[] finish() throws JitUnsupportedException {
+            byte[] code = bytes.toByteArray();
+            if (code.length > MAX_CODE_SIZE) {
+                throw new JitUnsupportedException("method " + name
+                        + " is " + code.length + " bytes");
+            }
+            for (Label label : labels) {
+                if (!label.fixups.isEmpty() && !label.isPlaced()) {
+                    throw new IllegalStateException("label never placed in "
+                            + name);
+                }
+                for (int[] fixup : label.fixups) {
+                    int offset = label.pos - fixup[0];
+                    if (fixup[2] == 1) {
+                        code[fixup[1]] = (byte) (offset >> 24);
+                        code[fixup[1] + 1] = (byte) (offset >> 16);
+                        code[fixup[1] + 2] = (byte) (offset >> 8);
+                        code[fixup[1] + 3] = (byte) offset;
+                    } else {
+                        code[fixup[1]] = (byte) (offset >> 8);
+                        code[fixup[1] + 1] = (byte) offset;
+                    }
+                }
+            }
+            return code;
+        }
+    }
+
+    private final String name;
+    private final String superName;
+    private final String[] interfaces;
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndices = new HashMap<String, Integer>();
+    private int poolCount = 1;
+    private final List<Code> methods = new ArrayList<Code>();
+
+    public ClassWriter(String name, String superName, String... interfaces) {
+        this.name = name;
+        this.superName = superName;
+        this.interfaces = interfaces;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Code addMethod(int access, String name, String desc) {
+        Code code = new Code(access, name, desc);
+        methods.add(code);
+        return code;
+    }
+
+    private int constant(String key, int slots, int tag, Object... parts) {
+        Integer index = poolIndices.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            poolOut.writeByte(tag);
+            for (Object part : parts) {
+                if (part instanceof String) {
+                    poolOut.writeUTF((String) part);
+                } else if (part instanceof Long) {
+                    poolOut.writeLong((Long) part);
+                } else if (part instanceof Integer && tag == CONSTANT_INTEGER) {
+                    poolOut.writeInt((Integer) part);
+                } else {
+                    poolOut.writeShort((Integer) part);
+                }
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        index = poolCount;
+        poolCount += slots;
+        poolIndices.put(key, index);
+        return index;
+    }
+
+    private int utf8(String s) {
+        return constant("U" + s, 1, CONSTANT_UTF8, s);
+    }
+
+    private int intConstant(int value) {
+        return constant("I" + value, 1, CONSTANT_INTEGER, value);
+    }
+
+    private int longConstant(long value) {
+        return constant("J" + value, 2, CONSTANT_LONG, value);
+    }
+
+    private int classConstant(String className) {
+        int nameIndex = utf8(className);
+        return constant("C" + className, 1, CONSTANT_CLASS, nameIndex);
+    }
+
+    private int memberConstant(int tag, String owner, String name, String desc) {
+        int ownerIndex = classConstant(owner);
+        int nameIndex = utf8(name);
+        int descIndex = utf8(desc);
+        int nameAndType = constant("N" + name + " " + desc, 1,
+                CONSTANT_NAME_AND_TYPE, nameIndex, descIndex);
+        return constant(tag + owner + "." + name + " " + desc, 1, tag,
+                ownerIndex, nameAndType);
+    }
+
+    /**
+     * Write out the class.
+     */
+    public byte[] toByteArray() throws JitUnsupportedException {
+        int thisIndex = classConstant(name);
+        int superIndex = classConstant(superName);
+        int[] interfaceIndices = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; ++i) {
+            interfaceIndices[i] = classConstant(interfaces[i]);
+        }
+        int codeIndex = utf8("Code");
+        List<byte[]> codes = new ArrayList<byte[]>();
+        for (Code method : methods) {
+            utf8(method.name);
+            utf8(method.desc);
+            codes.add(method.finish());
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(interfaceIndices.length);
+            for (int index : interfaceIndices) {
+                out.writeShort(index);
+            }
+            // No fields
+            out.writeShort(0);
+            out.writeShort(methods.size());
+            for (int i = 0; i < methods.size(); ++i) {
+                Code method = methods.get(i);
+                byte[] code = codes.get(i);
+                out.writeShort(method.access);
+                out.writeShort(utf8(method.name));
+                out.writeShort(utf8(method.desc));
+                out.writeShort(1);
+                out.writeShort(codeIndex);
+                out.writeInt(12 + code.length);
+                out.writeShort(method.maxStack);
+                out.writeShort(method.maxLocals);
+                out.writeInt(code.length);
+                out.write(code);
+                // No exception table or attributes
+                out.writeShort(0);
+                out.writeShort(0);
+            }
+            // No class attributes
+            out.writeShort(0);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package laml.vm.jit;
+
+import laml.vm.Values.Frame;
+
+/**
+ * A GCC program compiled to JVM code by GccJit. The generated class keeps no
+ * state of its own, so one compiled program can back any number of machines.
+ */
+public interface CompiledProgram {
+    /**
+     * Run the function at addr in the given frame until it returns, counting
+     * cycles in the context.
+     */
+    Object call(int addr, Frame env, JitContext context);
+}
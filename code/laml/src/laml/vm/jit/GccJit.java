@@ -0,0 +1,651 @@
+package laml.vm.jit;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import laml.compiler.AbsoluteProgram;
+import laml.compiler.InstructionBuffer;
+import laml.compiler.Opcode;
+import laml.vm.jit.ClassWriter.Code;
+import laml.vm.jit.ClassWriter.Label;
+
+import static laml.vm.jit.ClassWriter.*;
+
+/**
+ * Compiles a GCC program to a JVM class, so that the JIT can compile the AI's
+ * code rather than the interpreter's loop.
+ *
+ * Each function, i.e. main and every LDF target, becomes a static method
+ * taking its frame. The data stack becomes the JVM operand stack, so its
+ * depth must be known at every instruction: the same whichever way the
+ * instruction is reached, one at RTN, and exactly the arguments at a tail
+ * call. SEL and JOIN become branches within the method; since a SEL's
+ * branches end in a JOIN back to the instruction after it, they are compiled
+ * once for each SEL nesting they are reached in. AP is a JVM call. TAP and
+ * TRAP jump back to the start of the method when they call the function
+ * they are in, which is how loops are written; other tail calls return to a
+ * trampoline, so that the JVM stack does not grow with them.
+ *
+ * Cycles are counted a run of instructions at a time. A run ends after any
+ * instruction whose effects can be seen, so the cycle limit is checked before
+ * that instruction, and an instruction which faults says how many of the run
+ * it did not get to. Results, faults and cycle counts are the same as
+ * GccMachine's.
+ *
+ * Programs which use the stacks in ways this can't follow, e.g. a function
+ * returning or tail calling with values left under the result, which its
+ * caller would then see, are refused with a JitUnsupportedException.
+ * Those must be run by GccMachine.
+ */
+public class GccJit {
+    private static final String OBJECT = "java/lang/Object";
+    private static final String INTEGER = "java/lang/Integer";
+    private static final String FRAME = "laml/vm/Values$Frame";
+    private static final String CLOSURE = "laml/vm/Values$Closure";
+    private static final String CONTEXT = "laml/vm/jit/JitContext";
+    private static final String RUNTIME = "laml/vm/jit/JitRuntime";
+    private static final String COMPILED = "laml/vm/jit/CompiledProgram";
+
+    private static final String VALUE = "Ljava/lang/Object;";
+    private static final String FRAME_DESC = "(L" + FRAME + ";L" + CONTEXT
+            + ";)" + VALUE;
+    private static final String CALL_DESC = "(IL" + FRAME + ";L" + CONTEXT
+            + ";)" + VALUE;
+
+    // Locals of a function: its frame, the context, and the closure and
+    // values of the call being made
+    private static final int ENV = 0;
+    private static final int CONTEXT_VAR = 1;
+    private static final int CALLEE = 2;
+    private static final int VALUES = 3;
+    // Most slots the runtime calls take beyond the data stack
+    private static final int EXTRA_STACK = 6;
+    // Deepest nesting of SELs compiled
+    private static final int MAX_JOINS = 64;
+
+    private static final AtomicInteger classCount = new AtomicInteger();
+
+    private final Opcode[] ops;
+    private final int[] args0;
+    private final int[] args1;
+    // Instructions jumped to, which start blocks
+    private final boolean[] leaders;
+    private final TreeSet<Integer> functions = new TreeSet<Integer>();
+    private final ClassWriter writer;
+
+    /**
+     * The JOIN return addresses of the SELs being compiled in, innermost
+     * first.
+     */
+    private static class Joins {
+        final int ret;
+        final Joins parent;
+        final int size;
+        final String key;
+
+        Joins(int ret, Joins parent) {
+            this.ret = ret;
+            this.parent = parent;
+            size = parent == null ? 1 : parent.size + 1;
+            key = parent == null ? "" + ret : ret + "," + parent.key;
+        }
+    }
+
+    /**
+     * An instruction compiled in some SEL nesting, with the data stack depth
+     * there.
+     */
+    private static class Block {
+        final int addr;
+        final Joins joins;
+        final int depth;
+        final Label label;
+
+        Block(int addr, Joins joins, int depth, Label label) {
+            this.addr = addr;
+            this.joins = joins;
+            this.depth = depth;
+            this.label = label;
+        }
+    }
+
+    private GccJit(AbsoluteProgram prog) throws JitUnsupportedException {
+        InstructionBuffer code = prog.getCode();
+        int size = code.size();
+        ops = new Opcode[size];
+        args0 = new int[size];
+        args1 = new int[size];
+        leaders = new boolean[size];
+        for (int addr = 0; addr < size; ++addr) {
+            ops[addr] = code.getOpcode(addr);
+            args0[addr] = code.getArg(addr, 0);
+            args1[addr] = code.getArg(addr, 1);
+        }
+        if (size == 0) {
+            throw new JitUnsupportedException("empty program");
+        }
+        functions.add(0);
+        leaders[0] = true;
+        for (int addr = 0; addr < size; ++addr) {
+            switch (ops[addr]) {
+            case LDF:
+                functions.add(target(addr, args0[addr]));
+                leaders[args0[addr]] = true;
+                break;
+            case SEL:
+            case TSEL:
+                // A SEL's JOIN comes back to the next instruction
+                if (ops[addr] == Opcode.SEL && addr + 1 < size) {
+                    leaders[addr + 1] = true;
+                }
+                leaders[target(addr, args0[addr])] = true;
+                leaders[target(addr, args1[addr])] = true;
+                break;
+            default:
+                break;
+            }
+        }
+        writer = new ClassWriter("laml/vm/jit/CompiledGcc"
+                + classCount.incrementAndGet(), OBJECT, COMPILED);
+    }
+
+    private int target(int addr, int target) throws JitUnsupportedException {
+        if (target < 0 || target >= ops.length) {
+            throw unsupported(addr, "jump out of the program");
+        }
+        return target;
+    }
+
+    private static JitUnsupportedException unsupported(int addr,
+            String reason) {
+        return new JitUnsupportedException("can't compile " + reason
+                + " at " + addr);
+    }
+
+    /**
+     * Compile the program, and load it in a class loader of its own.
+     */
+    public static CompiledProgram compile(AbsoluteProgram prog)
+            throws JitUnsupportedException {
+        GccJit jit = new GccJit(prog);
+        byte[] bytes = jit.generate();
+        try {
+            return (CompiledProgram) new Loader()
+                    .define(jit.writer.getName(), bytes)
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static class Loader extends ClassLoader {
+        Loader() {
+            super(GccJit.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name.replace('/', '.'), bytes, 0, bytes.length);
+        }
+    }
+
+    private byte[] generate() throws JitUnsupportedException {
+        Code init = writer.addMethod(ACC_PUBLIC, "<init>", "()V");
+        init.var(ALOAD, 0);
+        init.invoke(INVOKESPECIAL, OBJECT, "<init>", "()V");
+        init.op(RETURN);
+        init.setMaxs(1, 1);
+
+        Code call = writer.addMethod(ACC_PUBLIC, "call", CALL_DESC);
+        call.var(ILOAD, 1);
+        call.var(ALOAD, 2);
+        call.var(ALOAD, 3);
+        call.invoke(INVOKESTATIC, writer.getName(), "invoke", CALL_DESC);
+        call.op(ARETURN);
+        call.setMaxs(3, 4);
+
+        generateInvoke();
+        generateDispatch();
+        for (int entry : functions) {
+            new FunctionCompiler(entry).compile();
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * invoke(addr, env, context) calls the function at addr, and then any
+     * tail calls it returns.
+     */
+    private void generateInvoke() {
+        Code code = writer.addMethod(ACC_PUBLIC | ACC_STATIC, "invoke",
+                CALL_DESC);
+        Label loop = code.newLabel();
+        Label done = code.newLabel();
+        code.mark(loop);
+        code.var(ILOAD, 0);
+        code.var(ALOAD, 1);
+        code.var(ALOAD, 2);
+        code.invoke(INVOKESTATIC, writer.getName(), "dispatch", CALL_DESC);
+        code.op(DUP);
+        code.field(GETSTATIC, RUNTIME, "TAIL", VALUE);
+        code.jump(IF_ACMPNE, done);
+        code.op(POP);
+        code.var(ALOAD, 2);
+        code.field(GETFIELD, CONTEXT, "tailAddr", "I");
+        code.var(ISTORE, 0);
+        code.var(ALOAD, 2);
+        code.field(GETFIELD, CONTEXT, "tailEnv", "L" + FRAME + ";");
+        code.var(ASTORE, 1);
+        code.jump(GOTO, loop);
+        code.mark(done);
+        code.op(ARETURN);
+        code.setMaxs(4, 3);
+    }
+
+    /**
+     * dispatch(addr, env, context) runs the function at addr once.
+     */
+    private void generateDispatch() {
+        Code code = writer.addMethod(ACC_PUBLIC | ACC_STATIC, "dispatch",
+                CALL_DESC);
+        int[] keys = new int[functions.size()];
+        Label[] labels = new Label[keys.length];
+        int i = 0;
+        for (int entry : functions) {
+            keys[i] = entry;
+            labels[i] = code.newLabel();
+            i++;
+        }
+        Label missing = code.newLabel();
+        code.var(ILOAD, 0);
+        code.lookupSwitch(missing, keys, labels);
+        for (i = 0; i < keys.length; ++i) {
+            code.mark(labels[i]);
+            code.var(ALOAD, 1);
+            code.var(ALOAD, 2);
+            code.invoke(INVOKESTATIC, writer.getName(), "f" + keys[i],
+                    FRAME_DESC);
+            code.op(ARETURN);
+        }
+        code.mark(missing);
+        code.var(ILOAD, 0);
+        code.invoke(INVOKESTATIC, RUNTIME, "noFunction",
+                "(I)Ljava/lang/RuntimeException;");
+        code.op(ATHROW);
+        code.setMaxs(3, 3);
+    }
+
+    /**
+     * Whether the instruction ends a run of instructions counted together:
+     * either control goes elsewhere, or it has effects the cycle limit must
+     * stop.
+     */
+    private static boolean endsRun(Opcode op) {
+        switch (op) {
+        case SEL:
+        case TSEL:
+        case JOIN:
+        case AP:
+        case TAP:
+        case RTN:
+        case RAP:
+        case TRAP:
+        case STOP:
+        case ST:
+        case DBUG:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Compiles the method for one function.
+     */
+    private class FunctionCompiler {
+        private final int entry;
+        private final Code code;
+        private final Map<String, Block> blocks = new HashMap<String, Block>();
+        private final Deque<Block> work = new ArrayDeque<Block>();
+        private final Block start;
+        private int maxDepth;
+
+        FunctionCompiler(int entry) throws JitUnsupportedException {
+            this.entry = entry;
+            code = writer.addMethod(ACC_PUBLIC | ACC_STATIC, "f" + entry,
+                    FRAME_DESC);
+            start = block(entry, null, 0, entry);
+        }
+
+        void compile() throws JitUnsupportedException {
+            while (!work.isEmpty()) {
+                compileBlock(work.pop());
+            }
+            code.setMaxs(maxDepth + EXTRA_STACK, 4);
+        }
+
+        /**
+         * The block for the instruction in the SEL nesting, reached from
+         * the instruction at from with the given stack depth.
+         */
+        private Block block(int addr, Joins joins, int depth, int from)
+                throws JitUnsupportedException {
+            if (addr >= ops.length) {
+                throw unsupported(from, "running off the end of the program");
+            }
+            String key = joins == null ? "" + addr : addr + ":" + joins.key;
+            Block block = blocks.get(key);
+            if (block == null) {
+                block = new Block(addr, joins, depth, code.newLabel());
+                blocks.put(key, block);
+                work.push(block);
+            } else if (block.depth != depth) {
+                throw unsupported(from, "data stack depths " + block.depth
+                        + " and " + depth + " meeting");
+            }
+            return block;
+        }
+
+        private void compileBlock(Block block) throws JitUnsupportedException {
+            code.mark(block.label);
+            int pc = block.addr;
+            int depth = block.depth;
+            while (true) {
+                int end = pc;
+                while (!endsRun(ops[end]) && end + 1 < ops.length
+                        && !leaders[end + 1]) {
+                    end++;
+                }
+                code.var(ALOAD, CONTEXT_VAR);
+                code.pushInt(end + 1 - pc);
+                code.invoke(INVOKESTATIC, RUNTIME, "count", "(L" + CONTEXT
+                        + ";I)V");
+                for (int addr = pc; addr <= end; ++addr) {
+                    if (addr == end) {
+                        code.var(ALOAD, CONTEXT_VAR);
+                        code.pushInt(addr);
+                        code.invoke(INVOKESTATIC, RUNTIME, "check", "(L"
+                                + CONTEXT + ";I)V");
+                    }
+                    depth = compileInstruction(addr, end - addr, depth,
+                            block.joins);
+                    if (depth < 0) {
+                        return;
+                    }
+                    maxDepth = Math.max(maxDepth, depth);
+                }
+                pc = end + 1;
+                if (pc >= ops.length) {
+                    throw unsupported(end, "running off the end of the program");
+                }
+                if (leaders[pc]) {
+                    code.jump(GOTO, block(pc, block.joins, depth, end).label);
+                    return;
+                }
+            }
+        }
+
+        private void need(int addr, int depth, int values)
+                throws JitUnsupportedException {
+            if (depth < values) {
+                throw unsupported(addr, "popping values pushed by the caller");
+            }
+        }
+
+        private void runtime(String name, String desc) {
+            code.invoke(INVOKESTATIC, RUNTIME, name, desc);
+        }
+
+        /**
+         * Compile the instruction, with the given number after it in its
+         * run. Returns the data stack depth after it, or -1 if control does
+         * not carry on to the next instruction.
+         */
+        private int compileInstruction(int addr, int after, int depth,
+                Joins joins) throws JitUnsupportedException {
+            Opcode op = ops[addr];
+            int arg0 = args0[addr];
+            int arg1 = args1[addr];
+            switch (op) {
+            case LDC:
+                code.pushInt(arg0);
+                code.invoke(INVOKESTATIC, INTEGER, "valueOf", "(I)L" + INTEGER
+                        + ";");
+                return depth + 1;
+            case LD:
+                code.var(ALOAD, ENV);
+                code.pushInt(arg0);
+                code.pushInt(arg1);
+                code.pushInt(addr);
+                code.pushInt(after);
+                runtime("ld", "(L" + FRAME + ";IIII)" + VALUE);
+                return depth + 1;
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case CEQ:
+            case CGT:
+            case CGTE:
+                need(addr, depth, 2);
+                code.pushInt(addr);
+                code.pushInt(after);
+                runtime(op.name().toLowerCase(), "(" + VALUE + VALUE + "II)"
+                        + VALUE);
+                return depth - 1;
+            case ATOM:
+                need(addr, depth, 1);
+                runtime("atom", "(" + VALUE + ")" + VALUE);
+                return depth;
+            case CONS:
+                need(addr, depth, 2);
+                runtime("cons", "(" + VALUE + VALUE + ")" + VALUE);
+                return depth - 1;
+            case CAR:
+            case CDR:
+                need(addr, depth, 1);
+                code.pushInt(addr);
+                code.pushInt(after);
+                runtime(op.name().toLowerCase(), "(" + VALUE + "II)" + VALUE);
+                return depth;
+            case SEL:
+            case TSEL: {
+                need(addr, depth, 1);
+                Joins inner = joins;
+                if (op == Opcode.SEL) {
+                    inner = new Joins(addr + 1, joins);
+                    if (inner.size > MAX_JOINS) {
+                        throw unsupported(addr, "SELs nested so deep");
+                    }
+                }
+                code.pushInt(op.ordinal());
+                code.pushInt(addr);
+                runtime("test", "(" + VALUE + "II)Z");
+                code.jump(IFEQ, block(arg1, inner, depth - 1, addr).label);
+                code.jump(GOTO, block(arg0, inner, depth - 1, addr).label);
+                return -1;
+            }
+            case JOIN:
+                if (joins == null) {
+                    throw unsupported(addr, "JOIN outside a SEL");
+                }
+                code.jump(GOTO, block(joins.ret, joins.parent, depth, addr)
+                        .label);
+                return -1;
+            case LDF:
+                code.pushInt(arg0);
+                code.var(ALOAD, ENV);
+                runtime("closure", "(IL" + FRAME + ";)" + VALUE);
+                return depth + 1;
+            case AP:
+            case TAP:
+                need(addr, depth, arg0 + 1);
+                code.pushInt(op.ordinal());
+                code.pushInt(addr);
+                runtime("toClosure", "(" + VALUE + "II)L" + CLOSURE + ";");
+                code.var(ASTORE, CALLEE);
+                code.pushInt(arg0);
+                code.type(ANEWARRAY, OBJECT);
+                code.var(ASTORE, VALUES);
+                popInto(VALUES, arg0);
+                depth -= arg0 + 1;
+                if (op == Opcode.AP) {
+                    code.var(ALOAD, CALLEE);
+                    code.field(GETFIELD, CLOSURE, "addr", "I");
+                    newFrame();
+                    code.var(ALOAD, CONTEXT_VAR);
+                    code.invoke(INVOKESTATIC, writer.getName(), "invoke",
+                            CALL_DESC);
+                    return depth + 1;
+                }
+                tailCall(addr, depth, joins, true);
+                return -1;
+            case RTN:
+                if (joins != null) {
+                    throw unsupported(addr, "RTN inside a SEL");
+                }
+                if (depth == 0) {
+                    code.pushInt(addr);
+                    runtime("emptyStack", "(I)Ljava/lang/RuntimeException;");
+                    code.op(ATHROW);
+                    return -1;
+                }
+                if (depth != 1) {
+                    throw unsupported(addr, "RTN with " + depth
+                            + " values on the data stack");
+                }
+                code.op(ARETURN);
+                return -1;
+            case DUM:
+                code.pushInt(arg0);
+                code.var(ALOAD, ENV);
+                runtime("dum", "(IL" + FRAME + ";)L" + FRAME + ";");
+                code.var(ASTORE, ENV);
+                return depth;
+            case RAP:
+            case TRAP:
+                need(addr, depth, arg0 + 1);
+                code.var(ALOAD, ENV);
+                code.pushInt(arg0);
+                code.pushInt(op.ordinal());
+                code.pushInt(addr);
+                runtime("rap", "(" + VALUE + "L" + FRAME + ";III)L" + CLOSURE
+                        + ";");
+                code.var(ASTORE, CALLEE);
+                code.var(ALOAD, ENV);
+                code.field(GETFIELD, FRAME, "values", "[" + VALUE);
+                code.var(ASTORE, VALUES);
+                popInto(VALUES, arg0);
+                depth -= arg0 + 1;
+                if (op == Opcode.RAP) {
+                    code.var(ALOAD, CALLEE);
+                    code.field(GETFIELD, CLOSURE, "addr", "I");
+                    code.var(ALOAD, ENV);
+                    code.var(ALOAD, CONTEXT_VAR);
+                    code.invoke(INVOKESTATIC, writer.getName(), "invoke",
+                            CALL_DESC);
+                    // Back in the frame the dummy was made in
+                    code.var(ALOAD, ENV);
+                    code.field(GETFIELD, FRAME, "parent", "L" + FRAME + ";");
+                    code.var(ASTORE, ENV);
+                    return depth + 1;
+                }
+                tailCall(addr, depth, joins, false);
+                return -1;
+            case STOP:
+                if (depth == 0) {
+                    code.op(ACONST_NULL);
+                }
+                runtime("stop", "(" + VALUE + ")Ljava/lang/RuntimeException;");
+                code.op(ATHROW);
+                return -1;
+            case ST:
+                need(addr, depth, 1);
+                code.var(ALOAD, ENV);
+                code.pushInt(arg0);
+                code.pushInt(arg1);
+                code.pushInt(addr);
+                code.pushInt(after);
+                runtime("st", "(" + VALUE + "L" + FRAME + ";IIII)V");
+                return depth - 1;
+            case DBUG:
+                need(addr, depth, 1);
+                code.var(ALOAD, CONTEXT_VAR);
+                runtime("dbug", "(" + VALUE + "L" + CONTEXT + ";)V");
+                return depth - 1;
+            case BRK:
+                return depth;
+            default:
+                throw unsupported(addr, "unknown op " + op);
+            }
+        }
+
+        /**
+         * Pop values off the stack into the array in the local, last value
+         * last.
+         */
+        private void popInto(int local, int count) {
+            for (int i = count - 1; i >= 0; --i) {
+                code.var(ALOAD, local);
+                code.op(SWAP);
+                code.pushInt(i);
+                code.op(SWAP);
+                code.op(AASTORE);
+            }
+        }
+
+        /**
+         * Push a frame of the callee's values, in the callee's environment.
+         */
+        private void newFrame() {
+            code.var(ALOAD, CALLEE);
+            code.var(ALOAD, VALUES);
+            runtime("frame", "(L" + CLOSURE + ";[" + VALUE + ")L" + FRAME
+                    + ";");
+        }
+
+        /**
+         * Jump back to the start for a call of this function, or return the
+         * call to the trampoline. The callee is in CALLEE, and its frame is
+         * made from VALUES, or for TRAP is ENV.
+         */
+        private void tailCall(int addr, int depth, Joins joins, boolean newEnv)
+                throws JitUnsupportedException {
+            if (joins != null) {
+                throw unsupported(addr, "tail call inside a SEL");
+            }
+            if (depth != 0) {
+                throw unsupported(addr, "tail call leaving " + depth
+                        + " values on the data stack");
+            }
+            Label other = code.newLabel();
+            code.var(ALOAD, CALLEE);
+            code.field(GETFIELD, CLOSURE, "addr", "I");
+            code.pushInt(entry);
+            code.jump(IF_ICMPNE, other);
+            if (newEnv) {
+                newFrame();
+                code.var(ASTORE, ENV);
+            }
+            code.jump(GOTO, start.label);
+
+            code.mark(other);
+            code.var(ALOAD, CONTEXT_VAR);
+            code.var(ALOAD, CALLEE);
+            code.field(GETFIELD, CLOSURE, "addr", "I");
+            code.field(PUTFIELD, CONTEXT, "tailAddr", "I");
+            code.var(ALOAD, CONTEXT_VAR);
+            if (newEnv) {
+                newFrame();
+            } else {
+                code.var(ALOAD, ENV);
+            }
+            code.field(PUTFIELD, CONTEXT, "tailEnv", "L" + FRAME + ";");
+            code.field(GETSTATIC, RUNTIME, "TAIL", VALUE);
+            code.op(ARETURN);
+        }
+    }
+}
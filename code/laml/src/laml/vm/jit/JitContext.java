@@ -0,0 +1,21 @@
+package laml.vm.jit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import laml.vm.Values.Frame;
+
+/**
+ * The state of one machine running compiled code. The fields are public since
+ * the generated classes, which live in their own class loaders, use them
+ * directly.
+ */
+public final class JitContext {
+    public long cycles;
+    // Cycle count the current call must not go past
+    public long limit = Long.MAX_VALUE;
+    public final List<Object> trace = new ArrayList<Object>();
+    // The call a function returning JitRuntime.TAIL wants made in its place
+    public int tailAddr;
+    public Frame tailEnv;
+}
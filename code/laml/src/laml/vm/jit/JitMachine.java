@@ -0,0 +1,98 @@
+package laml.vm.jit;
+
+import java.util.List;
+
+import laml.compiler.AbsoluteProgram;
+import laml.vm.GccEngine;
+import laml.vm.GccException;
+import laml.vm.GccException.Kind;
+import laml.vm.GccMachine;
+import laml.vm.Values.Closure;
+import laml.vm.Values.Frame;
+import laml.vm.jit.JitRuntime.JitFault;
+import laml.vm.jit.JitRuntime.Stop;
+
+/**
+ * Runs a GCC program compiled by GccJit, as GccMachine would: the same
+ * values, the same faults at the same addresses, and the same cycle counts.
+ *
+ * Calls which are not tail calls are JVM calls, so a program recursing
+ * deeper than the JVM stack allows faults, where GccMachine would carry on;
+ * run deep programs in a thread with a large stack.
+ */
+public class JitMachine implements GccEngine {
+    private final CompiledProgram program;
+    private final JitContext context = new JitContext();
+    // Most cycles a single call may take
+    private long cycleLimit = Long.MAX_VALUE;
+
+    public JitMachine(AbsoluteProgram prog) throws JitUnsupportedException {
+        this(GccJit.compile(prog));
+    }
+
+    /**
+     * A machine running an already compiled program, which other machines
+     * may be running too.
+     */
+    public JitMachine(CompiledProgram program) {
+        this.program = program;
+    }
+
+    @Override
+    public long getCycles() {
+        return context.cycles;
+    }
+
+    @Override
+    public void setCycleLimit(long cycleLimit) {
+        this.cycleLimit = cycleLimit;
+    }
+
+    /**
+     * Values passed to DBUG so far, oldest first.
+     */
+    @Override
+    public List<Object> getTrace() {
+        return context.trace;
+    }
+
+    /**
+     * Run main, the code at address 0, with the given arguments.
+     */
+    @Override
+    public Object runMain(Object... args) {
+        return call(new Closure(0, null), args);
+    }
+
+    /**
+     * Call the closure with the given arguments and run until it returns.
+     *
+     * @see GccMachine#call(Closure, Object...)
+     */
+    @Override
+    public Object call(Closure closure, Object... args) {
+        context.limit = cycleLimit == Long.MAX_VALUE ? Long.MAX_VALUE
+                : context.cycles + cycleLimit;
+        Frame env = new Frame(args.clone(), closure.env, false);
+        try {
+            return program.call(closure.addr, env, context);
+        } catch (Stop e) {
+            return e.value;
+        } catch (JitFault e) {
+            context.cycles -= e.after;
+            if (context.cycles > context.limit) {
+                // The limit came first, somewhere in the run of instructions
+                // up to the fault
+                long over = context.cycles - context.limit;
+                context.cycles = context.limit;
+                throw new GccException(Kind.CYCLE_LIMIT,
+                        (int) (e.addr - over + 1), "ran for " + cycleLimit
+                                + " cycles");
+            }
+            throw new GccException(e.kind, e.addr, e.getMessage());
+        } catch (StackOverflowError e) {
+            throw new GccException(Kind.FAULT, closure.addr,
+                    "calls nested too deep for the JVM stack");
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package laml.vm.jit;
+
+import static laml.vm.EngineHarness.assemble;
+import static laml.vm.EngineHarness.compile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import laml.compiler.AbsoluteProgram;
+import laml.vm.EngineHarness;
+import laml.vm.EngineHarness.EngineFactory;
+import laml.vm.GccEngine;
+import laml.vm.Values;
+
+import org.junit.Test;
+
+public class JitMachineTest {
+    private static final EngineFactory JIT = new EngineFactory() {
+        @Override
+        public GccEngine create(AbsoluteProgram prog)
+                throws JitUnsupportedException {
+            return new JitMachine(prog);
+        }
+    };
+
+    private static Object assertSame(AbsoluteProgram prog, long cycleLimit,
+            Object... args) throws Exception {
+        return EngineHarness.assertSame(JIT, prog, cycleLimit, args);
+    }
+
+    @Test
+    public void testMatchesReference() throws Exception {
+        AbsoluteProgram fib = compile("(define fib (lambda (n) "
+                + "(if (> 2 n) n (+ (fib (- n 1)) (fib (- n 2)))))) "
+                + "(dbug (fib 5)) (fib 15)");
+        assertEquals(610, assertSame(fib, Long.MAX_VALUE, 0, 0));
+        // Stopping part way through runs of instructions
+        for (long limit = 1; limit < 60; ++limit) {
+            assertSame(fib, limit, 0, 0);
+        }
+
+        AbsoluteProgram lists = compile("(define build (lambda (n acc) "
+                + "(if (= n 0) acc (build (- n 1) (cons n acc))))) "
+                + "(define sum (lambda (l) "
+                + "(if (atom l) 0 (+ (car l) (sum (cdr l)))))) "
+                + "(sum (build 100 0))");
+        assertEquals(5050, assertSame(lists, Long.MAX_VALUE, 0, 0));
+    }
+
+    @Test
+    public void testLoopsAndTailCalls() throws Exception {
+        // A local function counting down with TAP to itself
+        AbsoluteProgram count = assemble("main:\nDUM 1\nLDF count\n"
+                + "LDF body\nRAP 1\nRTN\n" + "body:\nLDC 100000\nLD 0 0\n"
+                + "AP 1\nRTN\n" + "count:\nLD 0 0\nTSEL more done\n"
+                + "more:\nLD 0 0\nLDC 1\nSUB\nLD 1 0\nTAP 1\n"
+                + "done:\nLDC 42\nRTN\n");
+        assertEquals(42, assertSame(count, Long.MAX_VALUE));
+
+        // Tail calls between two functions, through the trampoline
+        AbsoluteProgram evenOdd = assemble("main:\nDUM 2\nLDF even\n"
+                + "LDF odd\nLDF body\nRAP 2\nRTN\n"
+                + "body:\nLDC 100001\nLD 0 0\nAP 1\nRTN\n"
+                + "even:\nLD 0 0\nTSEL even1 yes\n"
+                + "even1:\nLD 0 0\nLDC 1\nSUB\nLD 1 1\nTAP 1\n"
+                + "odd:\nLD 0 0\nTSEL odd1 no\n"
+                + "odd1:\nLD 0 0\nLDC 1\nSUB\nLD 1 0\nTAP 1\n"
+                + "yes:\nLDC 1\nRTN\nno:\nLDC 0\nRTN\n");
+        assertEquals(0, assertSame(evenOdd, Long.MAX_VALUE));
+        assertSame(evenOdd, 12345);
+    }
+
+    @Test
+    public void testFaults() throws Exception {
+        assertSame(assemble("main:\nLDC 1\nCAR\nRTN\n"), Long.MAX_VALUE);
+        assertSame(assemble("main:\nLD 0 0\nLDC 1\nADD\nRTN\n"),
+                Long.MAX_VALUE, Values.list(1));
+        assertSame(assemble("main:\nDUM 1\nLD 0 0\nRTN\n"), Long.MAX_VALUE);
+        assertSame(assemble("main:\nLDC 1\nDBUG\nRTN\n"), Long.MAX_VALUE);
+        assertSame(assemble("main:\nLDC 1\nLDC 0\nDIV\nLDC 2\nADD\nRTN\n"),
+                Long.MAX_VALUE);
+        // The limit falls before the fault, in the same run
+        AbsoluteProgram car = assemble("main:\nLDC 1\nLDC 2\nLDC 0\nCAR\n"
+                + "ADD\nADD\nRTN\n");
+        assertSame(car, 3);
+        assertSame(car, 4);
+        assertSame(assemble("main:\nLDC 1\nTSEL main main\n"), 1000);
+    }
+
+    @Test
+    public void testRefusesUnbalancedStack() {
+        try {
+            GccJit.compile(assemble("main:\nLDC 1\nLDC 2\nRTN\n"));
+            fail("Expected the program to be refused");
+        } catch (JitUnsupportedException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package laml.vm.jit;
+
+import laml.compiler.Opcode;
+import laml.vm.GccException.Kind;
+import laml.vm.Values;
+import laml.vm.Values.Closure;
+import laml.vm.Values.Cons;
+import laml.vm.Values.Frame;
+
+/**
+ * What compiled GCC code calls to carry out instructions. Each is small
+ * enough for the JIT to inline.
+ *
+ * Compiled code counts the cycles of a run of instructions all at once at the
+ * start, so an instruction that faults also passes how many instructions of
+ * the run come after it; JitMachine takes those back off.
+ */
+public final class JitRuntime {
+    /**
+     * What a function returns to have the call in JitContext.tailAddr and
+     * tailEnv made in its place.
+     */
+    public static final Object TAIL = new Object();
+
+    private JitRuntime() {
+    }
+
+    /**
+     * A fault in compiled code, after instructions which were counted but did
+     * not run.
+     */
+    public static final class JitFault extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public final Kind kind;
+        public final int addr;
+        public final int after;
+
+        public JitFault(Kind kind, int addr, int after, String message) {
+            super(message, null, false, false);
+            this.kind = kind;
+            this.addr = addr;
+            this.after = after;
+        }
+    }
+
+    /**
+     * STOP, which ends the whole call however deep it is.
+     */
+    public static final class Stop extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public final Object value;
+
+        public Stop(Object value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+
+    public static void count(JitContext context, int cycles) {
+        context.cycles += cycles;
+    }
+
+    /**
+     * Check the cycles counted so far, through the instruction at addr, are
+     * within the limit.
+     */
+    public static void check(JitContext context, int addr) {
+        if (context.cycles > context.limit) {
+            throw new JitFault(Kind.CYCLE_LIMIT, addr, 0, null);
+        }
+    }
+
+    private static Frame frameAt(Frame env, int depth, int addr, int after) {
+        Frame frame = env;
+        for (int i = 0; i < depth && frame != null; ++i) {
+            frame = frame.parent;
+        }
+        if (frame == null) {
+            throw new JitFault(Kind.FAULT, addr, after, "no frame at depth "
+                    + depth);
+        }
+        if (frame.dummy) {
+            throw new JitFault(Kind.FRAME_MISMATCH, addr, after,
+                    "frame is a dummy");
+        }
+        return frame;
+    }
+
+    public static Object ld(Frame env, int depth, int index, int addr,
+            int after) {
+        Frame frame = frameAt(env, depth, addr, after);
+        if (index >= frame.values.length) {
+            throw new JitFault(Kind.FAULT, addr, after, "no binding " + index);
+        }
+        return frame.values[index];
+    }
+
+    public static void st(Object value, Frame env, int depth, int index,
+            int addr, int after) {
+        Frame frame = frameAt(env, depth, addr, after);
+        if (index >= frame.values.length) {
+            throw new JitFault(Kind.FAULT, addr, after, "no binding " + index);
+        }
+        frame.values[index] = value;
+    }
+
+    private static int toInt(Object value, Opcode op, int addr, int after) {
+        if (!(value instanceof Integer)) {
+            throw new JitFault(Kind.TAG_MISMATCH, addr, after, op
+                    + " expects an integer, got " + Values.format(value));
+        }
+        return (Integer) value;
+    }
+
+    public static Object add(Object x, Object y, int addr, int after) {
+        int b = toInt(y, Opcode.ADD, addr, after);
+        return toInt(x, Opcode.ADD, addr, after) + b;
+    }
+
+    public static Object sub(Object x, Object y, int addr, int after) {
+        int b = toInt(y, Opcode.SUB, addr, after);
+        return toInt(x, Opcode.SUB, addr, after) - b;
+    }
+
+    public static Object mul(Object x, Object y, int addr, int after) {
+        int b = toInt(y, Opcode.MUL, addr, after);
+        return toInt(x, Opcode.MUL, addr, after) * b;
+    }
+
+    public static Object div(Object x, Object y, int addr, int after) {
+        int b = toInt(y, Opcode.DIV, addr, after);
+        int a = toInt(x, Opcode.DIV, addr, after);
+        if (b == 0) {
+            throw new JitFault(Kind.FAULT, addr, after, "division by 0");
+        }
+        return a / b;
+    }
+
+    public static Object ceq(Object x, Object y, int addr, int after) {
+        int b = toInt(y, Opcode.CEQ, addr, after);
+        return toInt(x, Opcode.CEQ, addr, after) == b ? 1 : 0;
+    }
+
+    public static Object cgt(Object x, Object y, int addr, int after) {
+        int b = toInt(y, Opcode.CGT, addr, after);
+        return toInt(x, Opcode.CGT, addr, after) > b ? 1 : 0;
+    }
+
+    public static Object cgte(Object x, Object y, int addr, int after) {
+        int b = toInt(y, Opcode.CGTE, addr, after);
+        return toInt(x, Opcode.CGTE, addr, after) >= b ? 1 : 0;
+    }
+
+    public static Object atom(Object x) {
+        return x instanceof Integer ? 1 : 0;
+    }
+
+    public static Object cons(Object x, Object y) {
+        return new Cons(x, y);
+    }
+
+    private static Cons toCons(Object value, Opcode op, int addr, int after) {
+        if (!(value instanceof Cons)) {
+            throw new JitFault(Kind.TAG_MISMATCH, addr, after, op
+                    + " expects a cons, got " + Values.format(value));
+        }
+        return (Cons) value;
+    }
+
+    public static Object car(Object x, int addr, int after) {
+        return toCons(x, Opcode.CAR, addr, after).car;
+    }
+
+    public static Object cdr(Object x, int addr, int after) {
+        return toCons(x, Opcode.CDR, addr, after).cdr;
+    }
+
+    /**
+     * The test of SEL or TSEL, as the ordinal of the opcode.
+     */
+    public static boolean test(Object x, int op, int addr) {
+        return toInt(x, Opcode.fromOrdinal(op), addr, 0) != 0;
+    }
+
+    public static Object closure(int addr, Frame env) {
+        return new Closure(addr, env);
+    }
+
+    /**
+     * The closure AP or TAP calls, as the ordinal of the opcode.
+     */
+    public static Closure toClosure(Object value, int op, int addr) {
+        if (!(value instanceof Closure)) {
+            throw new JitFault(Kind.TAG_MISMATCH, addr, 0,
+                    Opcode.fromOrdinal(op) + " expects a closure, got "
+                            + Values.format(value));
+        }
+        return (Closure) value;
+    }
+
+    public static Frame frame(Closure closure, Object[] values) {
+        return new Frame(values, closure.env, false);
+    }
+
+    public static Frame dum(int size, Frame env) {
+        return new Frame(new Object[size], env, true);
+    }
+
+    /**
+     * The closure RAP or TRAP calls, which must have been made in env, the
+     * dummy frame it fills.
+     */
+    public static Closure rap(Object value, Frame env, int size, int op,
+            int addr) {
+        if (!(value instanceof Closure)) {
+            throw new JitFault(Kind.TAG_MISMATCH, addr, 0,
+                    Opcode.fromOrdinal(op) + " expects a closure, got "
+                            + Values.format(value));
+        }
+        Closure closure = (Closure) value;
+        if (env == null || !env.dummy || env.values.length != size || closure.env != env) {
+            throw new JitFault(Kind.FRAME_MISMATCH, addr, 0,
+                    Opcode.fromOrdinal(op)
+                            + " needs the closure made in the dummy frame");
+        }
+        env.dummy = false;
+        return closure;
+    }
+
+    public static void dbug(Object value, JitContext context) {
+        context.trace.add(value);
+    }
+
+    public static RuntimeException stop(Object value) {
+        return new Stop(value);
+    }
+
+    public static RuntimeException emptyStack(int addr) {
+        return new JitFault(Kind.FAULT, addr, 0, "data stack is empty");
+    }
+
+    public static RuntimeException noFunction(int addr) {
+        return new JitFault(Kind.FAULT, addr, 0, "no function compiled here");
+    }
+}
@@ -0,0 +1,13 @@
+package laml.vm.jit;
+
+/**
+ * GccJit can't compile the program, e.g. because it uses the stacks in a way
+ * the JVM code can't follow. The program must be run by an interpreter.
+ */
+public class JitUnsupportedException extends Exception {
+    public JitUnsupportedException(String reason) {
+        super(reason);
+    }
+
+    private static final long serialVersionUID = 6031442794418632718L;
+}
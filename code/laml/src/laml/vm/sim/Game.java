@@ -0,0 +1,455 @@
+package laml.vm.sim;
+
+import java.util.List;
+
+import laml.vm.GameMap;
+import laml.vm.GccEngine;
+import laml.vm.GccException;
+import laml.vm.GccHarness;
+import laml.vm.GhostAi;
+import laml.vm.GhostView;
+import laml.vm.Values;
+import laml.vm.Values.Closure;
+import laml.vm.Values.Cons;
+
+/**
+ * One game of Lambda-Man, played by the contest's rules without the contest
+ * simulator: a GCC program as Lambda-Man, ghost programs for the map's
+ * ghosts in turn, and the game ticking along until Lambda-Man eats every
+ * pill, runs out of lives, or runs out of time.
+ *
+ * Each tick, in order: everyone due to move moves, Lambda-Man first; fright
+ * mode and fruit come and go; Lambda-Man eats what he is on; he meets any
+ * visible ghost on his square; then the game is won, when no pills are left,
+ * or lost, when no lives are. An error or running over the cycle limit in
+ * Lambda-Man's program ends the game too.
+ */
+public class Game {
+    // Ticks between moves
+    public static final int LAMBDA_MAN_SPEED = 127;
+    public static final int LAMBDA_MAN_EATING_SPEED = 137;
+    private static final int[] GHOST_SPEEDS = { 130, 132, 134, 136 };
+    private static final int[] GHOST_FRIGHT_SPEEDS = { 195, 198, 201, 204 };
+
+    public static final int FRIGHT_DURATION = 127 * 20;
+    // Ticks when each fruit appears and is gone again
+    private static final int[][] FRUIT_TIMES = { { 127 * 200, 127 * 280 },
+            { 127 * 400, 127 * 480 } };
+    // Fruit points by level, which is the map area in hundreds, rounded up
+    private static final int[] FRUIT_POINTS = { 100, 300, 500, 500, 700, 700,
+            1000, 1000, 2000, 2000, 3000, 3000, 5000 };
+    private static final int[] GHOST_POINTS = { 200, 400, 800, 1600 };
+    public static final int START_LIVES = 3;
+
+    // Directions, as the AIs give them
+    private static final int UP = 0;
+    private static final int DOWN = 2;
+    private static final int[] DX = { 0, 1, 0, -1 };
+    private static final int[] DY = { -1, 0, 1, 0 };
+
+    // Ghost vitality
+    private static final int STANDARD = 0;
+    private static final int FRIGHT = 1;
+    private static final int INVISIBLE = 2;
+
+    private final GameMap map;
+    private final GccEngine lambdaMan;
+    private final GhostAi[] ghostAis;
+    private final int[][] squares;
+    private final int endTick;
+    private final int fruitPoints;
+    private int pillsLeft;
+
+    private int tick;
+    private int lmX;
+    private int lmY;
+    private int lmDirection = DOWN;
+    private int lmNextMove = LAMBDA_MAN_SPEED;
+    private int lives = START_LIVES;
+    private int score;
+    private Object aiState;
+    private Closure step;
+    // Tick fright mode ends at, if it is on
+    private int frightEnd;
+    private int ghostsEaten;
+    private boolean fruitEaten;
+
+    private final int[] ghostX;
+    private final int[] ghostY;
+    private final int[] ghostDirection;
+    private final int[] ghostVitality;
+    private final int[] ghostNextMove;
+
+    private final GameResult result = new GameResult();
+
+    /**
+     * A game on the map, with one ghost AI for each of the map's ghosts, in
+     * the order of their starts.
+     */
+    public Game(GameMap map, GccEngine lambdaMan, List<GhostAi> ghostAis) {
+        this.map = map;
+        this.lambdaMan = lambdaMan;
+        int width = map.getWidth();
+        int height = map.getHeight();
+        squares = new int[height][width];
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                squares[y][x] = map.getSquare(x, y);
+                if (squares[y][x] == GameMap.PILL) {
+                    pillsLeft++;
+                }
+            }
+        }
+        endTick = 127 * width * height * 16;
+        int level = (width * height + 99) / 100;
+        fruitPoints = FRUIT_POINTS[Math.min(level, FRUIT_POINTS.length) - 1];
+
+        int numGhosts = map.getGhostStarts().size();
+        if (ghostAis.size() != numGhosts) {
+            throw new IllegalArgumentException("Map has " + numGhosts
+                    + " ghosts but " + ghostAis.size() + " ghost AIs were given");
+        }
+        this.ghostAis = new GhostAi[numGhosts];
+        ghostX = new int[numGhosts];
+        ghostY = new int[numGhosts];
+        ghostDirection = new int[numGhosts];
+        ghostVitality = new int[numGhosts];
+        ghostNextMove = new int[numGhosts];
+        for (int i = 0; i < numGhosts; ++i) {
+            this.ghostAis[i] = ghostAis.get(i);
+            ghostNextMove[i] = GHOST_SPEEDS[i % GHOST_SPEEDS.length];
+        }
+        resetPositions();
+    }
+
+    private void resetPositions() {
+        int[] start = map.getLambdaManStart();
+        lmX = start[0];
+        lmY = start[1];
+        lmDirection = DOWN;
+        for (int i = 0; i < ghostX.length; ++i) {
+            start = map.getGhostStarts().get(i);
+            ghostX[i] = start[0];
+            ghostY[i] = start[1];
+            ghostDirection[i] = DOWN;
+        }
+    }
+
+    private boolean isWall(int x, int y) {
+        return y < 0 || y >= squares.length || x < 0 || x >= squares[0].length
+                || squares[y][x] == GameMap.WALL;
+    }
+
+    private boolean frightened() {
+        return frightEnd > tick;
+    }
+
+    private boolean fruitShowing() {
+        for (int[] times : FRUIT_TIMES) {
+            if (tick >= times[0] && tick < times[1]) {
+                return !fruitEaten && map.getFruitLocation() != null;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Ticks the fruit has left, as the world state gives it.
+     */
+    private int fruitTicksLeft() {
+        if (!fruitShowing()) {
+            return 0;
+        }
+        for (int[] times : FRUIT_TIMES) {
+            if (tick >= times[0] && tick < times[1]) {
+                return times[1] - tick;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The world state Lambda-Man's program is given.
+     */
+    private Object worldState() {
+        Object[] rows = new Object[squares.length];
+        for (int y = 0; y < squares.length; ++y) {
+            Object[] row = new Object[squares[y].length];
+            for (int x = 0; x < row.length; ++x) {
+                row[x] = squares[y][x];
+            }
+            rows[y] = Values.list(row);
+        }
+        Object status = Values.tuple(frightened() ? frightEnd - tick : 0,
+                Values.tuple(lmX, lmY), lmDirection, lives, score);
+        Object[] ghosts = new Object[ghostX.length];
+        for (int i = 0; i < ghosts.length; ++i) {
+            ghosts[i] = Values.tuple(ghostVitality[i], Values.tuple(ghostX[i],
+                    ghostY[i]), ghostDirection[i]);
+        }
+        return Values.tuple(Values.list(rows), status, Values.list(ghosts),
+                fruitTicksLeft());
+    }
+
+    private final GhostView view = new GhostView() {
+        @Override
+        public int getSquare(int x, int y) {
+            return isWall(x, y) ? GameMap.WALL : squares[y][x];
+        }
+
+        @Override
+        public int[] getLambdaManLocation() {
+            return new int[] { lmX, lmY };
+        }
+
+        @Override
+        public int getGhostCount() {
+            return ghostX.length;
+        }
+
+        @Override
+        public int[] getGhostStart(int index) {
+            return map.getGhostStarts().get(index).clone();
+        }
+
+        @Override
+        public int[] getGhostLocation(int index) {
+            return new int[] { ghostX[index], ghostY[index] };
+        }
+
+        @Override
+        public int getGhostVitality(int index) {
+            return ghostVitality[index];
+        }
+
+        @Override
+        public int getGhostDirection(int index) {
+            return ghostDirection[index];
+        }
+    };
+
+    /**
+     * Play the game to the end.
+     */
+    public GameResult play() {
+        long start = System.nanoTime();
+        try {
+            if (startLambdaMan()) {
+                while (result.outcome == null) {
+                    runTick();
+                }
+            }
+        } finally {
+            result.score = score;
+            result.lives = lives;
+            result.ticks = tick;
+            result.ghostCycles = 0;
+            for (GhostAi ai : ghostAis) {
+                result.ghostCycles += ai.getCycles();
+            }
+            result.wallNanos = System.nanoTime() - start;
+        }
+        return result;
+    }
+
+    private void crash(GccException e) {
+        result.outcome = GameResult.Outcome.CRASHED;
+        result.error = e.getMessage();
+    }
+
+    private boolean startLambdaMan() {
+        lambdaMan.setCycleLimit(GccHarness.MAIN_CYCLE_LIMIT);
+        long cycles = lambdaMan.getCycles();
+        try {
+            Object main = lambdaMan.runMain(worldState(), 0);
+            if (!(main instanceof Cons)
+                    || !(((Cons) main).cdr instanceof Closure)) {
+                throw new GccException(GccException.Kind.FAULT, 0,
+                        "main must return (state . step)");
+            }
+            aiState = ((Cons) main).car;
+            step = (Closure) ((Cons) main).cdr;
+        } catch (GccException e) {
+            crash(e);
+            return false;
+        } finally {
+            result.mainCycles = lambdaMan.getCycles() - cycles;
+        }
+        lambdaMan.setCycleLimit(GccHarness.STEP_CYCLE_LIMIT);
+        return true;
+    }
+
+    private void runTick() {
+        // Moves
+        if (tick == lmNextMove && !moveLambdaMan()) {
+            return;
+        }
+        for (int i = 0; i < ghostX.length; ++i) {
+            if (tick == ghostNextMove[i]) {
+                moveGhost(i);
+            }
+        }
+
+        // Fright mode ending, fruit coming and going
+        if (frightEnd == tick && frightEnd > 0) {
+            frightEnd = 0;
+            for (int i = 0; i < ghostVitality.length; ++i) {
+                ghostVitality[i] = STANDARD;
+            }
+        }
+        for (int[] times : FRUIT_TIMES) {
+            if (tick == times[0]) {
+                fruitEaten = false;
+            }
+        }
+
+        // Eating
+        int square = squares[lmY][lmX];
+        if (square == GameMap.PILL) {
+            score += 10;
+            squares[lmY][lmX] = GameMap.EMPTY;
+            pillsLeft--;
+        } else if (square == GameMap.POWER_PILL) {
+            score += 50;
+            squares[lmY][lmX] = GameMap.EMPTY;
+            if (!frightened()) {
+                ghostsEaten = 0;
+            }
+            frightEnd = tick + FRIGHT_DURATION;
+            for (int i = 0; i < ghostVitality.length; ++i) {
+                if (ghostVitality[i] != INVISIBLE) {
+                    ghostVitality[i] = FRIGHT;
+                    ghostDirection[i] = (ghostDirection[i] + 2) % 4;
+                }
+            }
+        } else if (square == GameMap.FRUIT && fruitShowing()) {
+            score += fruitPoints;
+            fruitEaten = true;
+        }
+
+        // Meeting ghosts
+        for (int i = 0; i < ghostX.length; ++i) {
+            if (ghostX[i] != lmX || ghostY[i] != lmY
+                    || ghostVitality[i] == INVISIBLE) {
+                continue;
+            }
+            if (ghostVitality[i] == FRIGHT) {
+                score += GHOST_POINTS[Math.min(ghostsEaten,
+                        GHOST_POINTS.length - 1)];
+                ghostsEaten++;
+                int[] start = map.getGhostStarts().get(i);
+                ghostX[i] = start[0];
+                ghostY[i] = start[1];
+                ghostDirection[i] = DOWN;
+                ghostVitality[i] = INVISIBLE;
+            } else {
+                lives--;
+                frightEnd = 0;
+                for (int j = 0; j < ghostVitality.length; ++j) {
+                    ghostVitality[j] = STANDARD;
+                }
+                resetPositions();
+                break;
+            }
+        }
+
+        if (pillsLeft == 0) {
+            score *= lives + 1;
+            result.outcome = GameResult.Outcome.WON;
+        } else if (lives == 0) {
+            result.outcome = GameResult.Outcome.LOST;
+        }
+        if (result.outcome == null && ++tick >= endTick) {
+            result.outcome = GameResult.Outcome.TIMED_OUT;
+        }
+    }
+
+    /**
+     * Ask Lambda-Man's program for a move and make it. Returns false if the
+     * program failed, which ends the game.
+     */
+    private boolean moveLambdaMan() {
+        long cycles = lambdaMan.getCycles();
+        Object move;
+        try {
+            Object stepResult = lambdaMan.call(step, aiState, worldState());
+            if (!(stepResult instanceof Cons)) {
+                throw new GccException(GccException.Kind.FAULT, step.addr,
+                        "step must return (state . move)");
+            }
+            aiState = ((Cons) stepResult).car;
+            move = ((Cons) stepResult).cdr;
+        } catch (GccException e) {
+            crash(e);
+            return false;
+        } finally {
+            long stepCycles = lambdaMan.getCycles() - cycles;
+            result.steps++;
+            result.stepCycles += stepCycles;
+            result.maxStepCycles = Math.max(result.maxStepCycles, stepCycles);
+        }
+
+        int speed = LAMBDA_MAN_SPEED;
+        if (move instanceof Integer && (Integer) move >= UP
+                && (Integer) move <= 3) {
+            int direction = (Integer) move;
+            int x = lmX + DX[direction];
+            int y = lmY + DY[direction];
+            lmDirection = direction;
+            if (!isWall(x, y)) {
+                lmX = x;
+                lmY = y;
+                int square = squares[y][x];
+                if (square == GameMap.PILL || square == GameMap.POWER_PILL
+                        || (square == GameMap.FRUIT && fruitShowing())) {
+                    speed = LAMBDA_MAN_EATING_SPEED;
+                }
+            }
+        }
+        lmNextMove = tick + speed;
+        return true;
+    }
+
+    /**
+     * Ask the ghost's program for a move, and make the legal move nearest
+     * to it: ghosts can't turn back unless they have to, and otherwise
+     * carry on as they were, or take the first way open.
+     */
+    private void moveGhost(int i) {
+        int wanted = ghostAis[i].runTick(view, ghostDirection[i]);
+        int exits = 0;
+        for (int d = 0; d < 4; ++d) {
+            if (!isWall(ghostX[i] + DX[d], ghostY[i] + DY[d])) {
+                exits++;
+            }
+        }
+        int direction = -1;
+        if (legal(i, wanted, exits)) {
+            direction = wanted;
+        } else if (legal(i, ghostDirection[i], exits)) {
+            direction = ghostDirection[i];
+        } else {
+            for (int d = 0; d < 4 && direction < 0; ++d) {
+                if (legal(i, d, exits)) {
+                    direction = d;
+                }
+            }
+        }
+        if (direction >= 0) {
+            ghostX[i] += DX[direction];
+            ghostY[i] += DY[direction];
+            ghostDirection[i] = direction;
+        }
+        int[] speeds = ghostVitality[i] == FRIGHT ? GHOST_FRIGHT_SPEEDS
+                : GHOST_SPEEDS;
+        ghostNextMove[i] = tick + speeds[i % speeds.length];
+    }
+
+    private boolean legal(int i, int direction, int exits) {
+        if (direction < 0 || direction > 3
+                || isWall(ghostX[i] + DX[direction], ghostY[i] + DY[direction])) {
+            return false;
+        }
+        return direction != (ghostDirection[i] + 2) % 4 || exits == 1;
+    }
+}
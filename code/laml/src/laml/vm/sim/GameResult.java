@@ -0,0 +1,45 @@
+package laml.vm.sim;
+
+/**
+ * How a game went, and what it cost to run.
+ */
+public class GameResult {
+    public enum Outcome {
+        // Every pill eaten
+        WON,
+        // No lives left
+        LOST,
+        // End of lives, the tick limit, reached first
+        TIMED_OUT,
+        // Lambda-Man's program failed or ran over a cycle limit
+        CRASHED
+    }
+
+    public Outcome outcome;
+    public int score;
+    public int lives;
+    // The tick the game ended on
+    public int ticks;
+    // Calls of the step function
+    public int steps;
+    public long mainCycles;
+    // Over all steps
+    public long stepCycles;
+    public long maxStepCycles;
+    // Over all ghosts and ticks
+    public long ghostCycles;
+    public long wallNanos;
+    // Why the game crashed, if it did
+    public String error;
+
+    public double getMeanStepCycles() {
+        return steps == 0 ? 0 : (double) stepCycles / steps;
+    }
+
+    @Override
+    public String toString() {
+        return outcome + " score " + score + " lives " + lives + " ticks "
+                + ticks + " steps " + steps
+                + (error != null ? " (" + error + ")" : "");
+    }
+}
@@ -0,0 +1,54 @@
+package laml.vm.sim;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import laml.compiler.AbsoluteProgram;
+import laml.vm.GameMap;
+import laml.vm.GccMachine;
+import laml.vm.GhcMachine;
+import laml.vm.GhcProgram;
+import laml.vm.GhostAi;
+
+import org.junit.Test;
+
+public class GameTest {
+    /**
+     * A Lambda-Man who always makes the same move.
+     */
+    private static GccMachine lambdaMan(int move) {
+        return new GccMachine(AbsoluteProgram.parse("LDC 0\nLDF 4\nCONS\nRTN\n"
+                + "LD 0 0\nLDC " + move + "\nCONS\nRTN\n"));
+    }
+
+    @Test
+    public void testGhostCatchesLambdaMan() {
+        // Lambda-Man walks into a wall while the ghost comes for him
+        GameMap map = GameMap.parse("#####\n#\\ =#\n##.##\n#####\n");
+        GhostAi ghost = new GhcMachine(GhcProgram.parse("mov a,3\nint 0\nhlt\n"),
+                0);
+        GameResult result = new Game(map, lambdaMan(0),
+                Arrays.asList(ghost)).play();
+        assertEquals(GameResult.Outcome.LOST, result.outcome);
+        assertEquals(0, result.lives);
+        assertEquals(0, result.score);
+        // Two ghost moves per life
+        assertEquals(6 * 130, result.ticks);
+        assertEquals(6, result.steps);
+    }
+
+    @Test
+    public void testEatingEveryPillWins() {
+        GameMap map = GameMap.parse("#####\n#\\..#\n#####\n");
+        GameResult result = new Game(map, lambdaMan(1),
+                Collections.<GhostAi> emptyList()).play();
+        assertEquals(GameResult.Outcome.WON, result.outcome);
+        // Two pills, times lives + 1
+        assertEquals(80, result.score);
+        assertEquals(2, result.steps);
+        // Slower after eating the first
+        assertEquals(127 + 137, result.ticks);
+    }
+}
@@ -0,0 +1,31 @@
+package laml.vm.sim;
+
+import java.util.Random;
+
+import laml.vm.GhostAi;
+import laml.vm.GhostView;
+
+/**
+ * A ghost that asks for a random direction each move, from a seed so that
+ * games can be replayed. The game keeps it from turning back, so it wanders.
+ */
+public class RandomGhost implements GhostAi {
+    private final Random random;
+
+    public RandomGhost(long seed) {
+        random = new Random(seed);
+    }
+
+    @Override
+    public int runTick(GhostView view, int direction) {
+        return random.nextInt(4);
+    }
+
+    /**
+     * Runs no instructions.
+     */
+    @Override
+    public long getCycles() {
+        return 0;
+    }
+}
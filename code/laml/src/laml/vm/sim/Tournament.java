@@ -0,0 +1,327 @@
+package laml.vm.sim;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import laml.compiler.AbsoluteProgram;
+import laml.vm.FastGccMachine;
+import laml.vm.GameMap;
+import laml.vm.GccEngine;
+import laml.vm.GccHarness;
+import laml.vm.GhcMachine;
+import laml.vm.GhcProgram;
+import laml.vm.GhostAi;
+import laml.vm.jit.CompiledProgram;
+import laml.vm.jit.GccJit;
+import laml.vm.jit.JitMachine;
+import laml.vm.jit.JitUnsupportedException;
+
+/**
+ * Plays every player on every map against every ghost line-up, once per
+ * seed, across a pool of threads, and writes a CSV row per game plus a
+ * summary per player.
+ *
+ * Players are compiled once with GccJit and the compiled program shared
+ * between games; players the JIT refuses run on FastGccMachine, the
+ * pre-decoded interpreter. A ghost line-up is a GHC program, or "random",
+ * used for all of a map's ghosts. The seed only changes random ghosts; games
+ * with GHC ghosts are deterministic.
+ *
+ * The pool's threads have big stacks, since compiled programs recurse on the
+ * JVM stack.
+ */
+public class Tournament {
+    private static final long THREAD_STACK_SIZE = 512L * 1024 * 1024;
+    private static final String RANDOM = "random";
+
+    private static final String CSV_HEADER = "player,map,ghosts,seed,outcome,"
+            + "score,lives,ticks,steps,main_cycles,mean_step_cycles,"
+            + "max_step_cycles,mean_ghost_cycles,wall_ms";
+
+    /**
+     * A player, compiled if the JIT could.
+     */
+    private static class Player {
+        final String name;
+        final AbsoluteProgram prog;
+        final CompiledProgram compiled;
+
+        Player(String name, AbsoluteProgram prog) {
+            this.name = name;
+            this.prog = prog;
+            CompiledProgram compiled = null;
+            try {
+                compiled = GccJit.compile(prog);
+            } catch (JitUnsupportedException e) {
+                System.err.println(name + ": not compiled, " + e.getMessage());
+            }
+            this.compiled = compiled;
+        }
+
+        GccEngine newEngine() {
+            return compiled != null ? new JitMachine(compiled)
+                    : new FastGccMachine(prog);
+        }
+    }
+
+    /**
+     * One game to play, and its result once played.
+     */
+    private static class Job implements Callable<GameResult> {
+        final Player player;
+        final String mapName;
+        final GameMap map;
+        final String ghostName;
+        // Null for random ghosts
+        final GhcProgram ghostProg;
+        final long seed;
+
+        Job(Player player, String mapName, GameMap map, String ghostName,
+                GhcProgram ghostProg, long seed) {
+            this.player = player;
+            this.mapName = mapName;
+            this.map = map;
+            this.ghostName = ghostName;
+            this.ghostProg = ghostProg;
+            this.seed = seed;
+        }
+
+        @Override
+        public GameResult call() {
+            List<GhostAi> ghosts = new ArrayList<GhostAi>();
+            for (int i = 0; i < map.getGhostStarts().size(); ++i) {
+                ghosts.add(ghostProg != null ? new GhcMachine(ghostProg, i)
+                        : new RandomGhost(seed * 31 + i));
+            }
+            return new Game(map, player.newEngine(), ghosts).play();
+        }
+    }
+
+    private final List<Player> players = new ArrayList<Player>();
+    private final Map<String, GameMap> maps = new LinkedHashMap<String, GameMap>();
+    private final Map<String, GhcProgram> ghosts = new LinkedHashMap<String, GhcProgram>();
+    private int seeds = 1;
+
+    public void addPlayer(String name, AbsoluteProgram prog) {
+        players.add(new Player(name, prog));
+    }
+
+    public void addMap(String name, GameMap map) {
+        maps.put(name, map);
+    }
+
+    /**
+     * Add a ghost line-up: a GHC program, or null for random ghosts.
+     */
+    public void addGhosts(String name, GhcProgram prog) {
+        ghosts.put(name, prog);
+    }
+
+    public void setSeeds(int seeds) {
+        this.seeds = seeds;
+    }
+
+    private List<Job> jobs() {
+        List<Job> jobs = new ArrayList<Job>();
+        for (Player player : players) {
+            for (Map.Entry<String, GameMap> map : maps.entrySet()) {
+                for (Map.Entry<String, GhcProgram> ghost : ghosts.entrySet()) {
+                    for (int seed = 0; seed < seeds; ++seed) {
+                        jobs.add(new Job(player, map.getKey(), map.getValue(),
+                                ghost.getKey(), ghost.getValue(), seed));
+                    }
+                }
+            }
+        }
+        return jobs;
+    }
+
+    private static ExecutorService newPool(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(null, r, "tournament-"
+                        + count.incrementAndGet(), THREAD_STACK_SIZE);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static String csvField(String s) {
+        if (s.contains(",") || s.contains("\"")) {
+            return "\"" + s.replace("\"", "\"\"") + "\"";
+        }
+        return s;
+    }
+
+    /**
+     * Play every game on the given number of threads, writing a row to csv
+     * for each as it finishes, in job order, and a summary to summary.
+     */
+    public void run(int threads, PrintStream csv, PrintStream summary)
+            throws InterruptedException {
+        List<Job> jobs = jobs();
+        ExecutorService pool = newPool(threads);
+        List<Future<GameResult>> futures = new ArrayList<Future<GameResult>>();
+        for (Job job : jobs) {
+            futures.add(pool.submit(job));
+        }
+        pool.shutdown();
+
+        // Per player: games, wins, total score, step cycles, steps, wall nanos
+        Map<Player, long[]> totals = new LinkedHashMap<Player, long[]>();
+        for (Player player : players) {
+            totals.put(player, new long[6]);
+        }
+        csv.println(CSV_HEADER);
+        for (int i = 0; i < jobs.size(); ++i) {
+            Job job = jobs.get(i);
+            GameResult result;
+            try {
+                result = futures.get(i).get();
+            } catch (ExecutionException e) {
+                // A bug here rather than in the player, which would crash
+                throw new IllegalStateException("game failed: " + job.player.name
+                        + " on " + job.mapName, e.getCause());
+            }
+            int numGhosts = Math.max(1, job.map.getGhostStarts().size());
+            csv.println(csvField(job.player.name) + "," + csvField(job.mapName)
+                    + "," + csvField(job.ghostName) + "," + job.seed + ","
+                    + result.outcome + "," + result.score + "," + result.lives
+                    + "," + result.ticks + "," + result.steps + ","
+                    + result.mainCycles + ","
+                    + String.format(Locale.ROOT, "%.1f",
+                            result.getMeanStepCycles()) + ","
+                    + result.maxStepCycles + ","
+                    + String.format(Locale.ROOT, "%.1f",
+                            (double) result.ghostCycles / numGhosts) + ","
+                    + String.format(Locale.ROOT, "%.1f",
+                            result.wallNanos / 1e6));
+            long[] total = totals.get(job.player);
+            total[0]++;
+            if (result.outcome == GameResult.Outcome.WON) {
+                total[1]++;
+            }
+            total[2] += result.score;
+            total[3] += result.stepCycles;
+            total[4] += result.steps;
+            total[5] += result.wallNanos;
+        }
+        csv.flush();
+
+        summary.println(String.format(Locale.ROOT, "%-30s %6s %6s %10s %14s %10s",
+                "player", "games", "won", "mean score", "mean step cyc",
+                "wall ms"));
+        for (Map.Entry<Player, long[]> entry : totals.entrySet()) {
+            long[] total = entry.getValue();
+            summary.println(String.format(Locale.ROOT,
+                    "%-30s %6d %6d %10.1f %14.1f %10.1f",
+                    entry.getKey().name, total[0], total[1],
+                    total[0] == 0 ? 0.0 : (double) total[2] / total[0],
+                    total[4] == 0 ? 0.0 : (double) total[3] / total[4],
+                    total[5] / 1e6));
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: laml.vm.sim.Tournament --player prog.gcc... "
+                + "--map (file.map | dir)... [--ghost (prog.ghc | random)...] "
+                + "[--seeds n] [--threads n] [--out results.csv]");
+        System.exit(1);
+    }
+
+    private static void addMaps(Tournament tournament, Path path)
+            throws IOException {
+        if (!Files.isDirectory(path)) {
+            tournament.addMap(path.getFileName().toString(), GameMap.load(path));
+            return;
+        }
+        List<Path> files = new ArrayList<Path>();
+        DirectoryStream<Path> dir = Files.newDirectoryStream(path, "*.map");
+        try {
+            for (Path file : dir) {
+                files.add(file);
+            }
+        } finally {
+            dir.close();
+        }
+        Collections.sort(files);
+        for (Path file : files) {
+            tournament.addMap(file.getFileName().toString(), GameMap.load(file));
+        }
+    }
+
+    public static void main(String[] args) throws IOException,
+            InterruptedException {
+        Tournament tournament = new Tournament();
+        int threads = Runtime.getRuntime().availableProcessors();
+        String outFile = null;
+        boolean anyGhosts = false;
+        for (int i = 0; i < args.length; ++i) {
+            if (i + 1 >= args.length) {
+                usage();
+            }
+            if (args[i].equals("--player")) {
+                Path path = Paths.get(args[++i]);
+                tournament.addPlayer(path.getFileName().toString(),
+                        GccHarness.loadProgram(path));
+            } else if (args[i].equals("--map")) {
+                addMaps(tournament, Paths.get(args[++i]));
+            } else if (args[i].equals("--ghost")) {
+                String ghost = args[++i];
+                if (ghost.equals(RANDOM)) {
+                    tournament.addGhosts(RANDOM, null);
+                } else {
+                    Path path = Paths.get(ghost);
+                    tournament.addGhosts(path.getFileName().toString(),
+                            GhcProgram.load(path));
+                }
+                anyGhosts = true;
+            } else if (args[i].equals("--seeds")) {
+                tournament.setSeeds(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("--threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--out")) {
+                outFile = args[++i];
+            } else {
+                usage();
+            }
+        }
+        if (tournament.players.isEmpty() || tournament.maps.isEmpty()) {
+            usage();
+        }
+        if (!anyGhosts) {
+            tournament.addGhosts(RANDOM, null);
+        }
+
+        PrintStream csv = outFile == null ? System.out
+                : new PrintStream(outFile, "UTF-8");
+        try {
+            tournament.run(threads, csv, outFile == null ? System.err
+                    : System.out);
+        } finally {
+            if (outFile != null) {
+                csv.close();
+            }
+        }
+    }
+}